@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+
+/**
+ * Bounded ring of log messages that are formatted and written by a background thread, so that
+ * logging callers never block on formatting, JNI or logcat. Entries are preallocated. When the
+ * ring is full, new messages are dropped and counted, and the count is logged once the writer has
+ * caught up. Error messages are never dropped; the caller writes them itself instead. Format arguments are kept by reference until the message is formatted, so they should
+ * be immutable, e.g. boxed primitives or Strings. This class is thread safe.
+ */
+class AsyncLogSink {
+  private static final String TAG = "AsyncLogSink";
+  // Marks an entry with a message that must not be formatted.
+  private static final int LITERAL_MESSAGE = -1;
+
+  /**
+   * Writes a formatted message, called on the writer thread.
+   */
+  interface Writer {
+    void write(Logging.Severity severity, String tag, String message);
+  }
+
+  private static class Entry {
+    Logging.Severity severity;
+    String tag;
+    String format;
+    // Number of arguments in |arg0| and |arg1|, or in |args| if it is not null.
+    int argCount;
+    Object arg0;
+    Object arg1;
+    Object[] args;
+    Throwable throwable;
+
+    void clear() {
+      tag = null;
+      format = null;
+      arg0 = null;
+      arg1 = null;
+      args = null;
+      throwable = null;
+    }
+  }
+
+  private final Writer writer;
+  private final Entry[] entries;
+  private final Thread thread;
+  // All fields below are guarded by |entries|.
+  private int readIndex;
+  private int size;
+  // True while the writer thread is writing an entry that it has taken from the ring.
+  private boolean writing;
+  private boolean running = true;
+  // Messages dropped because the ring was full, since the last report.
+  private long droppedMessages;
+  private long totalDroppedMessages;
+
+  AsyncLogSink(int capacity, Writer writer) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.writer = writer;
+    entries = new Entry[capacity];
+    for (int i = 0; i < capacity; ++i) {
+      entries[i] = new Entry();
+    }
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "AsyncLogSink");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queues a message that is written as is. Returns false if the sink has been stopped, or if the
+   * ring is full and the message is an error, in which case the caller should write the message
+   * itself.
+   */
+  boolean offer(Logging.Severity severity, String tag, String message, Throwable throwable) {
+    return offer(severity, tag, message, LITERAL_MESSAGE, null, null, null, throwable);
+  }
+
+  /**
+   * Queues a message that is formatted with String.format() on the writer thread, with the first
+   * |argCount| of |arg0| and |arg1|, or with |args| if it is not null.
+   */
+  boolean offer(Logging.Severity severity, String tag, String format, int argCount, Object arg0,
+      Object arg1, Object[] args, Throwable throwable) {
+    synchronized (entries) {
+      if (!running) {
+        return false;
+      }
+      if (size == entries.length) {
+        if (severity.ordinal() >= Logging.Severity.LS_ERROR.ordinal()) {
+          // Written out of order on the calling thread rather than lost.
+          return false;
+        }
+        ++droppedMessages;
+        ++totalDroppedMessages;
+        return true;
+      }
+      final Entry entry = entries[(readIndex + size) % entries.length];
+      entry.severity = severity;
+      entry.tag = tag;
+      entry.format = format;
+      entry.argCount = argCount;
+      entry.arg0 = arg0;
+      entry.arg1 = arg1;
+      entry.args = args;
+      entry.throwable = throwable;
+      // The writer thread only waits when the ring is empty.
+      if (size++ == 0) {
+        entries.notify();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns the total number of messages dropped because the ring was full.
+   */
+  long getDroppedMessages() {
+    synchronized (entries) {
+      return totalDroppedMessages;
+    }
+  }
+
+  /**
+   * Blocks until all messages queued before this call have been written.
+   */
+  void flush() {
+    synchronized (entries) {
+      while ((size > 0 || writing) && thread.isAlive()) {
+        try {
+          entries.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes all queued messages and stops the writer thread. Messages offered afterwards are
+   * rejected.
+   */
+  void stop() {
+    synchronized (entries) {
+      running = false;
+      entries.notifyAll();
+    }
+    ThreadUtils.joinUninterruptibly(thread);
+  }
+
+  private void writeLoop() {
+    Logging.Severity severity = null;
+    String tag = null;
+    String format = null;
+    int argCount = 0;
+    Object arg0 = null;
+    Object arg1 = null;
+    Object[] args = null;
+    Throwable throwable = null;
+    long dropped;
+    while (true) {
+      synchronized (entries) {
+        writing = false;
+        // Wake up flush() once everything has been written.
+        if (size == 0) {
+          entries.notifyAll();
+        }
+        while (size == 0 && droppedMessages == 0 && running) {
+          try {
+            entries.wait();
+          } catch (InterruptedException e) {
+            // Keep writing until stopped.
+          }
+        }
+        dropped = 0;
+        if (size == 0) {
+          if (droppedMessages == 0) {
+            // Stopped, and everything has been written.
+            return;
+          }
+          // Report drops only after the backlog that caused them has been written.
+          dropped = droppedMessages;
+          droppedMessages = 0;
+        } else {
+          final Entry entry = entries[readIndex];
+          severity = entry.severity;
+          tag = entry.tag;
+          format = entry.format;
+          argCount = entry.argCount;
+          arg0 = entry.arg0;
+          arg1 = entry.arg1;
+          args = entry.args;
+          throwable = entry.throwable;
+          entry.clear();
+          readIndex = (readIndex + 1) % entries.length;
+          --size;
+        }
+        writing = true;
+      }
+      try {
+        if (dropped > 0) {
+          writer.write(Logging.Severity.LS_WARNING, TAG,
+              "Dropped " + dropped + " log messages because the writer could not keep up");
+          continue;
+        }
+        writer.write(severity, tag, format(format, argCount, arg0, arg1, args));
+        if (throwable != null) {
+          writer.write(severity, tag, throwable.toString());
+          writer.write(severity, tag, Logging.getStackTraceString(throwable));
+        }
+      } catch (RuntimeException e) {
+        // A failing write must not stop the writer thread, or flush() would block forever.
+      }
+    }
+  }
+
+  static String format(String format, int argCount, Object arg0, Object arg1, Object[] args) {
+    try {
+      if (args != null) {
+        return String.format(format, args);
+      }
+      switch (argCount) {
+        case LITERAL_MESSAGE:
+          return format;
+        case 0:
+          return String.format(format);
+        case 1:
+          return String.format(format, arg0);
+        default:
+          return String.format(format, arg0, arg1);
+      }
+    } catch (IllegalFormatException e) {
+      // Don't lose the message because of a bad format string.
+      final Object[] allArgs =
+          (args != null) ? args : Arrays.copyOf(new Object[] {arg0, arg1}, argCount);
+      return format + " " + Arrays.toString(allArgs) + " (" + e + ")";
+    }
+  }
+}
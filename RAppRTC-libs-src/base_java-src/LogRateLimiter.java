@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that limits the rate of log messages of a tag. Up to |messagesPerSecond| messages
+ * are allowed in a burst, and the bucket refills continuously at that rate. Messages that are
+ * rejected are counted, so that the count can be logged with the next message that is allowed.
+ * This class is thread safe.
+ */
+class LogRateLimiter {
+  private final double messagesPerSecond;
+  private double tokens;
+  private long lastRefillTimeNs;
+  private long suppressedMessages;
+
+  LogRateLimiter(double messagesPerSecond) {
+    if (messagesPerSecond <= 0) {
+      throw new IllegalArgumentException("Rate must be positive: " + messagesPerSecond);
+    }
+    this.messagesPerSecond = messagesPerSecond;
+    tokens = Math.max(1, messagesPerSecond);
+    lastRefillTimeNs = System.nanoTime();
+  }
+
+  /**
+   * Returns -1 if a message should be suppressed, or else the number of messages suppressed since
+   * the previous message that was allowed.
+   */
+  synchronized long tryAcquire(long nowNs) {
+    final long elapsedNs = nowNs - lastRefillTimeNs;
+    if (elapsedNs > 0) {
+      tokens = Math.min(Math.max(1, messagesPerSecond),
+          tokens + elapsedNs * messagesPerSecond / TimeUnit.SECONDS.toNanos(1));
+      lastRefillTimeNs = nowNs;
+    }
+    if (tokens < 1) {
+      ++suppressedMessages;
+      return -1;
+    }
+    tokens -= 1;
+    final long suppressed = suppressedMessages;
+    suppressedMessages = 0;
+    return suppressed;
+  }
+}
@@ -13,15 +13,37 @@ package org.webrtc;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-/** Java wrapper for WebRTC logging. */
+/**
+ * Java wrapper for WebRTC logging.
+ *
+ * Besides plain messages, messages can be logged with a String.format() format string and
+ * arguments, e.g. Logging.v(TAG, "setRates: %d kbps", kbps). The message is only formatted if its
+ * severity is enabled, so these calls are cheap when it is not. With enableAsyncLogging(), messages
+ * are queued and formatted and written on a background thread instead of the calling thread. The
+ * rate of messages of a tag can be limited with setRateLimit().
+ */
 public class Logging {
   private static final Logger fallbackLogger = Logger.getLogger("org.webrtc.Logging");
   private static volatile boolean tracingEnabled;
   private static volatile boolean loggingEnabled;
   private static volatile boolean nativeLibLoaded;
+  // Lowest severity that is passed on to native logging. Lowered by enableLogToDebugOutput() and
+  // addNativeLogSeverity().
+  private static volatile int minNativeSeverity = Severity.LS_NONE.ordinal();
+  private static volatile AsyncLogSink asyncSink;
+  private static final Map<String, LogRateLimiter> rateLimiters =
+      new ConcurrentHashMap<String, LogRateLimiter>();
+  private static final AsyncLogSink.Writer syncWriter = new AsyncLogSink.Writer() {
+    @Override
+    public void write(Severity severity, String tag, String message) {
+      writeLog(severity, tag, message);
+    }
+  };
 
   static {
     try {
@@ -111,32 +133,149 @@ public class Logging {
       return;
     }
     nativeEnableLogToDebugOutput(severity.ordinal());
+    addNativeLogSeverity(severity);
     loggingEnabled = true;
   }
 
+  // Makes messages of |severity| and above reach native log sinks, such as
+  // CallSessionFileRotatingLogSink.
+  static void addNativeLogSeverity(Severity severity) {
+    synchronized (Logging.class) {
+      minNativeSeverity = Math.min(minNativeSeverity, severity.ordinal());
+    }
+  }
+
+  // Queue messages in a ring of |capacity| entries, and format and write them on a background
+  // thread. Messages that do not fit in the ring are dropped, and their number is logged later.
+  // Error messages that do not fit are written on the calling thread instead.
+  public static synchronized void enableAsyncLogging(int capacity) {
+    if (asyncSink != null) {
+      return;
+    }
+    asyncSink = new AsyncLogSink(capacity, syncWriter);
+  }
+
+  // Write all queued messages and go back to writing messages on the calling thread.
+  public static synchronized void disableAsyncLogging() {
+    final AsyncLogSink sink = asyncSink;
+    if (sink == null) {
+      return;
+    }
+    asyncSink = null;
+    sink.stop();
+  }
+
+  // Block until all messages queued so far have been written, e.g. before the process is killed.
+  public static void flush() {
+    final AsyncLogSink sink = asyncSink;
+    if (sink != null) {
+      sink.flush();
+    }
+  }
+
+  // Returns the number of messages dropped because the async logging ring was full.
+  public static long getDroppedMessages() {
+    final AsyncLogSink sink = asyncSink;
+    return (sink == null) ? 0 : sink.getDroppedMessages();
+  }
+
+  // Limit messages with |tag| to a burst and a sustained rate of |messagesPerSecond|. Messages above
+  // the limit are suppressed, and their number is appended to the next message that is logged.
+  // Use a rate of 0 to remove the limit.
+  public static void setRateLimit(String tag, double messagesPerSecond) {
+    if (messagesPerSecond <= 0) {
+      rateLimiters.remove(tag);
+    } else {
+      rateLimiters.put(tag, new LogRateLimiter(messagesPerSecond));
+    }
+  }
+
+  // Returns true if messages of |severity| are written anywhere. Use to avoid building expensive
+  // messages that would be discarded.
+  public static boolean isLoggable(Severity severity) {
+    if (loggingEnabled) {
+      return severity.ordinal() >= minNativeSeverity;
+    }
+    return fallbackLogger.isLoggable(toLevel(severity));
+  }
+
   public static void log(Severity severity, String tag, String message) {
+    log(severity, tag, message, null /* throwable */);
+  }
+
+  private static void log(Severity severity, String tag, String message, Throwable throwable) {
+    if (!isLoggable(severity)) {
+      return;
+    }
+    final long suppressed = checkRateLimit(tag);
+    if (suppressed < 0) {
+      return;
+    }
+    if (suppressed > 0) {
+      message = message + " (" + suppressed + " messages suppressed)";
+    }
+    final AsyncLogSink sink = asyncSink;
+    if (sink != null && sink.offer(severity, tag, message, throwable)) {
+      return;
+    }
+    writeLog(severity, tag, message);
+    if (throwable != null) {
+      writeLog(severity, tag, throwable.toString());
+      writeLog(severity, tag, getStackTraceString(throwable));
+    }
+  }
+
+  private static void logFormatted(Severity severity, String tag, String format, int argCount,
+      Object arg0, Object arg1, Object[] args) {
+    if (!isLoggable(severity)) {
+      return;
+    }
+    final long suppressed = checkRateLimit(tag);
+    if (suppressed < 0) {
+      return;
+    }
+    if (suppressed > 0) {
+      format = format + " (" + suppressed + " messages suppressed)";
+    }
+    final AsyncLogSink sink = asyncSink;
+    if (sink != null
+        && sink.offer(severity, tag, format, argCount, arg0, arg1, args, null /* throwable */)) {
+      return;
+    }
+    writeLog(severity, tag, AsyncLogSink.format(format, argCount, arg0, arg1, args));
+  }
+
+  // Returns -1 if a message with |tag| should be suppressed, or else the number of messages that
+  // have been suppressed since the last one.
+  private static long checkRateLimit(String tag) {
+    if (rateLimiters.isEmpty() || tag == null) {
+      return 0;
+    }
+    final LogRateLimiter limiter = rateLimiters.get(tag);
+    return (limiter == null) ? 0 : limiter.tryAcquire(System.nanoTime());
+  }
+
+  private static void writeLog(Severity severity, String tag, String message) {
     if (loggingEnabled) {
       nativeLog(severity.ordinal(), tag, message);
       return;
     }
 
     // Fallback to system log.
-    Level level;
+    fallbackLogger.log(toLevel(severity), tag + ": " + message);
+  }
+
+  private static Level toLevel(Severity severity) {
     switch (severity) {
       case LS_ERROR:
-        level = Level.SEVERE;
-        break;
+        return Level.SEVERE;
       case LS_WARNING:
-        level = Level.WARNING;
-        break;
+        return Level.WARNING;
       case LS_INFO:
-        level = Level.INFO;
-        break;
+        return Level.INFO;
       default:
-        level = Level.FINE;
-        break;
+        return Level.FINE;
     }
-    fallbackLogger.log(level, tag + ": " + message);
   }
 
   public static void d(String tag, String message) {
@@ -152,22 +291,69 @@ public class Logging {
   }
 
   public static void e(String tag, String message, Throwable e) {
-    log(Severity.LS_ERROR, tag, message);
-    log(Severity.LS_ERROR, tag, e.toString());
-    log(Severity.LS_ERROR, tag, getStackTraceString(e));
+    log(Severity.LS_ERROR, tag, message, e);
   }
 
   public static void w(String tag, String message, Throwable e) {
-    log(Severity.LS_WARNING, tag, message);
-    log(Severity.LS_WARNING, tag, e.toString());
-    log(Severity.LS_WARNING, tag, getStackTraceString(e));
+    log(Severity.LS_WARNING, tag, message, e);
   }
 
   public static void v(String tag, String message) {
     log(Severity.LS_VERBOSE, tag, message);
   }
 
-  private static String getStackTraceString(Throwable e) {
+  // Formatted variants. |format| is only formatted with String.format() if |severity| is enabled,
+  // on the async logging thread if enabled. The arguments are formatted later, so they should be
+  // immutable. Note that a single Throwable argument selects the e() and w() overloads above.
+  public static void d(String tag, String format, Object arg0) {
+    logFormatted(Severity.LS_INFO, tag, format, 1, arg0, null, null);
+  }
+
+  public static void d(String tag, String format, Object arg0, Object arg1) {
+    logFormatted(Severity.LS_INFO, tag, format, 2, arg0, arg1, null);
+  }
+
+  public static void d(String tag, String format, Object... args) {
+    logFormatted(Severity.LS_INFO, tag, format, args.length, null, null, args);
+  }
+
+  public static void e(String tag, String format, Object arg0) {
+    logFormatted(Severity.LS_ERROR, tag, format, 1, arg0, null, null);
+  }
+
+  public static void e(String tag, String format, Object arg0, Object arg1) {
+    logFormatted(Severity.LS_ERROR, tag, format, 2, arg0, arg1, null);
+  }
+
+  public static void e(String tag, String format, Object... args) {
+    logFormatted(Severity.LS_ERROR, tag, format, args.length, null, null, args);
+  }
+
+  public static void w(String tag, String format, Object arg0) {
+    logFormatted(Severity.LS_WARNING, tag, format, 1, arg0, null, null);
+  }
+
+  public static void w(String tag, String format, Object arg0, Object arg1) {
+    logFormatted(Severity.LS_WARNING, tag, format, 2, arg0, arg1, null);
+  }
+
+  public static void w(String tag, String format, Object... args) {
+    logFormatted(Severity.LS_WARNING, tag, format, args.length, null, null, args);
+  }
+
+  public static void v(String tag, String format, Object arg0) {
+    logFormatted(Severity.LS_VERBOSE, tag, format, 1, arg0, null, null);
+  }
+
+  public static void v(String tag, String format, Object arg0, Object arg1) {
+    logFormatted(Severity.LS_VERBOSE, tag, format, 2, arg0, arg1, null);
+  }
+
+  public static void v(String tag, String format, Object... args) {
+    logFormatted(Severity.LS_VERBOSE, tag, format, args.length, null, null, args);
+  }
+
+  static String getStackTraceString(Throwable e) {
     if (e == null) {
       return "";
     }
@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import org.webrtc.MediaCodecVideoEncoder.BitrateAdjustmentType;
+
+/**
+ * Decides which bitrate to configure a HW encoder with in order to reach a target bitrate, for
+ * encoders with known bitrate control problems. See MediaCodecVideoEncoder.BitrateAdjustmentType.
+ * This class has no Android dependencies so that it can be tested on the JVM, see
+ * BitrateAdjusterTest. It is not thread safe.
+ */
+class BitrateAdjuster {
+  private static final String TAG = "BitrateAdjuster";
+
+  /**
+   * Tuning parameters for the adjustment.
+   */
+  static class Config {
+    // Frame rate the encoder is configured with when using FRAMERATE_ADJUSTMENT.
+    public final int adjustmentFps;
+    // Interval between dynamic bitrate corrections, which is also how many seconds worth of
+    // deviation the accumulator can hold.
+    public final double correctionSec;
+    // Maximum dynamic bitrate correction scale, in both directions.
+    public final double correctionMaxScale;
+    // Number of correction steps needed to reach |correctionMaxScale|.
+    public final int correctionSteps;
+
+    public Config(
+        int adjustmentFps, double correctionSec, double correctionMaxScale, int correctionSteps) {
+      this.adjustmentFps = adjustmentFps;
+      this.correctionSec = correctionSec;
+      this.correctionMaxScale = correctionMaxScale;
+      this.correctionSteps = correctionSteps;
+    }
+
+    @Override
+    public String toString() {
+      return "[adjustmentFps: " + adjustmentFps + ", correctionSec: " + correctionSec
+          + ", correctionMaxScale: " + correctionMaxScale + ", correctionSteps: " + correctionSteps
+          + "]";
+    }
+  }
+
+  static final Config DEFAULT_CONFIG = new Config(30 /* adjustmentFps */,
+      3.0 /* correctionSec */, 2.0 /* correctionMaxScale */, 10 /* correctionSteps */);
+
+  private final BitrateAdjustmentType type;
+  private final Config config;
+  private double bitrateAccumulator;
+  private double bitrateAccumulatorMax;
+  private double bitrateObservationTimeMs;
+  private int bitrateAdjustmentScaleExp;
+  private int targetBitrateBps;
+  private int targetFps;
+
+  public BitrateAdjuster(BitrateAdjustmentType type) {
+    this(type, DEFAULT_CONFIG);
+  }
+
+  public BitrateAdjuster(BitrateAdjustmentType type, Config config) {
+    this.type = type;
+    this.config = config;
+  }
+
+  public BitrateAdjustmentType getType() {
+    return type;
+  }
+
+  /**
+   * Returns the frame rate the encoder should be configured with initially when the caller
+   * requests |fps|.
+   */
+  public int getInitialFps(int fps, int maxInitialFps) {
+    return (type == BitrateAdjustmentType.FRAMERATE_ADJUSTMENT) ? config.adjustmentFps
+                                                               : Math.min(fps, maxInitialFps);
+  }
+
+  /**
+   * Start over with the given targets, e.g. when the encoder is initialized.
+   */
+  public void reset(int targetBitrateBps, int targetFps) {
+    this.targetBitrateBps = targetBitrateBps;
+    this.targetFps = targetFps;
+    bitrateAccumulatorMax = targetBitrateBps / 8.0;
+    bitrateAccumulator = 0;
+    bitrateObservationTimeMs = 0;
+    bitrateAdjustmentScaleExp = 0;
+  }
+
+  /**
+   * Update the target bitrate and frame rate, keeping the current correction.
+   */
+  public void setTargets(int targetBitrateBps, int targetFps) {
+    if (type == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
+      bitrateAccumulatorMax = targetBitrateBps / 8.0;
+      if (this.targetBitrateBps > 0 && targetBitrateBps < this.targetBitrateBps) {
+        // Rescale the accumulator level if the accumulator max decreases
+        bitrateAccumulator = bitrateAccumulator * targetBitrateBps / this.targetBitrateBps;
+      }
+    }
+    this.targetBitrateBps = targetBitrateBps;
+    this.targetFps = targetFps;
+  }
+
+  public int getTargetBitrateBps() {
+    return targetBitrateBps;
+  }
+
+  public int getTargetFps() {
+    return targetFps;
+  }
+
+  /**
+   * Returns the bitrate the encoder should be configured with to reach the target bitrate.
+   */
+  public int getCodecBitrateBps() {
+    if (type == BitrateAdjustmentType.FRAMERATE_ADJUSTMENT && targetFps > 0) {
+      return config.adjustmentFps * targetBitrateBps / targetFps;
+    } else if (type == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT
+        && bitrateAdjustmentScaleExp != 0) {
+      return (int) (targetBitrateBps * getBitrateScale());
+    }
+    return targetBitrateBps;
+  }
+
+  public int getBitrateAdjustmentScaleExp() {
+    return bitrateAdjustmentScaleExp;
+  }
+
+  public double getBitrateScale() {
+    return Math.pow(
+        config.correctionMaxScale, (double) bitrateAdjustmentScaleExp / config.correctionSteps);
+  }
+
+  /**
+   * Report the size of an encoded frame. Returns true if the codec bitrate returned by
+   * getCodecBitrateBps() changed and should be applied to the encoder.
+   */
+  public boolean reportEncodedFrame(int size) {
+    if (targetFps == 0 || type != BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
+      return false;
+    }
+
+    // Accumulate the difference between actial and expected frame sizes.
+    double expectedBytesPerFrame = targetBitrateBps / (8.0 * targetFps);
+    bitrateAccumulator += (size - expectedBytesPerFrame);
+    bitrateObservationTimeMs += 1000.0 / targetFps;
+
+    // Put a cap on the accumulator, i.e., don't let it grow beyond some level to avoid
+    // using too old data for bitrate adjustment.
+    double bitrateAccumulatorCap = config.correctionSec * bitrateAccumulatorMax;
+    bitrateAccumulator = Math.min(bitrateAccumulator, bitrateAccumulatorCap);
+    bitrateAccumulator = Math.max(bitrateAccumulator, -bitrateAccumulatorCap);
+
+    // Do bitrate adjustment every |correctionSec| seconds if actual encoder bitrate deviates too
+    // much form the target value.
+    boolean bitrateAdjustmentScaleChanged = false;
+    if (bitrateObservationTimeMs > 1000 * config.correctionSec) {
+      Logging.d(TAG, "Acc: " + (int) bitrateAccumulator + ". Max: " + (int) bitrateAccumulatorMax
+              + ". ExpScale: " + bitrateAdjustmentScaleExp);
+      if (bitrateAccumulator > bitrateAccumulatorMax) {
+        // Encoder generates too high bitrate - need to reduce the scale.
+        bitrateAccumulator = bitrateAccumulatorMax;
+        bitrateAdjustmentScaleExp--;
+        bitrateAdjustmentScaleChanged = true;
+      } else if (bitrateAccumulator < -bitrateAccumulatorMax) {
+        // Encoder generates too low bitrate - need to increase the scale.
+        bitrateAdjustmentScaleExp++;
+        bitrateAccumulator = -bitrateAccumulatorMax;
+        bitrateAdjustmentScaleChanged = true;
+      }
+      if (bitrateAdjustmentScaleChanged) {
+        bitrateAdjustmentScaleExp = Math.min(bitrateAdjustmentScaleExp, config.correctionSteps);
+        bitrateAdjustmentScaleExp = Math.max(bitrateAdjustmentScaleExp, -config.correctionSteps);
+        Logging.d(TAG, "Adjusting bitrate scale to " + bitrateAdjustmentScaleExp + ". Value: "
+                + getBitrateScale());
+      }
+      bitrateObservationTimeMs = 0;
+    }
+    return bitrateAdjustmentScaleChanged;
+  }
+}
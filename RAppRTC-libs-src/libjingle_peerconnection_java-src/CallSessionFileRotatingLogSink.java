@@ -24,6 +24,7 @@ public class CallSessionFileRotatingLogSink {
   public CallSessionFileRotatingLogSink(
       String dirPath, int maxFileSize, Logging.Severity severity) {
     nativeSink = nativeAddSink(dirPath, maxFileSize, severity.ordinal());
+    Logging.addNativeLogSeverity(severity);
   }
 
   public void dispose() {
@@ -114,11 +114,20 @@ public class DataChannel {
 
   /** Send |data| to the remote peer; return success. */
   public boolean send(Buffer buffer) {
+    final ByteBuffer data = buffer.data;
+    // The native side copies the array before returning, so an array that backs the whole buffer
+    // can be passed as is.
+    if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+        && data.remaining() == data.array().length) {
+      final byte[] array = data.array();
+      data.position(data.limit());
+      return sendNative(array, buffer.binary);
+    }
     // TODO(fischman): this could be cleverer about avoiding copies if the
-    // ByteBuffer is direct and/or is backed by an array.
-    byte[] data = new byte[buffer.data.remaining()];
-    buffer.data.get(data);
-    return sendNative(data, buffer.binary);
+    // ByteBuffer is direct.
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return sendNative(bytes, buffer.binary);
   }
   private native boolean sendNative(byte[] data, boolean binary);
 
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * Bookkeeping for frames in flight in a MediaCodec decoder. Keeps the timestamps of queued frames
+ * in a fixed size primitive ring, in decode order, and maintains a smoothed estimate of the decode
+ * latency that is used to size the input buffer poll timeout. The estimate follows the classic
+ * retransmission timer: a smoothed mean plus four times the smoothed mean deviation.
+ * This class has no Android dependencies and is not thread safe.
+ */
+class DecodeScheduler {
+  // Max number of frames that can be queued in the codec at the same time. HW decoders have far
+  // fewer input and output buffers than this.
+  static final int MAX_FRAMES_IN_FLIGHT = 32;
+  // Bounds for the input buffer poll timeout.
+  static final long MIN_INPUT_POLL_TIMEOUT_MS = 5;
+  static final long MAX_INPUT_POLL_TIMEOUT_MS = 100;
+  // Gains of the smoothed decode latency and its mean deviation, as right shifts.
+  private static final int LATENCY_GAIN_SHIFT = 3;
+  private static final int DEVIATION_GAIN_SHIFT = 2;
+
+  private final long[] decodeStartTimesNs = new long[MAX_FRAMES_IN_FLIGHT];
+  private final long[] timeStampsMs = new long[MAX_FRAMES_IN_FLIGHT];
+  private final long[] ntpTimeStampsMs = new long[MAX_FRAMES_IN_FLIGHT];
+  private int head;
+  private int size;
+
+  // Smoothed decode latency and its mean deviation, in microseconds. Negative until the first
+  // frame has been decoded.
+  private long smoothedLatencyUs = -1;
+  private long latencyDeviationUs;
+
+  /**
+   * Adds a frame that has been queued for decoding. Returns false if there are already
+   * MAX_FRAMES_IN_FLIGHT frames in flight.
+   */
+  boolean add(long decodeStartTimeNs, long timeStampMs, long ntpTimeStampMs) {
+    if (size == MAX_FRAMES_IN_FLIGHT) {
+      return false;
+    }
+    final int index = (head + size) % MAX_FRAMES_IN_FLIGHT;
+    decodeStartTimesNs[index] = decodeStartTimeNs;
+    timeStampsMs[index] = timeStampMs;
+    ntpTimeStampsMs[index] = ntpTimeStampMs;
+    ++size;
+    return true;
+  }
+
+  boolean isFull() {
+    return size == MAX_FRAMES_IN_FLIGHT;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  // Accessors for the oldest frame in flight. Must not be called when empty.
+  long oldestDecodeStartTimeNs() {
+    checkNotEmpty();
+    return decodeStartTimesNs[head];
+  }
+
+  long oldestTimeStampMs() {
+    checkNotEmpty();
+    return timeStampsMs[head];
+  }
+
+  long oldestNtpTimeStampMs() {
+    checkNotEmpty();
+    return ntpTimeStampsMs[head];
+  }
+
+  void removeOldest() {
+    checkNotEmpty();
+    head = (head + 1) % MAX_FRAMES_IN_FLIGHT;
+    --size;
+  }
+
+  // Forgets all frames in flight, but keeps the latency estimate.
+  void clear() {
+    head = 0;
+    size = 0;
+  }
+
+  // Forgets all frames in flight and the latency estimate.
+  void reset() {
+    clear();
+    smoothedLatencyUs = -1;
+    latencyDeviationUs = 0;
+  }
+
+  /**
+   * Updates the latency estimate with the decode latency of a frame.
+   */
+  void onFrameDecoded(long decodeTimeUs) {
+    if (smoothedLatencyUs < 0) {
+      smoothedLatencyUs = decodeTimeUs;
+      latencyDeviationUs = decodeTimeUs / 2;
+      return;
+    }
+    final long error = decodeTimeUs - smoothedLatencyUs;
+    smoothedLatencyUs += error >> LATENCY_GAIN_SHIFT;
+    latencyDeviationUs += (Math.abs(error) - latencyDeviationUs) >> DEVIATION_GAIN_SHIFT;
+  }
+
+  long getSmoothedLatencyUs() {
+    return Math.max(0, smoothedLatencyUs);
+  }
+
+  /**
+   * Returns how long to wait for an input buffer before doing something else, in microseconds.
+   * This is the time within which the oldest frame in flight is expected to finish decoding and
+   * free up codec resources, clamped to [MIN_INPUT_POLL_TIMEOUT_MS, MAX_INPUT_POLL_TIMEOUT_MS].
+   */
+  long getInputPollTimeoutUs() {
+    if (smoothedLatencyUs < 0) {
+      return MAX_INPUT_POLL_TIMEOUT_MS * 1000;
+    }
+    final long timeoutUs = smoothedLatencyUs + 4 * latencyDeviationUs;
+    return Math.max(MIN_INPUT_POLL_TIMEOUT_MS * 1000,
+        Math.min(MAX_INPUT_POLL_TIMEOUT_MS * 1000, timeoutUs));
+  }
+
+  private void checkNotEmpty() {
+    if (size == 0) {
+      throw new IllegalStateException("No frames in flight.");
+    }
+  }
+}
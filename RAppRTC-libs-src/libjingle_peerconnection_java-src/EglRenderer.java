@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implements org.webrtc.VideoRenderer.Callbacks by displaying the video stream on an EGL Surface.
@@ -75,19 +77,14 @@ public class EglRenderer implements VideoRenderer.Callbacks {
   private final String name;
 
   // |renderThreadHandler| is a handler for communicating with |renderThread|, and is synchronized
-  // on |handlerLock|.
+  // on |handlerLock|. It is volatile so that renderFrame() can read it without taking the lock.
   private final Object handlerLock = new Object();
-  private Handler renderThreadHandler;
+  private volatile Handler renderThreadHandler;
 
   private final ArrayList<FrameListenerAndParams> frameListeners = new ArrayList<>();
 
-  // Variables for fps reduction.
-  private final Object fpsReductionLock = new Object();
-  // Time for when next frame should be rendered.
-  private long nextFrameTimeNs;
-  // Minimum duration between frames when fps reduction is active, or -1 if video is completely
-  // paused.
-  private long minRenderPeriodNs;
+  // Limits the render frame rate based on frame timestamps when fps reduction is active.
+  private final FrameRateLimiter frameRateLimiter = new FrameRateLimiter();
 
   // EGL and GL resources for drawing YUV/OES textures. After initilization, these are only accessed
   // from the render thread.
@@ -97,9 +94,11 @@ public class EglRenderer implements VideoRenderer.Callbacks {
   // Texture ids for YUV frames. Allocated on first arrival of a YUV frame.
   private int[] yuvTextures = null;
 
-  // Pending frame to render. Serves as a queue with size 1. Synchronized on |frameLock|.
-  private final Object frameLock = new Object();
-  private VideoRenderer.I420Frame pendingFrame;
+  // Pending frame to render. Serves as a queue with size 1. A render task is posted to
+  // |renderThreadHandler| only when this slot goes from empty to non-empty; a frame that replaces
+  // an existing pending frame reuses the already scheduled render task.
+  private final AtomicReference<VideoRenderer.I420Frame> pendingFrame =
+      new AtomicReference<VideoRenderer.I420Frame>();
 
   // These variables are synchronized on |layoutLock|.
   private final Object layoutLock = new Object();
@@ -107,15 +106,23 @@ public class EglRenderer implements VideoRenderer.Callbacks {
   // If true, mirrors the video stream horizontally.
   private boolean mirror;
 
-  // These variables are synchronized on |statisticsLock|.
-  private final Object statisticsLock = new Object();
+  // Frame counters are updated without locking from both the caller of renderFrame() and the
+  // render thread, and count from init(). The remaining statistics are only accessed on the render
+  // thread, except in init() before any frame can be rendered.
   // Total number of video frames received in renderFrame() call.
-  private int framesReceived;
+  private final AtomicInteger framesReceived = new AtomicInteger();
+  // Number of video frames dropped by renderFrame() because fps reduction is active.
+  private final AtomicInteger framesThrottled = new AtomicInteger();
   // Number of video frames dropped by renderFrame() because previous frame has not been rendered
   // yet.
-  private int framesDropped;
+  private final AtomicInteger framesDropped = new AtomicInteger();
   // Number of rendered video frames.
-  private int framesRendered;
+  private final AtomicInteger framesRendered = new AtomicInteger();
+  // Counter values at the time of the previous logStatistics() call.
+  private int loggedFramesReceived;
+  private int loggedFramesThrottled;
+  private int loggedFramesDropped;
+  private int loggedFramesRendered;
   // Start time for counting these statistics, or 0 if we haven't started measuring yet.
   private long statisticsStartTimeNs;
   // Time in ns spent in renderFrameOnRenderThread() function.
@@ -241,6 +248,7 @@ public class EglRenderer implements VideoRenderer.Callbacks {
           if (yuvTextures != null) {
             GLES20.glDeleteTextures(3, yuvTextures, 0);
             yuvTextures = null;
+            yuvUploader.release();
           }
           if (bitmapTextureFramebuffer != null) {
             bitmapTextureFramebuffer.release();
@@ -269,11 +277,9 @@ public class EglRenderer implements VideoRenderer.Callbacks {
     }
     // Make sure the EGL/GL cleanup posted above is executed.
     ThreadUtils.awaitUninterruptibly(eglCleanupBarrier);
-    synchronized (frameLock) {
-      if (pendingFrame != null) {
-        VideoRenderer.renderFrameDone(pendingFrame);
-        pendingFrame = null;
-      }
+    final VideoRenderer.I420Frame frame = pendingFrame.getAndSet(null);
+    if (frame != null) {
+      dropFrame(frame);
     }
     logD("Releasing done.");
   }
@@ -282,14 +288,17 @@ public class EglRenderer implements VideoRenderer.Callbacks {
    * Reset the statistics logged in logStatistics().
    */
   private void resetStatistics(long currentTimeNs) {
-    synchronized (statisticsLock) {
-      statisticsStartTimeNs = currentTimeNs;
-      framesReceived = 0;
-      framesDropped = 0;
-      framesRendered = 0;
-      renderTimeNs = 0;
-      renderSwapBufferTimeNs = 0;
-    }
+    statisticsStartTimeNs = currentTimeNs;
+    framesReceived.set(0);
+    framesThrottled.set(0);
+    framesDropped.set(0);
+    framesRendered.set(0);
+    loggedFramesReceived = 0;
+    loggedFramesThrottled = 0;
+    loggedFramesDropped = 0;
+    loggedFramesRendered = 0;
+    renderTimeNs = 0;
+    renderSwapBufferTimeNs = 0;
   }
 
   public void printStackTrace() {
@@ -330,25 +339,19 @@ public class EglRenderer implements VideoRenderer.Callbacks {
   }
 
   /**
-   * Limit render framerate.
+   * Limit render framerate. Frames are selected based on their timestamps rather than their
+   * arrival time, see FrameRateLimiter.
    *
    * @param fps Limit render framerate to this value, or use Float.POSITIVE_INFINITY to disable fps
    *            reduction.
    */
   public void setFpsReduction(float fps) {
     logD("setFpsReduction: " + fps);
-    synchronized (fpsReductionLock) {
-      final long previousRenderPeriodNs = minRenderPeriodNs;
-      if (fps <= 0) {
-        minRenderPeriodNs = Long.MAX_VALUE;
-      } else {
-        minRenderPeriodNs = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
-      }
-      if (minRenderPeriodNs != previousRenderPeriodNs) {
-        // Fps reduction changed - reset frame time.
-        nextFrameTimeNs = System.nanoTime();
-      }
-    }
+    frameRateLimiter.setMaxFps(fps);
+  }
+
+  public float getFpsReduction() {
+    return frameRateLimiter.getMaxFps();
   }
 
   public void disableFpsReduction() {
@@ -359,6 +362,28 @@ public class EglRenderer implements VideoRenderer.Callbacks {
     setFpsReduction(0 /* fps */);
   }
 
+  /**
+   * Number of frames passed to renderFrame() since init().
+   */
+  public int getFramesReceived() {
+    return framesReceived.get();
+  }
+
+  /**
+   * Number of frames dropped since init(), either by fps reduction or because the previous frame
+   * had not been rendered yet.
+   */
+  public int getFramesDropped() {
+    return framesThrottled.get() + framesDropped.get();
+  }
+
+  /**
+   * Number of frames drawn to the surface since init().
+   */
+  public int getFramesRendered() {
+    return framesRendered.get();
+  }
+
   /**
    * Register a callback to be invoked when a new video frame has been received. This version uses
    * the drawer of the EglRenderer that was passed in init.
@@ -421,46 +446,51 @@ public class EglRenderer implements VideoRenderer.Callbacks {
   // VideoRenderer.Callbacks interface.
   @Override
   public void renderFrame(VideoRenderer.I420Frame frame) {
-    synchronized (statisticsLock) {
-      ++framesReceived;
+    framesReceived.incrementAndGet();
+    if (FrameLatencyTracer.isEnabled() && frame.timestampNs != 0) {
+      FrameLatencyTracer.frameEntered(FrameLatencyTracer.Stage.RENDER, frame.timestampNs);
     }
-    final boolean dropOldFrame;
-    synchronized (handlerLock) {
-      if (renderThreadHandler == null) {
-        logD("Dropping frame - Not initialized or already released.");
-        VideoRenderer.renderFrameDone(frame);
-        return;
-      }
-      // Check if fps reduction is active.
-      synchronized (fpsReductionLock) {
-        if (minRenderPeriodNs > 0) {
-          final long currentTimeNs = System.nanoTime();
-          if (currentTimeNs < nextFrameTimeNs) {
-            logD("Dropping frame - fps reduction is active.");
-            VideoRenderer.renderFrameDone(frame);
-            return;
-          }
-          nextFrameTimeNs += minRenderPeriodNs;
-          // The time for the next frame should always be in the future.
-          nextFrameTimeNs = Math.max(nextFrameTimeNs, currentTimeNs);
-        }
-      }
-      synchronized (frameLock) {
-        dropOldFrame = (pendingFrame != null);
-        if (dropOldFrame) {
-          VideoRenderer.renderFrameDone(pendingFrame);
-        }
-        pendingFrame = frame;
-        renderThreadHandler.post(renderFrameRunnable);
-      }
+    final Handler handler = renderThreadHandler;
+    if (handler == null) {
+      logD("Dropping frame - Not initialized or already released.");
+      dropFrame(frame);
+      return;
     }
-    if (dropOldFrame) {
-      synchronized (statisticsLock) {
-        ++framesDropped;
+    if (!frameRateLimiter.shouldRenderFrame(frame.timestampNs)) {
+      logD("Dropping frame - fps reduction is active.");
+      framesThrottled.incrementAndGet();
+      dropFrame(frame);
+      return;
+    }
+    final VideoRenderer.I420Frame oldFrame = pendingFrame.getAndSet(frame);
+    if (oldFrame != null) {
+      // The render task posted for |oldFrame| has not consumed the slot yet and will render
+      // |frame| instead.
+      dropFrame(oldFrame);
+      framesDropped.incrementAndGet();
+    } else {
+      handler.post(renderFrameRunnable);
+    }
+    // If release() ran concurrently, it might already have drained |pendingFrame| and quit the
+    // render thread. Take the frame back in that case so that it is not leaked.
+    if (renderThreadHandler == null) {
+      final VideoRenderer.I420Frame leftoverFrame = pendingFrame.getAndSet(null);
+      if (leftoverFrame != null) {
+        dropFrame(leftoverFrame);
       }
     }
   }
 
+  /**
+   * Releases a frame that will not be rendered.
+   */
+  private static void dropFrame(VideoRenderer.I420Frame frame) {
+    if (FrameLatencyTracer.isEnabled() && frame.timestampNs != 0) {
+      FrameLatencyTracer.frameDropped(FrameLatencyTracer.Stage.RENDER, frame.timestampNs);
+    }
+    VideoRenderer.renderFrameDone(frame);
+  }
+
   /**
    * Release EGL surface. This function will block until the EGL surface is released.
    */
@@ -529,17 +559,13 @@ public class EglRenderer implements VideoRenderer.Callbacks {
    */
   private void renderFrameOnRenderThread() {
     // Fetch and render |pendingFrame|.
-    final VideoRenderer.I420Frame frame;
-    synchronized (frameLock) {
-      if (pendingFrame == null) {
-        return;
-      }
-      frame = pendingFrame;
-      pendingFrame = null;
+    final VideoRenderer.I420Frame frame = pendingFrame.getAndSet(null);
+    if (frame == null) {
+      return;
     }
     if (eglBase == null || !eglBase.hasSurface()) {
       logD("Dropping frame - No surface");
-      VideoRenderer.renderFrameDone(frame);
+      dropFrame(frame);
       return;
     }
 
@@ -598,11 +624,16 @@ public class EglRenderer implements VideoRenderer.Callbacks {
     eglBase.swapBuffers();
 
     final long currentTimeNs = System.nanoTime();
-    synchronized (statisticsLock) {
-      ++framesRendered;
-      renderTimeNs += (currentTimeNs - startTimeNs);
-      renderSwapBufferTimeNs += (currentTimeNs - swapBuffersStartTimeNs);
+    framesRendered.incrementAndGet();
+    if (FrameLatencyTracer.isEnabled() && frame.timestampNs != 0) {
+      FrameLatencyTracer.frameLeft(FrameLatencyTracer.Stage.RENDER, frame.timestampNs);
+      if (currentTimeNs > frame.timestampNs) {
+        FrameLatencyTracer.addSample(
+            FrameLatencyTracer.Stage.CAPTURE_TO_RENDER, currentTimeNs - frame.timestampNs);
+      }
     }
+    renderTimeNs += (currentTimeNs - startTimeNs);
+    renderSwapBufferTimeNs += (currentTimeNs - swapBuffersStartTimeNs);
 
     notifyCallbacks(frame, texMatrix);
     VideoRenderer.renderFrameDone(frame);
@@ -668,25 +699,43 @@ public class EglRenderer implements VideoRenderer.Callbacks {
 
   private void logStatistics() {
     final long currentTimeNs = System.nanoTime();
-    synchronized (statisticsLock) {
-      final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
-      if (elapsedTimeNs <= 0) {
-        return;
-      }
-      final float renderFps = framesRendered * TimeUnit.SECONDS.toNanos(1) / (float) elapsedTimeNs;
-      logD("Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
-          + " Frames received: " + framesReceived + "."
-          + " Dropped: " + framesDropped + "."
-          + " Rendered: " + framesRendered + "."
-          + " Render fps: " + String.format("%.1f", renderFps) + "."
-          + " Average render time: " + averageTimeAsString(renderTimeNs, framesRendered) + "."
-          + " Average swapBuffer time: "
-          + averageTimeAsString(renderSwapBufferTimeNs, framesRendered) + ".");
-      resetStatistics(currentTimeNs);
+    final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
+    if (elapsedTimeNs <= 0) {
+      return;
     }
+    // Frames counted concurrently end up in the next interval instead of being lost.
+    final int totalReceived = framesReceived.get();
+    final int totalThrottled = framesThrottled.get();
+    final int totalDropped = framesDropped.get();
+    final int totalRendered = framesRendered.get();
+    final int received = totalReceived - loggedFramesReceived;
+    final int throttled = totalThrottled - loggedFramesThrottled;
+    final int dropped = totalDropped - loggedFramesDropped;
+    final int rendered = totalRendered - loggedFramesRendered;
+    loggedFramesReceived = totalReceived;
+    loggedFramesThrottled = totalThrottled;
+    loggedFramesDropped = totalDropped;
+    loggedFramesRendered = totalRendered;
+    final float renderFps = rendered * TimeUnit.SECONDS.toNanos(1) / (float) elapsedTimeNs;
+    logD("Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
+        + " Frames received: " + received + "."
+        + " Throttled: " + throttled + "."
+        + " Dropped: " + dropped + "."
+        + " Rendered: " + rendered + "."
+        + " Render fps: " + String.format("%.1f", renderFps) + "."
+        + " Average render time: " + averageTimeAsString(renderTimeNs, rendered) + "."
+        + " Average swapBuffer time: " + averageTimeAsString(renderSwapBufferTimeNs, rendered)
+        + "."
+        + " Total YUV bytes uploaded: " + yuvUploader.getBytesUploaded() + "."
+        + " Planes repacked: " + yuvUploader.getPlanesRepacked() + ".");
+    statisticsStartTimeNs = currentTimeNs;
+    renderTimeNs = 0;
+    renderSwapBufferTimeNs = 0;
   }
 
+  // Called per frame when frames are dropped, so |name| is only prepended when the message is
+  // actually logged.
   private void logD(String string) {
-    Logging.d(TAG, name + string);
+    Logging.d(TAG, "%s%s", name, string);
   }
 }
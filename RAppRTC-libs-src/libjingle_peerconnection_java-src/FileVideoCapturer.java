@@ -119,7 +119,7 @@ public class FileVideoCapturer implements VideoCapturer {
         }
         mediaFileStream.readFully(frame);
         byte[] nv21Frame = new byte[frameSize];
-        nativeI420ToNV21(frame, frameWidth, frameHeight, nv21Frame);
+        YuvKernels.i420ToNv21(frame, frameWidth, frameHeight, nv21Frame);
         return nv21Frame;
       } catch (IOException e) {
         throw new RuntimeException(e);
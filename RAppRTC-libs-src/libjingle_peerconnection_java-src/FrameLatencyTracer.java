@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in tracing of per-frame latency through the Java side of the video pipeline. Frames are
+ * stamped with System.nanoTime() when they enter and leave each stage and the difference is
+ * recorded in a LatencyHistogram per stage:
+ *
+ * CAPTURE: Time spent handing a captured frame from the CapturerObserver to the native track
+ *     source, i.e. adaptation, cropping and delivery to local sinks.
+ * ENCODE: From MediaCodecVideoEncoder.encodeBuffer()/encodeTexture() until the encoded frame
+ *     with the same presentation timestamp is dequeued.
+ * DECODE: From MediaCodecVideoDecoder.queueInputBuffer() until the decoded frame with the same
+ *     presentation timestamp is dequeued.
+ * RENDER: From EglRenderer.renderFrame() until the frame has been swapped to screen.
+ * CAPTURE_TO_RENDER: From the capture timestamp of a frame (I420Frame.timestampNs) until it has
+ *     been swapped to screen. For local frames this is the camera timestamp, aligned to the
+ *     System.nanoTime() clock in native code; for decoded remote frames it is their render time,
+ *     so this only covers the delay after the frame was due.
+ *
+ * Within a stage, frames are matched by a key that the stage preserves, such as a presentation
+ * or capture timestamp. When tracing is disabled, the only cost for callers is a volatile read in
+ * isEnabled().
+ *
+ * Usage example:
+ * FrameLatencyTracer.enable();
+ * ...
+ * Logging.d(TAG, FrameLatencyTracer.dump());
+ */
+public class FrameLatencyTracer {
+  private static final String TAG = "FrameLatencyTracer";
+  // Max number of frames that can be in flight in a single stage. Older entries are overwritten.
+  private static final int MAX_PENDING_FRAMES = 64;
+
+  public enum Stage { CAPTURE, ENCODE, DECODE, RENDER, CAPTURE_TO_RENDER }
+
+  // Fixed size ring of frames that have entered a stage but not yet left it. Frames are matched by
+  // a caller provided key, typically a presentation timestamp.
+  private static class PendingFrames {
+    private final long[] keys = new long[MAX_PENDING_FRAMES];
+    private final long[] startTimesNs = new long[MAX_PENDING_FRAMES];
+    private final boolean[] used = new boolean[MAX_PENDING_FRAMES];
+    private int nextIndex;
+
+    synchronized void add(long key, long startTimeNs) {
+      keys[nextIndex] = key;
+      startTimesNs[nextIndex] = startTimeNs;
+      used[nextIndex] = true;
+      nextIndex = (nextIndex + 1) % MAX_PENDING_FRAMES;
+    }
+
+    // Removes the entry for |key| and returns its start time, or -1 if not found.
+    synchronized long remove(long key) {
+      // Search backwards from the most recently added entry since that is the common case for
+      // stages that complete in order.
+      for (int i = 1; i <= MAX_PENDING_FRAMES; ++i) {
+        final int index = (nextIndex - i + MAX_PENDING_FRAMES) % MAX_PENDING_FRAMES;
+        if (used[index] && keys[index] == key) {
+          used[index] = false;
+          return startTimesNs[index];
+        }
+      }
+      return -1;
+    }
+
+    synchronized void clear() {
+      for (int i = 0; i < MAX_PENDING_FRAMES; ++i) {
+        used[i] = false;
+      }
+    }
+  }
+
+  private static volatile boolean enabled;
+  private static final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+  private static final PendingFrames[] pendingFrames = new PendingFrames[Stage.values().length];
+
+  static {
+    for (Stage stage : Stage.values()) {
+      histograms[stage.ordinal()] = new LatencyHistogram(stage.name());
+      pendingFrames[stage.ordinal()] = new PendingFrames();
+    }
+  }
+
+  private FrameLatencyTracer() {}
+
+  public static void enable() {
+    Logging.d(TAG, "Enabling frame latency tracing.");
+    enabled = true;
+  }
+
+  public static void disable() {
+    Logging.d(TAG, "Disabling frame latency tracing.");
+    enabled = false;
+    for (PendingFrames pending : pendingFrames) {
+      pending.clear();
+    }
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Marks that the frame identified by |key| entered |stage|. Does nothing if tracing is disabled.
+   */
+  public static void frameEntered(Stage stage, long key) {
+    if (!enabled) {
+      return;
+    }
+    pendingFrames[stage.ordinal()].add(key, System.nanoTime());
+  }
+
+  /**
+   * Marks that the frame identified by |key| left |stage| and records its latency. Frames that were
+   * not seen entering the stage are ignored.
+   */
+  public static void frameLeft(Stage stage, long key) {
+    if (!enabled) {
+      return;
+    }
+    final long startTimeNs = pendingFrames[stage.ordinal()].remove(key);
+    if (startTimeNs >= 0) {
+      addSample(stage, System.nanoTime() - startTimeNs);
+    }
+  }
+
+  /**
+   * Forgets the frame identified by |key|, e.g. because it was dropped in |stage|.
+   */
+  public static void frameDropped(Stage stage, long key) {
+    if (!enabled) {
+      return;
+    }
+    pendingFrames[stage.ordinal()].remove(key);
+  }
+
+  /**
+   * Records a latency that the caller has measured itself.
+   */
+  public static void addSample(Stage stage, long latencyNs) {
+    if (!enabled) {
+      return;
+    }
+    histograms[stage.ordinal()].addSample(TimeUnit.NANOSECONDS.toMicros(latencyNs));
+  }
+
+  public static LatencyHistogram getHistogram(Stage stage) {
+    return histograms[stage.ordinal()];
+  }
+
+  /**
+   * Returns a human readable summary of all stages.
+   */
+  public static String dump() {
+    final StringBuilder sb = new StringBuilder("Frame latency:");
+    for (LatencyHistogram histogram : histograms) {
+      sb.append("\n  ").append(histogram);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Logs the summary returned by dump() and clears all histograms.
+   */
+  public static void dumpAndReset() {
+    Logging.d(TAG, dump());
+    reset();
+  }
+
+  public static void reset() {
+    for (LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket frame rate limiter driven by frame timestamps. Each frame adds tokens in proportion
+ * to how much time has passed since the previous frame according to their timestamps, and a frame
+ * is let through if a whole token is available. Since arrival time is not used, bursty delivery of
+ * frames does not cause alternating starvation and overshoot, and a 30 fps source limited to 20
+ * fps lets exactly two out of three frames through. Frames without a timestamp fall back to
+ * System.nanoTime(). This class is thread safe; when no limit is set, shouldRenderFrame() does not
+ * take a lock.
+ */
+public class FrameRateLimiter {
+  // Max number of tokens that can be saved up. Two tokens are needed so that fractional rates are
+  // not rounded down when the bucket is refilled.
+  private static final double BUCKET_CAPACITY = 2.0;
+  // Largest timestamp gap that is credited, to avoid a burst after a pause in the stream.
+  private static final long MAX_TIMESTAMP_GAP_NS = TimeUnit.SECONDS.toNanos(1);
+
+  // Current limit in frames per second. Infinity means no limit and 0 means paused.
+  private volatile float maxFps = Float.POSITIVE_INFINITY;
+  // These variables are synchronized on |this|.
+  private double tokens = 1.0;
+  private long lastTimestampNs;
+  private boolean hasLastTimestamp;
+
+  /**
+   * Limit the frame rate to |fps|. Use Float.POSITIVE_INFINITY to disable limiting and 0 to drop
+   * all frames.
+   */
+  public synchronized void setMaxFps(float fps) {
+    if (fps == maxFps) {
+      return;
+    }
+    maxFps = Math.max(0, fps);
+    // Start over so that the next frame is rendered immediately.
+    tokens = 1.0;
+    hasLastTimestamp = false;
+  }
+
+  public float getMaxFps() {
+    return maxFps;
+  }
+
+  /**
+   * Returns true if the frame with capture timestamp |timestampNs| should be rendered, or false if
+   * it should be dropped. Pass 0 if the timestamp is unknown.
+   */
+  public boolean shouldRenderFrame(long timestampNs) {
+    if (maxFps == Float.POSITIVE_INFINITY) {
+      return true;
+    }
+    if (timestampNs == 0) {
+      timestampNs = System.nanoTime();
+    }
+    synchronized (this) {
+      if (maxFps <= 0) {
+        return false;
+      }
+      if (hasLastTimestamp) {
+        final long deltaNs = timestampNs - lastTimestampNs;
+        if (deltaNs < 0) {
+          // Timestamps went backwards, e.g. the source was restarted. Start over.
+          tokens = 1.0;
+        } else {
+          tokens = Math.min(BUCKET_CAPACITY,
+              tokens + Math.min(deltaNs, MAX_TIMESTAMP_GAP_NS) * maxFps / 1e9);
+        }
+      }
+      lastTimestampNs = timestampNs;
+      hasLastTimestamp = true;
+      if (tokens < 1.0) {
+        return false;
+      }
+      tokens -= 1.0;
+      return true;
+    }
+  }
+}
@@ -11,8 +11,10 @@
 package org.webrtc;
 
 /**
- * Class for holding the native pointer of a histogram. Since there is no way to destroy a
- * histogram, please don't create unnecessary instances of this object. This class is thread safe.
+ * Class for holding a histogram of the current MetricsBackend, by default a native histogram.
+ * Since there is no way to destroy a histogram, please don't create unnecessary instances of this
+ * object. The histogram is created in the backend on the first sample, and again after the backend
+ * has been changed with Metrics.setBackend(). This class is thread safe.
  *
  * Usage example:
  * private static final Histogram someMetricHistogram =
@@ -20,25 +22,54 @@ package org.webrtc;
  * someMetricHistogram.addSample(someVariable);
  */
 class Histogram {
-  private final long handle;
+  // A histogram created in |backend|.
+  private static class Binding {
+    final MetricsBackend backend;
+    final long handle;
 
-  private Histogram(long handle) {
-    this.handle = handle;
+    Binding(MetricsBackend backend, long handle) {
+      this.backend = backend;
+      this.handle = handle;
+    }
+  }
+
+  private final String name;
+  private final int min;
+  private final int max;
+  // Number of buckets, or 0 for an enumeration with values in [0, max).
+  private final int bucketCount;
+  private volatile Binding binding;
+
+  private Histogram(String name, int min, int max, int bucketCount) {
+    this.name = name;
+    this.min = min;
+    this.max = max;
+    this.bucketCount = bucketCount;
   }
 
   static public Histogram createCounts(String name, int min, int max, int bucketCount) {
-    return new Histogram(nativeCreateCounts(name, min, max, bucketCount));
+    return new Histogram(name, min, max, bucketCount);
   }
 
   static public Histogram createEnumeration(String name, int max) {
-    return new Histogram(nativeCreateEnumeration(name, max));
+    return new Histogram(name, 0 /* min */, max, 0 /* bucketCount */);
   }
 
   public void addSample(int sample) {
-    nativeAddSample(handle, sample);
+    final MetricsBackend backend = Metrics.getBackend();
+    Binding current = binding;
+    // A handle of 0 is returned by the native backend before Metrics.enable(), so retry then.
+    if (current == null || current.backend != backend || current.handle == 0) {
+      // Backends return the same handle for the same name, so racing threads agree.
+      final long handle = (bucketCount == 0) ? backend.createEnumeration(name, max)
+                                             : backend.createCounts(name, min, max, bucketCount);
+      current = new Binding(backend, handle);
+      binding = current;
+    }
+    backend.addSample(current.handle, sample);
   }
 
-  private static native long nativeCreateCounts(String name, int min, int max, int bucketCount);
-  private static native long nativeCreateEnumeration(String name, int max);
-  private static native void nativeAddSample(long handle, int sample);
+  static native long nativeCreateCounts(String name, int min, int max, int bucketCount);
+  static native long nativeCreateEnumeration(String name, int max);
+  static native void nativeAddSample(long handle, int sample);
 }
@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Backend that stores histograms in Java, so that metrics can be recorded and inspected without
+ * the native library, e.g. in JVM tests. Histograms use the same bucket ranges as Chromium
+ * histograms: exponential for counts and linear for enumerations. Since only bucket counts are
+ * stored, the samples in Metrics.HistogramInfo are keyed by the lower bound of their bucket,
+ * unlike the native backend which keeps exact values. Enumeration buckets hold exactly one value,
+ * so enumerations are reported identically.
+ *
+ * addSample() is lock free. Each histogram keeps several copies of its bucket counters, and
+ * threads add to the copy selected by their thread id, so that threads recording the same
+ * histogram rarely contend on a cache line. The copies are summed in getAndReset().
+ */
+public class JavaMetricsBackend implements MetricsBackend {
+  private static final int MAX_STRIPES = 16;
+  // Counters appended to the counters of each stripe so that stripes do not share cache lines.
+  private static final int STRIPE_PADDING = 16;
+
+  private static class JavaHistogram {
+    final String name;
+    final int min;
+    final int max;
+    final int bucketCount;
+    // |ranges[i]| is the smallest sample in bucket i. |ranges[bucketCount]| is Integer.MAX_VALUE.
+    final int[] ranges;
+    final AtomicLongArray[] stripes;
+
+    JavaHistogram(String name, int min, int max, int[] ranges, int stripeCount) {
+      this.name = name;
+      this.min = min;
+      this.max = max;
+      this.ranges = ranges;
+      bucketCount = ranges.length - 1;
+      stripes = new AtomicLongArray[stripeCount];
+      for (int i = 0; i < stripeCount; ++i) {
+        stripes[i] = new AtomicLongArray(bucketCount + STRIPE_PADDING);
+      }
+    }
+
+    void addSample(int sample) {
+      final int stripe = (int) Thread.currentThread().getId() & (stripes.length - 1);
+      stripes[stripe].incrementAndGet(bucketIndex(sample));
+    }
+
+    int bucketIndex(int sample) {
+      if (sample <= 0) {
+        return 0;
+      }
+      // Last bucket with ranges[bucket] <= sample.
+      final int index = Arrays.binarySearch(ranges, 0, bucketCount, sample);
+      return (index >= 0) ? index : -index - 2;
+    }
+
+    // Returns null if there are no samples.
+    Metrics.HistogramInfo getAndReset() {
+      Metrics.HistogramInfo info = null;
+      for (int bucket = 0; bucket < bucketCount; ++bucket) {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+          if (stripe.get(bucket) != 0) {
+            count += stripe.getAndSet(bucket, 0);
+          }
+        }
+        if (count == 0) {
+          continue;
+        }
+        if (info == null) {
+          info = new Metrics.HistogramInfo(min, max, bucketCount);
+        }
+        info.addSample(ranges[bucket], (int) Math.min(count, Integer.MAX_VALUE));
+      }
+      return info;
+    }
+  }
+
+  private final int stripeCount;
+  private final Object lock = new Object();
+  // Histograms by handle - 1. Replaced on each creation so that addSample() can read it without
+  // locking.
+  private volatile JavaHistogram[] histograms = new JavaHistogram[0];
+  // Guarded by |lock|.
+  private final Map<String, Integer> handles = new HashMap<String, Integer>();
+  private volatile boolean enabled;
+
+  public JavaMetricsBackend() {
+    this(Math.min(MAX_STRIPES, 2 * Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Creates a backend with |stripeCount| copies of each histogram, which is rounded down to a power
+   * of two. Use 1 to store a single copy.
+   */
+  public JavaMetricsBackend(int stripeCount) {
+    this.stripeCount = Integer.highestOneBit(Math.max(1, stripeCount));
+  }
+
+  @Override
+  public void enable() {
+    enabled = true;
+  }
+
+  @Override
+  public long createCounts(String name, int min, int max, int bucketCount) {
+    // Same constraints as Chromium histograms.
+    min = Math.max(1, min);
+    max = Math.max(min + 1, max);
+    bucketCount = Math.max(3, Math.min(bucketCount, max - min + 2));
+    return getOrCreate(name, min, max, exponentialRanges(min, max, bucketCount));
+  }
+
+  @Override
+  public long createEnumeration(String name, int max) {
+    max = Math.max(2, max);
+    return getOrCreate(name, 1, max, linearRanges(1, max, max + 1));
+  }
+
+  @Override
+  public void addSample(long handle, int sample) {
+    if (!enabled || handle <= 0) {
+      return;
+    }
+    final JavaHistogram[] current = histograms;
+    if (handle <= current.length) {
+      current[(int) handle - 1].addSample(sample);
+    }
+  }
+
+  @Override
+  public Metrics getAndReset() {
+    final Metrics metrics = new Metrics();
+    for (JavaHistogram histogram : histograms) {
+      final Metrics.HistogramInfo info = histogram.getAndReset();
+      if (info != null) {
+        metrics.map.put(histogram.name, info);
+      }
+    }
+    return metrics;
+  }
+
+  private long getOrCreate(String name, int min, int max, int[] ranges) {
+    synchronized (lock) {
+      final Integer handle = handles.get(name);
+      if (handle != null) {
+        return handle;
+      }
+      final JavaHistogram[] current = histograms;
+      final JavaHistogram[] grown = Arrays.copyOf(current, current.length + 1);
+      grown[current.length] = new JavaHistogram(name, min, max, ranges, stripeCount);
+      histograms = grown;
+      handles.put(name, grown.length);
+      return grown.length;
+    }
+  }
+
+  // Same as base::Histogram::InitializeBucketRanges() in Chromium.
+  static int[] exponentialRanges(int min, int max, int bucketCount) {
+    final int[] ranges = new int[bucketCount + 1];
+    final double logMax = Math.log(max);
+    int current = min;
+    ranges[1] = current;
+    for (int i = 2; i < bucketCount; ++i) {
+      final double logCurrent = Math.log(current);
+      final double logRatio = (logMax - logCurrent) / (bucketCount - i);
+      final int next = (int) Math.round(Math.exp(logCurrent + logRatio));
+      current = (next > current) ? next : current + 1;
+      ranges[i] = current;
+    }
+    ranges[bucketCount] = Integer.MAX_VALUE;
+    return ranges;
+  }
+
+  // Same as base::LinearHistogram::InitializeBucketRanges() in Chromium.
+  static int[] linearRanges(int min, int max, int bucketCount) {
+    final int[] ranges = new int[bucketCount + 1];
+    for (int i = 1; i < bucketCount; ++i) {
+      final double range =
+          ((double) min * (bucketCount - 1 - i) + (double) max * (i - 1)) / (bucketCount - 2);
+      ranges[i] = (int) (range + 0.5);
+    }
+    ranges[bucketCount] = Integer.MAX_VALUE;
+    return ranges;
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java implementations of the I420 frame processing kernels that are otherwise provided by
+ * libyuv through JNI. This class has no Android or native dependencies, so it can be used and
+ * tested on a plain JVM. Use YuvKernels to select between this and the native
+ * implementation at runtime.
+ *
+ * Like the native functions, all ByteBuffer arguments are addressed from index 0 and their
+ * position and limit are ignored and left unchanged. Rows are processed eight bytes at a time with
+ * long-word operations where the kernel permits it, with the same rounding as the byte at a time
+ * loops. Results of the box filter for ratios other than 2:1 may differ from libyuv by one in the
+ * least significant bit.
+ */
+public final class JavaYuvKernels {
+  private static final long LOW_BYTES_MASK = 0x00FF00FF00FF00FFL;
+  private static final long LOW_SHORTS_MASK = 0x0000FFFF0000FFFFL;
+  private static final long LOW_INT_MASK = 0x00000000FFFFFFFFL;
+  // The value 2 in each 16 bit lane.
+  private static final long ROUNDING_TWOS = 0x0002000200020002L;
+  // Fixed point precision used by the bilinear filter.
+  private static final int FRACTION_BITS = 16;
+  private static final int FRACTION_ONE = 1 << FRACTION_BITS;
+
+  private JavaYuvKernels() {}
+
+  /**
+   * Copies a |width| x |height| plane from |src| to |dst|. Equivalent to
+   * VideoRenderer.nativeCopyPlane().
+   */
+  public static void copyPlane(
+      ByteBuffer src, int width, int height, int srcStride, ByteBuffer dst, int dstStride) {
+    if (srcStride < width || dstStride < width) {
+      throw new IllegalArgumentException(
+          "Wrong stride. Width: " + width + ", src: " + srcStride + ", dst: " + dstStride);
+    }
+    if (src.capacity() < srcStride * height || dst.capacity() < dstStride * height) {
+      throw new IllegalArgumentException("Insufficient buffer capacity");
+    }
+    final ByteBuffer srcRow = src.duplicate();
+    final ByteBuffer dstRow = dst.duplicate();
+    if (srcStride == dstStride) {
+      srcRow.limit(srcStride * height).position(0);
+      dstRow.position(0);
+      dstRow.put(srcRow);
+      return;
+    }
+    for (int y = 0; y < height; ++y) {
+      srcRow.limit(y * srcStride + width).position(y * srcStride);
+      dstRow.position(y * dstStride);
+      dstRow.put(srcRow);
+    }
+  }
+
+  /**
+   * Converts a packed I420 frame in |src| to a packed NV21 frame in |dst|. Equivalent to
+   * FileVideoCapturer.nativeI420ToNV21().
+   */
+  public static void i420ToNv21(byte[] src, int width, int height, byte[] dst) {
+    final int ySize = width * height;
+    final int chromaWidth = width / 2;
+    final int chromaHeight = height / 2;
+    if (src.length < ySize * 3 / 2 || dst.length < ySize * 3 / 2) {
+      throw new IllegalArgumentException("Insufficient buffer size");
+    }
+    System.arraycopy(src, 0, dst, 0, ySize);
+
+    final ByteBuffer srcBuffer = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer dstBuffer = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+    final int uOffset = ySize;
+    final int vOffset = ySize + chromaWidth * chromaHeight;
+    for (int y = 0; y < chromaHeight; ++y) {
+      final int uRow = uOffset + y * chromaWidth;
+      final int vRow = vOffset + y * chromaWidth;
+      final int dstRow = ySize + y * width;
+      int x = 0;
+      // Interleave four V and four U samples into one long: V0 U0 V1 U1 V2 U2 V3 U3.
+      for (; x + 4 <= chromaWidth; x += 4) {
+        final long v = spreadBytes(srcBuffer.getInt(vRow + x));
+        final long u = spreadBytes(srcBuffer.getInt(uRow + x));
+        dstBuffer.putLong(dstRow + 2 * x, v | (u << 8));
+      }
+      for (; x < chromaWidth; ++x) {
+        dst[dstRow + 2 * x] = src[vRow + x];
+        dst[dstRow + 2 * x + 1] = src[uRow + x];
+      }
+    }
+  }
+
+  /**
+   * Converts a packed NV21 frame in |src| to a packed I420 frame in |dst|.
+   */
+  public static void nv21ToI420(byte[] src, int width, int height, byte[] dst) {
+    final int ySize = width * height;
+    final int chromaWidth = width / 2;
+    final int chromaHeight = height / 2;
+    if (src.length < ySize * 3 / 2 || dst.length < ySize * 3 / 2) {
+      throw new IllegalArgumentException("Insufficient buffer size");
+    }
+    System.arraycopy(src, 0, dst, 0, ySize);
+
+    final ByteBuffer srcBuffer = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer dstBuffer = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+    final int uOffset = ySize;
+    final int vOffset = ySize + chromaWidth * chromaHeight;
+    for (int y = 0; y < chromaHeight; ++y) {
+      final int srcRow = ySize + y * width;
+      final int uRow = uOffset + y * chromaWidth;
+      final int vRow = vOffset + y * chromaWidth;
+      int x = 0;
+      // Split one long V0 U0 V1 U1 V2 U2 V3 U3 into four V and four U samples.
+      for (; x + 4 <= chromaWidth; x += 4) {
+        final long vu = srcBuffer.getLong(srcRow + 2 * x);
+        dstBuffer.putInt(vRow + x, gatherBytes(vu));
+        dstBuffer.putInt(uRow + x, gatherBytes(vu >>> 8));
+      }
+      for (; x < chromaWidth; ++x) {
+        dst[vRow + x] = src[srcRow + 2 * x];
+        dst[uRow + x] = src[srcRow + 2 * x + 1];
+      }
+    }
+  }
+
+  /**
+   * Scales an I420 frame with bilinear filtering and writes it packed to |dst|. Equivalent to
+   * VideoFileRenderer.nativeI420Scale().
+   */
+  public static void i420ScaleBilinear(ByteBuffer srcY, int strideY, ByteBuffer srcU, int strideU,
+      ByteBuffer srcV, int strideV, int width, int height, ByteBuffer dst, int dstWidth,
+      int dstHeight) {
+    i420Scale(srcY, strideY, srcU, strideU, srcV, strideV, width, height, dst, dstWidth, dstHeight,
+        false /* box */);
+  }
+
+  /**
+   * Scales an I420 frame by averaging all source pixels covered by each destination pixel, and
+   * writes it packed to |dst|. This gives better quality than bilinear filtering when downscaling
+   * by more than a factor of two. Upscaling falls back to bilinear filtering.
+   */
+  public static void i420ScaleBox(ByteBuffer srcY, int strideY, ByteBuffer srcU, int strideU,
+      ByteBuffer srcV, int strideV, int width, int height, ByteBuffer dst, int dstWidth,
+      int dstHeight) {
+    i420Scale(srcY, strideY, srcU, strideU, srcV, strideV, width, height, dst, dstWidth, dstHeight,
+        true /* box */);
+  }
+
+  private static void i420Scale(ByteBuffer srcY, int strideY, ByteBuffer srcU, int strideU,
+      ByteBuffer srcV, int strideV, int width, int height, ByteBuffer dst, int dstWidth,
+      int dstHeight, boolean box) {
+    final int dstChromaWidth = (dstWidth + 1) / 2;
+    final int dstChromaHeight = (dstHeight + 1) / 2;
+    final int dstUOffset = dstWidth * dstHeight;
+    final int dstVOffset = dstUOffset + dstChromaWidth * dstChromaHeight;
+    if (dst.capacity() < dstVOffset + dstChromaWidth * dstChromaHeight) {
+      throw new IllegalArgumentException("Insufficient destination buffer capacity");
+    }
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    scalePlane(srcY, strideY, width, height, dst, 0, dstWidth, dstWidth, dstHeight, box);
+    scalePlane(srcU, strideU, chromaWidth, chromaHeight, dst, dstUOffset, dstChromaWidth,
+        dstChromaWidth, dstChromaHeight, box);
+    scalePlane(srcV, strideV, chromaWidth, chromaHeight, dst, dstVOffset, dstChromaWidth,
+        dstChromaWidth, dstChromaHeight, box);
+  }
+
+  /**
+   * Scales a single plane. |dst| is written starting at |dstOffset| with |dstStride|.
+   */
+  public static void scalePlane(ByteBuffer src, int srcStride, int srcWidth, int srcHeight,
+      ByteBuffer dst, int dstOffset, int dstStride, int dstWidth, int dstHeight, boolean box) {
+    if (srcWidth == dstWidth && srcHeight == dstHeight) {
+      final ByteBuffer dstPlane = dst.duplicate();
+      dstPlane.position(dstOffset);
+      copyPlane(src, srcWidth, srcHeight, srcStride, dstPlane.slice(), dstStride);
+    } else if (box && srcWidth == 2 * dstWidth && srcHeight == 2 * dstHeight) {
+      scalePlaneHalf(src, srcStride, dst, dstOffset, dstStride, dstWidth, dstHeight);
+    } else if (box && srcWidth >= dstWidth && srcHeight >= dstHeight) {
+      scalePlaneBox(
+          src, srcStride, srcWidth, srcHeight, dst, dstOffset, dstStride, dstWidth, dstHeight);
+    } else {
+      scalePlaneBilinear(
+          src, srcStride, srcWidth, srcHeight, dst, dstOffset, dstStride, dstWidth, dstHeight);
+    }
+  }
+
+  // Exact 2:1 downscale in both directions. Eight bytes of two source rows are split into their
+  // even and odd bytes, widened to 16 bit lanes, summed and rounded into four output bytes.
+  private static void scalePlaneHalf(ByteBuffer src, int srcStride, ByteBuffer dst,
+      int dstOffset, int dstStride, int dstWidth, int dstHeight) {
+    final ByteBuffer srcLE = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer dstLE = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    for (int y = 0; y < dstHeight; ++y) {
+      final int row0 = 2 * y * srcStride;
+      final int row1 = row0 + srcStride;
+      final int dstRow = dstOffset + y * dstStride;
+      int x = 0;
+      for (; x + 4 <= dstWidth; x += 4) {
+        final long upper = srcLE.getLong(row0 + 2 * x);
+        final long lower = srcLE.getLong(row1 + 2 * x);
+        // Each 16 bit lane sums four bytes plus the rounding term, at most 1022.
+        final long sums = (upper & LOW_BYTES_MASK) + ((upper >>> 8) & LOW_BYTES_MASK)
+            + (lower & LOW_BYTES_MASK) + ((lower >>> 8) & LOW_BYTES_MASK) + ROUNDING_TWOS;
+        // (sum + 2) >> 2 fits in the low byte of each lane; the mask drops the bits shifted in
+        // from the lane above.
+        dstLE.putInt(dstRow + x, gatherBytes((sums >>> 2) & LOW_BYTES_MASK));
+      }
+      for (; x < dstWidth; ++x) {
+        final int sum = (src.get(row0 + 2 * x) & 0xFF) + (src.get(row0 + 2 * x + 1) & 0xFF)
+            + (src.get(row1 + 2 * x) & 0xFF) + (src.get(row1 + 2 * x + 1) & 0xFF);
+        dst.put(dstRow + x, (byte) ((sum + 2) >> 2));
+      }
+    }
+  }
+
+  // Arbitrary ratio area-averaging downscale.
+  private static void scalePlaneBox(ByteBuffer src, int srcStride, int srcWidth, int srcHeight,
+      ByteBuffer dst, int dstOffset, int dstStride, int dstWidth, int dstHeight) {
+    final byte[] srcRow = new byte[srcWidth];
+    final byte[] dstRowBytes = new byte[dstWidth];
+    final int[] columnSums = new int[srcWidth];
+    final ByteBuffer srcRows = src.duplicate();
+    final ByteBuffer dstRows = dst.duplicate();
+    for (int y = 0; y < dstHeight; ++y) {
+      final int y0 = (int) ((long) y * srcHeight / dstHeight);
+      final int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * srcHeight / dstHeight));
+      for (int i = 0; i < srcWidth; ++i) {
+        columnSums[i] = 0;
+      }
+      for (int sy = y0; sy < y1; ++sy) {
+        srcRows.limit(sy * srcStride + srcWidth).position(sy * srcStride);
+        srcRows.get(srcRow, 0, srcWidth);
+        for (int i = 0; i < srcWidth; ++i) {
+          columnSums[i] += srcRow[i] & 0xFF;
+        }
+      }
+      for (int x = 0; x < dstWidth; ++x) {
+        final int x0 = (int) ((long) x * srcWidth / dstWidth);
+        final int x1 = Math.max(x0 + 1, (int) ((long) (x + 1) * srcWidth / dstWidth));
+        int sum = 0;
+        for (int sx = x0; sx < x1; ++sx) {
+          sum += columnSums[sx];
+        }
+        final int area = (x1 - x0) * (y1 - y0);
+        dstRowBytes[x] = (byte) ((sum + area / 2) / area);
+      }
+      dstRows.position(dstOffset + y * dstStride);
+      dstRows.put(dstRowBytes);
+    }
+  }
+
+  // Bilinear scaling with 16.16 fixed point source coordinates, aligned on pixel centers. Each
+  // source row is filtered horizontally once and kept until the vertical filter has moved past it.
+  private static void scalePlaneBilinear(ByteBuffer src, int srcStride, int srcWidth,
+      int srcHeight, ByteBuffer dst, int dstOffset, int dstStride, int dstWidth, int dstHeight) {
+    final int[] xIndices = new int[dstWidth];
+    final int[] xFractions = new int[dstWidth];
+    for (int x = 0; x < dstWidth; ++x) {
+      final long sourceX = Math.max(0,
+          ((2L * x + 1) * srcWidth * FRACTION_ONE / (2L * dstWidth)) - FRACTION_ONE / 2);
+      xIndices[x] = Math.min((int) (sourceX >> FRACTION_BITS), srcWidth - 1);
+      xFractions[x] = (xIndices[x] == srcWidth - 1) ? 0 : (int) (sourceX & (FRACTION_ONE - 1));
+    }
+    final byte[] srcRow = new byte[srcWidth];
+    final byte[] dstRowBytes = new byte[dstWidth];
+    int[] upperRow = new int[dstWidth];
+    int[] lowerRow = new int[dstWidth];
+    int upperRowIndex = -1;
+    int lowerRowIndex = -1;
+    final ByteBuffer srcRows = src.duplicate();
+    final ByteBuffer dstRows = dst.duplicate();
+    for (int y = 0; y < dstHeight; ++y) {
+      final long sourceY = Math.max(0,
+          ((2L * y + 1) * srcHeight * FRACTION_ONE / (2L * dstHeight)) - FRACTION_ONE / 2);
+      final int y0 = Math.min((int) (sourceY >> FRACTION_BITS), srcHeight - 1);
+      final int y1 = Math.min(y0 + 1, srcHeight - 1);
+      final int yFraction = (int) (sourceY & (FRACTION_ONE - 1));
+      if (y0 != upperRowIndex) {
+        if (y0 == lowerRowIndex) {
+          final int[] tmp = upperRow;
+          upperRow = lowerRow;
+          lowerRow = tmp;
+          lowerRowIndex = -1;
+        } else {
+          filterRowHorizontal(srcRows, y0 * srcStride, srcRow, xIndices, xFractions, upperRow);
+        }
+        upperRowIndex = y0;
+      }
+      if (y1 != lowerRowIndex) {
+        filterRowHorizontal(srcRows, y1 * srcStride, srcRow, xIndices, xFractions, lowerRow);
+        lowerRowIndex = y1;
+      }
+      for (int x = 0; x < dstWidth; ++x) {
+        // |upperRow| and |lowerRow| hold values with 8 fractional bits.
+        final long value = (long) upperRow[x] * (FRACTION_ONE - yFraction)
+            + (long) lowerRow[x] * yFraction;
+        dstRowBytes[x] = (byte) ((value + (1L << (FRACTION_BITS + 7))) >> (FRACTION_BITS + 8));
+      }
+      dstRows.position(dstOffset + y * dstStride);
+      dstRows.put(dstRowBytes);
+    }
+  }
+
+  private static void filterRowHorizontal(ByteBuffer srcRows, int rowOffset, byte[] srcRow,
+      int[] xIndices, int[] xFractions, int[] outputRow) {
+    srcRows.limit(rowOffset + srcRow.length).position(rowOffset);
+    srcRows.get(srcRow, 0, srcRow.length);
+    final int lastIndex = srcRow.length - 1;
+    for (int x = 0; x < outputRow.length; ++x) {
+      final int index = xIndices[x];
+      final int p0 = srcRow[index] & 0xFF;
+      final int p1 = srcRow[Math.min(index + 1, lastIndex)] & 0xFF;
+      // Keep 8 fractional bits.
+      outputRow[x] = (p0 * (FRACTION_ONE - xFractions[x]) + p1 * xFractions[x]) >> 8;
+    }
+  }
+
+  // Spreads the four bytes of |value| into the even byte lanes of a long.
+  private static long spreadBytes(int value) {
+    long spread = value & LOW_INT_MASK;
+    spread = (spread | (spread << 16)) & LOW_SHORTS_MASK;
+    spread = (spread | (spread << 8)) & LOW_BYTES_MASK;
+    return spread;
+  }
+
+  // Packs the even byte lanes of |value| into an int. Inverse of spreadBytes().
+  private static int gatherBytes(long value) {
+    long packed = value & LOW_BYTES_MASK;
+    packed = (packed | (packed >>> 8)) & LOW_SHORTS_MASK;
+    packed = (packed | (packed >>> 16)) & LOW_INT_MASK;
+    return (int) packed;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram. Values are recorded in microseconds.
+ * Each power-of-two range is split into |SUB_BUCKET_HALF_COUNT| linear sub buckets, which keeps
+ * the relative error of reported percentiles below ~3% over the whole range, with a fixed memory
+ * footprint. Recording is lock free and may be done concurrently from any thread.
+ */
+public class LatencyHistogram {
+  // Number of bits of precision kept for each value.
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  // Largest value that can be recorded without being clamped, ~2^40 us = ~12 days.
+  private static final long MAX_TRACKABLE_VALUE_US = (1L << 40) - 1;
+  private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE_US) + 1;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalSumUs = new AtomicLong();
+  private final AtomicLong maxValueUs = new AtomicLong();
+  private final AtomicLong minValueUs = new AtomicLong(Long.MAX_VALUE);
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  private static int bucketIndex(long valueUs) {
+    final int msb = 63 - Long.numberOfLeadingZeros(valueUs | 1);
+    final int shift = Math.max(0, msb - (SUB_BUCKET_BITS - 1));
+    return shift * SUB_BUCKET_HALF_COUNT + (int) (valueUs >>> shift);
+  }
+
+  // Returns the largest value that maps to the bucket with index |index|.
+  private static long highestValueInBucket(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    final int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+    final long subBucket = index - shift * SUB_BUCKET_HALF_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  public void addSample(long valueUs) {
+    valueUs = Math.max(0, Math.min(valueUs, MAX_TRACKABLE_VALUE_US));
+    counts.incrementAndGet(bucketIndex(valueUs));
+    totalCount.incrementAndGet();
+    totalSumUs.addAndGet(valueUs);
+    long currentMax = maxValueUs.get();
+    while (valueUs > currentMax && !maxValueUs.compareAndSet(currentMax, valueUs)) {
+      currentMax = maxValueUs.get();
+    }
+    long currentMin = minValueUs.get();
+    while (valueUs < currentMin && !minValueUs.compareAndSet(currentMin, valueUs)) {
+      currentMin = minValueUs.get();
+    }
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public long getMaxUs() {
+    return maxValueUs.get();
+  }
+
+  public long getMinUs() {
+    final long min = minValueUs.get();
+    return (min == Long.MAX_VALUE) ? 0 : min;
+  }
+
+  public long getMeanUs() {
+    final long count = totalCount.get();
+    return (count == 0) ? 0 : totalSumUs.get() / count;
+  }
+
+  /**
+   * Returns the value at |percentile| (0-100), rounded up to the upper bound of its bucket, or 0
+   * if no samples have been recorded.
+   */
+  public long getPercentileUs(double percentile) {
+    final long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    final long targetCount =
+        Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+    long cumulativeCount = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      cumulativeCount += counts.get(i);
+      if (cumulativeCount >= targetCount) {
+        return Math.min(highestValueInBucket(i), getMaxUs());
+      }
+    }
+    return getMaxUs();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    totalSumUs.set(0);
+    maxValueUs.set(0);
+    minValueUs.set(Long.MAX_VALUE);
+  }
+
+  @Override
+  public String toString() {
+    return name + ": count=" + getCount() + " min=" + getMinUs() + " mean=" + getMeanUs()
+        + " p50=" + getPercentileUs(50) + " p90=" + getPercentileUs(90)
+        + " p99=" + getPercentileUs(99) + " max=" + getMaxUs() + " (us)";
+  }
+}
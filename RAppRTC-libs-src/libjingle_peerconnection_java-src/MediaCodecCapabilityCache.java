@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the results of walking MediaCodecList to find a supported HW codec, see
+ * MediaCodecVideoEncoder.findHwEncoder() and MediaCodecVideoDecoder.findDecoder(). Results are
+ * always cached in memory. If init() has been called, they are also persisted to a small file in
+ * the application cache directory, which is loaded lazily on the first lookup. The file is keyed by
+ * Build.FINGERPRINT and the version code of the application, so it is discarded when the OS or the
+ * application is updated. The file is written on a background thread, once for all values cached
+ * while a write is pending. This class is thread safe.
+ *
+ * Usage example:
+ * MediaCodecCapabilityCache.init(context);
+ * PeerConnectionFactory.initializeAndroidGlobals(context, ...);
+ */
+public class MediaCodecCapabilityCache {
+  private static final String TAG = "MediaCodecCapabilityCache";
+  private static final String CACHE_FILE_NAME = "webrtc_media_codec_capabilities";
+  // Bump when the format of cached values changes.
+  private static final int CACHE_VERSION = 1;
+  private static final String FINGERPRINT_KEY = "fingerprint";
+  private static final String VERSION_KEY = "version";
+  private static final String APP_VERSION_KEY = "appVersion";
+
+  private static final Map<String, String> entries = new HashMap<String, String>();
+  // Time spent walking MediaCodecList for entries that were not cached.
+  private static final LatencyHistogram discoveryTime = new LatencyHistogram("Codec discovery");
+  private static File cacheFile;
+  private static int appVersionCode;
+  private static boolean loaded;
+  // Created on the first write.
+  private static ExecutorService saveExecutor;
+  private static boolean savePending;
+  private static final Runnable saveRunnable = new Runnable() {
+    @Override
+    public void run() {
+      save();
+    }
+  };
+
+  private MediaCodecCapabilityCache() {}
+
+  /**
+   * Enables persisting the cache in the cache directory of |context|.
+   */
+  public static synchronized void init(Context context) {
+    final File file = new File(context.getCacheDir(), CACHE_FILE_NAME);
+    if (file.equals(cacheFile)) {
+      return;
+    }
+    cacheFile = file;
+    loaded = false;
+    try {
+      appVersionCode =
+          context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+    } catch (PackageManager.NameNotFoundException e) {
+      Logging.w(TAG, "Failed to get the version code: " + e);
+    }
+  }
+
+  /**
+   * Returns the cached value for |key|, or null if it has not been cached. An empty value means
+   * that no codec was found.
+   */
+  static synchronized String get(String key) {
+    maybeLoad();
+    return entries.get(key);
+  }
+
+  /**
+   * Caches |value| for |key|. |discoveryTimeNs| is the time it took to find the value.
+   */
+  static synchronized void put(String key, String value, long discoveryTimeNs) {
+    discoveryTime.addSample(TimeUnit.NANOSECONDS.toMicros(discoveryTimeNs));
+    Logging.d(TAG, "Discovered " + key + " in "
+            + TimeUnit.NANOSECONDS.toMillis(discoveryTimeNs) + " ms.");
+    maybeLoad();
+    entries.put(key, value);
+    postSave();
+  }
+
+  /**
+   * Returns the time spent walking MediaCodecList for values that were not cached.
+   */
+  public static LatencyHistogram getDiscoveryTime() {
+    return discoveryTime;
+  }
+
+  /**
+   * Forgets all cached values, both in memory and on disk.
+   */
+  public static synchronized void clear() {
+    entries.clear();
+    if (cacheFile != null && cacheFile.exists() && !cacheFile.delete()) {
+      Logging.w(TAG, "Failed to delete " + cacheFile);
+    }
+  }
+
+  private static void maybeLoad() {
+    if (loaded || cacheFile == null) {
+      return;
+    }
+    loaded = true;
+    if (!cacheFile.exists()) {
+      return;
+    }
+    final Properties properties = new Properties();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(cacheFile);
+      properties.load(input);
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to load " + cacheFile, e);
+      return;
+    } finally {
+      closeQuietly(input);
+    }
+    if (!Build.FINGERPRINT.equals(properties.getProperty(FINGERPRINT_KEY))
+        || !String.valueOf(CACHE_VERSION).equals(properties.getProperty(VERSION_KEY))
+        || !String.valueOf(appVersionCode).equals(properties.getProperty(APP_VERSION_KEY))) {
+      Logging.d(TAG, "Discarding cache for " + properties.getProperty(FINGERPRINT_KEY));
+      if (!cacheFile.delete()) {
+        Logging.w(TAG, "Failed to delete " + cacheFile);
+      }
+      return;
+    }
+    for (String key : properties.stringPropertyNames()) {
+      if (!key.equals(FINGERPRINT_KEY) && !key.equals(VERSION_KEY)
+          && !key.equals(APP_VERSION_KEY)) {
+        entries.put(key, properties.getProperty(key));
+      }
+    }
+    Logging.d(TAG, "Loaded " + entries.size() + " entries from " + cacheFile);
+  }
+
+  // Schedules a write of the cache file, unless one is pending. Must hold the class lock.
+  private static void postSave() {
+    if (cacheFile == null || savePending) {
+      return;
+    }
+    if (saveExecutor == null) {
+      saveExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, TAG);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    savePending = true;
+    saveExecutor.execute(saveRunnable);
+  }
+
+  // Writes all entries to a temporary file that is then renamed, so a reader never sees a partially
+  // written cache. Called on |saveExecutor|.
+  private static void save() {
+    final Properties properties = new Properties();
+    final File file;
+    synchronized (MediaCodecCapabilityCache.class) {
+      savePending = false;
+      file = cacheFile;
+      properties.putAll(entries);
+      properties.setProperty(APP_VERSION_KEY, String.valueOf(appVersionCode));
+    }
+    properties.setProperty(FINGERPRINT_KEY, Build.FINGERPRINT);
+    properties.setProperty(VERSION_KEY, String.valueOf(CACHE_VERSION));
+    final File tempFile = new File(file.getPath() + ".tmp");
+    OutputStream output = null;
+    try {
+      output = new FileOutputStream(tempFile);
+      properties.store(output, null);
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to write " + tempFile, e);
+      return;
+    } finally {
+      closeQuietly(output);
+    }
+    if (!tempFile.renameTo(file)) {
+      Logging.w(TAG, "Failed to rename " + tempFile + " to " + file);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      Logging.w(TAG, "Failed to close stream: " + e);
+    }
+  }
+}
@@ -20,6 +20,7 @@ import android.os.SystemClock;
 import android.view.Surface;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -28,6 +29,8 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 // Java-side of peerconnection_jni.cc:MediaCodecVideoDecoder.
 // This class is an implementation detail of the Java PeerConnection API.
@@ -44,12 +47,15 @@ public class MediaCodecVideoDecoder {
   // Tracks webrtc::VideoCodecType.
   public enum VideoCodecType { VIDEO_CODEC_VP8, VIDEO_CODEC_VP9, VIDEO_CODEC_H264 }
 
-  // Timeout for input buffer dequeue.
-  private static final int DEQUEUE_INPUT_TIMEOUT = 500000;
+  // Total timeout for input buffer dequeue. The codec is polled in shorter slices sized by
+  // DecodeScheduler, and decoded frames are pulled out of the codec in between.
+  private static final long DEQUEUE_INPUT_TIMEOUT_MS = 500;
   // Timeout for codec releasing.
   private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
   // Max number of output buffers queued before starting to drop decoded frames.
   private static final int MAX_QUEUED_OUTPUTBUFFERS = 3;
+  // Max number of decoded output buffers pulled out of the codec while waiting for an input buffer.
+  private static final int MAX_PREFETCHED_OUTPUTBUFFERS = 2;
   // Active running decoder instance. Set in initDecode() (called from native code)
   // and reset to null in release() call.
   private static MediaCodecVideoDecoder runningInstance = null;
@@ -57,6 +63,8 @@ public class MediaCodecVideoDecoder {
   private static int codecErrors = 0;
   // List of disabled codec types - can be set from application.
   private static Set<String> hwDecoderDisabledTypes = new HashSet<String>();
+  // Statistics of the most recently initialized decoder.
+  private static volatile DecodeStats lastDecodeStats;
 
   private Thread mediaCodecThread;
   private MediaCodec mediaCodec;
@@ -94,7 +102,13 @@ public class MediaCodecVideoDecoder {
   private int stride;
   private int sliceHeight;
   private boolean hasDecodedFirstFrame;
-  private final Queue<TimeStamps> decodeStartTimeMs = new LinkedList<TimeStamps>();
+  // Frames queued in the codec that have not been dequeued yet, in decode order.
+  private final DecodeScheduler decodeScheduler = new DecodeScheduler();
+  private final DecodeStats decodeStats = new DecodeStats();
+  // Decoded output buffers pulled out of the codec in dequeueInputBuffer(), returned first by
+  // dequeueOutputBuffer().
+  private final Queue<DecodedOutputBuffer> prefetchedOutputBuffers =
+      new ArrayDeque<DecodedOutputBuffer>();
   private boolean useSurface;
 
   // The below variables are only used when decoding to a Surface.
@@ -111,6 +125,95 @@ public class MediaCodecVideoDecoder {
     void onMediaCodecVideoDecoderCriticalError(int codecErrors);
   }
 
+  // Reasons for dropping a decoded frame.
+  public enum DropReason {
+    // Too many decoded frames were waiting for the texture to be returned.
+    OUTPUT_QUEUE_FULL,
+    // The decoder was drained and a frame could not be rendered within the timeout.
+    DRAIN_TIMEOUT,
+    // The frame was still in flight when the decoder was reset.
+    FLUSHED
+  }
+
+  /**
+   * Per decoder statistics. Counters are reset when the decoder is initialized. Updated on the
+   * decoder thread and may be read from any thread.
+   */
+  public static class DecodeStats {
+    // Time from queueing a frame until the decoded frame is dequeued.
+    private final LatencyHistogram decodeLatency = new LatencyHistogram("Decode latency");
+    private final AtomicLongArray droppedFrames = new AtomicLongArray(DropReason.values().length);
+    private final AtomicLong slowDecodes = new AtomicLong();
+    private final AtomicLong inputPollRetries = new AtomicLong();
+    private final AtomicLong prefetchedOutputs = new AtomicLong();
+
+    public LatencyHistogram getDecodeLatency() {
+      return decodeLatency;
+    }
+
+    public long getDroppedFrames(DropReason reason) {
+      return droppedFrames.get(reason.ordinal());
+    }
+
+    public long getTotalDroppedFrames() {
+      long total = 0;
+      for (DropReason reason : DropReason.values()) {
+        total += getDroppedFrames(reason);
+      }
+      return total;
+    }
+
+    // Number of frames that took longer than MAX_DECODE_TIME_MS to decode.
+    public long getSlowDecodes() {
+      return slowDecodes.get();
+    }
+
+    // Number of times no input buffer was available within the adaptive poll timeout.
+    public long getInputPollRetries() {
+      return inputPollRetries.get();
+    }
+
+    // Number of decoded frames pulled out of the codec while waiting for an input buffer.
+    public long getPrefetchedOutputs() {
+      return prefetchedOutputs.get();
+    }
+
+    private void addDroppedFrames(DropReason reason, int count) {
+      droppedFrames.addAndGet(reason.ordinal(), count);
+    }
+
+    private void reset() {
+      decodeLatency.reset();
+      for (DropReason reason : DropReason.values()) {
+        droppedFrames.set(reason.ordinal(), 0);
+      }
+      slowDecodes.set(0);
+      inputPollRetries.set(0);
+      prefetchedOutputs.set(0);
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder sb = new StringBuilder();
+      sb.append(decodeLatency).append(". Dropped frames:");
+      for (DropReason reason : DropReason.values()) {
+        sb.append(' ').append(reason).append('=').append(getDroppedFrames(reason));
+      }
+      sb.append(". Slow decodes: ").append(getSlowDecodes());
+      sb.append(". Input poll retries: ").append(getInputPollRetries());
+      sb.append(". Prefetched outputs: ").append(getPrefetchedOutputs());
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Returns the statistics of the most recently initialized decoder, or null if no decoder has
+   * been initialized. They are still updated while that decoder is running.
+   */
+  public static DecodeStats getDecodeStats() {
+    return lastDecodeStats;
+  }
+
   public static void setErrorCallback(MediaCodecVideoDecoderErrorCallback errorCallback) {
     Logging.d(TAG, "Set error callback");
     MediaCodecVideoDecoder.errorCallback = errorCallback;
@@ -169,9 +272,40 @@ public class MediaCodecVideoDecoder {
     }
     public final String codecName; // OpenMax component name for VP8 codec.
     public final int colorFormat; // Color format supported by codec.
+
+    // Serialization for MediaCodecCapabilityCache.
+    String toCacheValue() {
+      return codecName + "," + colorFormat;
+    }
+
+    static DecoderProperties fromCacheValue(String value) {
+      final String[] fields = value.split(",");
+      return new DecoderProperties(fields[0], Integer.parseInt(fields[1]));
+    }
   }
 
+  // Returns the cached result of findDecoderUncached() if there is one. The cache key includes a
+  // hash of the lists the result depends on, so that results found with other lists are not used.
   private static DecoderProperties findDecoder(String mime, String[] supportedCodecPrefixes) {
+    final String lists = Arrays.toString(supportedCodecPrefixes) + supportedColorList;
+    final String cacheKey = "decoder." + mime + "." + Integer.toHexString(lists.hashCode());
+    final String cachedValue = MediaCodecCapabilityCache.get(cacheKey);
+    if (cachedValue != null) {
+      try {
+        return cachedValue.isEmpty() ? null : DecoderProperties.fromCacheValue(cachedValue);
+      } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+        Logging.e(TAG, "Invalid cached decoder properties: " + cachedValue, e);
+      }
+    }
+    final long startTimeNs = System.nanoTime();
+    final DecoderProperties properties = findDecoderUncached(mime, supportedCodecPrefixes);
+    MediaCodecCapabilityCache.put(cacheKey, properties == null ? "" : properties.toCacheValue(),
+        System.nanoTime() - startTimeNs);
+    return properties;
+  }
+
+  private static DecoderProperties findDecoderUncached(
+      String mime, String[] supportedCodecPrefixes) {
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
       return null; // MediaCodec.setParameters is missing.
     }
@@ -302,10 +436,13 @@ public class MediaCodecVideoDecoder {
       colorFormat = properties.colorFormat;
       outputBuffers = mediaCodec.getOutputBuffers();
       inputBuffers = mediaCodec.getInputBuffers();
-      decodeStartTimeMs.clear();
+      decodeScheduler.reset();
+      prefetchedOutputBuffers.clear();
       hasDecodedFirstFrame = false;
       dequeuedSurfaceOutputBuffers.clear();
       droppedFrames = 0;
+      decodeStats.reset();
+      lastDecodeStats = decodeStats;
       Logging.d(TAG,
           "Input buffers: " + inputBuffers.length + ". Output buffers: " + outputBuffers.length);
       return true;
@@ -327,7 +464,11 @@ public class MediaCodecVideoDecoder {
 
     this.width = width;
     this.height = height;
-    decodeStartTimeMs.clear();
+    // All frames that have not been returned to native code are lost in the flush.
+    decodeStats.addDroppedFrames(DropReason.FLUSHED, decodeScheduler.size()
+            + prefetchedOutputBuffers.size() + dequeuedSurfaceOutputBuffers.size());
+    decodeScheduler.clear();
+    prefetchedOutputBuffers.clear();
     dequeuedSurfaceOutputBuffers.clear();
     hasDecodedFirstFrame = false;
     droppedFrames = 0;
@@ -335,6 +476,7 @@ public class MediaCodecVideoDecoder {
 
   private void release() {
     Logging.d(TAG, "Java releaseDecoder. Total number of dropped frames: " + droppedFrames);
+    Logging.d(TAG, "Decode stats: " + decodeStats);
     checkOnMediaCodecThread();
 
     // Run Mediacodec stop() and release() on separate thread since sometime
@@ -379,13 +521,50 @@ public class MediaCodecVideoDecoder {
 
   // Dequeue an input buffer and return its index, -1 if no input buffer is
   // available, or -2 if the codec is no longer operative.
+  // No input buffer is dequeued while |decodeScheduler| cannot track another frame, since the
+  // buffer could not be queued. Native code then drains decoded frames and tries again.
+  // The codec is polled with a timeout based on the observed decode latency. If no input buffer is
+  // available within that time, a decoded frame is pulled out of the codec to free up its
+  // resources, until DEQUEUE_INPUT_TIMEOUT_MS has passed.
   private int dequeueInputBuffer() {
     checkOnMediaCodecThread();
+    if (decodeScheduler.isFull()) {
+      Logging.e(TAG, "Too many frames in flight: " + decodeScheduler.size());
+      return MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+    final long deadlineMs = SystemClock.elapsedRealtime() + DEQUEUE_INPUT_TIMEOUT_MS;
     try {
-      return mediaCodec.dequeueInputBuffer(DEQUEUE_INPUT_TIMEOUT);
+      while (true) {
+        final long remainingUs =
+            TimeUnit.MILLISECONDS.toMicros(deadlineMs - SystemClock.elapsedRealtime());
+        final int index = mediaCodec.dequeueInputBuffer(
+            Math.max(0, Math.min(remainingUs, decodeScheduler.getInputPollTimeoutUs())));
+        if (index != MediaCodec.INFO_TRY_AGAIN_LATER || remainingUs <= 0) {
+          return index;
+        }
+        decodeStats.inputPollRetries.incrementAndGet();
+        prefetchOutputBuffer();
+      }
     } catch (IllegalStateException e) {
       Logging.e(TAG, "dequeueIntputBuffer failed", e);
       return -2;
+    } catch (RuntimeException e) {
+      // Thrown by dequeueOutputBuffer() for unsupported format changes.
+      Logging.e(TAG, "Prefetching decoded frame failed", e);
+      return -2;
+    }
+  }
+
+  // Pulls a decoded frame out of the codec without waiting, if one is available and there is room
+  // in |prefetchedOutputBuffers|.
+  private void prefetchOutputBuffer() {
+    if (prefetchedOutputBuffers.size() >= MAX_PREFETCHED_OUTPUTBUFFERS) {
+      return;
+    }
+    final DecodedOutputBuffer outputBuffer = pollOutputBuffer(0 /* dequeueTimeoutMs */);
+    if (outputBuffer != null) {
+      prefetchedOutputBuffers.add(outputBuffer);
+      decodeStats.prefetchedOutputs.incrementAndGet();
     }
   }
 
@@ -395,8 +574,9 @@ public class MediaCodecVideoDecoder {
     try {
       inputBuffers[inputBufferIndex].position(0);
       inputBuffers[inputBufferIndex].limit(size);
-      decodeStartTimeMs.add(
-          new TimeStamps(SystemClock.elapsedRealtime(), timeStampMs, ntpTimeStamp));
+      // Cannot fail, dequeueInputBuffer() only returned |inputBufferIndex| if there was room.
+      decodeScheduler.add(System.nanoTime(), timeStampMs, ntpTimeStamp);
+      FrameLatencyTracer.frameEntered(FrameLatencyTracer.Stage.DECODE, presentationTimeStamUs);
       mediaCodec.queueInputBuffer(inputBufferIndex, 0, size, presentationTimeStamUs, 0);
       return true;
     } catch (IllegalStateException e) {
@@ -405,20 +585,6 @@ public class MediaCodecVideoDecoder {
     }
   }
 
-  private static class TimeStamps {
-    public TimeStamps(long decodeStartTimeMs, long timeStampMs, long ntpTimeStampMs) {
-      this.decodeStartTimeMs = decodeStartTimeMs;
-      this.timeStampMs = timeStampMs;
-      this.ntpTimeStampMs = ntpTimeStampMs;
-    }
-    // Time when this frame was queued for decoding.
-    private final long decodeStartTimeMs;
-    // Only used for bookkeeping in Java. Stores C++ inputImage._timeStamp value for input frame.
-    private final long timeStampMs;
-    // Only used for bookkeeping in Java. Stores C++ inputImage.ntp_time_ms_ value for input frame.
-    private final long ntpTimeStampMs;
-  }
-
   // Helper struct for dequeueOutputBuffer() below.
   private static class DecodedOutputBuffer {
     public DecodedOutputBuffer(int index, int offset, int size, long presentationTimeStampMs,
@@ -568,7 +734,15 @@ public class MediaCodecVideoDecoder {
   // upon codec error.
   private DecodedOutputBuffer dequeueOutputBuffer(int dequeueTimeoutMs) {
     checkOnMediaCodecThread();
-    if (decodeStartTimeMs.isEmpty()) {
+    if (!prefetchedOutputBuffers.isEmpty()) {
+      return prefetchedOutputBuffers.remove();
+    }
+    return pollOutputBuffer(dequeueTimeoutMs);
+  }
+
+  // Dequeues a decoded buffer directly from the codec. See dequeueOutputBuffer().
+  private DecodedOutputBuffer pollOutputBuffer(int dequeueTimeoutMs) {
+    if (decodeScheduler.isEmpty()) {
       return null;
     }
     // Drain the decoder until receiving a decoded buffer or hitting
@@ -618,17 +792,25 @@ public class MediaCodecVideoDecoder {
           return null;
         default:
           hasDecodedFirstFrame = true;
-          TimeStamps timeStamps = decodeStartTimeMs.remove();
-          long decodeTimeMs = SystemClock.elapsedRealtime() - timeStamps.decodeStartTimeMs;
+          FrameLatencyTracer.frameLeft(FrameLatencyTracer.Stage.DECODE, info.presentationTimeUs);
+          final long decodeTimeUs = TimeUnit.NANOSECONDS.toMicros(
+              System.nanoTime() - decodeScheduler.oldestDecodeStartTimeNs());
+          final long timeStampMs = decodeScheduler.oldestTimeStampMs();
+          final long ntpTimeStampMs = decodeScheduler.oldestNtpTimeStampMs();
+          decodeScheduler.removeOldest();
+          decodeScheduler.onFrameDecoded(decodeTimeUs);
+          decodeStats.decodeLatency.addSample(decodeTimeUs);
+          long decodeTimeMs = TimeUnit.MICROSECONDS.toMillis(decodeTimeUs);
           if (decodeTimeMs > MAX_DECODE_TIME_MS) {
+            decodeStats.slowDecodes.incrementAndGet();
             Logging.e(TAG, "Very high decode time: " + decodeTimeMs + "ms"
-                    + ". Q size: " + decodeStartTimeMs.size()
+                    + ". Q size: " + decodeScheduler.size()
                     + ". Might be caused by resuming H264 decoding after a pause.");
             decodeTimeMs = MAX_DECODE_TIME_MS;
           }
           return new DecodedOutputBuffer(result, info.offset, info.size,
-              TimeUnit.MICROSECONDS.toMillis(info.presentationTimeUs), timeStamps.timeStampMs,
-              timeStamps.ntpTimeStampMs, decodeTimeMs, SystemClock.elapsedRealtime());
+              TimeUnit.MICROSECONDS.toMillis(info.presentationTimeUs), timeStampMs,
+              ntpTimeStampMs, decodeTimeMs, SystemClock.elapsedRealtime());
       }
     }
   }
@@ -664,6 +846,8 @@ public class MediaCodecVideoDecoder {
       // The oldest frame is owned by |textureListener| and can't be dropped since
       // mediaCodec.releaseOutputBuffer has already been called.
       final DecodedOutputBuffer droppedFrame = dequeuedSurfaceOutputBuffers.remove();
+      decodeStats.addDroppedFrames(
+          dequeueTimeoutMs > 0 ? DropReason.DRAIN_TIMEOUT : DropReason.OUTPUT_QUEUE_FULL, 1);
       if (dequeueTimeoutMs > 0) {
         // TODO(perkj): Re-add the below log when VideoRenderGUI has been removed or fixed to
         // return the one and only texture even if it does not render.
@@ -46,13 +46,7 @@ public class MediaCodecVideoEncoder {
 
   private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000; // Timeout for codec releasing.
   private static final int DEQUEUE_TIMEOUT = 0; // Non-blocking, no wait.
-  private static final int BITRATE_ADJUSTMENT_FPS = 30;
   private static final int MAXIMUM_INITIAL_FPS = 30;
-  private static final double BITRATE_CORRECTION_SEC = 3.0;
-  // Maximum bitrate correction scale - no more than 2 times.
-  private static final double BITRATE_CORRECTION_MAX_SCALE = 2;
-  // Amount of correction steps to reach correction maximum scale.
-  private static final int BITRATE_CORRECTION_STEPS = 10;
 
   // Active running encoder instance. Set in initEncode() (called from native code)
   // and reset to null in release() call.
@@ -151,17 +145,21 @@ public class MediaCodecVideoEncoder {
   private VideoCodecType type;
   private int colorFormat; // Used by native code.
 
-  // Variables used for dynamic bitrate adjustment.
-  private BitrateAdjustmentType bitrateAdjustmentType = BitrateAdjustmentType.NO_ADJUSTMENT;
-  private double bitrateAccumulator;
-  private double bitrateAccumulatorMax;
-  private double bitrateObservationTimeMs;
-  private int bitrateAdjustmentScaleExp;
-  private int targetBitrateBps;
-  private int targetFps;
+  // Decides the bitrate the codec is configured with. Created in initEncode().
+  private BitrateAdjuster bitrateAdjuster;
 
-  // SPS and PPS NALs (Config frame) for H.264.
+  // SPS and PPS NALs (Config frame) for H.264. The data is between position and limit.
   private ByteBuffer configData = null;
+  // Recycled buffer for assembling H.264 key frames with SPS and PPS prepended. Grows
+  // geometrically so that a stream of slowly growing key frames does not reallocate every time.
+  private ByteBuffer keyFrameBuffer = null;
+  // Reused by dequeueOutputBuffer(). Only accessed on the MediaCodec thread.
+  private final MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
+  private final OutputBufferInfo outputBufferResult = new OutputBufferInfo(-1, null, false, -1);
+  // Output statistics since initEncode(). Only accessed on the MediaCodec thread.
+  private int outputBuffersPolled;
+  private int emptyOutputPolls;
+  private long outputBytesCopied;
 
   // MediaCodec error handler - invoked when critical error happens which may prevent
   // further use of media codec API. Now it means that one of media codec instances
@@ -234,10 +232,49 @@ public class MediaCodecVideoEncoder {
     public final String codecName; // OpenMax component name for HW codec.
     public final int colorFormat; // Color format supported by codec.
     public final BitrateAdjustmentType bitrateAdjustmentType; // Bitrate adjustment type
+
+    // Serialization for MediaCodecCapabilityCache.
+    String toCacheValue() {
+      return codecName + "," + colorFormat + "," + bitrateAdjustmentType.name();
+    }
+
+    static EncoderProperties fromCacheValue(String value) {
+      final String[] fields = value.split(",");
+      return new EncoderProperties(
+          fields[0], Integer.parseInt(fields[1]), BitrateAdjustmentType.valueOf(fields[2]));
+    }
   }
 
+  // Returns the cached result of findHwEncoderUncached() if there is one. The cache key includes a
+  // hash of the lists the result depends on, so that results found with other lists are not used.
   private static EncoderProperties findHwEncoder(
       String mime, MediaCodecProperties[] supportedHwCodecProperties, int[] colorList) {
+    final StringBuilder lists = new StringBuilder();
+    for (MediaCodecProperties codecProperties : supportedHwCodecProperties) {
+      lists.append(codecProperties.codecPrefix).append(',').append(codecProperties.minSdk)
+          .append(',').append(codecProperties.bitrateAdjustmentType.name()).append(';');
+    }
+    lists.append(Arrays.toString(H264_HW_EXCEPTION_MODELS));
+    final String cacheKey = "encoder." + mime + "." + Arrays.toString(colorList) + "."
+        + Integer.toHexString(lists.toString().hashCode());
+    final String cachedValue = MediaCodecCapabilityCache.get(cacheKey);
+    if (cachedValue != null) {
+      try {
+        return cachedValue.isEmpty() ? null : EncoderProperties.fromCacheValue(cachedValue);
+      } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+        Logging.e(TAG, "Invalid cached encoder properties: " + cachedValue, e);
+      }
+    }
+    final long startTimeNs = System.nanoTime();
+    final EncoderProperties properties =
+        findHwEncoderUncached(mime, supportedHwCodecProperties, colorList);
+    MediaCodecCapabilityCache.put(cacheKey, properties == null ? "" : properties.toCacheValue(),
+        System.nanoTime() - startTimeNs);
+    return properties;
+  }
+
+  private static EncoderProperties findHwEncoderUncached(
+      String mime, MediaCodecProperties[] supportedHwCodecProperties, int[] colorList) {
     // MediaCodec.setParameters is missing for JB and below, so bitrate
     // can not be adjusted dynamically.
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
@@ -388,29 +425,23 @@ public class MediaCodecVideoEncoder {
       throw new RuntimeException("Can not find HW encoder for " + type);
     }
     runningInstance = this; // Encoder is now running and can be queried for stack traces.
+    outputBuffersPolled = 0;
+    emptyOutputPolls = 0;
+    outputBytesCopied = 0;
     colorFormat = properties.colorFormat;
-    bitrateAdjustmentType = properties.bitrateAdjustmentType;
-    if (bitrateAdjustmentType == BitrateAdjustmentType.FRAMERATE_ADJUSTMENT) {
-      fps = BITRATE_ADJUSTMENT_FPS;
-    } else {
-      fps = Math.min(fps, MAXIMUM_INITIAL_FPS);
-    }
-    Logging.d(TAG, "Color format: " + colorFormat + ". Bitrate adjustment: " + bitrateAdjustmentType
-            + ". Initial fps: " + fps);
-    targetBitrateBps = 1000 * kbps;
-    targetFps = fps;
-    bitrateAccumulatorMax = targetBitrateBps / 8.0;
-    bitrateAccumulator = 0;
-    bitrateObservationTimeMs = 0;
-    bitrateAdjustmentScaleExp = 0;
+    bitrateAdjuster = new BitrateAdjuster(properties.bitrateAdjustmentType);
+    fps = bitrateAdjuster.getInitialFps(fps, MAXIMUM_INITIAL_FPS);
+    Logging.d(TAG, "Color format: " + colorFormat + ". Bitrate adjustment: "
+            + properties.bitrateAdjustmentType + ". Initial fps: " + fps);
+    bitrateAdjuster.reset(1000 * kbps, fps);
 
     mediaCodecThread = Thread.currentThread();
     try {
       MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
-      format.setInteger(MediaFormat.KEY_BIT_RATE, targetBitrateBps);
+      format.setInteger(MediaFormat.KEY_BIT_RATE, bitrateAdjuster.getTargetBitrateBps());
       format.setInteger("bitrate-mode", VIDEO_ControlRateConstant);
       format.setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
-      format.setInteger(MediaFormat.KEY_FRAME_RATE, targetFps);
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
       format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSec);
       Logging.d(TAG, "  Format: " + format);
       mediaCodec = createByCodecName(properties.codecName);
@@ -459,6 +490,7 @@ public class MediaCodecVideoEncoder {
         b.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
         mediaCodec.setParameters(b);
       }
+      FrameLatencyTracer.frameEntered(FrameLatencyTracer.Stage.ENCODE, presentationTimestampUs);
       mediaCodec.queueInputBuffer(inputBuffer, 0, size, presentationTimestampUs, 0);
       return true;
     } catch (IllegalStateException e) {
@@ -482,6 +514,7 @@ public class MediaCodecVideoEncoder {
       // but it's a workaround for bug webrtc:5147.
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
       drawer.drawOes(oesTextureId, transformationMatrix, width, height, 0, 0, width, height);
+      FrameLatencyTracer.frameEntered(FrameLatencyTracer.Stage.ENCODE, presentationTimestampUs);
       eglBase.swapBuffers(TimeUnit.MICROSECONDS.toNanos(presentationTimestampUs));
       return true;
     } catch (RuntimeException e) {
@@ -491,7 +524,8 @@ public class MediaCodecVideoEncoder {
   }
 
   void release() {
-    Logging.d(TAG, "Java releaseEncoder");
+    Logging.d(TAG, "Java releaseEncoder. Output buffers: " + outputBuffersPolled
+            + ". Empty polls: " + emptyOutputPolls + ". Bytes copied: " + outputBytesCopied);
     checkOnMediaCodecThread();
 
     // Run Mediacodec stop() and release() on separate thread since sometime
@@ -525,6 +559,8 @@ public class MediaCodecVideoEncoder {
 
     mediaCodec = null;
     mediaCodecThread = null;
+    configData = null;
+    keyFrameBuffer = null;
     if (drawer != null) {
       drawer.release();
       drawer = null;
@@ -544,32 +580,18 @@ public class MediaCodecVideoEncoder {
   private boolean setRates(int kbps, int frameRate) {
     checkOnMediaCodecThread();
 
-    int codecBitrateBps = 1000 * kbps;
-    if (bitrateAdjustmentType == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
-      bitrateAccumulatorMax = codecBitrateBps / 8.0;
-      if (targetBitrateBps > 0 && codecBitrateBps < targetBitrateBps) {
-        // Rescale the accumulator level if the accumulator max decreases
-        bitrateAccumulator = bitrateAccumulator * codecBitrateBps / targetBitrateBps;
-      }
-    }
-    targetBitrateBps = codecBitrateBps;
-    targetFps = frameRate;
-
-    // Adjust actual encoder bitrate based on bitrate adjustment type.
-    if (bitrateAdjustmentType == BitrateAdjustmentType.FRAMERATE_ADJUSTMENT && targetFps > 0) {
-      codecBitrateBps = BITRATE_ADJUSTMENT_FPS * targetBitrateBps / targetFps;
-      Logging.v(TAG,
-          "setRates: " + kbps + " -> " + (codecBitrateBps / 1000) + " kbps. Fps: " + targetFps);
-    } else if (bitrateAdjustmentType == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
-      Logging.v(TAG, "setRates: " + kbps + " kbps. Fps: " + targetFps + ". ExpScale: "
-              + bitrateAdjustmentScaleExp);
-      if (bitrateAdjustmentScaleExp != 0) {
-        codecBitrateBps = (int) (codecBitrateBps * getBitrateScale(bitrateAdjustmentScaleExp));
-      }
-    } else {
-      Logging.v(TAG, "setRates: " + kbps + " kbps. Fps: " + targetFps);
-    }
+    bitrateAdjuster.setTargets(1000 * kbps, frameRate);
+    return applyCodecBitrate();
+  }
 
+  // Configure the codec with the bitrate currently decided by |bitrateAdjuster|.
+  private boolean applyCodecBitrate() {
+    final int codecBitrateBps = bitrateAdjuster.getCodecBitrateBps();
+    if (Logging.isLoggable(Logging.Severity.LS_VERBOSE)) {
+      Logging.v(TAG, "setRates: %d -> %d kbps. Fps: %d. ExpScale: %d",
+          bitrateAdjuster.getTargetBitrateBps() / 1000, codecBitrateBps / 1000,
+          bitrateAdjuster.getTargetFps(), bitrateAdjuster.getBitrateAdjustmentScaleExp());
+    }
     try {
       Bundle params = new Bundle();
       params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, codecBitrateBps);
@@ -593,38 +615,63 @@ public class MediaCodecVideoEncoder {
     }
   }
 
-  // Helper struct for dequeueOutputBuffer() below.
+  // Helper struct for dequeueOutputBuffer() below. A single instance is reused for every call, so
+  // the fields are only valid until the next call to dequeueOutputBuffer().
   static class OutputBufferInfo {
     public OutputBufferInfo(
         int index, ByteBuffer buffer, boolean isKeyFrame, long presentationTimestampUs) {
+      set(index, buffer, isKeyFrame, presentationTimestampUs);
+    }
+
+    OutputBufferInfo set(
+        int index, ByteBuffer buffer, boolean isKeyFrame, long presentationTimestampUs) {
       this.index = index;
       this.buffer = buffer;
       this.isKeyFrame = isKeyFrame;
       this.presentationTimestampUs = presentationTimestampUs;
+      return this;
     }
 
-    public final int index;
-    public final ByteBuffer buffer;
-    public final boolean isKeyFrame;
-    public final long presentationTimestampUs;
+    public int index;
+    public ByteBuffer buffer;
+    public boolean isKeyFrame;
+    public long presentationTimestampUs;
+  }
+
+  // Returns |keyFrameBuffer| cleared and with room for at least |size| bytes.
+  private ByteBuffer getKeyFrameBuffer(int size) {
+    if (keyFrameBuffer == null || keyFrameBuffer.capacity() < size) {
+      final int capacity =
+          (keyFrameBuffer == null) ? size : Math.max(size, keyFrameBuffer.capacity() * 3 / 2);
+      Logging.d(TAG, "Allocating key frame buffer of size " + capacity);
+      keyFrameBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+    keyFrameBuffer.clear();
+    return keyFrameBuffer;
   }
 
   // Dequeue and return an output buffer, or null if no output is ready.  Return
   // a fake OutputBufferInfo with index -1 if the codec is no longer operable.
+  // The returned object is reused and only valid until the next call.
   OutputBufferInfo dequeueOutputBuffer() {
     checkOnMediaCodecThread();
     try {
-      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      final MediaCodec.BufferInfo info = outputBufferInfo;
       int result = mediaCodec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT);
       // Check if this is config frame and save configuration data.
       if (result >= 0) {
         boolean isConfigFrame = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
         if (isConfigFrame) {
           Logging.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
-          configData = ByteBuffer.allocateDirect(info.size);
+          if (configData == null || configData.capacity() < info.size) {
+            configData = ByteBuffer.allocateDirect(info.size);
+          }
+          configData.clear();
           outputBuffers[result].position(info.offset);
           outputBuffers[result].limit(info.offset + info.size);
           configData.put(outputBuffers[result]);
+          configData.flip();
+          outputBytesCopied += info.size;
           // Release buffer back.
           mediaCodec.releaseOutputBuffer(result, false);
           // Query next output.
@@ -632,6 +679,7 @@ public class MediaCodecVideoEncoder {
         }
       }
       if (result >= 0) {
+        ++outputBuffersPolled;
         // MediaCodec doesn't care about Buffer position/remaining/etc so we can
         // mess with them to get a slice and avoid having to pass extra
         // (BufferInfo-related) parameters back to C++.
@@ -639,6 +687,7 @@ public class MediaCodecVideoEncoder {
         outputBuffer.position(info.offset);
         outputBuffer.limit(info.offset + info.size);
         reportEncodedFrame(info.size);
+        FrameLatencyTracer.frameLeft(FrameLatencyTracer.Stage.ENCODE, info.presentationTimeUs);
 
         // Check key frame flag.
         boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
@@ -646,17 +695,20 @@ public class MediaCodecVideoEncoder {
           Logging.d(TAG, "Sync frame generated");
         }
         if (isKeyFrame && type == VideoCodecType.VIDEO_CODEC_H264) {
-          Logging.d(TAG, "Appending config frame of size " + configData.capacity()
+          final int configSize = configData.remaining();
+          Logging.d(TAG, "Appending config frame of size " + configSize
                   + " to output buffer with offset " + info.offset + ", size " + info.size);
-          // For H.264 key frame append SPS and PPS NALs at the start
-          ByteBuffer keyFrameBuffer = ByteBuffer.allocateDirect(configData.capacity() + info.size);
-          configData.rewind();
-          keyFrameBuffer.put(configData);
-          keyFrameBuffer.put(outputBuffer);
-          keyFrameBuffer.position(0);
-          return new OutputBufferInfo(result, keyFrameBuffer, isKeyFrame, info.presentationTimeUs);
+          // For H.264 key frame append SPS and PPS NALs at the start. The native side uses the
+          // buffer capacity as frame size, so return a slice of the recycled buffer.
+          final ByteBuffer buffer = getKeyFrameBuffer(configSize + info.size);
+          buffer.put(configData.duplicate());
+          buffer.put(outputBuffer);
+          buffer.flip();
+          outputBytesCopied += configSize + info.size;
+          return outputBufferResult.set(
+              result, buffer.slice(), isKeyFrame, info.presentationTimeUs);
         } else {
-          return new OutputBufferInfo(
+          return outputBufferResult.set(
               result, outputBuffer.slice(), isKeyFrame, info.presentationTimeUs);
         }
       } else if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
@@ -665,61 +717,19 @@ public class MediaCodecVideoEncoder {
       } else if (result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
         return dequeueOutputBuffer();
       } else if (result == MediaCodec.INFO_TRY_AGAIN_LATER) {
+        ++emptyOutputPolls;
         return null;
       }
       throw new RuntimeException("dequeueOutputBuffer: " + result);
     } catch (IllegalStateException e) {
       Logging.e(TAG, "dequeueOutputBuffer failed", e);
-      return new OutputBufferInfo(-1, null, false, -1);
+      return outputBufferResult.set(-1, null, false, -1);
     }
   }
 
-  private double getBitrateScale(int bitrateAdjustmentScaleExp) {
-    return Math.pow(BITRATE_CORRECTION_MAX_SCALE,
-        (double) bitrateAdjustmentScaleExp / BITRATE_CORRECTION_STEPS);
-  }
-
   private void reportEncodedFrame(int size) {
-    if (targetFps == 0 || bitrateAdjustmentType != BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
-      return;
-    }
-
-    // Accumulate the difference between actial and expected frame sizes.
-    double expectedBytesPerFrame = targetBitrateBps / (8.0 * targetFps);
-    bitrateAccumulator += (size - expectedBytesPerFrame);
-    bitrateObservationTimeMs += 1000.0 / targetFps;
-
-    // Put a cap on the accumulator, i.e., don't let it grow beyond some level to avoid
-    // using too old data for bitrate adjustment.
-    double bitrateAccumulatorCap = BITRATE_CORRECTION_SEC * bitrateAccumulatorMax;
-    bitrateAccumulator = Math.min(bitrateAccumulator, bitrateAccumulatorCap);
-    bitrateAccumulator = Math.max(bitrateAccumulator, -bitrateAccumulatorCap);
-
-    // Do bitrate adjustment every 3 seconds if actual encoder bitrate deviates too much
-    // form the target value.
-    if (bitrateObservationTimeMs > 1000 * BITRATE_CORRECTION_SEC) {
-      Logging.d(TAG, "Acc: " + (int) bitrateAccumulator + ". Max: " + (int) bitrateAccumulatorMax
-              + ". ExpScale: " + bitrateAdjustmentScaleExp);
-      boolean bitrateAdjustmentScaleChanged = false;
-      if (bitrateAccumulator > bitrateAccumulatorMax) {
-        // Encoder generates too high bitrate - need to reduce the scale.
-        bitrateAccumulator = bitrateAccumulatorMax;
-        bitrateAdjustmentScaleExp--;
-        bitrateAdjustmentScaleChanged = true;
-      } else if (bitrateAccumulator < -bitrateAccumulatorMax) {
-        // Encoder generates too low bitrate - need to increase the scale.
-        bitrateAdjustmentScaleExp++;
-        bitrateAccumulator = -bitrateAccumulatorMax;
-        bitrateAdjustmentScaleChanged = true;
-      }
-      if (bitrateAdjustmentScaleChanged) {
-        bitrateAdjustmentScaleExp = Math.min(bitrateAdjustmentScaleExp, BITRATE_CORRECTION_STEPS);
-        bitrateAdjustmentScaleExp = Math.max(bitrateAdjustmentScaleExp, -BITRATE_CORRECTION_STEPS);
-        Logging.d(TAG, "Adjusting bitrate scale to " + bitrateAdjustmentScaleExp + ". Value: "
-                + getBitrateScale(bitrateAdjustmentScaleExp));
-        setRates(targetBitrateBps / 1000, targetFps);
-      }
-      bitrateObservationTimeMs = 0;
+    if (bitrateAdjuster.reportEncodedFrame(size)) {
+      applyCodecBitrate();
     }
   }
 
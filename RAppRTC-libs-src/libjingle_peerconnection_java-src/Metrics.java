@@ -28,12 +28,23 @@ import java.util.Map;
 // Most histograms are not updated frequently (e.g. most video metrics are an
 // average over the call and recorded when a stream is removed).
 // The metrics can for example be retrieved when a peer connection is closed.
+//
+// Histograms are stored by a MetricsBackend, by default in native code. If the
+// native library can not be loaded, e.g. on a JVM, or after
+// setBackend(new JavaMetricsBackend()), they are stored in Java instead.
 
 public class Metrics {
   private static final String TAG = "Metrics";
 
+  private static volatile MetricsBackend backend;
+
   static {
-    System.loadLibrary("jingle_peerconnection_so");
+    try {
+      System.loadLibrary("jingle_peerconnection_so");
+      backend = new NativeMetricsBackend();
+    } catch (UnsatisfiedLinkError e) {
+      backend = new JavaMetricsBackend();
+    }
   }
   public final Map<String, HistogramInfo> map =
       new HashMap<String, HistogramInfo>(); // <name, HistogramInfo>
@@ -63,17 +74,31 @@ public class Metrics {
     map.put(name, info);
   }
 
+  // Selects where histograms are stored. Histograms recorded with Histogram move
+  // to the new backend on their next sample; samples already recorded stay in
+  // the old backend. Call enable() again afterwards.
+  public static void setBackend(MetricsBackend newBackend) {
+    if (newBackend == null) {
+      throw new IllegalArgumentException("Backend must not be null");
+    }
+    backend = newBackend;
+  }
+
+  public static MetricsBackend getBackend() {
+    return backend;
+  }
+
   // Enables gathering of metrics (which can be fetched with getAndReset()).
   // Must be called before PeerConnectionFactory is created.
   public static void enable() {
-    nativeEnable();
+    backend.enable();
   }
 
-  // Gets and clears native histograms.
+  // Gets and clears histograms.
   public static Metrics getAndReset() {
-    return nativeGetAndReset();
+    return backend.getAndReset();
   }
 
-  private static native void nativeEnable();
-  private static native Metrics nativeGetAndReset();
+  static native void nativeEnable();
+  static native Metrics nativeGetAndReset();
 }
@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * Storage of the histograms recorded with Histogram and returned by Metrics.getAndReset(). The
+ * default backend stores them in native code, see androidhistogram_jni.cc. JavaMetricsBackend
+ * stores them in Java, which works without the native library. Select the backend with
+ * Metrics.setBackend(). Implementations must be thread safe.
+ */
+public interface MetricsBackend {
+  /**
+   * Enables gathering of metrics. Samples added before are ignored.
+   */
+  void enable();
+
+  /**
+   * Returns a handle of the histogram |name| with |bucketCount| buckets between |min| and |max|.
+   * Returns the same handle for the same name. A handle of 0 means that samples are ignored.
+   */
+  long createCounts(String name, int min, int max, int bucketCount);
+
+  /**
+   * Returns a handle of the enumeration histogram |name| with values in [0, max).
+   */
+  long createEnumeration(String name, int max);
+
+  void addSample(long handle, int sample);
+
+  /**
+   * Returns and clears the samples of all histograms.
+   */
+  Metrics getAndReset();
+}
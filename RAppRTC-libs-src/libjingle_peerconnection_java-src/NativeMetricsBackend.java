@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * Backend that stores histograms in webrtc::metrics, see androidhistogram_jni.cc and
+ * androidmetrics_jni.cc. Requires the native library.
+ */
+class NativeMetricsBackend implements MetricsBackend {
+  @Override
+  public void enable() {
+    Metrics.nativeEnable();
+  }
+
+  @Override
+  public long createCounts(String name, int min, int max, int bucketCount) {
+    return Histogram.nativeCreateCounts(name, min, max, bucketCount);
+  }
+
+  @Override
+  public long createEnumeration(String name, int max) {
+    return Histogram.nativeCreateEnumeration(name, max);
+  }
+
+  @Override
+  public void addSample(long handle, int sample) {
+    Histogram.nativeAddSample(handle, sample);
+  }
+
+  @Override
+  public Metrics getAndReset() {
+    return Metrics.nativeGetAndReset();
+  }
+}
@@ -60,18 +60,36 @@ public class RendererCommon {
    */
   public static class YuvUploader {
     // Intermediate copy buffer for uploading yuv frames that are not packed, i.e. stride > width.
+    // GLES 2.0 has no GL_UNPACK_ROW_LENGTH, so planes with padding still have to be repacked.
     // TODO(magjed): Investigate when GL_UNPACK_ROW_LENGTH is available, or make a custom shader
     // that handles stride and compare performance with intermediate copy.
     private ByteBuffer copyBuffer;
+    // Plane sizes of the current frame. Reused between calls to avoid allocations.
+    private final int[] planeWidths = new int[3];
+    private final int[] planeHeights = new int[3];
+    // Texture ids and sizes that storage has been allocated for with glTexImage2D(). Frames with the
+    // same size are uploaded with glTexSubImage2D() instead of reallocating the storage.
+    private final int[] allocatedTextures = new int[3];
+    private final int[] allocatedWidths = new int[3];
+    private final int[] allocatedHeights = new int[3];
+    // Statistics. Written on the GL thread, may be read from any thread.
+    private volatile long bytesUploaded;
+    private volatile long planesRepacked;
+    private volatile long texturesAllocated;
 
     /**
      * Upload |planes| into |outputYuvTextures|, taking stride into consideration.
-     * |outputYuvTextures| must have been generated in advance.
+     * |outputYuvTextures| must have been generated in advance. If the textures are deleted, release()
+     * must be called before uploading into new textures.
      */
     public void uploadYuvData(
         int[] outputYuvTextures, int width, int height, int[] strides, ByteBuffer[] planes) {
-      final int[] planeWidths = new int[] {width, width / 2, width / 2};
-      final int[] planeHeights = new int[] {height, height / 2, height / 2};
+      planeWidths[0] = width;
+      planeWidths[1] = width / 2;
+      planeWidths[2] = width / 2;
+      planeHeights[0] = height;
+      planeHeights[1] = height / 2;
+      planeHeights[2] = height / 2;
       // Make a first pass to see if we need a temporary copy buffer.
       int copyCapacityNeeded = 0;
       for (int i = 0; i < 3; ++i) {
@@ -85,6 +103,7 @@ public class RendererCommon {
         copyBuffer = ByteBuffer.allocateDirect(copyCapacityNeeded);
       }
       // Upload each plane.
+      long uploadedBytes = 0;
       for (int i = 0; i < 3; ++i) {
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, outputYuvTextures[i]);
@@ -94,14 +113,61 @@ public class RendererCommon {
           // Input is packed already.
           packedByteBuffer = planes[i];
         } else {
-          VideoRenderer.nativeCopyPlane(
+          YuvKernels.copyPlane(
               planes[i], planeWidths[i], planeHeights[i], strides[i], copyBuffer, planeWidths[i]);
           packedByteBuffer = copyBuffer;
+          ++planesRepacked;
         }
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, planeWidths[i],
-            planeHeights[i], 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, packedByteBuffer);
+        if (allocatedTextures[i] == outputYuvTextures[i] && allocatedWidths[i] == planeWidths[i]
+            && allocatedHeights[i] == planeHeights[i]) {
+          GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, planeWidths[i], planeHeights[i],
+              GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, packedByteBuffer);
+        } else {
+          GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, planeWidths[i],
+              planeHeights[i], 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, packedByteBuffer);
+          allocatedTextures[i] = outputYuvTextures[i];
+          allocatedWidths[i] = planeWidths[i];
+          allocatedHeights[i] = planeHeights[i];
+          ++texturesAllocated;
+        }
+        uploadedBytes += planeWidths[i] * planeHeights[i];
+      }
+      bytesUploaded += uploadedBytes;
+    }
+
+    /**
+     * Forget the texture storage allocated so far and free the copy buffer. Must be called when the
+     * textures passed to uploadYuvData() are deleted, since GL may reuse their ids for new textures.
+     */
+    public void release() {
+      copyBuffer = null;
+      for (int i = 0; i < 3; ++i) {
+        allocatedTextures[i] = 0;
+        allocatedWidths[i] = 0;
+        allocatedHeights[i] = 0;
       }
     }
+
+    /**
+     * Total number of plane bytes passed to GL.
+     */
+    public long getBytesUploaded() {
+      return bytesUploaded;
+    }
+
+    /**
+     * Number of planes that had to be repacked into the intermediate buffer because stride > width.
+     */
+    public long getPlanesRepacked() {
+      return planesRepacked;
+    }
+
+    /**
+     * Number of times texture storage was (re)allocated with glTexImage2D().
+     */
+    public long getTexturesAllocated() {
+      return texturesAllocated;
+    }
   }
 
   /**
@@ -14,8 +14,10 @@ import android.content.Context;
 import android.content.res.Resources.NotFoundException;
 import android.graphics.Point;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -30,6 +32,10 @@ import java.util.concurrent.CountDownLatch;
 public class SurfaceViewRenderer
     extends SurfaceView implements SurfaceHolder.Callback, VideoRenderer.Callbacks {
   private static final String TAG = "SurfaceViewRenderer";
+  // Render framerate used by automatic fps reduction when the view covers at most
+  // 1/|SMALL_VIEW_AREA_FRACTION| of the display, e.g. a picture-in-picture view.
+  private static final float SMALL_VIEW_FPS = 15.0f;
+  private static final int SMALL_VIEW_AREA_FRACTION = 9;
 
   // Cached resource name.
   private final String resourceName;
@@ -51,6 +57,13 @@ public class SurfaceViewRenderer
   private int surfaceWidth;
   private int surfaceHeight;
 
+  // Fps reduction requested by the app and fps reduction chosen automatically from the view size
+  // and visibility. The lower of the two is applied. Synchronized on |fpsReductionLock|.
+  private final Object fpsReductionLock = new Object();
+  private float requestedFps = Float.POSITIVE_INFINITY;
+  private float automaticFps = Float.POSITIVE_INFINITY;
+  private boolean enableAutomaticFpsReduction;
+
   /**
    * Standard View constructor. In order to render something, you must first call init().
    */
@@ -175,15 +188,88 @@ public class SurfaceViewRenderer
    *            reduction.
    */
   public void setFpsReduction(float fps) {
-    eglRenderer.setFpsReduction(fps);
+    synchronized (fpsReductionLock) {
+      requestedFps = fps;
+      updateFpsReduction();
+    }
   }
 
   public void disableFpsReduction() {
-    eglRenderer.disableFpsReduction();
+    setFpsReduction(Float.POSITIVE_INFINITY /* fps */);
   }
 
   public void pauseVideo() {
-    eglRenderer.pauseVideo();
+    setFpsReduction(0 /* fps */);
+  }
+
+  /**
+   * Enables automatic fps reduction. The render framerate is then lowered to SMALL_VIEW_FPS while
+   * the view is small compared to the display, and video is paused while the view is not shown.
+   * The app can still lower the framerate further with setFpsReduction(). By default this is
+   * turned off, so the view renders every frame unless the app asks otherwise.
+   */
+  public void setEnableAutomaticFpsReduction(boolean enabled) {
+    ThreadUtils.checkIsOnMainThread();
+    synchronized (fpsReductionLock) {
+      enableAutomaticFpsReduction = enabled;
+      // |automaticFps| is kept up to date while disabled, so only the applied limit changes.
+      updateFpsReduction();
+    }
+  }
+
+  /**
+   * Number of frames passed to renderFrame() since init().
+   */
+  public int getFramesReceived() {
+    return eglRenderer.getFramesReceived();
+  }
+
+  /**
+   * Number of frames dropped since init(), either by fps reduction or because the render thread
+   * could not keep up.
+   */
+  public int getFramesDropped() {
+    return eglRenderer.getFramesDropped();
+  }
+
+  /**
+   * Number of frames drawn to the surface since init().
+   */
+  public int getFramesRendered() {
+    return eglRenderer.getFramesRendered();
+  }
+
+  private void updateAutomaticFpsReduction() {
+    ThreadUtils.checkIsOnMainThread();
+    // The View constructor may report visibility changes before our fields are initialized.
+    if (eglRenderer == null) {
+      return;
+    }
+    final float fps;
+    if (!isShown() || getWindowVisibility() != VISIBLE) {
+      fps = 0;
+    } else {
+      final DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+      final long displayArea = (long) displayMetrics.widthPixels * displayMetrics.heightPixels;
+      final long viewArea = (long) getWidth() * getHeight();
+      fps = (viewArea > 0 && viewArea * SMALL_VIEW_AREA_FRACTION <= displayArea)
+          ? SMALL_VIEW_FPS
+          : Float.POSITIVE_INFINITY;
+    }
+    synchronized (fpsReductionLock) {
+      if (fps != automaticFps) {
+        logD("Automatic fps reduction: " + fps);
+        automaticFps = fps;
+        updateFpsReduction();
+      }
+    }
+  }
+
+  private void updateFpsReduction() {
+    synchronized (fpsReductionLock) {
+      eglRenderer.setFpsReduction(
+          enableAutomaticFpsReduction ? Math.min(requestedFps, automaticFps) : requestedFps);
+    }
   }
 
   // VideoRenderer.Callbacks interface.
@@ -211,6 +297,19 @@ public class SurfaceViewRenderer
     ThreadUtils.checkIsOnMainThread();
     eglRenderer.setLayoutAspectRatio((right - left) / (float) (bottom - top));
     updateSurfaceSize();
+    updateAutomaticFpsReduction();
+  }
+
+  @Override
+  protected void onVisibilityChanged(View changedView, int visibility) {
+    super.onVisibilityChanged(changedView, visibility);
+    updateAutomaticFpsReduction();
+  }
+
+  @Override
+  protected void onWindowVisibilityChanged(int visibility) {
+    super.onWindowVisibilityChanged(visibility);
+    updateAutomaticFpsReduction();
   }
 
   private void updateSurfaceSize() {
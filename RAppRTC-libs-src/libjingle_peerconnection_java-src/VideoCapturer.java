@@ -56,15 +56,25 @@ public interface VideoCapturer {
     @Override
     public void onByteBufferFrameCaptured(
         byte[] data, int width, int height, int rotation, long timeStamp) {
+      final long startTimeNs = FrameLatencyTracer.isEnabled() ? System.nanoTime() : 0;
       nativeOnByteBufferFrameCaptured(
           nativeSource, data, data.length, width, height, rotation, timeStamp);
+      if (startTimeNs != 0) {
+        FrameLatencyTracer.addSample(
+            FrameLatencyTracer.Stage.CAPTURE, System.nanoTime() - startTimeNs);
+      }
     }
 
     @Override
     public void onTextureFrameCaptured(int width, int height, int oesTextureId,
         float[] transformMatrix, int rotation, long timestamp) {
+      final long startTimeNs = FrameLatencyTracer.isEnabled() ? System.nanoTime() : 0;
       nativeOnTextureFrameCaptured(
           nativeSource, width, height, oesTextureId, transformMatrix, rotation, timestamp);
+      if (startTimeNs != 0) {
+        FrameLatencyTracer.addSample(
+            FrameLatencyTracer.Stage.CAPTURE, System.nanoTime() - startTimeNs);
+      }
     }
 
     private native void nativeCapturerStarted(long nativeSource, boolean success);
@@ -107,7 +107,7 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
           videoOutFile.write(data, offset + r * stride + stride / 2, stride / 2);
         }
       } else {
-        nativeI420Scale(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
+        YuvKernels.i420Scale(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
             frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2], frame.width, frame.height,
             outputFrameBuffer, outputFileWidth, outputFileHeight);
         videoOutFile.write(
@@ -42,6 +42,10 @@ public class VideoRenderer {
     // to be rendered correctly.
     public int rotationDegree;
 
+    // Capture timestamp in nanoseconds, or 0 if unknown. Set by native code after construction,
+    // so it stays 0 with a libjingle_peerconnection_so built before this field was added.
+    public long timestampNs;
+
     /**
      * Construct a frame of the given dimensions with the specified planar data.
      */
@@ -173,6 +173,8 @@ public class VideoRendererGui implements GLSurfaceView.Renderer {
       for (int i = 0; i < 3; i++) {
         yuvTextures[i] = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
       }
+      // The new textures may reuse the ids of textures from a previous EGL context.
+      yuvUploader.release();
       // Generate texture and framebuffer for offscreen texture copy.
       textureCopy = new GlTextureFrameBuffer(GLES20.GL_RGB);
     }
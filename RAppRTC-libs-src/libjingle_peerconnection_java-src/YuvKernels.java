@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Entry point for I420 frame processing kernels. Dispatches to either libyuv through JNI or to the
+ * pure Java implementations in JavaYuvKernels. The native implementation is used by default; if
+ * the native library turns out not to be loaded, this class falls back to the Java implementation
+ * permanently. This class is thread safe.
+ */
+public class YuvKernels {
+  private static final String TAG = "YuvKernels";
+
+  public enum Implementation { NATIVE, JAVA }
+
+  private static volatile Implementation implementation = Implementation.NATIVE;
+
+  private YuvKernels() {}
+
+  /**
+   * Select which implementation to use for subsequent calls.
+   */
+  public static void setImplementation(Implementation implementation) {
+    Logging.d(TAG, "setImplementation: " + implementation);
+    YuvKernels.implementation = implementation;
+  }
+
+  public static Implementation getImplementation() {
+    return implementation;
+  }
+
+  private static void fallBackToJava(UnsatisfiedLinkError e) {
+    Logging.w(TAG, "Native kernels unavailable, falling back to Java implementation.", e);
+    implementation = Implementation.JAVA;
+  }
+
+  /**
+   * Copy a |width| x |height| plane from |src| to |dst|, taking stride into consideration.
+   */
+  public static void copyPlane(
+      ByteBuffer src, int width, int height, int srcStride, ByteBuffer dst, int dstStride) {
+    if (implementation == Implementation.NATIVE) {
+      try {
+        VideoRenderer.nativeCopyPlane(src, width, height, srcStride, dst, dstStride);
+        return;
+      } catch (UnsatisfiedLinkError e) {
+        fallBackToJava(e);
+      }
+    }
+    JavaYuvKernels.copyPlane(src, width, height, srcStride, dst, dstStride);
+  }
+
+  /**
+   * Convert a packed I420 frame to a packed NV21 frame.
+   */
+  public static void i420ToNv21(byte[] src, int width, int height, byte[] dst) {
+    if (implementation == Implementation.NATIVE) {
+      try {
+        FileVideoCapturer.nativeI420ToNV21(src, width, height, dst);
+        return;
+      } catch (UnsatisfiedLinkError e) {
+        fallBackToJava(e);
+      }
+    }
+    JavaYuvKernels.i420ToNv21(src, width, height, dst);
+  }
+
+  /**
+   * Convert a packed NV21 frame to a packed I420 frame. Only available as a Java implementation.
+   */
+  public static void nv21ToI420(byte[] src, int width, int height, byte[] dst) {
+    JavaYuvKernels.nv21ToI420(src, width, height, dst);
+  }
+
+  /**
+   * Scale an I420 frame with bilinear filtering into a packed I420 frame in |dst|.
+   */
+  public static void i420Scale(ByteBuffer srcY, int strideY, ByteBuffer srcU, int strideU,
+      ByteBuffer srcV, int strideV, int width, int height, ByteBuffer dst, int dstWidth,
+      int dstHeight) {
+    if (implementation == Implementation.NATIVE) {
+      try {
+        VideoFileRenderer.nativeI420Scale(srcY, strideY, srcU, strideU, srcV, strideV, width,
+            height, dst, dstWidth, dstHeight);
+        return;
+      } catch (UnsatisfiedLinkError e) {
+        fallBackToJava(e);
+      }
+    }
+    JavaYuvKernels.i420ScaleBilinear(
+        srcY, strideY, srcU, strideU, srcV, strideV, width, height, dst, dstWidth, dstHeight);
+  }
+
+  /**
+   * Downscale an I420 frame with a box filter into a packed I420 frame in |dst|. Only available
+   * as a Java implementation.
+   */
+  public static void i420ScaleBox(ByteBuffer srcY, int strideY, ByteBuffer srcU, int strideU,
+      ByteBuffer srcV, int strideV, int width, int height, ByteBuffer dst, int dstWidth,
+      int dstHeight) {
+    JavaYuvKernels.i420ScaleBox(
+        srcY, strideY, srcU, strideU, srcV, strideV, width, height, dst, dstWidth, dstHeight);
+  }
+}
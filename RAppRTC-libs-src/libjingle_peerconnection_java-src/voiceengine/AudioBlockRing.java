@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.voiceengine;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free single-producer/single-consumer ring of fixed size audio blocks.
+ * The producer fills the block returned by writeBlock() and publishes it with
+ * commitWrite(). The consumer processes the block returned by readBlock() and
+ * hands it back with commitRead(). All blocks are allocated up front, so
+ * neither side allocates or blocks. There must be at most one producer thread
+ * and one consumer thread.
+ */
+class AudioBlockRing {
+    private final ByteBuffer[] blocks;
+    // Total number of blocks written and read. Only the producer increments
+    // |writeCount| and only the consumer increments |readCount|.
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong readCount = new AtomicLong();
+
+    AudioBlockRing(int blockCount, int blockSizeInBytes) {
+        blocks = new ByteBuffer[blockCount];
+        for (int i = 0; i < blockCount; ++i) {
+            blocks[i] = ByteBuffer.allocateDirect(blockSizeInBytes);
+        }
+    }
+
+    int capacity() {
+        return blocks.length;
+    }
+
+    // Number of blocks that have been written but not yet read.
+    int size() {
+        return (int) (writeCount.get() - readCount.get());
+    }
+
+    // Returns the next block to write to, or null if the ring is full.
+    // Producer only.
+    ByteBuffer writeBlock() {
+        final long write = writeCount.get();
+        if (write - readCount.get() == blocks.length) {
+            return null;
+        }
+        return blocks[(int) (write % blocks.length)];
+    }
+
+    // Publishes the block returned by writeBlock(). Producer only.
+    void commitWrite() {
+        writeCount.lazySet(writeCount.get() + 1);
+    }
+
+    // Returns the oldest written block, or null if the ring is empty.
+    // Consumer only.
+    ByteBuffer readBlock() {
+        final long read = readCount.get();
+        if (read == writeCount.get()) {
+            return null;
+        }
+        return blocks[(int) (read % blocks.length)];
+    }
+
+    // Hands the block returned by readBlock() back to the producer.
+    // Consumer only.
+    void commitRead() {
+        readCount.lazySet(readCount.get() + 1);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright (c) 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.voiceengine;
+
+/**
+ * Estimates the playout delay of an audio sink from the number of frames
+ * written to it and its playback head position, i.e. the number of frames it
+ * has played out. The frames in between are buffered in the sink and are
+ * played out after the current delay. An underrun is counted each time the
+ * sink is found to have played out everything that was written to it.
+ * This class is not thread safe.
+ *
+ * Usage on the playout thread:
+ * estimator.onHeadPosition(audioTrack.getPlaybackHeadPosition());
+ * int frames = audioTrack.write(...) / bytesPerFrame;
+ * estimator.onFramesWritten(frames);
+ */
+class PlayoutDelayEstimator {
+    // Gain of the smoothed delay, as a right shift.
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final int sampleRate;
+    private long framesWritten;
+    private long framesPlayed;
+    // Last raw head position, which is an unsigned 32-bit value that wraps.
+    private int lastHeadPosition;
+    private boolean underrun;
+    private int underrunCount;
+    // Smoothed number of pending frames, in 1/(1 << SMOOTHING_SHIFT) frames.
+    private long smoothedPendingFramesScaled = -1;
+    private long maxPendingFrames;
+
+    PlayoutDelayEstimator(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Restarts the estimation, e.g. because the sink has been stopped and
+     * flushed, which resets its head position to zero.
+     */
+    void reset() {
+        framesWritten = 0;
+        framesPlayed = 0;
+        lastHeadPosition = 0;
+        underrun = false;
+        underrunCount = 0;
+        smoothedPendingFramesScaled = -1;
+        maxPendingFrames = 0;
+    }
+
+    void onFramesWritten(int frames) {
+        if (frames > 0) {
+            framesWritten += frames;
+        }
+    }
+
+    /**
+     * Updates the number of frames played out with the raw playback head
+     * position of the sink. Should be called right before writing, which is
+     * when the sink buffer is at its emptiest.
+     */
+    void onHeadPosition(int headPosition) {
+        framesPlayed += (headPosition - lastHeadPosition) & 0xFFFFFFFFL;
+        lastHeadPosition = headPosition;
+        // The sink can not have played out more than it was given.
+        framesPlayed = Math.min(framesPlayed, framesWritten);
+        if (framesWritten == 0) {
+            return;
+        }
+
+        final long pending = getPendingFrames();
+        final boolean empty = (pending == 0);
+        if (empty && !underrun) {
+            ++underrunCount;
+        }
+        underrun = empty;
+
+        maxPendingFrames = Math.max(maxPendingFrames, pending);
+        if (smoothedPendingFramesScaled < 0) {
+            smoothedPendingFramesScaled = pending << SMOOTHING_SHIFT;
+        } else {
+            smoothedPendingFramesScaled +=
+                    pending - (smoothedPendingFramesScaled >> SMOOTHING_SHIFT);
+        }
+    }
+
+    long getFramesWritten() {
+        return framesWritten;
+    }
+
+    long getFramesPlayed() {
+        return framesPlayed;
+    }
+
+    // Frames that have been written but not yet played out.
+    long getPendingFrames() {
+        return framesWritten - framesPlayed;
+    }
+
+    int getDelayMs() {
+        return framesToMs(getPendingFrames());
+    }
+
+    int getSmoothedDelayMs() {
+        return framesToMs(Math.max(0, smoothedPendingFramesScaled) >> SMOOTHING_SHIFT);
+    }
+
+    int getMaxDelayMs() {
+        return framesToMs(maxPendingFrames);
+    }
+
+    // Number of times the sink ran out of data. Consecutive observations of an
+    // empty sink count as one underrun.
+    int getUnderrunCount() {
+        return underrunCount;
+    }
+
+    private int framesToMs(long frames) {
+        return (int) (frames * 1000 / sampleRate);
+    }
+}
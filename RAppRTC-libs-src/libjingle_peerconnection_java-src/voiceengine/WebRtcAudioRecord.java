@@ -10,6 +10,7 @@
 
 package org.webrtc.voiceengine;
 
+import org.webrtc.LatencyHistogram;
 import org.webrtc.Logging;
 import org.webrtc.ThreadUtils;
 
@@ -22,6 +23,8 @@ import android.os.Process;
 import java.lang.System;
 import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class WebRtcAudioRecord {
     private static final boolean DEBUG = false;
@@ -43,6 +46,10 @@ public class WebRtcAudioRecord {
     // high load.
     private static final int BUFFER_SIZE_FACTOR = 2;
 
+    // Number of 10 ms blocks that can be queued between the thread reading from
+    // AudioRecord and the thread delivering them to native code.
+    private static final int RING_BLOCK_COUNT = 8;
+
     // The AudioRecordJavaThread is allowed to wait for successful call to join()
     // but the wait times out afther this amount of time.
     private static final long AUDIO_RECORD_THREAD_JOIN_TIMEOUT_MS = 2000;
@@ -52,25 +59,112 @@ public class WebRtcAudioRecord {
 
     private WebRtcAudioEffects effects = null;
 
+    // Buffer whose address is cached by native code. Only written by the
+    // AudioDeliveryThread.
     private ByteBuffer byteBuffer;
+    // Recorded 10 ms blocks waiting to be delivered to native code.
+    private AudioBlockRing ring;
 
     private AudioRecord audioRecord = null;
     private AudioRecordThread audioThread = null;
+    private AudioDeliveryThread deliveryThread = null;
 
     private static volatile boolean microphoneMute = false;
-    private byte[] emptyBytes;
+
+    private static final CaptureStats captureStats = new CaptureStats();
+
+    /**
+     * Capture statistics of the most recently started recording. Counters are
+     * reset in startRecording(). Updated on the audio threads and may be read
+     * from any thread.
+     */
+    public static class CaptureStats {
+        // Time spent in each successful AudioRecord.read() call.
+        private final LatencyHistogram readDuration =
+                new LatencyHistogram("Audio record read duration");
+        // Deviation of the interval between two native callbacks from
+        // CALLBACK_BUFFER_SIZE_MS.
+        private final LatencyHistogram callbackJitter =
+                new LatencyHistogram("Audio record callback jitter");
+        private final AtomicLong blocksRecorded = new AtomicLong();
+        private final AtomicLong shortReads = new AtomicLong();
+        private final AtomicLong readErrors = new AtomicLong();
+        private final AtomicLong ringOverruns = new AtomicLong();
+        private final AtomicLong maxRingFill = new AtomicLong();
+
+        public LatencyHistogram getReadDuration() {
+            return readDuration;
+        }
+
+        public LatencyHistogram getCallbackJitter() {
+            return callbackJitter;
+        }
+
+        // Number of blocks delivered to native code.
+        public long getBlocksRecorded() {
+            return blocksRecorded.get();
+        }
+
+        // Number of reads that returned less than a full 10 ms block.
+        public long getShortReads() {
+            return shortReads.get();
+        }
+
+        // Number of reads that returned an error code.
+        public long getReadErrors() {
+            return readErrors.get();
+        }
+
+        // Number of recorded blocks dropped because native code did not keep
+        // up and the ring was full.
+        public long getRingOverruns() {
+            return ringOverruns.get();
+        }
+
+        // Largest number of blocks that were waiting in the ring at once.
+        public long getMaxRingFill() {
+            return maxRingFill.get();
+        }
+
+        private void reset() {
+            readDuration.reset();
+            callbackJitter.reset();
+            blocksRecorded.set(0);
+            shortReads.set(0);
+            readErrors.set(0);
+            ringOverruns.set(0);
+            maxRingFill.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "blocks: " + getBlocksRecorded()
+                    + ", short reads: " + getShortReads()
+                    + ", read errors: " + getReadErrors()
+                    + ", ring overruns: " + getRingOverruns()
+                    + ", max ring fill: " + getMaxRingFill()
+                    + ", " + readDuration + ", " + callbackJitter;
+        }
+    }
+
+    public static CaptureStats getCaptureStats() {
+        return captureStats;
+    }
 
     /**
-     * Audio thread which keeps calling ByteBuffer.read() waiting for audio
-     * to be recorded. Feeds recorded data to the native counterpart as a
-     * periodic sequence of callbacks using DataIsRecorded().
+     * Audio thread which keeps calling AudioRecord.read() waiting for audio
+     * to be recorded. Recorded 10 ms blocks are put in |ring| and handed to
+     * the AudioDeliveryThread, so that slow native processing does not delay
+     * the next read.
      * This thread uses a Process.THREAD_PRIORITY_URGENT_AUDIO priority.
      */
     private class AudioRecordThread extends Thread {
         private volatile boolean keepAlive = true;
+        private final Thread consumer;
 
-        public AudioRecordThread(String name) {
+        public AudioRecordThread(String name, Thread consumer) {
             super(name);
+            this.consumer = consumer;
         }
 
         @Override
@@ -80,28 +174,41 @@ public class WebRtcAudioRecord {
             assertTrue(audioRecord.getRecordingState()
                     == AudioRecord.RECORDSTATE_RECORDING);
 
-            long lastTime = System.nanoTime();
+            final int blockSize = byteBuffer.capacity();
+            // Read into this block when the ring is full, so that AudioRecord
+            // keeps being drained while native code catches up.
+            final ByteBuffer overrunBlock = ByteBuffer.allocateDirect(blockSize);
             while (keepAlive) {
-                int bytesRead = audioRecord.read(byteBuffer, byteBuffer.capacity());
-                if (bytesRead == byteBuffer.capacity()) {
-                    if (microphoneMute) {
-                        byteBuffer.clear();
-                        byteBuffer.put(emptyBytes);
+                ByteBuffer block = ring.writeBlock();
+                final boolean overrun = (block == null);
+                if (overrun) {
+                    block = overrunBlock;
+                }
+                final long readStartTimeNs = System.nanoTime();
+                int bytesRead = audioRecord.read(block, blockSize);
+                if (bytesRead == blockSize) {
+                    captureStats.readDuration.addSample(TimeUnit.NANOSECONDS.toMicros(
+                            System.nanoTime() - readStartTimeNs));
+                    if (overrun) {
+                        captureStats.ringOverruns.incrementAndGet();
+                        continue;
+                    }
+                    ring.commitWrite();
+                    final int fill = ring.size();
+                    if (fill > captureStats.maxRingFill.get()) {
+                        captureStats.maxRingFill.set(fill);
                     }
-                    nativeDataIsRecorded(bytesRead, nativeAudioRecord);
+                    LockSupport.unpark(consumer);
+                } else if (bytesRead >= 0) {
+                    captureStats.shortReads.incrementAndGet();
+                    Logging.e(TAG, "AudioRecord.read returned short block: " + bytesRead);
                 } else {
+                    captureStats.readErrors.incrementAndGet();
                     Logging.e(TAG, "AudioRecord.read failed: " + bytesRead);
                     if (bytesRead == AudioRecord.ERROR_INVALID_OPERATION) {
                         keepAlive = false;
                     }
                 }
-                if (DEBUG) {
-                    long nowTime = System.nanoTime();
-                    long durationInMs =
-                            TimeUnit.NANOSECONDS.toMillis((nowTime - lastTime));
-                    lastTime = nowTime;
-                    Logging.d(TAG, "bytesRead[" + durationInMs + "] " + bytesRead);
-                }
             }
 
             try {
@@ -119,6 +226,75 @@ public class WebRtcAudioRecord {
         }
     }
 
+    /**
+     * Audio thread which takes recorded blocks from |ring|, copies them into
+     * the buffer shared with native code and feeds them to the native
+     * counterpart as a periodic sequence of callbacks using DataIsRecorded().
+     * This thread uses a Process.THREAD_PRIORITY_URGENT_AUDIO priority.
+     */
+    private class AudioDeliveryThread extends Thread {
+        private volatile boolean keepAlive = true;
+
+        public AudioDeliveryThread(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            Logging.d(TAG, "AudioDeliveryThread" + WebRtcAudioUtils.getThreadInfo());
+            final long expectedIntervalUs =
+                    TimeUnit.MILLISECONDS.toMicros(CALLBACK_BUFFER_SIZE_MS);
+            final int blockSize = byteBuffer.capacity();
+            boolean muted = false;
+            long lastCallbackTimeNs = -1;
+            while (keepAlive) {
+                final ByteBuffer block = ring.readBlock();
+                if (block == null) {
+                    LockSupport.parkNanos(
+                            TimeUnit.MILLISECONDS.toNanos(CALLBACK_BUFFER_SIZE_MS));
+                    continue;
+                }
+                final boolean mute = microphoneMute;
+                if (!mute) {
+                    block.clear();
+                    byteBuffer.clear();
+                    byteBuffer.put(block);
+                } else if (!muted) {
+                    // Nobody else writes to |byteBuffer|, so it only needs to
+                    // be zeroed once while the microphone is muted.
+                    byteBuffer.clear();
+                    while (byteBuffer.hasRemaining()) {
+                        byteBuffer.put((byte) 0);
+                    }
+                }
+                muted = mute;
+                ring.commitRead();
+                nativeDataIsRecorded(blockSize, nativeAudioRecord);
+                captureStats.blocksRecorded.incrementAndGet();
+
+                final long nowNs = System.nanoTime();
+                if (lastCallbackTimeNs >= 0) {
+                    final long intervalUs =
+                            TimeUnit.NANOSECONDS.toMicros(nowNs - lastCallbackTimeNs);
+                    captureStats.callbackJitter.addSample(
+                            Math.abs(intervalUs - expectedIntervalUs));
+                    if (DEBUG) {
+                        Logging.d(TAG, "bytesRecorded[" + intervalUs + " us] " + blockSize);
+                    }
+                }
+                lastCallbackTimeNs = nowNs;
+            }
+        }
+
+        // Stops the inner thread loop. Does not block the calling thread.
+        public void stopThread() {
+            Logging.d(TAG, "stopDeliveryThread");
+            keepAlive = false;
+            LockSupport.unpark(this);
+        }
+    }
+
     WebRtcAudioRecord(Context context, long nativeAudioRecord) {
         Logging.d(TAG, "ctor" + WebRtcAudioUtils.getThreadInfo());
         this.context = context;
@@ -172,7 +348,7 @@ public class WebRtcAudioRecord {
         final int framesPerBuffer = sampleRate / BUFFERS_PER_SECOND;
         byteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * framesPerBuffer);
         Logging.d(TAG, "byteBuffer.capacity: " + byteBuffer.capacity());
-        emptyBytes = new byte[byteBuffer.capacity()];
+        ring = new AudioBlockRing(RING_BLOCK_COUNT, byteBuffer.capacity());
         // Rather than passing the ByteBuffer with every callback (requiring
         // the potentially expensive GetDirectBufferAddress) we simply have the
         // the native class cache the address to the memory once.
@@ -240,6 +416,7 @@ public class WebRtcAudioRecord {
         Logging.d(TAG, "startRecording");
         assertTrue(audioRecord != null);
         assertTrue(audioThread == null);
+        assertTrue(deliveryThread == null);
         try {
             audioRecord.startRecording();
         } catch (IllegalStateException e) {
@@ -250,7 +427,10 @@ public class WebRtcAudioRecord {
             Logging.e(TAG, "AudioRecord.startRecording failed");
             return false;
         }
-        audioThread = new AudioRecordThread("AudioRecordJavaThread");
+        captureStats.reset();
+        deliveryThread = new AudioDeliveryThread("AudioRecordDeliveryThread");
+        deliveryThread.start();
+        audioThread = new AudioRecordThread("AudioRecordJavaThread", deliveryThread);
         audioThread.start();
         return true;
     }
@@ -264,6 +444,14 @@ public class WebRtcAudioRecord {
             Logging.e(TAG, "Join of AudioRecordJavaThread timed out");
         }
         audioThread = null;
+        // Blocks still in the ring are dropped.
+        deliveryThread.stopThread();
+        if (!ThreadUtils.joinUninterruptibly(
+                deliveryThread, AUDIO_RECORD_THREAD_JOIN_TIMEOUT_MS)) {
+            Logging.e(TAG, "Join of AudioRecordDeliveryThread timed out");
+        }
+        deliveryThread = null;
+        Logging.d(TAG, "Capture stats: " + captureStats);
         if (effects != null) {
             effects.release();
         }
@@ -21,6 +21,7 @@ import android.os.Process;
 
 import java.lang.Thread;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WebRtcAudioTrack {
     private static final boolean DEBUG = false;
@@ -51,6 +52,75 @@ public class WebRtcAudioTrack {
     private static volatile boolean speakerMute = false;
     private byte[] emptyBytes;
 
+    private int bytesPerFrame;
+    private int sampleRate;
+
+    private static final PlayoutStats playoutStats = new PlayoutStats();
+
+    /**
+     * Playout statistics of the most recently started playout. Reset in
+     * startPlayout(). Updated on the playout thread and may be read from any
+     * thread.
+     */
+    public static class PlayoutStats {
+        private volatile int playoutDelayMs;
+        private volatile int smoothedPlayoutDelayMs;
+        private volatile int maxPlayoutDelayMs;
+        private volatile int underruns;
+        private final AtomicLong failedWrites = new AtomicLong();
+
+        // Latest estimate of the time until written audio is played out.
+        public int getPlayoutDelayMs() {
+            return playoutDelayMs;
+        }
+
+        public int getSmoothedPlayoutDelayMs() {
+            return smoothedPlayoutDelayMs;
+        }
+
+        public int getMaxPlayoutDelayMs() {
+            return maxPlayoutDelayMs;
+        }
+
+        // Number of times the AudioTrack ran out of data to play.
+        public int getUnderruns() {
+            return underruns;
+        }
+
+        // Number of writes that did not write a full 10 ms block.
+        public long getFailedWrites() {
+            return failedWrites.get();
+        }
+
+        private void update(PlayoutDelayEstimator estimator) {
+            playoutDelayMs = estimator.getDelayMs();
+            smoothedPlayoutDelayMs = estimator.getSmoothedDelayMs();
+            maxPlayoutDelayMs = estimator.getMaxDelayMs();
+            underruns = estimator.getUnderrunCount();
+        }
+
+        private void reset() {
+            playoutDelayMs = 0;
+            smoothedPlayoutDelayMs = 0;
+            maxPlayoutDelayMs = 0;
+            underruns = 0;
+            failedWrites.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "playout delay: " + playoutDelayMs + " ms"
+                    + ", smoothed: " + smoothedPlayoutDelayMs + " ms"
+                    + ", max: " + maxPlayoutDelayMs + " ms"
+                    + ", underruns: " + underruns
+                    + ", failed writes: " + getFailedWrites();
+        }
+    }
+
+    public static PlayoutStats getPlayoutStats() {
+        return playoutStats;
+    }
+
     /**
      * Audio thread which keeps calling AudioTrack.write() to stream audio.
      * Data is periodically acquired from the native WebRTC layer using the
@@ -84,6 +154,7 @@ public class WebRtcAudioTrack {
             // Fixed size in bytes of each 10ms block of audio data that we ask for
             // using callbacks to the native WebRTC client.
             final int sizeInBytes = byteBuffer.capacity();
+            final PlayoutDelayEstimator delayEstimator = new PlayoutDelayEstimator(sampleRate);
 
             while (keepAlive) {
                 // Get 10ms of PCM data from the native WebRTC client. Audio data is
@@ -99,13 +170,21 @@ public class WebRtcAudioTrack {
                     byteBuffer.put(emptyBytes);
                     byteBuffer.position(0);
                 }
+                // Sample the head position right before writing, when the
+                // AudioTrack buffer is at its emptiest.
+                delayEstimator.onHeadPosition(audioTrack.getPlaybackHeadPosition());
                 int bytesWritten = 0;
                 if (WebRtcAudioUtils.runningOnLollipopOrHigher()) {
                     bytesWritten = writeOnLollipop(audioTrack, byteBuffer, sizeInBytes);
                 } else {
                     bytesWritten = writePreLollipop(audioTrack, byteBuffer, sizeInBytes);
                 }
+                if (bytesWritten > 0) {
+                    delayEstimator.onFramesWritten(bytesWritten / bytesPerFrame);
+                }
+                playoutStats.update(delayEstimator);
                 if (bytesWritten != sizeInBytes) {
+                    playoutStats.failedWrites.incrementAndGet();
                     Logging.e(TAG, "AudioTrack.write failed: " + bytesWritten);
                     if (bytesWritten == AudioTrack.ERROR_INVALID_OPERATION) {
                         keepAlive = false;
@@ -115,10 +194,6 @@ public class WebRtcAudioTrack {
                 // increased at each call to AudioTrack.write(). If we don't do this,
                 // next call to AudioTrack.write() will fail.
                 byteBuffer.rewind();
-
-                // TODO(henrika): it is possible to create a delay estimate here by
-                // counting number of written frames and subtracting the result from
-                // audioTrack.getPlaybackHeadPosition().
             }
 
             try {
@@ -165,7 +240,8 @@ public class WebRtcAudioTrack {
     private boolean initPlayout(int sampleRate, int channels) {
         Logging.d(TAG, "initPlayout(sampleRate=" + sampleRate + ", channels="
                 + channels + ")");
-        final int bytesPerFrame = channels * (BITS_PER_SAMPLE / 8);
+        bytesPerFrame = channels * (BITS_PER_SAMPLE / 8);
+        this.sampleRate = sampleRate;
         byteBuffer = byteBuffer.allocateDirect(
                 bytesPerFrame * (sampleRate / BUFFERS_PER_SECOND));
         Logging.d(TAG, "byteBuffer.capacity: " + byteBuffer.capacity());
@@ -223,6 +299,7 @@ public class WebRtcAudioTrack {
             Logging.e(TAG, "Audio track is not successfully initialized.");
             return false;
         }
+        playoutStats.reset();
         audioThread = new AudioTrackThread("AudioTrackJavaThread");
         audioThread.start();
         return true;
@@ -233,6 +310,7 @@ public class WebRtcAudioTrack {
         assertTrue(audioThread != null);
         audioThread.joinThread();
         audioThread = null;
+        Logging.d(TAG, "Playout stats: " + playoutStats);
         if (audioTrack != null) {
             audioTrack.release();
             audioTrack = null;
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.MediaCodecVideoEncoder.BitrateAdjustmentType;
+
+/**
+ * Reports synthetic encoded frame sizes to BitrateAdjuster and checks the codec bitrate it asks
+ * for. Uses the default config: 30 fps for FRAMERATE_ADJUSTMENT, and a correction every 3 s of up
+ * to 2x in 10 steps for DYNAMIC_ADJUSTMENT.
+ */
+public class BitrateAdjusterTest {
+  // 3000 bytes per frame. 32 fps keeps the frame interval exact in floating point, so that
+  // corrections are made at every 97th frame, the first one past 3 s.
+  private static final int TARGET_BITRATE_BPS = 768000;
+  private static final int TARGET_FPS = 32;
+  private static final int FRAMES_PER_CORRECTION = 97;
+
+  private static int frameSize(int bitrateBps, int fps) {
+    return bitrateBps / (8 * fps);
+  }
+
+  // Reports |frames| frames of |size| bytes and returns how many of them changed the scale.
+  private static int reportFrames(BitrateAdjuster adjuster, int frames, int size) {
+    int changes = 0;
+    for (int i = 0; i < frames; ++i) {
+      if (adjuster.reportEncodedFrame(size)) {
+        ++changes;
+      }
+    }
+    return changes;
+  }
+
+  private static int scaledBitrate(int bitrateBps, int scaleExp) {
+    return (int) (bitrateBps * Math.pow(2.0, scaleExp / 10.0));
+  }
+
+  @Test
+  public void testNoAdjustment() {
+    final BitrateAdjuster adjuster = new BitrateAdjuster(BitrateAdjustmentType.NO_ADJUSTMENT);
+    adjuster.reset(TARGET_BITRATE_BPS, 15);
+    assertEquals(15, adjuster.getInitialFps(15, 30));
+    assertEquals(30, adjuster.getInitialFps(60, 30));
+    assertEquals(0, reportFrames(adjuster, 10 * FRAMES_PER_CORRECTION, 0));
+    assertEquals(TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+  }
+
+  @Test
+  public void testFramerateAdjustmentScalesByFps() {
+    final BitrateAdjuster adjuster =
+        new BitrateAdjuster(BitrateAdjustmentType.FRAMERATE_ADJUSTMENT);
+    // The encoder always runs at 30 fps and spreads the bitrate over that many frames.
+    assertEquals(30, adjuster.getInitialFps(15, 30));
+    adjuster.reset(TARGET_BITRATE_BPS, 15);
+    assertEquals(2 * TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+    adjuster.setTargets(TARGET_BITRATE_BPS, 10);
+    assertEquals(3 * TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+    adjuster.setTargets(TARGET_BITRATE_BPS, 30);
+    assertEquals(TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+    // Frame sizes are not used.
+    assertEquals(0, reportFrames(adjuster, 10 * FRAMES_PER_CORRECTION, 0));
+    // Without a frame rate the target is used as is.
+    adjuster.setTargets(TARGET_BITRATE_BPS, 0);
+    assertEquals(TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+  }
+
+  @Test
+  public void testDynamicAdjustmentStepsOncePerInterval() {
+    final BitrateAdjuster adjuster = new BitrateAdjuster(BitrateAdjustmentType.DYNAMIC_ADJUSTMENT);
+    adjuster.reset(TARGET_BITRATE_BPS, TARGET_FPS);
+    final int expectedSize = frameSize(TARGET_BITRATE_BPS, TARGET_FPS);
+
+    // On target, nothing changes.
+    assertEquals(0, reportFrames(adjuster, FRAMES_PER_CORRECTION, expectedSize));
+    assertEquals(TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+
+    // Twice the target lowers the scale by one step per interval.
+    assertEquals(1, reportFrames(adjuster, FRAMES_PER_CORRECTION, 2 * expectedSize));
+    assertEquals(-1, adjuster.getBitrateAdjustmentScaleExp());
+    assertEquals(scaledBitrate(TARGET_BITRATE_BPS, -1), adjuster.getCodecBitrateBps());
+
+    // Empty frames raise it again.
+    assertEquals(1, reportFrames(adjuster, FRAMES_PER_CORRECTION, 0));
+    assertEquals(0, adjuster.getBitrateAdjustmentScaleExp());
+    assertEquals(1, reportFrames(adjuster, FRAMES_PER_CORRECTION, 0));
+    assertEquals(1, adjuster.getBitrateAdjustmentScaleExp());
+    assertEquals(scaledBitrate(TARGET_BITRATE_BPS, 1), adjuster.getCodecBitrateBps());
+  }
+
+  @Test
+  public void testDynamicAdjustmentIsClamped() {
+    final BitrateAdjuster adjuster = new BitrateAdjuster(BitrateAdjustmentType.DYNAMIC_ADJUSTMENT);
+    adjuster.reset(TARGET_BITRATE_BPS, TARGET_FPS);
+    reportFrames(adjuster, 20 * FRAMES_PER_CORRECTION, 0);
+    assertEquals(10, adjuster.getBitrateAdjustmentScaleExp());
+    assertEquals(2 * TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+
+    reportFrames(adjuster, 30 * FRAMES_PER_CORRECTION, 4 * frameSize(TARGET_BITRATE_BPS, TARGET_FPS));
+    assertEquals(-10, adjuster.getBitrateAdjustmentScaleExp());
+    assertEquals(TARGET_BITRATE_BPS / 2, adjuster.getCodecBitrateBps());
+
+    // reset() drops the correction.
+    adjuster.reset(TARGET_BITRATE_BPS, TARGET_FPS);
+    assertEquals(TARGET_BITRATE_BPS, adjuster.getCodecBitrateBps());
+  }
+
+  @Test
+  public void testAccumulatorIsRescaledWhenTargetDrops() {
+    final BitrateAdjuster adjuster = new BitrateAdjuster(BitrateAdjustmentType.DYNAMIC_ADJUSTMENT);
+    adjuster.reset(TARGET_BITRATE_BPS, TARGET_FPS);
+    // 1.5 s at twice the target: 144000 bytes over.
+    assertEquals(0, reportFrames(adjuster, 48, 2 * frameSize(TARGET_BITRATE_BPS, TARGET_FPS)));
+
+    // Halving the target halves the overshoot to 72000 bytes. The empty frames up to the
+    // correction then make up for all of it, so the scale is kept. Without the rescale 70500
+    // bytes would be left, above the new limit of 48000, and the scale would go down.
+    adjuster.setTargets(TARGET_BITRATE_BPS / 2, TARGET_FPS);
+    assertFalse(adjuster.reportEncodedFrame(0));
+    assertEquals(0, reportFrames(adjuster, FRAMES_PER_CORRECTION - 49, 0));
+    assertEquals(0, adjuster.getBitrateAdjustmentScaleExp());
+    assertEquals(TARGET_BITRATE_BPS / 2, adjuster.getCodecBitrateBps());
+  }
+
+  @Test
+  public void testCorrectionIsKeptWhenTargetChanges() {
+    final BitrateAdjuster adjuster = new BitrateAdjuster(BitrateAdjustmentType.DYNAMIC_ADJUSTMENT);
+    adjuster.reset(TARGET_BITRATE_BPS, TARGET_FPS);
+    assertTrue(reportFrames(adjuster, FRAMES_PER_CORRECTION, 0) > 0);
+    adjuster.setTargets(2 * TARGET_BITRATE_BPS, TARGET_FPS);
+    assertEquals(1, adjuster.getBitrateAdjustmentScaleExp());
+    assertEquals(scaledBitrate(2 * TARGET_BITRATE_BPS, 1), adjuster.getCodecBitrateBps());
+  }
+}
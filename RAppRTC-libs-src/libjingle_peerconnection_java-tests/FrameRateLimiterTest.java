@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds FrameRateLimiter frames with synthetic capture timestamps and counts the frames it lets
+ * through.
+ */
+public class FrameRateLimiterTest {
+  // Arbitrary nonzero start, since 0 means the timestamp is unknown.
+  private static final long START_NS = TimeUnit.SECONDS.toNanos(100);
+
+  private FrameRateLimiter limiter;
+
+  @Before
+  public void setUp() {
+    limiter = new FrameRateLimiter();
+  }
+
+  private static long frameTimestampNs(int frame, float fps) {
+    return START_NS + (long) (frame * 1e9 / fps);
+  }
+
+  // Returns how many of |frames| frames at |fps|, starting at |firstFrame|, are let through.
+  private int countRendered(int firstFrame, int frames, float fps) {
+    int rendered = 0;
+    for (int i = firstFrame; i < firstFrame + frames; ++i) {
+      if (limiter.shouldRenderFrame(frameTimestampNs(i, fps))) {
+        ++rendered;
+      }
+    }
+    return rendered;
+  }
+
+  @Test
+  public void testNoLimitRendersAllFrames() {
+    assertEquals(90, countRendered(0, 90, 30));
+  }
+
+  @Test
+  public void testPausedDropsAllFrames() {
+    limiter.setMaxFps(0);
+    assertEquals(0, countRendered(0, 90, 30));
+  }
+
+  @Test
+  public void testLimit30To20RendersTwoOfThreeFrames() {
+    limiter.setMaxFps(20);
+    for (int i = 0; i < 30; i += 3) {
+      // Two out of each group of three, not just on average.
+      assertEquals(2, countRendered(i, 3, 30));
+    }
+  }
+
+  @Test
+  public void testBurstIsLimitedToBucketCapacity() {
+    limiter.setMaxFps(10);
+    assertTrue(limiter.shouldRenderFrame(START_NS));
+    // A long gap saves up at most two frames, even if the next frames arrive back to back.
+    final long afterGapNs = START_NS + TimeUnit.SECONDS.toNanos(5);
+    assertTrue(limiter.shouldRenderFrame(afterGapNs));
+    assertTrue(limiter.shouldRenderFrame(afterGapNs + 1));
+    assertFalse(limiter.shouldRenderFrame(afterGapNs + 2));
+  }
+
+  @Test
+  public void testTimestampGoingBackwardsStartsOver() {
+    limiter.setMaxFps(10);
+    assertTrue(limiter.shouldRenderFrame(START_NS));
+    assertFalse(limiter.shouldRenderFrame(START_NS + 1));
+    // E.g. a restarted source. The first frame is rendered, and limiting goes on from there.
+    final long restartNs = START_NS - TimeUnit.SECONDS.toNanos(50);
+    assertTrue(limiter.shouldRenderFrame(restartNs));
+    assertFalse(limiter.shouldRenderFrame(restartNs + TimeUnit.MILLISECONDS.toNanos(50)));
+    assertTrue(limiter.shouldRenderFrame(restartNs + TimeUnit.MILLISECONDS.toNanos(100)));
+  }
+
+  @Test
+  public void testSetMaxFpsRendersNextFrame() {
+    limiter.setMaxFps(1);
+    assertTrue(limiter.shouldRenderFrame(START_NS));
+    assertFalse(limiter.shouldRenderFrame(START_NS + 1));
+    limiter.setMaxFps(2);
+    assertTrue(limiter.shouldRenderFrame(START_NS + 2));
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the bucket ranges and sample counting of JavaMetricsBackend, and that Histogram records
+ * into the backend selected with Metrics.setBackend().
+ */
+public class JavaMetricsBackendTest {
+  private static final String NAME = "WebRTC.Test.Counts";
+  private static final int MAX = Integer.MAX_VALUE;
+
+  private MetricsBackend previousBackend;
+
+  @Before
+  public void setUp() {
+    previousBackend = Metrics.getBackend();
+  }
+
+  @After
+  public void tearDown() {
+    Metrics.setBackend(previousBackend);
+  }
+
+  private static Map<Integer, Integer> samples(Metrics metrics, String name) {
+    final Metrics.HistogramInfo info = metrics.map.get(name);
+    return (info == null) ? new HashMap<Integer, Integer>() : info.samples;
+  }
+
+  private static Map<Integer, Integer> counts(int... bucketsAndCounts) {
+    final Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (int i = 0; i < bucketsAndCounts.length; i += 2) {
+      counts.put(bucketsAndCounts[i], bucketsAndCounts[i + 1]);
+    }
+    return counts;
+  }
+
+  @Test
+  public void testExponentialRangesMatchChromium() {
+    // Chromium places the buckets of a 1 to 64 histogram with 8 buckets at powers of two.
+    assertArrayEquals(new int[] {0, 1, 2, 4, 8, 16, 32, 64, MAX},
+        JavaMetricsBackend.exponentialRanges(1, 64, 8));
+    // Buckets that would round to the same value grow by one instead.
+    assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 10, MAX},
+        JavaMetricsBackend.exponentialRanges(1, 10, 10));
+  }
+
+  @Test
+  public void testLinearRangesMatchChromium() {
+    // Evenly spaced, rounded to the nearest integer.
+    assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, MAX},
+        JavaMetricsBackend.linearRanges(1, 7, 8));
+    assertArrayEquals(new int[] {0, 1, 3, 5, 7, 9, MAX}, JavaMetricsBackend.linearRanges(1, 9, 6));
+  }
+
+  @Test
+  public void testSamplesAreCountedAtBucketLowerBounds() {
+    final JavaMetricsBackend backend = new JavaMetricsBackend();
+    backend.enable();
+    final long handle = backend.createCounts(NAME, 1, 64, 8);
+    for (int sample : new int[] {-5, 0, 1, 3, 4, 63, 64, 1000}) {
+      backend.addSample(handle, sample);
+    }
+    // Underflow and overflow go to the first and last bucket.
+    assertEquals(counts(0, 2, 1, 1, 2, 1, 4, 1, 32, 1, 64, 2), samples(backend.getAndReset(), NAME));
+  }
+
+  @Test
+  public void testEnumerationKeepsEachValue() {
+    final JavaMetricsBackend backend = new JavaMetricsBackend();
+    backend.enable();
+    final long handle = backend.createEnumeration("WebRTC.Test.Enum", 5);
+    for (int sample = 0; sample < 7; ++sample) {
+      backend.addSample(handle, sample);
+    }
+    final Metrics.HistogramInfo info = backend.getAndReset().map.get("WebRTC.Test.Enum");
+    assertEquals(5, info.max);
+    assertEquals(counts(0, 1, 1, 1, 2, 1, 3, 1, 4, 1, 5, 2), info.samples);
+  }
+
+  @Test
+  public void testSamplesAreIgnoredUntilEnabled() {
+    final JavaMetricsBackend backend = new JavaMetricsBackend();
+    final long handle = backend.createCounts(NAME, 1, 64, 8);
+    backend.addSample(handle, 10);
+    assertNull(backend.getAndReset().map.get(NAME));
+    // The same name gives the same histogram.
+    assertEquals(handle, backend.createCounts(NAME, 1, 100, 50));
+  }
+
+  @Test
+  public void testGetAndResetSumsStripes() throws InterruptedException {
+    final JavaMetricsBackend backend = new JavaMetricsBackend(4);
+    backend.enable();
+    final long handle = backend.createCounts(NAME, 1, 64, 8);
+    final int threadCount = 8;
+    final int samplesPerThread = 1000;
+    // Threads with consecutive ids add to all four stripes.
+    final Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < samplesPerThread; ++j) {
+            backend.addSample(handle, 5);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(counts(4, threadCount * samplesPerThread), samples(backend.getAndReset(), NAME));
+    // All stripes were reset.
+    assertTrue(backend.getAndReset().map.isEmpty());
+  }
+
+  @Test
+  public void testHistogramMovesToNewBackend() {
+    final Histogram histogram = Histogram.createCounts(NAME, 1, 64, 8);
+    final JavaMetricsBackend first = new JavaMetricsBackend();
+    Metrics.setBackend(first);
+    Metrics.enable();
+    histogram.addSample(2);
+
+    final JavaMetricsBackend second = new JavaMetricsBackend();
+    Metrics.setBackend(second);
+    Metrics.enable();
+    histogram.addSample(16);
+    histogram.addSample(17);
+
+    assertEquals(counts(2, 1), samples(first.getAndReset(), NAME));
+    assertEquals(counts(16, 2), samples(Metrics.getAndReset(), NAME));
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares the long-word kernels in JavaYuvKernels with straightforward per pixel references.
+ * Sizes are chosen so that rows do not divide evenly into long words, which exercises the byte at
+ * a time tails as well.
+ */
+public class JavaYuvKernelsTest {
+  private final Random random = new Random(0);
+
+  private byte[] randomBytes(int size) {
+    final byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static int pixel(ByteBuffer plane, int index) {
+    return plane.get(index) & 0xFF;
+  }
+
+  // Packed I420 to NV21, one sample at a time.
+  private static byte[] referenceI420ToNv21(byte[] src, int width, int height) {
+    final int ySize = width * height;
+    final int chromaSize = (width / 2) * (height / 2);
+    final byte[] dst = new byte[ySize * 3 / 2];
+    System.arraycopy(src, 0, dst, 0, ySize);
+    for (int i = 0; i < chromaSize; ++i) {
+      dst[ySize + 2 * i] = src[ySize + chromaSize + i];
+      dst[ySize + 2 * i + 1] = src[ySize + i];
+    }
+    return dst;
+  }
+
+  private static byte[] referenceScalePlaneHalf(
+      ByteBuffer src, int srcStride, int dstWidth, int dstHeight) {
+    final byte[] dst = new byte[dstWidth * dstHeight];
+    for (int y = 0; y < dstHeight; ++y) {
+      for (int x = 0; x < dstWidth; ++x) {
+        final int row0 = 2 * y * srcStride + 2 * x;
+        final int row1 = row0 + srcStride;
+        final int sum = pixel(src, row0) + pixel(src, row0 + 1) + pixel(src, row1)
+            + pixel(src, row1 + 1);
+        dst[y * dstWidth + x] = (byte) ((sum + 2) >> 2);
+      }
+    }
+    return dst;
+  }
+
+  // Bilinear filter in floating point, with pixel centers aligned and edges clamped.
+  private static double referenceBilinear(ByteBuffer src, int srcStride, int srcWidth,
+      int srcHeight, int dstWidth, int dstHeight, int x, int y) {
+    final double sourceX = Math.max(0, (x + 0.5) * srcWidth / dstWidth - 0.5);
+    final double sourceY = Math.max(0, (y + 0.5) * srcHeight / dstHeight - 0.5);
+    final int x0 = Math.min((int) sourceX, srcWidth - 1);
+    final int y0 = Math.min((int) sourceY, srcHeight - 1);
+    final int x1 = Math.min(x0 + 1, srcWidth - 1);
+    final int y1 = Math.min(y0 + 1, srcHeight - 1);
+    final double fx = sourceX - x0;
+    final double fy = sourceY - y0;
+    final double upper =
+        pixel(src, y0 * srcStride + x0) * (1 - fx) + pixel(src, y0 * srcStride + x1) * fx;
+    final double lower =
+        pixel(src, y1 * srcStride + x0) * (1 - fx) + pixel(src, y1 * srcStride + x1) * fx;
+    return upper * (1 - fy) + lower * fy;
+  }
+
+  @Test
+  public void testI420ToNv21() {
+    for (int[] size : new int[][] {{2, 2}, {22, 6}, {64, 16}, {70, 18}}) {
+      final int width = size[0];
+      final int height = size[1];
+      final byte[] src = randomBytes(width * height * 3 / 2);
+      final byte[] dst = new byte[src.length];
+      JavaYuvKernels.i420ToNv21(src, width, height, dst);
+      assertArrayEquals(referenceI420ToNv21(src, width, height), dst);
+    }
+  }
+
+  @Test
+  public void testNv21RoundTrip() {
+    for (int[] size : new int[][] {{2, 2}, {22, 6}, {64, 16}, {70, 18}}) {
+      final int width = size[0];
+      final int height = size[1];
+      final byte[] i420 = randomBytes(width * height * 3 / 2);
+      final byte[] nv21 = new byte[i420.length];
+      final byte[] roundTrip = new byte[i420.length];
+      JavaYuvKernels.i420ToNv21(i420, width, height, nv21);
+      JavaYuvKernels.nv21ToI420(nv21, width, height, roundTrip);
+      assertArrayEquals(i420, roundTrip);
+    }
+  }
+
+  @Test
+  public void testCopyPlaneWithStrides() {
+    final int width = 13;
+    final int height = 5;
+    final ByteBuffer src = ByteBuffer.wrap(randomBytes(20 * height));
+    final ByteBuffer dst = ByteBuffer.allocate(16 * height);
+    JavaYuvKernels.copyPlane(src, width, height, 20, dst, 16);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        assertEquals(src.get(y * 20 + x), dst.get(y * 16 + x));
+      }
+    }
+  }
+
+  @Test
+  public void testScalePlaneHalfRoundsLikeReference() {
+    // 13 output columns: three long words and a tail of one.
+    final int dstWidth = 13;
+    final int dstHeight = 5;
+    final int srcStride = 2 * dstWidth + 6;
+    final ByteBuffer src = ByteBuffer.wrap(randomBytes(srcStride * 2 * dstHeight));
+    final ByteBuffer dst = ByteBuffer.allocate(dstWidth * dstHeight);
+    JavaYuvKernels.scalePlane(src, srcStride, 2 * dstWidth, 2 * dstHeight, dst, 0, dstWidth,
+        dstWidth, dstHeight, true /* box */);
+    assertArrayEquals(referenceScalePlaneHalf(src, srcStride, dstWidth, dstHeight), dst.array());
+  }
+
+  @Test
+  public void testScalePlaneHalfRoundsHalfUp() {
+    // Sums of 1, 2 and 6 round to 0, 1 and 2. Rounding up when averaging the rows and then the
+    // columns would give 1 for the sum of 1.
+    final ByteBuffer src = ByteBuffer.wrap(new byte[] {
+        1, 0, 1, 1, 3, 3, 0, 0, //
+        0, 0, 0, 0, 0, 0, 0, 0});
+    final ByteBuffer dst = ByteBuffer.allocate(4);
+    JavaYuvKernels.scalePlane(src, 8, 8, 2, dst, 0, 4, 4, 1, true /* box */);
+    assertArrayEquals(new byte[] {0, 1, 2, 0}, dst.array());
+  }
+
+  @Test
+  public void testScalePlaneBilinear() {
+    final int[][] sizes = {{13, 7, 31, 17}, {31, 17, 13, 7}, {64, 36, 40, 20}};
+    for (int[] size : sizes) {
+      final int srcWidth = size[0];
+      final int srcHeight = size[1];
+      final int dstWidth = size[2];
+      final int dstHeight = size[3];
+      final int srcStride = srcWidth + 3;
+      final ByteBuffer src = ByteBuffer.wrap(randomBytes(srcStride * srcHeight));
+      final ByteBuffer dst = ByteBuffer.allocate(dstWidth * dstHeight);
+      JavaYuvKernels.scalePlane(src, srcStride, srcWidth, srcHeight, dst, 0, dstWidth, dstWidth,
+          dstHeight, false /* box */);
+      for (int y = 0; y < dstHeight; ++y) {
+        for (int x = 0; x < dstWidth; ++x) {
+          final double expected =
+              referenceBilinear(src, srcStride, srcWidth, srcHeight, dstWidth, dstHeight, x, y);
+          // Fixed point rounding may be off by one.
+          final int actual = pixel(dst, y * dstWidth + x);
+          assertTrue("Pixel " + x + "," + y + ": " + actual + " vs " + expected,
+              Math.abs(actual - expected) <= 1);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testI420ScaleBoxHalvesAllPlanes() {
+    // The 14x6 chroma planes halve exactly to 7x3 as well.
+    final int width = 28;
+    final int height = 12;
+    final int chromaWidth = width / 2;
+    final int chromaHeight = height / 2;
+    final ByteBuffer srcY = ByteBuffer.wrap(randomBytes(width * height));
+    final ByteBuffer srcU = ByteBuffer.wrap(randomBytes(chromaWidth * chromaHeight));
+    final ByteBuffer srcV = ByteBuffer.wrap(randomBytes(chromaWidth * chromaHeight));
+    final int dstWidth = width / 2;
+    final int dstHeight = height / 2;
+    final int dstChromaWidth = dstWidth / 2;
+    final int dstChromaHeight = dstHeight / 2;
+    final ByteBuffer dst =
+        ByteBuffer.allocate(dstWidth * dstHeight + 2 * dstChromaWidth * dstChromaHeight);
+    JavaYuvKernels.i420ScaleBox(srcY, width, srcU, chromaWidth, srcV, chromaWidth, width, height,
+        dst, dstWidth, dstHeight);
+
+    final ByteBuffer expected = ByteBuffer.allocate(dst.capacity());
+    expected.put(referenceScalePlaneHalf(srcY, width, dstWidth, dstHeight));
+    expected.put(referenceScalePlaneHalf(srcU, chromaWidth, dstChromaWidth, dstChromaHeight));
+    expected.put(referenceScalePlaneHalf(srcV, chromaWidth, dstChromaWidth, dstChromaHeight));
+    assertArrayEquals(expected.array(), dst.array());
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro benchmark of MetricsBackend.addSample() with 1 to 2x the number of cores threads all
+ * adding to the same histogram. Compares JavaMetricsBackend with striped counters, with a single
+ * copy of the counters, and a histogram guarded by a lock that keeps exact values in a map, like
+ * the native backend. Also checks that no samples are lost. Runs on a plain JVM, from the test
+ * classes.
+ *
+ * Usage: java -cp <classes> org.webrtc.MetricsBenchmark [samples per thread]
+ */
+class MetricsBenchmark {
+  private static final int DEFAULT_SAMPLES_PER_THREAD = 2000000;
+  private static final String NAME = "WebRTC.Benchmark.TimeMs";
+
+  // Histogram like rtc::RtcHistogram in webrtc/system_wrappers/source/metrics_default.cc.
+  private static class LockedMapBackend implements MetricsBackend {
+    private final Map<Integer, Integer> samples = new HashMap<Integer, Integer>();
+    private int min;
+    private int max;
+    private int bucketCount;
+
+    @Override
+    public void enable() {}
+
+    @Override
+    public long createCounts(String name, int min, int max, int bucketCount) {
+      this.min = min;
+      this.max = max;
+      this.bucketCount = bucketCount;
+      return 1;
+    }
+
+    @Override
+    public long createEnumeration(String name, int max) {
+      return createCounts(name, 1, max, max + 1);
+    }
+
+    @Override
+    public void addSample(long handle, int sample) {
+      sample = Math.max(min - 1, Math.min(max, sample));
+      synchronized (samples) {
+        final Integer count = samples.get(sample);
+        samples.put(sample, (count == null) ? 1 : count + 1);
+      }
+    }
+
+    @Override
+    public Metrics getAndReset() {
+      final Metrics metrics = new Metrics();
+      final Metrics.HistogramInfo info = new Metrics.HistogramInfo(min, max, bucketCount);
+      synchronized (samples) {
+        for (Map.Entry<Integer, Integer> entry : samples.entrySet()) {
+          info.addSample(entry.getKey(), entry.getValue());
+        }
+        samples.clear();
+      }
+      metrics.map.put(NAME, info);
+      return metrics;
+    }
+  }
+
+  // Returns the throughput in million samples per second.
+  private static double run(final MetricsBackend backend, int threadCount,
+      final int samplesPerThread) throws InterruptedException {
+    backend.enable();
+    final long handle = backend.createCounts(NAME, 1, 10000, 50);
+    final CountDownLatch start = new CountDownLatch(1);
+    final Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      final int seed = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          // ThreadUtils is in base_java.jar, which is not on the test classpath.
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          // Cheap pseudo random samples spread over the range, like frame times.
+          int value = seed;
+          for (int j = 0; j < samplesPerThread; ++j) {
+            value = value * 1103515245 + 12345;
+            backend.addSample(handle, (value >>> 16) % 200);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    final long startNs = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    final long elapsedNs = System.nanoTime() - startNs;
+
+    long total = 0;
+    for (Metrics.HistogramInfo info : backend.getAndReset().map.values()) {
+      for (int count : info.samples.values()) {
+        total += count;
+      }
+    }
+    if (total != (long) threadCount * samplesPerThread) {
+      throw new IllegalStateException("Lost samples: " + total);
+    }
+    return (double) threadCount * samplesPerThread * TimeUnit.SECONDS.toNanos(1) / elapsedNs / 1e6;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    final int samplesPerThread =
+        (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SAMPLES_PER_THREAD;
+    final int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println("Cores: " + cores + ". Samples per thread: " + samplesPerThread);
+    System.out.println("Throughput in million samples/s:");
+    System.out.println("threads  striped  single  locked map");
+    for (int threadCount = 1; threadCount <= 2 * cores; threadCount *= 2) {
+      // Warm up.
+      run(new JavaMetricsBackend(), threadCount, samplesPerThread / 10);
+      run(new JavaMetricsBackend(1), threadCount, samplesPerThread / 10);
+      run(new LockedMapBackend(), threadCount, samplesPerThread / 10);
+      System.out.println(String.format("%7d  %7.1f  %6.1f  %10.1f", threadCount,
+          run(new JavaMetricsBackend(), threadCount, samplesPerThread),
+          run(new JavaMetricsBackend(1), threadCount, samplesPerThread),
+          run(new LockedMapBackend(), threadCount, samplesPerThread)));
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2016 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc.voiceengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives PlayoutDelayEstimator like the playout thread of WebRtcAudioTrack
+ * does, writing 10 ms blocks into a fake audio sink that plays out frames on
+ * a simulated clock.
+ */
+public class PlayoutDelayEstimatorTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = SAMPLE_RATE / 100;
+    private static final int PERIOD_FRAMES = 240;
+    private static final int BUFFER_FRAMES = 4 * BLOCK_FRAMES;
+
+    /**
+     * Audio sink that plays out at the nominal sample rate once it has been
+     * given data, and reports its head position in whole periods.
+     */
+    private static class FakeAudioSink {
+        private long framesWritten;
+        private long framesPlayed;
+        private boolean empty;
+        private int underruns;
+
+        // Plays out frames for |ms| milliseconds of the simulated clock.
+        void advanceMs(long ms) {
+            if (framesWritten == 0) {
+                return;
+            }
+            framesPlayed += ms * SAMPLE_RATE / 1000;
+            if (framesPlayed >= framesWritten) {
+                framesPlayed = framesWritten;
+                if (!empty) {
+                    ++underruns;
+                }
+                empty = true;
+            }
+        }
+
+        // Advances the clock until |frames| fit in the buffer, like a
+        // blocking write, and writes them.
+        void write(int frames) {
+            final long excess = getPendingFrames() + frames - BUFFER_FRAMES;
+            if (excess > 0) {
+                advanceMs((excess * 1000 + SAMPLE_RATE - 1) / SAMPLE_RATE);
+            }
+            framesWritten += frames;
+            empty = false;
+        }
+
+        int getHeadPosition() {
+            return (int) (framesPlayed / PERIOD_FRAMES * PERIOD_FRAMES);
+        }
+
+        long getPendingFrames() {
+            return framesWritten - framesPlayed;
+        }
+    }
+
+    private FakeAudioSink sink;
+    private PlayoutDelayEstimator estimator;
+    // Largest difference between the estimated and the true pending frames.
+    private long maxErrorFrames;
+
+    @Before
+    public void setUp() {
+        sink = new FakeAudioSink();
+        estimator = new PlayoutDelayEstimator(SAMPLE_RATE);
+    }
+
+    // Runs one iteration of the playout loop, which takes |callbackMs| to
+    // produce a block.
+    private void playoutBlock(long callbackMs) {
+        sink.advanceMs(callbackMs);
+        estimator.onHeadPosition(sink.getHeadPosition());
+        final long errorFrames = estimator.getPendingFrames() - sink.getPendingFrames();
+        assertTrue("Error: " + errorFrames, errorFrames >= 0);
+        maxErrorFrames = Math.max(maxErrorFrames, errorFrames);
+        sink.write(BLOCK_FRAMES);
+        estimator.onFramesWritten(BLOCK_FRAMES);
+    }
+
+    private static int framesToMs(long frames) {
+        return (int) (frames * 1000 / SAMPLE_RATE);
+    }
+
+    @Test
+    public void testNoDelayBeforeFirstWrite() {
+        estimator.onHeadPosition(0);
+        assertEquals(0, estimator.getDelayMs());
+        assertEquals(0, estimator.getSmoothedDelayMs());
+        assertEquals(0, estimator.getUnderrunCount());
+    }
+
+    @Test
+    public void testSteadyStateDelayIsTracked() {
+        for (int i = 0; i < 500; ++i) {
+            playoutBlock(1 /* callbackMs */);
+        }
+        // The head position lags the sink by less than one reporting period.
+        assertTrue("Max error: " + maxErrorFrames, maxErrorFrames < PERIOD_FRAMES);
+        // Right before each write, the sink holds a full buffer minus what it
+        // played out during the callback.
+        final long pendingFrames = BUFFER_FRAMES - SAMPLE_RATE / 1000;
+        assertTrue(estimator.getSmoothedDelayMs() >= framesToMs(pendingFrames));
+        assertTrue(estimator.getSmoothedDelayMs() <= framesToMs(pendingFrames + PERIOD_FRAMES));
+        assertTrue(estimator.getMaxDelayMs() <= framesToMs(BUFFER_FRAMES));
+        assertEquals(0, estimator.getUnderrunCount());
+        assertEquals(0, sink.underruns);
+    }
+
+    @Test
+    public void testStallCountsOneUnderrun() {
+        for (int i = 0; i < 50; ++i) {
+            playoutBlock(1 /* callbackMs */);
+        }
+        // A stall longer than the buffered audio empties the sink.
+        playoutBlock(100 /* callbackMs */);
+        // Only the block written after the stall is pending.
+        assertEquals(framesToMs(BLOCK_FRAMES), estimator.getDelayMs());
+        assertEquals(1, estimator.getUnderrunCount());
+        // The sink is refilled and is not counted again while it recovers.
+        for (int i = 0; i < 50; ++i) {
+            playoutBlock(1 /* callbackMs */);
+        }
+        assertEquals(1, estimator.getUnderrunCount());
+        assertEquals(sink.underruns, estimator.getUnderrunCount());
+    }
+
+    @Test
+    public void testConsecutiveEmptyObservationsCountOnce() {
+        estimator.onFramesWritten(BLOCK_FRAMES);
+        estimator.onHeadPosition(BLOCK_FRAMES);
+        estimator.onHeadPosition(BLOCK_FRAMES);
+        estimator.onHeadPosition(BLOCK_FRAMES);
+        assertEquals(1, estimator.getUnderrunCount());
+        estimator.onFramesWritten(BLOCK_FRAMES);
+        estimator.onHeadPosition(BLOCK_FRAMES);
+        estimator.onHeadPosition(2 * BLOCK_FRAMES);
+        assertEquals(2, estimator.getUnderrunCount());
+    }
+
+    @Test
+    public void testHeadPositionIsClampedToFramesWritten() {
+        estimator.onFramesWritten(BLOCK_FRAMES);
+        estimator.onHeadPosition(2 * BLOCK_FRAMES);
+        assertEquals(BLOCK_FRAMES, estimator.getFramesPlayed());
+        assertEquals(0, estimator.getPendingFrames());
+    }
+
+    @Test
+    public void testHeadPositionWrapsAround() {
+        // Bring the raw head position close to the 32-bit wrap point.
+        final long start = 0xFFFFFFFFL - BLOCK_FRAMES;
+        for (long written = 0; written < start; written += Integer.MAX_VALUE) {
+            estimator.onFramesWritten((int) Math.min(Integer.MAX_VALUE, start - written));
+        }
+        estimator.onHeadPosition((int) start);
+        assertEquals(start, estimator.getFramesPlayed());
+
+        estimator.onFramesWritten(4 * BLOCK_FRAMES);
+        // The raw position wraps past zero.
+        estimator.onHeadPosition((int) (start + 2 * BLOCK_FRAMES));
+        assertEquals(start + 2 * BLOCK_FRAMES, estimator.getFramesPlayed());
+        assertEquals(framesToMs(2 * BLOCK_FRAMES), estimator.getDelayMs());
+    }
+
+    @Test
+    public void testResetRestartsEstimation() {
+        for (int i = 0; i < 10; ++i) {
+            playoutBlock(1 /* callbackMs */);
+        }
+        estimator.reset();
+        assertEquals(0, estimator.getFramesWritten());
+        assertEquals(0, estimator.getFramesPlayed());
+        assertEquals(0, estimator.getMaxDelayMs());
+        assertEquals(0, estimator.getUnderrunCount());
+        // A flushed sink starts again at head position zero.
+        estimator.onFramesWritten(BLOCK_FRAMES);
+        estimator.onHeadPosition(PERIOD_FRAMES);
+        assertEquals(framesToMs(BLOCK_FRAMES - PERIOD_FRAMES), estimator.getDelayMs());
+    }
+}
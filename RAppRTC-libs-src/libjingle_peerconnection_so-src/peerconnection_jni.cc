@@ -68,6 +68,7 @@
 #include "webrtc/base/rtccertificategenerator.h"
 #include "webrtc/base/ssladapter.h"
 #include "webrtc/base/stringutils.h"
+#include "webrtc/base/timeutils.h"
 #include "webrtc/media/base/videocapturer.h"
 #include "webrtc/media/engine/webrtcvideodecoderfactory.h"
 #include "webrtc/media/engine/webrtcvideoencoderfactory.h"
@@ -747,6 +748,8 @@ class JavaVideoRendererWrapper
         j_texture_frame_ctor_id_(GetMethodID(
             jni, *j_frame_class_, "<init>",
             "(IIII[FJ)V")),
+        j_timestamp_ns_id_(
+            GetFieldID(jni, *j_frame_class_, "timestampNs", "J")),
         j_byte_buffer_class_(jni, FindClass(jni, "java/nio/ByteBuffer")) {
     CHECK_EXCEPTION(jni);
   }
@@ -759,6 +762,10 @@ class JavaVideoRendererWrapper
         (video_frame.video_frame_buffer()->native_handle() != nullptr)
             ? CricketToJavaTextureFrame(&video_frame)
             : CricketToJavaI420Frame(&video_frame);
+    // Used by the Java renderers for timestamp based frame rate limiting.
+    jni()->SetLongField(
+        j_frame, j_timestamp_ns_id_,
+        video_frame.timestamp_us() * rtc::kNumNanosecsPerMicrosec);
     // |j_callbacks_| is responsible for releasing |j_frame| with
     // VideoRenderer.renderFrameDone().
     jni()->CallVoidMethod(*j_callbacks_, j_render_frame_id_, j_frame);
@@ -826,6 +833,7 @@ class JavaVideoRendererWrapper
   ScopedGlobalRef<jclass> j_frame_class_;
   jmethodID j_i420_frame_ctor_id_;
   jmethodID j_texture_frame_ctor_id_;
+  jfieldID j_timestamp_ns_id_;
   ScopedGlobalRef<jclass> j_byte_buffer_class_;
 };
 
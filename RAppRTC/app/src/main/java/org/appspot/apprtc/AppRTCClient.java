@@ -52,15 +52,20 @@ public interface AppRTCClient {
   void sendAnswerSdp(final SessionDescription sdp);
 
   /**
-   * Send Ice candidate to the other participant.
+   * Send a batch of Ice candidates to the other participant.
    */
-  void sendLocalIceCandidate(final IceCandidate candidate);
+  void sendLocalIceCandidates(final IceCandidate[] candidates);
 
   /**
    * Send removed ICE candidates to the other participant.
    */
   void sendLocalIceCandidateRemovals(final IceCandidate[] candidates);
 
+  /**
+   * Ask the other participant, which makes the offers, to restart ICE.
+   */
+  void sendIceRestartRequest();
+
   /**
    * Disconnect from room.
    */
@@ -122,6 +127,11 @@ public interface AppRTCClient {
      */
     void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates);
 
+    /**
+     * Callback fired once the remote participant asks for an ICE restart.
+     */
+    void onRemoteIceRestartRequest();
+
     /**
      * Callback fired once channel is closed.
      */
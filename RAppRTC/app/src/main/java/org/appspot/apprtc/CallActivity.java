@@ -17,6 +17,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
@@ -30,7 +31,9 @@ import android.view.WindowManager;
 import android.view.WindowManager.LayoutParams;
 import android.widget.Toast;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.RuntimeException;
 import java.util.ArrayList;
 import java.util.List;
@@ -39,14 +42,18 @@ import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.PeerConnectionClient.DataChannelParameters;
 import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
+import org.appspot.apprtc.util.CallSetupTimeline;
+import org.appspot.apprtc.util.ThreadRegistry;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
+import org.webrtc.EglRenderer;
 import org.webrtc.FileVideoCapturer;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RendererCommon;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
@@ -107,6 +114,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     public static final String EXTRA_PROTOCOL = "org.appspot.apprtc.PROTOCOL";
     public static final String EXTRA_NEGOTIATED = "org.appspot.apprtc.NEGOTIATED";
     public static final String EXTRA_ID = "org.appspot.apprtc.ID";
+    public static final String EXTRA_ICE_CANDIDATE_POOL_SIZE =
+            "org.appspot.apprtc.ICE_CANDIDATE_POOL_SIZE";
+    public static final String EXTRA_HUD_REFRESH_PERIOD = "org.appspot.apprtc.HUD_REFRESH_PERIOD";
 
     private static final String TAG = "CallRTCClient";
     private static final int CAPTURE_PERMISSION_REQUEST_CODE = 1;
@@ -115,8 +125,13 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     private static final String[] MANDATORY_PERMISSIONS = {"android.permission.MODIFY_AUDIO_SETTINGS",
             "android.permission.RECORD_AUDIO", "android.permission.INTERNET"};
 
-    // Peer connection statistics callback period in ms.
+    // Default peer connection statistics callback period in ms. Statistics are
+    // only collected for the HUD, so this is also its refresh period.
     private static final int STAT_CALLBACK_PERIOD = 1000;
+    // Number of recent calls that setup latency percentiles are computed over.
+    private static final int CALL_SETUP_STATS_CALLS = 100;
+    private static final CallSetupTimeline.Aggregate callSetupStats =
+            new CallSetupTimeline.Aggregate(CALL_SETUP_STATS_CALLS);
     // Local preview screen position before call is connected.
     private static final int LOCAL_X_CONNECTING = 0;
     private static final int LOCAL_Y_CONNECTING = 0;
@@ -151,8 +166,8 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     private boolean activityRunning;
     private RoomConnectionParameters roomConnectionParameters;
     private PeerConnectionParameters peerConnectionParameters;
-    private boolean iceConnected;
-    private boolean isError;
+    private volatile boolean iceConnected;
+    private volatile boolean isError;
     private boolean callControlFragmentVisible = true;
     private long callStartedTimeMs = 0;
     private boolean micEnabled = true;
@@ -224,7 +239,16 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
                         "Failed to open video file for output: " + saveRemoteVideoToFile, e);
             }
         }
-        remoteRenderScreen.init(rootEglBase.getEglBaseContext(), null);
+        remoteRenderScreen.init(rootEglBase.getEglBaseContext(), new RendererCommon.RendererEvents() {
+            // Called when the first decoded frame reaches the renderer.
+            @Override
+            public void onFirstFrameRendered() {
+                CallSetupTimeline.record(CallSetupTimeline.Event.FIRST_FRAME_DECODED);
+            }
+
+            @Override
+            public void onFrameResolutionChanged(int videoWidth, int videoHeight, int rotation) {}
+        });
 
         localRender.setZOrderMediaOverlay(true);
         localRender.setEnableHardwareScaler(true /* enabled */);
@@ -296,7 +320,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
                         intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
                         intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AGC, false),
                         intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_NS, false),
-                        intent.getBooleanExtra(EXTRA_ENABLE_LEVEL_CONTROL, false), dataChannelParameters);
+                        intent.getBooleanExtra(EXTRA_ENABLE_LEVEL_CONTROL, false), dataChannelParameters,
+                        intent.getIntExtra(EXTRA_ICE_CANDIDATE_POOL_SIZE,
+                                PeerConnectionParameters.DEFAULT_ICE_CANDIDATE_POOL_SIZE));
         commandLineRun = intent.getBooleanExtra(EXTRA_CMDLINE, false);
         runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
 
@@ -314,6 +340,8 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         roomConnectionParameters = new RoomConnectionParameters(roomUri.toString(), roomId, loopback);
 
         // Create CPU monitor
+        registerRenderThread(R.id.local_video_view);
+        registerRenderThread(R.id.remote_video_view);
         cpuMonitor = new CpuMonitor(this);
         hudFragment.setCpuMonitor(cpuMonitor);
 
@@ -429,6 +457,25 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         cpuMonitor.resume();
     }
 
+    // Dumps thread CPU usage by role with
+    // Attributes the render thread of the SurfaceViewRenderer with |viewId| to
+    // the render role of CpuMonitor. EglRenderer names the thread after the
+    // resource name of the view.
+    private void registerRenderThread(int viewId) {
+        ThreadRegistry.registerNamePrefix(
+                getResources().getResourceEntryName(viewId) + ": EglRenderer",
+                ThreadRegistry.ROLE_RENDER);
+    }
+
+    // adb shell dumpsys activity org.appspot.apprtc/.CallActivity
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (cpuMonitor != null) {
+            cpuMonitor.dump(writer, prefix);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         disconnect();
@@ -520,6 +567,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
             return;
         }
         callStartedTimeMs = System.currentTimeMillis();
+        startCallSetupTimeline();
 
         // Start room connection.
         logAndToast(getString(R.string.connecting_to, roomConnectionParameters.roomUrl));
@@ -541,6 +589,31 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         audioManager.init();
     }
 
+    // Records the call setup steps until the first remote frame is drawn, or ICE is connected
+    // in audio only calls, and logs them with the percentiles over recent calls.
+    private void startCallSetupTimeline() {
+        final boolean videoCallEnabled = peerConnectionParameters.videoCallEnabled;
+        CallSetupTimeline.start(videoCallEnabled ? CallSetupTimeline.Event.FIRST_FRAME_RENDERED
+                        : CallSetupTimeline.Event.ICE_CONNECTED,
+                new CallSetupTimeline.Listener() {
+                    @Override
+                    public void onTimelineFinished(CallSetupTimeline timeline) {
+                        callSetupStats.add(timeline);
+                        Log.i(TAG, "Call setup: " + timeline.toJson());
+                        Log.d(TAG, callSetupStats.toString());
+                    }
+                });
+        if (videoCallEnabled) {
+            // Called once, after the next frame is drawn.
+            remoteRenderScreen.addFrameListener(new EglRenderer.FrameListener() {
+                @Override
+                public void onFrame(Bitmap frame) {
+                    CallSetupTimeline.record(CallSetupTimeline.Event.FIRST_FRAME_RENDERED);
+                }
+            }, 0 /* scale, no Bitmap */);
+        }
+    }
+
     // Should be called from UI thread
     private void callConnected() {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
@@ -551,8 +624,13 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         }
         // Update video view.
         updateVideoView();
-        // Enable statistics callback.
-        peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+        // Enable statistics callback if the HUD displays them.
+        if (getIntent().getBooleanExtra(EXTRA_DISPLAY_HUD, false)) {
+            int periodMs = getIntent().getIntExtra(EXTRA_HUD_REFRESH_PERIOD, STAT_CALLBACK_PERIOD);
+            // A period of 0 would make the stats poll fail to schedule.
+            peerConnectionClient.enableStatsEvents(
+                    true, (periodMs > 0) ? periodMs : STAT_CALLBACK_PERIOD);
+        }
     }
 
     private void onAudioManagerChangedState() {
@@ -563,6 +641,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     // Disconnect from remote resources, dispose of local resources, and exit.
     private void disconnect() {
         activityRunning = false;
+        CallSetupTimeline.end();
         if (appRtcClient != null) {
             appRtcClient.disconnectFromRoom();
             appRtcClient = null;
@@ -797,6 +876,20 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         });
     }
 
+    @Override
+    public void onRemoteIceRestartRequest() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnectionClient == null) {
+                    Log.e(TAG, "Received ICE restart request for a non-initialized peer connection.");
+                    return;
+                }
+                peerConnectionClient.onRemoteIceRestartRequest();
+            }
+        });
+    }
+
     @Override
     public void onChannelClose() {
         runOnUiThread(new Runnable() {
@@ -840,12 +933,12 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
 
     @Override
-    public void onIceCandidate(final IceCandidate candidate) {
+    public void onIceCandidates(final IceCandidate[] candidates) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 if (appRtcClient != null) {
-                    appRtcClient.sendLocalIceCandidate(candidate);
+                    appRtcClient.sendLocalIceCandidates(candidates);
                 }
             }
         });
@@ -863,6 +956,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         });
     }
 
+    @Override
+    public void onIceRestartNeeded() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (appRtcClient != null) {
+                    appRtcClient.sendIceRestartRequest();
+                }
+            }
+        });
+    }
+
     @Override
     public void onIceConnected() {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
@@ -894,14 +999,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     @Override
     public void onPeerConnectionStatsReady(final StatsReport[] reports) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (!isError && iceConnected) {
-                    hudFragment.updateEncoderStatistics(reports);
-                }
-            }
-        });
+        // HUD formats statistics off the UI thread and only posts changed texts.
+        if (!isError && iceConnected) {
+            hudFragment.updateEncoderStatistics(reports);
+        }
     }
 
     @Override
@@ -465,10 +465,18 @@ public class ConnectActivity extends Activity {
     // Check statistics display option.
     boolean displayHud = sharedPrefGetBoolean(R.string.pref_displayhud_key,
         CallActivity.EXTRA_DISPLAY_HUD, R.string.pref_displayhud_default, useValuesFromIntent);
+    int hudRefreshPeriodMs = sharedPrefGetInteger(R.string.pref_hud_refresh_period_key,
+        CallActivity.EXTRA_HUD_REFRESH_PERIOD, R.string.pref_hud_refresh_period_default,
+        useValuesFromIntent);
 
     boolean tracing = sharedPrefGetBoolean(R.string.pref_tracing_key, CallActivity.EXTRA_TRACING,
         R.string.pref_tracing_default, useValuesFromIntent);
 
+    // Get the number of ICE candidates to gather before the call.
+    int iceCandidatePoolSize = sharedPrefGetInteger(R.string.pref_ice_candidate_pool_size_key,
+        CallActivity.EXTRA_ICE_CANDIDATE_POOL_SIZE, R.string.pref_ice_candidate_pool_size_default,
+        useValuesFromIntent);
+
     // Get datachannel options
     boolean dataChannelEnabled = sharedPrefGetBoolean(R.string.pref_enable_datachannel_key,
         CallActivity.EXTRA_DATA_CHANNEL_ENABLED, R.string.pref_enable_datachannel_default,
@@ -517,7 +525,9 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE, audioStartBitrate);
       intent.putExtra(CallActivity.EXTRA_AUDIOCODEC, audioCodec);
       intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
+      intent.putExtra(CallActivity.EXTRA_HUD_REFRESH_PERIOD, hudRefreshPeriodMs);
       intent.putExtra(CallActivity.EXTRA_TRACING, tracing);
+      intent.putExtra(CallActivity.EXTRA_ICE_CANDIDATE_POOL_SIZE, iceCandidatePoolSize);
       intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
       intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
 
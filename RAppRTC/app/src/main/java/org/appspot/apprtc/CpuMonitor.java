@@ -17,12 +17,12 @@ import android.os.BatteryManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import org.appspot.apprtc.util.ProcfsCpuSampler;
+import org.appspot.apprtc.util.ThreadCpuAttribution;
+import org.appspot.apprtc.util.ThreadRegistry;
+
+import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -62,6 +62,12 @@ import java.util.concurrent.TimeUnit;
  * second, one would need to increase SAMPLE_SAVE_NUMBER and probably use
  * Queue<Integer> to avoid copying overhead.
  *
+ * <p>All procfs and sysfs files are read with ProcfsCpuSampler, which keeps
+ * them open and parses them in place instead of reopening them every sample.
+ * The CPU time and context switches of the threads of this process are also
+ * attributed to the roles they are registered with in ThreadRegistry, see
+ * getThreadCpuSummary() and dump().
+ *
  * <p>Known problems:
  *   1. Nexus 7 devices running Kitkat have a kernel which often output an
  *      incorrect 'idle' field in /proc/stat.  The value is close to twice the
@@ -75,6 +81,8 @@ class CpuMonitor {
 
   private static final int CPU_STAT_SAMPLE_PERIOD_MS = 2000;
   private static final int CPU_STAT_LOG_PERIOD_MS = 6000;
+  // Number of thread roles in the summary.
+  private static final int THREAD_CPU_SUMMARY_ROLES = 4;
 
   private final Context appContext;
   // User CPU usage at current frequency.
@@ -93,22 +101,9 @@ class CpuMonitor {
   private int actualCpusPresent;
   private boolean initialized;
   private boolean cpuOveruse;
-  private String[] maxPath;
-  private String[] curPath;
   private double[] curFreqScales;
-  private ProcStat lastProcStat;
-
-  private static class ProcStat {
-    final long userTime;
-    final long systemTime;
-    final long idleTime;
-
-    ProcStat(long userTime, long systemTime, long idleTime) {
-      this.userTime = userTime;
-      this.systemTime = systemTime;
-      this.idleTime = idleTime;
-    }
-  }
+  private ProcfsCpuSampler sampler;
+  private ThreadCpuAttribution threadCpu;
 
   private static class MovingAverage {
     private final int size;
@@ -169,6 +164,13 @@ class CpuMonitor {
       executor.shutdownNow();
       executor = null;
     }
+    closeSampler();
+  }
+
+  private synchronized void closeSampler() {
+    if (sampler != null) {
+      sampler.close();
+    }
   }
 
   public void resume() {
@@ -197,6 +199,26 @@ class CpuMonitor {
     return doubleToPercent(frequencyScale.getAverage());
   }
 
+  /**
+   * Returns the CPU use of the busiest thread roles in percent of one core,
+   * e.g. "render 12 audio-playout 4".
+   */
+  public synchronized String getThreadCpuSummary() {
+    return (threadCpu == null) ? "" : threadCpu.getSummary(THREAD_CPU_SUMMARY_ROLES);
+  }
+
+  /**
+   * Writes the CPU use and context switches of all thread roles to |writer|.
+   */
+  public synchronized void dump(PrintWriter writer, String prefix) {
+    if (threadCpu == null) {
+      writer.print(prefix);
+      writer.println("CpuMonitor not initialized");
+      return;
+    }
+    threadCpu.dump(writer, prefix);
+  }
+
   private void scheduleCpuUtilizationTask() {
     if (executor != null) {
       executor.shutdownNow();
@@ -223,37 +245,23 @@ class CpuMonitor {
   }
 
   private void init() {
-    try {
-      FileReader fin = new FileReader("/sys/devices/system/cpu/present");
-      try {
-        BufferedReader reader = new BufferedReader(fin);
-        Scanner scanner = new Scanner(reader).useDelimiter("[-\n]");
-        scanner.nextInt(); // Skip leading number 0.
-        cpusPresent = 1 + scanner.nextInt();
-        scanner.close();
-      } catch (Exception e) {
-        Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
-      } finally {
-        fin.close();
+    sampler = new ProcfsCpuSampler();
+    threadCpu = new ThreadCpuAttribution(sampler, new ThreadCpuAttribution.RoleResolver() {
+      @Override
+      public String getRole(int tid, String name) {
+        return ThreadRegistry.getRole(tid, name);
       }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present is missing");
-    } catch (IOException e) {
-      Log.e(TAG, "Error closing file");
+    });
+    cpusPresent = sampler.getCoreCount();
+    if (cpusPresent == 0) {
+      Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
     }
 
     cpuFreqMax = new long[cpusPresent];
-    maxPath = new String[cpusPresent];
-    curPath = new String[cpusPresent];
     curFreqScales = new double[cpusPresent];
-    for (int i = 0; i < cpusPresent; i++) {
-      cpuFreqMax[i] = 0; // Frequency "not yet determined".
-      curFreqScales[i] = 0;
-      maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-      curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
-    }
-
-    lastProcStat = new ProcStat(0, 0, 0);
+    // The first sample only establishes the baseline for the deltas.
+    sampler.sampleProcStat();
+    threadCpu.sample();
     resetStat();
 
     initialized = true;
@@ -312,18 +320,17 @@ class CpuMonitor {
       curFreqScales[i] = 0;
       if (cpuFreqMax[i] == 0) {
         // We have never found this CPU's max frequency.  Attempt to read it.
-        long cpufreqMax = readFreqFromFile(maxPath[i]);
+        long cpufreqMax = sampler.readMaxFrequency(i);
         if (cpufreqMax > 0) {
           Log.d(TAG, "Core " + i + ". Max frequency: " + cpufreqMax);
           lastSeenMaxFreq = cpufreqMax;
           cpuFreqMax[i] = cpufreqMax;
-          maxPath[i] = null; // Kill path to free its memory.
         }
       } else {
         lastSeenMaxFreq = cpuFreqMax[i]; // A valid, previously read value.
       }
 
-      long cpuFreqCur = readFreqFromFile(curPath[i]);
+      long cpuFreqCur = sampler.readCurrentFrequency(i);
       if (cpuFreqCur == 0 && lastSeenMaxFreq == 0) {
         // No current frequency information for this CPU core - ignore it.
         continue;
@@ -362,14 +369,23 @@ class CpuMonitor {
       currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
     }
 
-    ProcStat procStat = readProcStat();
-    if (procStat == null) {
+    // Keep the previous totals, since sampleProcStat() overwrites them in place.
+    final ProcfsCpuSampler.CpuTimes times = sampler.getTotalTimes();
+    final long lastUserTime = times.user;
+    final long lastSystemTime = times.system;
+    final long lastIdleTime = times.idle;
+    if (!sampler.sampleProcStat()) {
+      Log.e(TAG, "Problems reading /proc/stat");
       return false;
     }
+    ThreadRegistry.prune();
+    if (!threadCpu.sample()) {
+      Log.e(TAG, "Problems reading /proc/self/task");
+    }
 
-    long diffUserTime = procStat.userTime - lastProcStat.userTime;
-    long diffSystemTime = procStat.systemTime - lastProcStat.systemTime;
-    long diffIdleTime = procStat.idleTime - lastProcStat.idleTime;
+    long diffUserTime = times.user - lastUserTime;
+    long diffSystemTime = times.system - lastSystemTime;
+    long diffIdleTime = times.idle - lastIdleTime;
     long allTime = diffUserTime + diffSystemTime + diffIdleTime;
 
     if (currentFrequencyScale == 0 || allTime == 0) {
@@ -389,9 +405,6 @@ class CpuMonitor {
         (currentUserCpuUsage + currentSystemCpuUsage) * currentFrequencyScale;
     totalCpuUsage.addValue(currentTotalCpuUsage);
 
-    // Save new measurements for next round's deltas.
-    lastProcStat = procStat;
-
     return true;
   }
 
@@ -423,88 +436,15 @@ class CpuMonitor {
     for (int i = 0; i < cpusPresent; i++) {
       stat.append(doubleToPercent(curFreqScales[i])).append(" ");
     }
-    stat.append("). Battery: ").append(getBatteryLevel());
+    stat.append("). Core usage: ( ");
+    for (int i = 0; i < cpusPresent; i++) {
+      stat.append(doubleToPercent(sampler.getCoreUtilization(i))).append(" ");
+    }
+    stat.append("). Threads: ").append(threadCpu.getSummary(THREAD_CPU_SUMMARY_ROLES));
+    stat.append(". Battery: ").append(getBatteryLevel());
     if (cpuOveruse) {
       stat.append(". Overuse.");
     }
     return stat.toString();
   }
-
-  /**
-   * Read a single integer value from the named file.  Return the read value
-   * or if an error occurs return 0.
-   */
-  private long readFreqFromFile(String fileName) {
-    long number = 0;
-    try {
-      BufferedReader reader = new BufferedReader(new FileReader(fileName));
-      try {
-        String line = reader.readLine();
-        number = parseLong(line);
-      } finally {
-        reader.close();
-      }
-    } catch (FileNotFoundException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is not present. This is not an error.
-    } catch (IOException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is empty. This is not an error.
-    }
-    return number;
-  }
-
-  private static long parseLong(String value) {
-    long number = 0;
-    try {
-      number = Long.parseLong(value);
-    } catch (NumberFormatException e) {
-      Log.e(TAG, "parseLong error.", e);
-    }
-    return number;
-  }
-
-  /*
-   * Read the current utilization of all CPUs using the cumulative first line
-   * of /proc/stat.
-   */
-  private ProcStat readProcStat() {
-    long userTime = 0;
-    long systemTime = 0;
-    long idleTime = 0;
-    try {
-      BufferedReader reader = new BufferedReader(new FileReader("/proc/stat"));
-      try {
-        // line should contain something like this:
-        // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
-        //       user    nice  system     idle   iowait  irq   softirq
-        String line = reader.readLine();
-        String lines[] = line.split("\\s+");
-        int length = lines.length;
-        if (length >= 5) {
-          userTime = parseLong(lines[1]); // user
-          userTime += parseLong(lines[2]); // nice
-          systemTime = parseLong(lines[3]); // system
-          idleTime = parseLong(lines[4]); // idle
-        }
-        if (length >= 8) {
-          userTime += parseLong(lines[5]); // iowait
-          systemTime += parseLong(lines[6]); // irq
-          systemTime += parseLong(lines[7]); // softirq
-        }
-      } catch (Exception e) {
-        Log.e(TAG, "Problems parsing /proc/stat", e);
-        return null;
-      } finally {
-        reader.close();
-      }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot open /proc/stat for reading", e);
-      return null;
-    } catch (IOException e) {
-      Log.e(TAG, "Problems reading /proc/stat", e);
-      return null;
-    }
-    return new ProcStat(userTime, systemTime, idleTime);
-  }
 }
@@ -12,6 +12,7 @@ package org.appspot.apprtc;
 
 import android.util.Log;
 
+import org.appspot.apprtc.util.ThreadRegistry;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -32,6 +33,7 @@ import java.util.regex.Pattern;
  */
 public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChannelEvents {
   private static final String TAG = "DirectRTCClient";
+  private static final String EXECUTOR_THREAD_ROLE = "signaling";
   private static final int DEFAULT_PORT = 8888;
 
   // Regex pattern used for checking if room id looks like an IP.
@@ -65,6 +67,12 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     this.events = events;
 
     executor = Executors.newSingleThreadExecutor();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ThreadRegistry.register(EXECUTOR_THREAD_ROLE);
+      }
+    });
     roomState = ConnectionState.NEW;
   }
 
@@ -178,21 +186,23 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   }
 
   @Override
-  public void sendLocalIceCandidate(final IceCandidate candidate) {
+  public void sendLocalIceCandidates(final IceCandidate[] candidates) {
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-
         if (roomState != ConnectionState.CONNECTED) {
           reportError("Sending ICE candidate in non connected state.");
           return;
         }
-        sendMessage(json.toString());
+        // The remote end expects one message per candidate.
+        for (final IceCandidate candidate : candidates) {
+          JSONObject json = new JSONObject();
+          jsonPut(json, "type", "candidate");
+          jsonPut(json, "label", candidate.sdpMLineIndex);
+          jsonPut(json, "id", candidate.sdpMid);
+          jsonPut(json, "candidate", candidate.sdp);
+          sendMessage(json.toString());
+        }
       }
     });
   }
@@ -220,6 +230,24 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     });
   }
 
+  /** Ask the other participant to restart ICE. */
+  @Override
+  public void sendIceRestartRequest() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        JSONObject json = new JSONObject();
+        jsonPut(json, "type", "ice-restart-request");
+        if (roomState != ConnectionState.CONNECTED) {
+          // Not an error, the restart is requested again until ICE connects.
+          Log.w(TAG, "Not sending ICE restart request in non connected state.");
+          return;
+        }
+        sendMessage(json.toString());
+      }
+    });
+  }
+
   // -------------------------------------------------------------------
   // TCPChannelClient event handlers
 
@@ -259,6 +287,8 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
           candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
         }
         events.onRemoteIceCandidatesRemoved(candidates);
+      } else if (type.equals("ice-restart-request")) {
+        events.onRemoteIceRestartRequest();
       } else if (type.equals("answer")) {
         SessionDescription sdp = new SessionDescription(
             SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
@@ -266,6 +296,11 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       } else if (type.equals("offer")) {
         SessionDescription sdp = new SessionDescription(
             SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+        if (roomState == ConnectionState.CONNECTED) {
+          // A new offer of the connected peer, e.g. to restart ICE.
+          events.onRemoteDescription(sdp);
+          return;
+        }
 
         SignalingParameters parameters = new SignalingParameters(
             // Ice servers are not needed for direct connections.
@@ -12,6 +12,8 @@ package org.appspot.apprtc;
 
 import android.app.Fragment;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -19,6 +21,8 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
+import org.appspot.apprtc.util.CoalescingExecutor;
+import org.appspot.apprtc.util.LooperExecutor;
 import org.webrtc.StatsReport;
 
 import java.util.HashMap;
@@ -26,19 +30,42 @@ import java.util.Map;
 
 /**
  * Fragment for HUD statistics display.
+ * Statistics are formatted on a background thread, and only the texts that
+ * changed since the last update are set on the UI thread.
  */
 public class HudFragment extends Fragment {
+  // Indices of the statistics texts.
+  private static final int ENCODER_STAT = 0;
+  private static final int BWE_STAT = 1;
+  private static final int CONNECTION_STAT = 2;
+  private static final int VIDEO_SEND_STAT = 3;
+  private static final int VIDEO_RECV_STAT = 4;
+  private static final int STAT_COUNT = 5;
+  // Key of the formatting task. Reports that arrive while the previous ones
+  // are still queued replace them.
+  private static final Object FORMAT_TASK = new Object();
+  private static final int MAX_FORMAT_QUEUE_DEPTH = 1;
+
   private View controlView;
   private TextView encoderStatView;
   private TextView hudViewBwe;
   private TextView hudViewConnection;
   private TextView hudViewVideoSend;
   private TextView hudViewVideoRecv;
+  private TextView[] statViews;
   private ImageButton toggleDebugButton;
   private boolean videoCallEnabled;
   private boolean displayHud;
   private volatile boolean isRunning;
+  private volatile boolean isHidden;
+  private volatile boolean hudViewsVisible;
   private CpuMonitor cpuMonitor;
+  private Handler uiHandler;
+  private LooperExecutor formatThread;
+  private volatile CoalescingExecutor formatExecutor;
+  // Texts last set on |statViews|, or null if not known. Replaced on each
+  // start and only accessed on the format thread of that start.
+  private volatile String[] postedStats;
 
   @Override
   public View onCreateView(
@@ -52,6 +79,9 @@ public class HudFragment extends Fragment {
     hudViewVideoSend = (TextView) controlView.findViewById(R.id.hud_stat_video_send);
     hudViewVideoRecv = (TextView) controlView.findViewById(R.id.hud_stat_video_recv);
     toggleDebugButton = (ImageButton) controlView.findViewById(R.id.button_toggle_debug);
+    statViews = new TextView[] {
+        encoderStatView, hudViewBwe, hudViewConnection, hudViewVideoSend, hudViewVideoRecv};
+    uiHandler = new Handler(Looper.getMainLooper());
 
     toggleDebugButton.setOnClickListener(new View.OnClickListener() {
       @Override
@@ -80,20 +110,38 @@ public class HudFragment extends Fragment {
     encoderStatView.setVisibility(visibility);
     toggleDebugButton.setVisibility(visibility);
     hudViewsSetProperties(View.INVISIBLE);
+    if (displayHud) {
+      formatThread = new LooperExecutor();
+      formatThread.requestStart();
+      postedStats = new String[STAT_COUNT];
+      formatExecutor = new CoalescingExecutor(formatThread, MAX_FORMAT_QUEUE_DEPTH);
+    }
     isRunning = true;
   }
 
   @Override
   public void onStop() {
     isRunning = false;
+    formatExecutor = null;
+    if (formatThread != null) {
+      formatThread.requestStop();
+      formatThread = null;
+    }
     super.onStop();
   }
 
+  @Override
+  public void onHiddenChanged(boolean hidden) {
+    super.onHiddenChanged(hidden);
+    isHidden = hidden;
+  }
+
   public void setCpuMonitor(CpuMonitor cpuMonitor) {
     this.cpuMonitor = cpuMonitor;
   }
 
   private void hudViewsSetProperties(int visibility) {
+    hudViewsVisible = (visibility == View.VISIBLE);
     hudViewBwe.setVisibility(visibility);
     hudViewConnection.setVisibility(visibility);
     hudViewVideoSend.setVisibility(visibility);
@@ -112,10 +160,35 @@ public class HudFragment extends Fragment {
     return reportMap;
   }
 
+  private static void appendReport(StringBuilder stat, StatsReport report) {
+    stat.append(report.id).append("\n");
+    for (StatsReport.Value value : report.values) {
+      String name = value.name.replace("goog", "");
+      stat.append(name).append("=").append(value.value).append("\n");
+    }
+  }
+
+  /**
+   * Queues |reports| for display. May be called on any thread, and does
+   * nothing while the HUD is not displayed.
+   */
   public void updateEncoderStatistics(final StatsReport[] reports) {
-    if (!isRunning || !displayHud) {
+    final CoalescingExecutor executor = formatExecutor;
+    final String[] posted = postedStats;
+    if (!isRunning || !displayHud || isHidden || executor == null) {
       return;
     }
+    executor.executeCoalesced(FORMAT_TASK, new Runnable() {
+      @Override
+      public void run() {
+        postStatistics(formatStatistics(reports, hudViewsVisible), posted);
+      }
+    });
+  }
+
+  // Returns the texts of |statViews| for |reports|. Texts of the debug views
+  // are null if |hudViewsVisible| is false.
+  private String[] formatStatistics(StatsReport[] reports, boolean hudViewsVisible) {
     StringBuilder encoderStat = new StringBuilder(128);
     StringBuilder bweStat = new StringBuilder();
     StringBuilder connectionStat = new StringBuilder();
@@ -132,24 +205,18 @@ public class HudFragment extends Fragment {
         String trackId = reportMap.get("googTrackId");
         if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
           fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
+          if (hudViewsVisible) {
+            appendReport(videoSendStat, report);
           }
         }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
+      } else if (hudViewsVisible && report.type.equals("ssrc") && report.id.contains("ssrc")
           && report.id.contains("recv")) {
         // Receive video statistics.
         Map<String, String> reportMap = getReportMap(report);
         // Check if this stat is for video track.
         String frameWidth = reportMap.get("googFrameWidthReceived");
         if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
+          appendReport(videoRecvStat, report);
         }
       } else if (report.id.equals("bweforvideo")) {
         // BWE statistics.
@@ -157,29 +224,22 @@ public class HudFragment extends Fragment {
         targetBitrate = reportMap.get("googTargetEncBitrate");
         actualBitrate = reportMap.get("googActualEncBitrate");
 
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
+        if (hudViewsVisible) {
+          bweStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "").replace("Available", "");
+            bweStat.append(name).append("=").append(value.value).append("\n");
+          }
         }
-      } else if (report.type.equals("googCandidatePair")) {
+      } else if (hudViewsVisible && report.type.equals("googCandidatePair")) {
         // Connection statistics.
         Map<String, String> reportMap = getReportMap(report);
         String activeConnection = reportMap.get("googActiveConnection");
         if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
+          appendReport(connectionStat, report);
         }
       }
     }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
-
     if (videoCallEnabled) {
       if (fps != null) {
         encoderStat.append("Fps:  ").append(fps).append("\n");
@@ -198,8 +258,49 @@ public class HudFragment extends Fragment {
           .append("/")
           .append(cpuMonitor.getCpuUsageAverage())
           .append(". Freq: ")
-          .append(cpuMonitor.getFrequencyScaleAverage());
+          .append(cpuMonitor.getFrequencyScaleAverage())
+          .append("\nThreads%: ")
+          .append(cpuMonitor.getThreadCpuSummary());
+    }
+    String[] stats = new String[STAT_COUNT];
+    stats[ENCODER_STAT] = encoderStat.toString();
+    if (hudViewsVisible) {
+      stats[BWE_STAT] = bweStat.toString();
+      stats[CONNECTION_STAT] = connectionStat.toString();
+      stats[VIDEO_SEND_STAT] = videoSendStat.toString();
+      stats[VIDEO_RECV_STAT] = videoRecvStat.toString();
+    }
+    return stats;
+  }
+
+  // Sets the texts of |stats| that differ from |postedStats| on the UI thread.
+  // Texts that are not displayed are forgotten, so that they are set again
+  // once their views are shown.
+  private void postStatistics(String[] stats, String[] postedStats) {
+    final String[] changedStats = new String[STAT_COUNT];
+    boolean changed = false;
+    for (int i = 0; i < STAT_COUNT; ++i) {
+      if (stats[i] != null && !stats[i].equals(postedStats[i])) {
+        changedStats[i] = stats[i];
+        changed = true;
+      }
+      postedStats[i] = stats[i];
+    }
+    if (!changed) {
+      return;
     }
-    encoderStatView.setText(encoderStat.toString());
+    uiHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!isRunning) {
+          return;
+        }
+        for (int i = 0; i < STAT_COUNT; ++i) {
+          if (changedStats[i] != null) {
+            statViews[i].setText(changedStats[i]);
+          }
+        }
+      }
+    });
   }
 }
@@ -12,22 +12,42 @@ package org.appspot.apprtc;
 
 import android.content.Context;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.util.BulkTransferChannel;
+import org.appspot.apprtc.util.BulkTransferReceiver;
+import org.appspot.apprtc.util.BulkTransferSender;
+import org.appspot.apprtc.util.BulkTransferStats;
+import org.appspot.apprtc.util.CallSetupTimeline;
+import org.appspot.apprtc.util.CoalescingExecutor;
+import org.appspot.apprtc.util.DataChannelMux;
+import org.appspot.apprtc.util.IceCandidatePipeline;
+import org.appspot.apprtc.util.NetworkHandoverStateMachine;
+import org.appspot.apprtc.util.ThreadRegistry;
+import org.appspot.apprtc.util.TurnCredentialCache;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.CameraVideoCapturer;
@@ -37,6 +57,7 @@ import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
+import org.webrtc.NetworkMonitorAutoDetect;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnectionFactory;
@@ -65,6 +86,7 @@ public class PeerConnectionClient {
   public static final String AUDIO_TRACK_ID = "ARDAMSa0";
   public static final String VIDEO_TRACK_TYPE = "video";
   private static final String TAG = "PCRTCClient";
+  private static final String EXECUTOR_THREAD_ROLE = "pc-client";
   private static final String VIDEO_CODEC_VP8 = "VP8";
   private static final String VIDEO_CODEC_VP9 = "VP9";
   private static final String VIDEO_CODEC_H264 = "H264";
@@ -81,11 +103,29 @@ public class PeerConnectionClient {
   private static final int HD_VIDEO_WIDTH = 1280;
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
+  // Largest total length of the transfers received in memory at a time, when the data transfer
+  // listener does not provide files.
+  private static final long MAX_IN_MEMORY_TRANSFER_BYTES = 64 * 1024 * 1024;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // Logical streams multiplexed over the data channel.
+  private static final int TRANSFER_STREAM_ID = 1;
+  private static final int CHAT_STREAM_ID = 2;
+  // Local ICE candidates gathered within this window are signaled together.
+  private static final long ICE_CANDIDATE_BATCH_WINDOW_MS = 30;
+  private static final String ICE_RESTART_CONSTRAINT = "IceRestart";
+  // Keys of executor tasks of which only the latest queued one runs.
+  private static final String STATS_TASK = "stats";
+  private static final String CAPTURE_FORMAT_TASK = "captureFormat";
+  private static final String VIDEO_MAX_BITRATE_TASK = "videoMaxBitrate";
+  // Stats polls are dropped while this many executor tasks are queued.
+  private static final int MAX_QUEUE_DEPTH_FOR_STATS = 8;
 
   private static final PeerConnectionClient instance = new PeerConnectionClient();
   private final PCObserver pcObserver = new PCObserver();
   private final SDPObserver sdpObserver = new SDPObserver();
-  private final ScheduledExecutorService executor;
+  // Runs all work on one thread. |executor| queues tasks, |scheduler| runs delayed tasks.
+  private final ScheduledExecutorService scheduler;
+  private final CoalescingExecutor executor;
 
   private Context context;
   private PeerConnectionFactory factory;
@@ -98,7 +138,9 @@ public class PeerConnectionClient {
   private String preferredVideoCodec;
   private boolean videoCapturerStopped;
   private boolean isError;
-  private Timer statsTimer;
+  private ScheduledFuture<?> statsPoll;
+  // Set while a getStats() call is in flight, to skip polls until it completes.
+  private volatile boolean statsInFlight;
   private VideoRenderer.Callbacks localRender;
   private List<VideoRenderer.Callbacks> remoteRenders;
   private SignalingParameters signalingParameters;
@@ -114,6 +156,22 @@ public class PeerConnectionClient {
   // remote descriptions are set. Similarly local ICE candidates are sent to
   // remote peer after both local and remote description are set.
   private LinkedList<IceCandidate> queuedRemoteCandidates;
+  // De-duplicates local and remote candidates, and batches local candidates.
+  private final IceCandidatePipeline iceCandidates;
+  // Restarts ICE when the default network changes or the connection is lost.
+  private NetworkHandoverStateMachine handover;
+  private ScheduledFuture<?> handoverTimeout;
+  // Whether onIceConnected() was reported. Reconnecting after a handover is
+  // not reported again.
+  private boolean iceConnectedReported;
+  // Start of call setup phases, in SystemClock.elapsedRealtime() ms.
+  private long peerConnectionCreatedMs;
+  private long negotiationStartMs;
+  // Detects changes of the default network. Created and destroyed on the main
+  // thread, which receives the connectivity broadcasts.
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final NetworkChangeObserver networkObserver = new NetworkChangeObserver();
+  private NetworkMonitorAutoDetect networkDetector;
   private PeerConnectionEvents events;
   private boolean isInitiator;
   private SessionDescription localSdp; // either offer or answer SDP
@@ -129,6 +187,20 @@ public class PeerConnectionClient {
   private AudioTrack localAudioTrack;
   private DataChannel dataChannel;
   private boolean dataChannelEnabled;
+  // Read by the data channel observers on the signaling thread.
+  private volatile DataChannelMux dataMux;
+  private DataChannelMux.Stream chatStream;
+  // Sends over the transfer stream of |dataMux|.
+  private BulkTransferSender dataSender;
+  // Files being sent by |dataSender|, by transfer id.
+  private final Map<Integer, RandomAccessFile> sendingFiles =
+      new HashMap<Integer, RandomAccessFile>();
+  // Sends requested before the data channel is open, run on the executor once it opens.
+  private final List<Runnable> pendingDataSends = new ArrayList<Runnable>();
+  // Accessed on the signaling thread that calls DataChannel observers.
+  private final BulkTransferReceiver dataReceiver =
+      new BulkTransferReceiver(new DataTransferListener(), MAX_IN_MEMORY_TRANSFER_BYTES);
+  private volatile BulkTransferReceiver.Listener dataTransferListener;
 
   public static String to;
   public static String clientID;
@@ -178,6 +250,11 @@ public class PeerConnectionClient {
     public final boolean disableBuiltInNS;
     public final boolean enableLevelControl;
     private final DataChannelParameters dataChannelParameters;
+    // Number of candidate sets gathered before the offer or answer is
+    // created. One suffices with BUNDLE.
+    public final int iceCandidatePoolSize;
+
+    public static final int DEFAULT_ICE_CANDIDATE_POOL_SIZE = 1;
 
     public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
         int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec,
@@ -196,6 +273,18 @@ public class PeerConnectionClient {
         boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES, boolean disableBuiltInAEC,
         boolean disableBuiltInAGC, boolean disableBuiltInNS, boolean enableLevelControl,
         DataChannelParameters dataChannelParameters) {
+      this(videoCallEnabled, loopback, tracing, videoWidth, videoHeight, videoFps, videoMaxBitrate,
+          videoCodec, videoCodecHwAcceleration, audioStartBitrate, audioCodec, noAudioProcessing,
+          aecDump, useOpenSLES, disableBuiltInAEC, disableBuiltInAGC, disableBuiltInNS,
+          enableLevelControl, dataChannelParameters, DEFAULT_ICE_CANDIDATE_POOL_SIZE);
+    }
+
+    public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
+        int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec,
+        boolean videoCodecHwAcceleration, int audioStartBitrate, String audioCodec,
+        boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES, boolean disableBuiltInAEC,
+        boolean disableBuiltInAGC, boolean disableBuiltInNS, boolean enableLevelControl,
+        DataChannelParameters dataChannelParameters, int iceCandidatePoolSize) {
       this.videoCallEnabled = videoCallEnabled;
       this.loopback = loopback;
       this.tracing = tracing;
@@ -215,6 +304,7 @@ public class PeerConnectionClient {
       this.disableBuiltInNS = disableBuiltInNS;
       this.enableLevelControl = enableLevelControl;
       this.dataChannelParameters = dataChannelParameters;
+      this.iceCandidatePoolSize = iceCandidatePoolSize;
     }
   }
 
@@ -228,9 +318,9 @@ public class PeerConnectionClient {
     void onLocalDescription(final SessionDescription sdp);
 
     /**
-     * Callback fired once local Ice candidate is generated.
+     * Callback fired with a batch of new local Ice candidates, host candidates first.
      */
-    void onIceCandidate(final IceCandidate candidate);
+    void onIceCandidates(final IceCandidate[] candidates);
 
     /**
      * Callback fired once local ICE candidates are removed.
@@ -245,10 +335,16 @@ public class PeerConnectionClient {
 
     /**
      * Callback fired once connection is closed (IceConnectionState is
-     * DISCONNECTED).
+     * DISCONNECTED, and ICE did not connect again after a restart).
      */
     void onIceDisconnected();
 
+    /**
+     * Callback fired on the answering side when the remote peer, which makes
+     * the offers, should restart ICE, e.g. after the local network changed.
+     */
+    void onIceRestartNeeded();
+
     /**
      * Callback fired once peer connection is closed.
      */
@@ -269,7 +365,21 @@ public class PeerConnectionClient {
     // Executor thread is started once in private ctor and is used for all
     // peer connection API calls to ensure new peer connection factory is
     // created on the same thread as previously destroyed factory.
-    executor = Executors.newSingleThreadScheduledExecutor();
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    executor = new CoalescingExecutor(scheduler, MAX_QUEUE_DEPTH_FOR_STATS);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ThreadRegistry.register(EXECUTOR_THREAD_ROLE);
+      }
+    });
+    iceCandidates = new IceCandidatePipeline(
+        scheduler, ICE_CANDIDATE_BATCH_WINDOW_MS, new IceCandidatePipeline.Sink() {
+          @Override
+          public void onLocalCandidates(IceCandidate[] candidates) {
+            events.onIceCandidates(candidates);
+          }
+        });
   }
 
   public static PeerConnectionClient getInstance() {
@@ -303,7 +413,7 @@ public class PeerConnectionClient {
     localVideoSender = null;
     enableAudio = true;
     localAudioTrack = null;
-    statsTimer = new Timer();
+    statsInFlight = false;
 
     executor.execute(new Runnable() {
       @Override
@@ -509,6 +619,11 @@ public class PeerConnectionClient {
 
     Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
     queuedRemoteCandidates = new LinkedList<IceCandidate>();
+    iceCandidates.reset();
+    handover = new NetworkHandoverStateMachine(new HandoverDelegate());
+    iceConnectedReported = false;
+    peerConnectionCreatedMs = SystemClock.elapsedRealtime();
+    negotiationStartMs = -1;
 
     if (videoCallEnabled) {
       Log.d(TAG, "EGLContext: " + renderEGLContext);
@@ -525,6 +640,8 @@ public class PeerConnectionClient {
     rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
     // Use ECDSA encryption.
     rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+    // Gather candidates now, before the offer or answer is created.
+    rtcConfig.iceCandidatePoolSize = peerConnectionParameters.iceCandidatePoolSize;
 
     peerConnection = factory.createPeerConnection(rtcConfig, pcConstraints, pcObserver);
 
@@ -537,8 +654,27 @@ public class PeerConnectionClient {
       init.id = peerConnectionParameters.dataChannelParameters.id;
       init.protocol = peerConnectionParameters.dataChannelParameters.protocol;
       dataChannel = peerConnection.createDataChannel("ApprtcDemo data", init);
+      dataMux = new DataChannelMux(new DataChannelAdapter(dataChannel), executor);
+      // Bulk transfers must not delay chat messages.
+      dataSender = new BulkTransferSender(
+          dataMux.openStream(TRANSFER_STREAM_ID, DataChannelMux.PRIORITY_LOW,
+              new TransferStreamObserver()),
+          executor, new DataSenderCallback());
+      chatStream = dataMux.openStream(
+          CHAT_STREAM_ID, DataChannelMux.PRIORITY_HIGH, new ChatStreamObserver());
+      dataChannel.registerObserver(new DataChannelObserver(dataChannel));
     }
     isInitiator = false;
+    final Context appContext = context;
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (networkDetector == null) {
+          networkDetector = new NetworkMonitorAutoDetect(networkObserver, appContext);
+          networkObserver.setDetector(networkDetector);
+        }
+      }
+    });
 
     // Set default WebRTC tracing and INFO libjingle logging.
     // NOTE: this _must_ happen while |factory| is alive!
@@ -577,8 +713,38 @@ public class PeerConnectionClient {
       factory.stopAecDump();
     }
     Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
+    stopStatsPoll();
+    statsInFlight = false;
+    iceCandidates.stop();
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (networkDetector != null) {
+          networkObserver.setDetector(null);
+          networkDetector.destroy();
+          networkDetector = null;
+        }
+      }
+    });
+    cancelHandoverTimeout();
+    handover = null;
+    if (!pendingDataSends.isEmpty()) {
+      Log.w(TAG, "Dropping " + pendingDataSends.size() + " sends queued for the data channel");
+      pendingDataSends.clear();
+    }
+    if (dataSender != null) {
+      dataSender.cancelAll();
+      dataSender = null;
+    }
+    if (dataMux != null) {
+      // Send the ABORT frames queued by cancelAll() before the streams are dropped.
+      dataMux.flush();
+      dataMux.close();
+      dataMux = null;
+      chatStream = null;
+    }
     if (dataChannel != null) {
+      dataChannel.unregisterObserver();
       dataChannel.dispose();
       dataChannel = null;
     }
@@ -586,6 +752,8 @@ public class PeerConnectionClient {
       peerConnection.dispose();
       peerConnection = null;
     }
+    // No observer calls follow the disposal of the peer connection.
+    dataReceiver.reset();
     Log.d(TAG, "Closing audio source.");
     if (audioSource != null) {
       audioSource.dispose();
@@ -613,7 +781,7 @@ public class PeerConnectionClient {
       factory = null;
     }
     options = null;
-    Log.d(TAG, "Closing peer connection done.");
+    Log.d(TAG, "Closing peer connection done. " + executor);
     events.onPeerConnectionClosed();
     PeerConnectionFactory.stopInternalTracingCapture();
     PeerConnectionFactory.shutdownInternalTracer();
@@ -628,39 +796,52 @@ public class PeerConnectionClient {
   }
 
   private void getStats() {
-    if (peerConnection == null || isError) {
+    if (peerConnection == null || isError || statsInFlight) {
       return;
     }
+    statsInFlight = true;
     boolean success = peerConnection.getStats(new StatsObserver() {
       @Override
       public void onComplete(final StatsReport[] reports) {
+        statsInFlight = false;
         events.onPeerConnectionStatsReady(reports);
       }
     }, null);
     if (!success) {
+      statsInFlight = false;
       Log.e(TAG, "getStats() returns false!");
     }
   }
 
-  public void enableStatsEvents(boolean enable, int periodMs) {
-    if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
+  // A poll is dropped if the previous one is still queued or the executor is busy, and
+  // getStats() skips it if the previous call has not completed, so polls never pile up.
+  public void enableStatsEvents(final boolean enable, final int periodMs) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        stopStatsPoll();
+        if (!enable) {
+          return;
+        }
+        statsPoll = scheduler.scheduleAtFixedRate(new Runnable() {
           @Override
           public void run() {
-            executor.execute(new Runnable() {
+            executor.tryExecute(STATS_TASK, new Runnable() {
               @Override
               public void run() {
                 getStats();
               }
             });
           }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
+        }, 0, periodMs, TimeUnit.MILLISECONDS);
       }
-    } else {
-      statsTimer.cancel();
+    });
+  }
+
+  private void stopStatsPoll() {
+    if (statsPoll != null) {
+      statsPoll.cancel(false);
+      statsPoll = null;
     }
   }
 
@@ -698,7 +879,10 @@ public class PeerConnectionClient {
         if (peerConnection != null && !isError) {
           Log.d(TAG, "PC Create OFFER to " + to);
           isInitiator = true;
+          handover.setCanRestart(true);
           PeerConnectionClient.to = to;
+          negotiationStartMs = SystemClock.elapsedRealtime();
+          localSdp = null;
           peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
         }
       }
@@ -712,6 +896,11 @@ public class PeerConnectionClient {
         if (peerConnection != null && !isError) {
           Log.d(TAG, "PC create ANSWER");
           isInitiator = false;
+          // Also answers offers that restart ICE.
+          if (negotiationStartMs < 0) {
+            negotiationStartMs = SystemClock.elapsedRealtime();
+          }
+          localSdp = null;
           peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
         }
       }
@@ -723,6 +912,11 @@ public class PeerConnectionClient {
       @Override
       public void run() {
         if (peerConnection != null && !isError) {
+          CallSetupTimeline.record(CallSetupTimeline.Event.FIRST_REMOTE_CANDIDATE);
+          if (!iceCandidates.addRemoteCandidate(candidate)) {
+            Log.d(TAG, "Ignoring duplicate remote candidate " + candidate.sdp);
+            return;
+          }
           if (queuedRemoteCandidates != null) {
             queuedRemoteCandidates.add(candidate);
           } else {
@@ -733,6 +927,23 @@ public class PeerConnectionClient {
     });
   }
 
+  /**
+   * Restarts ICE, if this side makes the offers, because the remote peer
+   * asked for it.
+   */
+  public void onRemoteIceRestartRequest() {
+    final long nowMs = SystemClock.elapsedRealtime();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (handover != null && peerConnection != null && !isError) {
+          Log.d(TAG, "Remote peer requested an ICE restart");
+          handover.onRestartRequested(nowMs);
+        }
+      }
+    });
+  }
+
   public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
     executor.execute(new Runnable() {
       @Override
@@ -743,6 +954,7 @@ public class PeerConnectionClient {
         // Drain the queued remote candidates if there is any so that
         // they are processed in the proper order.
         drainCandidates();
+        iceCandidates.removeRemoteCandidates(candidates);
         peerConnection.removeIceCandidates(candidates);
       }
     });
@@ -803,7 +1015,7 @@ public class PeerConnectionClient {
   }
 
   public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
-    executor.execute(new Runnable() {
+    executor.executeCoalesced(VIDEO_MAX_BITRATE_TASK, new Runnable() {
       @Override
       public void run() {
         if (peerConnection == null || localVideoSender == null || isError) {
@@ -833,6 +1045,109 @@ public class PeerConnectionClient {
     });
   }
 
+  /**
+   * Sets the listener of transfers received over the data channel. Without a listener, transfers
+   * are rejected as they start, and transfers in progress fail.
+   */
+  public void setDataTransferListener(BulkTransferReceiver.Listener listener) {
+    dataTransferListener = listener;
+  }
+
+  /**
+   * Sends a text message over the data channel, ahead of data queued by sendData() and sendFile().
+   */
+  public void sendMessage(final String text) {
+    executeWhenDataChannelOpen(new Runnable() {
+      @Override
+      public void run() {
+        if (chatStream == null || isError) {
+          Log.w(TAG, "Data channel is not enabled, dropping message");
+          return;
+        }
+        chatStream.send(new DataChannel.Buffer(ByteBuffer.wrap(text.getBytes(UTF_8)), false));
+      }
+    });
+  }
+
+  /**
+   * Sends the remaining bytes of |data| over the data channel, paced by its buffered amount. |data|
+   * must not be modified until the transfer completes.
+   */
+  public void sendData(final ByteBuffer data, final String name) {
+    executeWhenDataChannelOpen(new Runnable() {
+      @Override
+      public void run() {
+        if (dataSender == null || isError) {
+          Log.w(TAG, "Data channel is not enabled, dropping " + name);
+          return;
+        }
+        dataSender.send(data, name);
+      }
+    });
+  }
+
+  /**
+   * Sends the contents of |file| over the data channel, paced by its buffered amount.
+   */
+  public void sendFile(final File file) {
+    executeWhenDataChannelOpen(new Runnable() {
+      @Override
+      public void run() {
+        if (dataSender == null || isError) {
+          Log.w(TAG, "Data channel is not enabled, dropping " + file);
+          return;
+        }
+        RandomAccessFile input = null;
+        try {
+          input = new RandomAccessFile(file, "r");
+          sendingFiles.put(dataSender.send(input.getChannel(), file.getName()), input);
+        } catch (IOException e) {
+          Log.e(TAG, "Can not send " + file, e);
+          closeQuietly(input);
+        }
+      }
+    });
+  }
+
+  // Runs |send| on the executor, or queues it until the data channel is open. Messages sent on a
+  // channel that is still connecting are lost.
+  private void executeWhenDataChannelOpen(final Runnable send) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (dataChannel != null && dataChannel.state() != DataChannel.State.OPEN) {
+          pendingDataSends.add(send);
+          return;
+        }
+        send.run();
+      }
+    });
+  }
+
+  // Called on the executor when the data channel opens.
+  private void runPendingDataSends() {
+    if (dataChannel == null || pendingDataSends.isEmpty()) {
+      return;
+    }
+    Log.d(TAG, "Data channel open, sending " + pendingDataSends.size() + " queued requests");
+    final List<Runnable> sends = new ArrayList<Runnable>(pendingDataSends);
+    pendingDataSends.clear();
+    for (Runnable send : sends) {
+      send.run();
+    }
+  }
+
+  private static void closeQuietly(RandomAccessFile file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close file", e);
+    }
+  }
+
   private void reportError(final String errorMessage) {
     Log.e(TAG, "Peerconnection error: " + errorMessage);
     executor.execute(new Runnable() {
@@ -1004,6 +1319,44 @@ public class PeerConnectionClient {
     }
   }
 
+  // Creates an offer with new ICE credentials. Only called on the offering
+  // side, the answering side answers it like the first offer.
+  private void restartIceInternal() {
+    if (peerConnection == null || isError) {
+      return;
+    }
+    Log.d(TAG, "Restart ICE");
+    // Remote candidates of the restart can arrive before the answer.
+    if (queuedRemoteCandidates == null) {
+      queuedRemoteCandidates = new LinkedList<IceCandidate>();
+    }
+    final MediaConstraints constraints = new MediaConstraints();
+    constraints.mandatory.addAll(sdpMediaConstraints.mandatory);
+    constraints.optional.addAll(sdpMediaConstraints.optional);
+    constraints.mandatory.add(new MediaConstraints.KeyValuePair(ICE_RESTART_CONSTRAINT, "true"));
+    localSdp = null;
+    peerConnection.createOffer(sdpObserver, constraints);
+  }
+
+  private void logConnectPhases(long connectedMs) {
+    // TURN credentials are cached and refreshed in the background, so setup
+    // never waits for the request.
+    Log.d(TAG, "Connect phases: last TURN request "
+        + TurnCredentialCache.getInstance().getLastRequestDurationMs() + " ms, "
+        + "candidate pool " + peerConnectionParameters.iceCandidatePoolSize + ", first candidate "
+        + iceCandidates.getStats().firstCandidateMs + " ms after the local description. "
+        + "Connected " + (connectedMs - negotiationStartMs) + " ms after the "
+        + (isInitiator ? "offer" : "answer") + " was started, "
+        + (connectedMs - peerConnectionCreatedMs) + " ms after the peer connection was created.");
+  }
+
+  private void cancelHandoverTimeout() {
+    if (handoverTimeout != null) {
+      handoverTimeout.cancel(false);
+      handoverTimeout = null;
+    }
+  }
+
   private void switchCameraInternal() {
     if (videoCapturer instanceof CameraVideoCapturer) {
       if (!videoCallEnabled || isError || videoCapturer == null) {
@@ -1028,7 +1381,7 @@ public class PeerConnectionClient {
   }
 
   public void changeCaptureFormat(final int width, final int height, final int framerate) {
-    executor.execute(new Runnable() {
+    executor.executeCoalesced(CAPTURE_FORMAT_TASK, new Runnable() {
       @Override
       public void run() {
         changeCaptureFormatInternal(width, height, framerate);
@@ -1053,7 +1406,8 @@ public class PeerConnectionClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          events.onIceCandidate(candidate);
+          CallSetupTimeline.record(CallSetupTimeline.Event.FIRST_LOCAL_CANDIDATE);
+          iceCandidates.addLocalCandidate(candidate);
         }
       });
     }
@@ -1063,7 +1417,11 @@ public class PeerConnectionClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          events.onIceCandidatesRemoved(candidates);
+          // Candidates that were never signaled need no removal.
+          final IceCandidate[] signaled = iceCandidates.removeLocalCandidates(candidates);
+          if (signaled.length > 0) {
+            events.onIceCandidatesRemoved(signaled);
+          }
         }
       });
     }
@@ -1079,20 +1437,44 @@ public class PeerConnectionClient {
         @Override
         public void run() {
           Log.d(TAG, "IceConnectionState: " + newState);
+          if (handover == null) {
+            return;
+          }
+          final long nowMs = SystemClock.elapsedRealtime();
           if (newState == IceConnectionState.CONNECTED) {
-            events.onIceConnected();
+            Log.d(TAG, "ICE candidates: " + iceCandidates.getStats());
+            handover.onIceConnected(nowMs);
+            CallSetupTimeline.record(CallSetupTimeline.Event.ICE_CONNECTED);
+            if (!iceConnectedReported) {
+              iceConnectedReported = true;
+              logConnectPhases(nowMs);
+              events.onIceConnected();
+            }
           } else if (newState == IceConnectionState.DISCONNECTED) {
-            events.onIceDisconnected();
+            // Reported by HandoverDelegate if ICE does not connect again.
+            handover.onIceDisconnected(nowMs);
           } else if (newState == IceConnectionState.FAILED) {
-            reportError("ICE connection failed.");
+            if (!handover.onIceFailed(nowMs)) {
+              reportError("ICE connection failed.");
+            }
           }
         }
       });
     }
 
     @Override
-    public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
+    public void onIceGatheringChange(final PeerConnection.IceGatheringState newState) {
       Log.d(TAG, "IceGatheringState: " + newState);
+      if (newState == PeerConnection.IceGatheringState.COMPLETE) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            // No more candidates for now, so don't wait for the batch window.
+            iceCandidates.flush();
+            Log.d(TAG, "ICE gathering complete. " + iceCandidates.getStats());
+          }
+        });
+      }
     }
 
     @Override
@@ -1140,35 +1522,274 @@ public class PeerConnectionClient {
       if (!dataChannelEnabled)
         return;
 
-      dc.registerObserver(new DataChannel.Observer() {
-        public void onBufferedAmountChange(long previousAmount) {
-          Log.d(TAG, "Data channel buffered amount changed: " + dc.label() + ": " + dc.state());
-        }
+      // Only receives; sending is done on |dataChannel|.
+      dc.registerObserver(new DataChannelObserver(dc));
+    }
 
-        @Override
-        public void onStateChange() {
-          Log.d(TAG, "Data channel state changed: " + dc.label() + ": " + dc.state());
-        }
+    @Override
+    public void onRenegotiationNeeded() {
+      // No need to do anything; AppRTC follows a pre-agreed-upon
+      // signaling/negotiation protocol.
+    }
+  }
+
+  // Passes frames received over |dc| to |dataMux|, and resumes it when the buffered amount drops.
+  // Called on the signaling thread.
+  private class DataChannelObserver implements DataChannel.Observer {
+    private final DataChannel dc;
+
+    DataChannelObserver(DataChannel dc) {
+      this.dc = dc;
+    }
+
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {
+      final DataChannelMux mux = dataMux;
+      if (mux != null) {
+        mux.onBufferedAmountChange();
+      }
+    }
+
+    @Override
+    public void onStateChange() {
+      Log.d(TAG, "Data channel state changed: " + dc.label() + ": " + dc.state());
+      if (dc.state() == DataChannel.State.OPEN) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            runPendingDataSends();
+          }
+        });
+      }
+    }
+
+    @Override
+    public void onMessage(final DataChannel.Buffer buffer) {
+      final DataChannelMux mux = dataMux;
+      if (mux != null && mux.onMessage(buffer)) {
+        return;
+      }
+      if (buffer.binary) {
+        Log.d(TAG, "Received binary msg over " + dc);
+        return;
+      }
+      // Decode straight from the native buffer, which is freed after this call.
+      Log.d(TAG, "Got msg: " + UTF_8.decode(buffer.data) + " over " + dc);
+    }
+  }
+
+  // Receives bulk transfers, and resumes |dataSender| as its queued data is sent. Buffered amount
+  // changes are reported on the executor thread, and messages on the signaling thread.
+  private class TransferStreamObserver implements DataChannel.Observer {
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {
+      if (dataSender != null) {
+        dataSender.onBufferedAmountChange();
+      }
+    }
+
+    @Override
+    public void onStateChange() {
+      Log.d(TAG, "Transfer stream closed");
+    }
+
+    @Override
+    public void onMessage(final DataChannel.Buffer buffer) {
+      if (dataTransferListener == null) {
+        // Do not receive transfers that nobody takes.
+        dataReceiver.reset();
+        return;
+      }
+      if (!dataReceiver.onMessage(buffer)) {
+        Log.w(TAG, "Dropping unexpected message on the transfer stream");
+      }
+    }
+  }
+
+  private class ChatStreamObserver implements DataChannel.Observer {
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {}
+
+    @Override
+    public void onStateChange() {
+      Log.d(TAG, "Chat stream closed");
+    }
+
+    @Override
+    public void onMessage(final DataChannel.Buffer buffer) {
+      Log.d(TAG, "Got chat msg: " + UTF_8.decode(buffer.data));
+    }
+  }
+
+  // Called on the executor thread.
+  private class DataSenderCallback implements BulkTransferSender.Callback {
+    @Override
+    public void onTransferComplete(BulkTransferStats stats) {
+      Log.d(TAG, "Sent. " + stats);
+      closeQuietly(sendingFiles.remove(stats.transferId));
+    }
+
+    @Override
+    public void onTransferFailed(int transferId, String error) {
+      Log.e(TAG, "Sending transfer " + transferId + " failed: " + error);
+      closeQuietly(sendingFiles.remove(transferId));
+    }
+  }
 
+  // Sends the frames of |dataMux| over the data channel.
+  private static class DataChannelAdapter implements BulkTransferChannel {
+    private final DataChannel dataChannel;
+
+    DataChannelAdapter(DataChannel dataChannel) {
+      this.dataChannel = dataChannel;
+    }
+
+    @Override
+    public boolean send(DataChannel.Buffer buffer) {
+      return dataChannel.send(buffer);
+    }
+
+    @Override
+    public long bufferedAmount() {
+      return dataChannel.bufferedAmount();
+    }
+  }
+
+  // Forwards to |dataTransferListener|, which may have been removed since the transfer started.
+  private class DataTransferListener implements BulkTransferReceiver.Listener {
+    @Override
+    public FileChannel onTransferStarted(int transferId, long length, String name) {
+      Log.d(TAG, "Receiving transfer " + transferId + " of " + length + " bytes: " + name);
+      final BulkTransferReceiver.Listener listener = dataTransferListener;
+      return (listener == null) ? null : listener.onTransferStarted(transferId, length, name);
+    }
+
+    @Override
+    public void onTransferComplete(int transferId, ByteBuffer data, BulkTransferStats stats) {
+      Log.d(TAG, "Received. " + stats);
+      final BulkTransferReceiver.Listener listener = dataTransferListener;
+      if (listener != null) {
+        listener.onTransferComplete(transferId, data, stats);
+      }
+    }
+
+    @Override
+    public void onTransferFailed(int transferId, String error) {
+      Log.e(TAG, "Receiving transfer " + transferId + " failed: " + error);
+      final BulkTransferReceiver.Listener listener = dataTransferListener;
+      if (listener != null) {
+        listener.onTransferFailed(transferId, error);
+      }
+    }
+  }
+
+  // Called on the executor thread.
+  private class HandoverDelegate implements NetworkHandoverStateMachine.Delegate {
+    @Override
+    public void restartIce() {
+      restartIceInternal();
+    }
+
+    @Override
+    public void requestIceRestart() {
+      Log.d(TAG, "Request an ICE restart from the remote peer");
+      events.onIceRestartNeeded();
+    }
+
+    @Override
+    public void scheduleTimeout(long delayMs) {
+      cancelHandoverTimeout();
+      handoverTimeout = scheduler.schedule(new Runnable() {
         @Override
-        public void onMessage(final DataChannel.Buffer buffer) {
-          if (buffer.binary) {
-            Log.d(TAG, "Received binary msg over " + dc);
-            return;
+        public void run() {
+          handoverTimeout = null;
+          if (handover != null) {
+            handover.onTimeout(SystemClock.elapsedRealtime());
           }
-          ByteBuffer data = buffer.data;
-          final byte[] bytes = new byte[data.capacity()];
-          data.get(bytes);
-          String strData = new String(bytes);
-          Log.d(TAG, "Got msg: " + strData + " over " + dc);
         }
-      });
+      }, delayMs, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public void onRenegotiationNeeded() {
-      // No need to do anything; AppRTC follows a pre-agreed-upon
-      // signaling/negotiation protocol.
+    public void onHandoverComplete(long gapMs, int restarts) {
+      Log.d(TAG, "ICE connected again after " + gapMs + " ms and " + restarts + " restarts. "
+          + handover.getStats());
+    }
+
+    @Override
+    public void onRecoveryFailed(long gapMs, int restarts) {
+      Log.e(TAG, "ICE not connected again after " + gapMs + " ms and " + restarts + " restarts.");
+      events.onIceDisconnected();
+    }
+  }
+
+  // Reports changes of the default network, including between two networks of
+  // the same type, such as two Wi-Fi networks. The network id is only known
+  // from Lollipop on; before, only changes of the connection type are seen.
+  // Called on the UI thread or on the ConnectivityManager callback thread, so
+  // changes are posted to the executor.
+  private class NetworkChangeObserver implements NetworkMonitorAutoDetect.Observer {
+    private NetworkMonitorAutoDetect detector;
+    private NetworkMonitorAutoDetect.ConnectionType connectionType;
+    // Last default network that was reported.
+    private long defaultNetId;
+    private NetworkMonitorAutoDetect.ConnectionType defaultNetworkType;
+
+    // Starts from the current default network, which is not reported.
+    synchronized void setDetector(NetworkMonitorAutoDetect detector) {
+      this.detector = detector;
+      if (detector != null) {
+        connectionType =
+            NetworkMonitorAutoDetect.getConnectionType(detector.getCurrentNetworkState());
+        defaultNetId = detector.getDefaultNetId();
+        defaultNetworkType = connectionType;
+      }
+    }
+
+    @Override
+    public synchronized void onConnectionTypeChanged(
+        NetworkMonitorAutoDetect.ConnectionType newConnectionType) {
+      connectionType = newConnectionType;
+      updateDefaultNetwork();
+    }
+
+    @Override
+    public synchronized void onNetworkConnect(NetworkMonitorAutoDetect.NetworkInformation info) {
+      updateDefaultNetwork();
+    }
+
+    @Override
+    public synchronized void onNetworkDisconnect(long networkHandle) {
+      updateDefaultNetwork();
+    }
+
+    // Must hold the lock of this observer.
+    private void updateDefaultNetwork() {
+      if (detector == null) {
+        return;
+      }
+      final long netId = detector.getDefaultNetId();
+      if (netId == defaultNetId && connectionType == defaultNetworkType) {
+        return;
+      }
+      defaultNetId = netId;
+      defaultNetworkType = connectionType;
+      onDefaultNetworkChanged(netId, connectionType);
+    }
+
+    private void onDefaultNetworkChanged(
+        final long netId, final NetworkMonitorAutoDetect.ConnectionType type) {
+      final long nowMs = SystemClock.elapsedRealtime();
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Log.d(TAG, "Default network: " + netId + ", " + type);
+          if (handover != null && peerConnection != null && !isError) {
+            handover.onNetworkChanged(
+                type != NetworkMonitorAutoDetect.ConnectionType.CONNECTION_NONE, nowMs);
+          }
+        }
+      });
     }
   }
 
@@ -1181,6 +1802,7 @@ public class PeerConnectionClient {
         reportError("Multiple SDP create.");
         return;
       }
+      CallSetupTimeline.record(CallSetupTimeline.Event.LOCAL_DESCRIPTION_CREATED);
       String sdpDescription = origSdp.description;
       if (preferIsac) {
         sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
@@ -1195,6 +1817,8 @@ public class PeerConnectionClient {
         public void run() {
           if (peerConnection != null && !isError) {
             Log.d(TAG, "Set local SDP from " + sdp.type);
+            // Gathering starts with the local description.
+            iceCandidates.startGathering();
             peerConnection.setLocalDescription(sdpObserver, sdp);
           }
         }
@@ -1209,32 +1833,39 @@ public class PeerConnectionClient {
           if (peerConnection == null || isError) {
             return;
           }
+          // Also holds for offers that restart ICE, so check the signaling
+          // state rather than which descriptions are set.
+          final PeerConnection.SignalingState state = peerConnection.signalingState();
           if (isInitiator) {
             // For offering peer connection we first create offer and set
             // local SDP, then after receiving answer set remote SDP.
-            if (peerConnection.getRemoteDescription() == null) {
+            if (state == PeerConnection.SignalingState.HAVE_LOCAL_OFFER) {
               // We've just set our local SDP so time to send it.
               Log.d(TAG, "Local SDP set succesfully");
+              CallSetupTimeline.record(CallSetupTimeline.Event.LOCAL_DESCRIPTION_SET);
               events.onLocalDescription(localSdp);
             } else {
               // We've just set remote description, so drain remote
               // and send local ICE candidates.
               Log.d(TAG, "Remote SDP set succesfully");
+              CallSetupTimeline.record(CallSetupTimeline.Event.REMOTE_DESCRIPTION_SET);
               drainCandidates();
             }
           } else {
             // For answering peer connection we set remote SDP and then
             // create answer and set local SDP.
-            if (peerConnection.getLocalDescription() != null) {
+            if (state == PeerConnection.SignalingState.STABLE) {
               // We've just set our local SDP so time to send it, drain
               // remote and send local ICE candidates.
               Log.d(TAG, "Local SDP set succesfully");
+              CallSetupTimeline.record(CallSetupTimeline.Event.LOCAL_DESCRIPTION_SET);
               events.onLocalDescription(localSdp);
               drainCandidates();
             } else {
               // We've just set remote SDP - do nothing for now -
               // answer will be created soon.
               Log.d(TAG, "Remote SDP set succesfully");
+              CallSetupTimeline.record(CallSetupTimeline.Event.REMOTE_DESCRIPTION_SET);
             }
           }
         }
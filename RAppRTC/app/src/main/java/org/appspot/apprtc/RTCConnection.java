@@ -205,12 +205,12 @@ public abstract class RTCConnection extends Activity implements
     }
 
     @Override
-    public void onIceCandidate(final IceCandidate candidate) {
+    public void onIceCandidates(final IceCandidate[] candidates) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
 //                if (SignalingService.appRTCClient != null) {
-//                    SignalingService.appRTCClient.sendLocalIceCandidate(candidate,(peerConnectionClient2!=null));
+//                    SignalingService.appRTCClient.sendLocalIceCandidates(candidates,(peerConnectionClient2!=null));
 //                }
             }
         });
@@ -11,48 +11,99 @@
 package org.appspot.apprtc;
 
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.neovisionaries.ws.client.WebSocket;
-
+import org.appspot.apprtc.util.TurnCredentialCache;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.webrtc.PeerConnection;
 
-import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
- * AsyncTask that converts an AppRTC room URL into the set of signaling
- * parameters to use with that room.
+ * Requests room parameters and TURN servers over the signaling WebSocket.
+ * TURN servers are kept in TurnCredentialCache across calls to the same
+ * server, so that a call only waits for them if there are none yet.
  */
 public class RoomParametersFetcher {
   private static final String TAG = "RoomParametersFetcher";
+  // TTL of TURN credentials if the response has none, as in the TURN REST
+  // API draft.
+  private static final long DEFAULT_TURN_TTL_SECONDS = 24 * 60 * 60;
 
-  private final WebSocket wsClient;
+  private final WebSocketChannelClient wsClient;
+  // Signaling server URL the TURN credentials are cached for.
+  private final String serverUrl;
+  private final TurnCredentialCache turnCache = TurnCredentialCache.getInstance();
 
 
-  public RoomParametersFetcher(WebSocket wsClient) {
+  public RoomParametersFetcher(WebSocketChannelClient wsClient, String serverUrl) {
     this.wsClient = wsClient;
+    this.serverUrl = serverUrl;
   }
 
   public void makeRequest() {
       JSONObject json = new JSONObject();
       WebSocketRTCClient.jsonPut(json, "id", "appConfig");
-      wsClient.sendText(json.toString());
+      wsClient.send(json.toString());
       Log.d(TAG, "made json request " + json.toString()+" ws:"+wsClient.getState().name());
   }
 
+  // Returns the cached TURN servers, or null if there are none, and requests
+  // new credentials in the background when they are due. Must be called on
+  // the thread of |wsClient|.
+  public List<PeerConnection.IceServer> getTurnServers() {
+    final long nowMs = SystemClock.elapsedRealtime();
+    requestTurnServers(nowMs);
+    return turnCache.get(serverUrl, nowMs);
+  }
 
+  // Requests TURN servers if they are due for a refresh and no request is in
+  // flight. Must be called on the thread of |wsClient|.
+  public void requestTurnServers(long nowMs) {
+    if (!turnCache.startRequest(serverUrl, nowMs)) {
+      return;
+    }
+    Log.d(TAG, "Request TURN from websocket: ");
+    JSONObject json = new JSONObject();
+    WebSocketRTCClient.jsonPut(json, "id", "turn");
+    wsClient.send(json.toString());
+  }
 
-  // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-  // off the main thread!
-  private void requestTurnServers()
-      throws IOException, JSONException {
-      Log.d(TAG, "Request TURN from websocket: ");
-      JSONObject json = new JSONObject();
-      WebSocketRTCClient.jsonPut(json, "id", "turn");
-      wsClient.sendText(json.toString());
+  // Caches the TURN servers of a response with an "iceServers" array of
+  // {"urls", "username", "credential"} and an optional "ttl" in seconds.
+  public void onTurnResponse(JSONObject json) {
+    try {
+      final List<PeerConnection.IceServer> turnServers =
+          new ArrayList<PeerConnection.IceServer>();
+      final JSONArray iceServers = json.getJSONArray("iceServers");
+      for (int i = 0; i < iceServers.length(); ++i) {
+        final JSONObject server = iceServers.getJSONObject(i);
+        final String username = server.optString("username", "");
+        final String credential = server.optString("credential", "");
+        final JSONArray urls = server.optJSONArray("urls");
+        if (urls == null) {
+          turnServers.add(
+              new PeerConnection.IceServer(server.getString("urls"), username, credential));
+          continue;
+        }
+        for (int j = 0; j < urls.length(); ++j) {
+          turnServers.add(new PeerConnection.IceServer(urls.getString(j), username, credential));
+        }
+      }
+      final long ttlSeconds = json.optLong("ttl", DEFAULT_TURN_TTL_SECONDS);
+      turnCache.update(serverUrl, turnServers, ttlSeconds * 1000, SystemClock.elapsedRealtime());
+      Log.d(TAG, "TURN servers received in " + turnCache.getLastRequestDurationMs()
+          + " ms, TTL " + ttlSeconds + " s: " + turnServers);
+    } catch (JSONException e) {
+      turnCache.onRequestFailed(serverUrl);
+      Log.e(TAG, "TURN response JSON error: " + e.toString());
+    }
   }
 
 
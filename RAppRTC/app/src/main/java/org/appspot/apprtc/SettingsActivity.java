@@ -49,7 +49,9 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyprefSpeakerphone;
 
   private String keyPrefRoomServerUrl;
+  private String keyprefIceCandidatePoolSize;
   private String keyPrefDisplayHud;
+  private String keyPrefHudRefreshPeriod;
   private String keyPrefTracing;
 
   private String keyprefEnableDataChannel;
@@ -96,7 +98,9 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyprefDataId = getString(R.string.pref_data_id_key);
 
     keyPrefRoomServerUrl = getString(R.string.pref_room_server_url_key);
+    keyprefIceCandidatePoolSize = getString(R.string.pref_ice_candidate_pool_size_key);
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
+    keyPrefHudRefreshPeriod = getString(R.string.pref_hud_refresh_period_key);
     keyPrefTracing = getString(R.string.pref_tracing_key);
 
     // Display the fragment as the main content.
@@ -150,7 +154,9 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     setDataChannelEnable(sharedPreferences);
 
     updateSummary(sharedPreferences, keyPrefRoomServerUrl);
+    updateSummary(sharedPreferences, keyprefIceCandidatePoolSize);
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
+    updateSummary(sharedPreferences, keyPrefHudRefreshPeriod);
     updateSummaryB(sharedPreferences, keyPrefTracing);
 
     if (!Camera2Enumerator.isSupported(this)) {
@@ -208,6 +214,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefStartAudioBitrateType)
         || key.equals(keyPrefAudioCodec)
         || key.equals(keyPrefRoomServerUrl)
+        || key.equals(keyprefIceCandidatePoolSize)
+        || key.equals(keyPrefHudRefreshPeriod)
         || key.equals(keyprefMaxRetransmitTimeMs)
         || key.equals(keyprefMaxRetransmits)
         || key.equals(keyprefDataProtocol)
@@ -12,8 +12,10 @@ package org.appspot.apprtc;
 
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.CallSetupTimeline;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.neovisionaries.ws.client.WebSocket;
@@ -23,6 +25,8 @@ import com.neovisionaries.ws.client.WebSocketState;
 
 
 import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.ReconnectBackoff;
+import org.appspot.apprtc.util.ThreadRegistry;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -32,6 +36,7 @@ import java.net.URISyntaxException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import javax.net.ssl.SSLContext;
 
@@ -46,6 +51,19 @@ import javax.net.ssl.SSLContext;
 public class WebSocketChannelClient {
     private static final String TAG = "WSChannelRTCClient";
     private static final int CLOSE_TIMEOUT = 1000;
+    private static final String IO_THREAD_ROLE = "websocket-io";
+    private static final long RECONNECT_INITIAL_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 30000;
+    private static final int RECONNECT_MAX_ATTEMPTS = 8;
+
+    static {
+        // Reader and writer threads of nv-websocket-client, and of autobahn.
+        ThreadRegistry.registerNamePrefix("ReadingThread", IO_THREAD_ROLE);
+        ThreadRegistry.registerNamePrefix("WritingThread", IO_THREAD_ROLE);
+        ThreadRegistry.registerNamePrefix("WebSocketReader", IO_THREAD_ROLE);
+        ThreadRegistry.registerNamePrefix("WebSocketWriter", IO_THREAD_ROLE);
+    }
+
     private final WebSocketChannelEvents events;
     private final LooperExecutor executor;
     private WebSocket ws;
@@ -59,6 +77,16 @@ public class WebSocketChannelClient {
     // WebSocket send queue. Messages are added to the queue when WebSocket
     // client is not registered and are consumed in register() call.
     private final LinkedList<String> wsSendQueue;
+    // Reconnects after a registered connection drops, until disconnect().
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff(
+            RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS, RECONNECT_MAX_ATTEMPTS, new Random());
+    // Read on the WebSocket threads.
+    private volatile boolean registered;
+    private boolean disconnecting;
+    private boolean reconnectPending;
+    // Sent when registering again, so that the server can reattach the session
+    // without a full join. Null until the server provides one.
+    private String resumeToken;
 
     /**
      * Possible WebSocket connection states.
@@ -137,6 +165,33 @@ public class WebSocketChannelClient {
             return;
         }
         Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
+        if (sendJoin()) {
+            registered = true;
+            state = WebSocketConnectionState.REGISTERED;
+            sendQueuedMessages();
+        }
+    }
+
+    /**
+     * Called when the server confirmed the registration with "created",
+     * "joined" or "resumed". Sends the messages queued while reconnecting.
+     */
+    public void onRegistered(String resumeToken) {
+        checkIfCalledOnValidThread();
+        if (resumeToken != null) {
+            this.resumeToken = resumeToken;
+        }
+        state = WebSocketConnectionState.REGISTERED;
+        final long reconnectMs = reconnectBackoff.onConnected(SystemClock.elapsedRealtime());
+        if (reconnectMs >= 0) {
+            Log.d(TAG, "WebSocket registered again after " + reconnectMs + " ms and "
+                    + reconnectBackoff.getAttempts() + " attempts, " + wsSendQueue.size()
+                    + " queued messages. " + reconnectBackoff);
+        }
+        sendQueuedMessages();
+    }
+
+    private boolean sendJoin() {
         JSONObject json = new JSONObject();
         try {
             json.put("signal", "join");
@@ -145,20 +200,74 @@ public class WebSocketChannelClient {
             JSONObject custom = new JSONObject();
             custom.put("type", "MESH");
             json.put("custom", custom);
+            if (resumeToken != null) {
+                json.put("resumeToken", resumeToken);
+            }
 
             Log.d(TAG, "C->WSS: " + json.toString());
             ws.sendText(json.toString());
+            return true;
+        } catch (JSONException e) {
+            reportError("WebSocket register JSON error: " + e.getMessage());
+            return false;
+        }
+    }
 
-            state = WebSocketConnectionState.REGISTERED;
+    // Send any previously accumulated messages.
+    private void sendQueuedMessages() {
+        for (String sendMessage : wsSendQueue) {
+            send(sendMessage);
+        }
+        wsSendQueue.clear();
+    }
+
+    // Called when the socket closed. Reconnects if it was registered and not
+    // disconnected on purpose. Messages sent meanwhile are queued.
+    private void onClosed(WebSocket socket) {
+        if (socket != ws) {
+            return;
+        }
+        if (!registered || disconnecting || state == WebSocketConnectionState.ERROR) {
+            state = WebSocketConnectionState.CLOSED;
+            return;
+        }
+        state = WebSocketConnectionState.NEW;
+        RTCConnection.online = false;
+        if (!reconnectPending) {
+            scheduleReconnect();
+        }
+    }
 
-            // Send any previously accumulated messages.
-            for (String sendMessage : wsSendQueue) {
-                send(sendMessage);
+    private void scheduleReconnect() {
+        final long delayMs = reconnectBackoff.nextDelayMs(SystemClock.elapsedRealtime());
+        if (delayMs < 0) {
+            reportError("WebSocket reconnect failed after " + RECONNECT_MAX_ATTEMPTS + " attempts.");
+            return;
+        }
+        Log.d(TAG, "Reconnecting WebSocket in " + delayMs + " ms, attempt "
+                + reconnectBackoff.getAttempts());
+        reconnectPending = true;
+        executor.executeDelayed(new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
             }
-            wsSendQueue.clear();
+        }, delayMs);
+    }
 
-        } catch (JSONException e) {
-            reportError("WebSocket register JSON error: " + e.getMessage());
+    private void reconnect() {
+        reconnectPending = false;
+        if (disconnecting) {
+            return;
+        }
+        try {
+            ws = getFactory(true).createSocket(wsServerUrl);
+            ws.addListener(new WebSocketAdapterImpl());
+            ws.setPingInterval(60 * 1000);
+            ws.connectAsynchronously();
+        } catch (IOException e) {
+            Log.w(TAG, "WebSocket reconnect error: " + e.getMessage());
+            scheduleReconnect();
         }
     }
 
@@ -188,6 +297,7 @@ public class WebSocketChannelClient {
     public void disconnect(boolean waitForComplete) {
         checkIfCalledOnValidThread();
         Log.d(TAG, "Disconnect WebSocket. State: " + state);
+        disconnecting = true;
         if (state == WebSocketConnectionState.REGISTERED) {
             // Send "bye" to WebSocket server.
 //            send("{\"type\": \"bye\"}");
@@ -256,15 +366,24 @@ public class WebSocketChannelClient {
         }
 
         @Override
-        public void onConnected(WebSocket websocket, Map<String, List<String>> headers) throws Exception {
+        public void onConnected(final WebSocket websocket, Map<String, List<String>> headers) throws Exception {
             super.onConnected(websocket, headers);
             Log.d(TAG, "Status: Connected to " + wsServerUrl);
             Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
+            CallSetupTimeline.record(CallSetupTimeline.Event.WEBSOCKET_CONNECTED);
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
+                    if (websocket != ws) {
+                        return;
+                    }
                     state = WebSocketConnectionState.CONNECTED;
                     RTCConnection.online = true;
+                    if (reconnectBackoff.isReconnecting()) {
+                        // Messages stay queued until the server confirms.
+                        sendJoin();
+                        return;
+                    }
                     // Check if we have pending register request.
                     if (state != WebSocketConnectionState.REGISTERED) {
 //                        if (roomID != null && clientID != null) {
@@ -277,10 +396,13 @@ public class WebSocketChannelClient {
         }
 
         @Override
-        public void onStateChanged(WebSocket websocket, WebSocketState newState) throws Exception {
+        public void onStateChanged(final WebSocket websocket, WebSocketState newState) throws Exception {
             super.onStateChanged(websocket, newState);
 
-            Log.d(TAG, ("WebSocket connection closed. Code: " + newState.name()));
+            Log.d(TAG, ("WebSocket connection state: " + newState.name()));
+            if (newState != WebSocketState.CLOSED) {
+                return;
+            }
 
             synchronized (closeEventLock) {
                 closeEvent = true;
@@ -289,23 +411,38 @@ public class WebSocketChannelClient {
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    state = WebSocketConnectionState.CLOSED;
+                    onClosed(websocket);
                 }
             });
         }
 
         @Override
-        public void onConnectError(WebSocket websocket, com.neovisionaries.ws.client.WebSocketException exception) throws Exception {
+        public void onConnectError(final WebSocket websocket, com.neovisionaries.ws.client.WebSocketException exception) throws Exception {
             super.onConnectError(websocket, exception);
-            reportError("WebSocket onError : " + exception.getMessage());
             RTCConnection.online = false;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (websocket == ws && reconnectBackoff.isReconnecting() && !reconnectPending) {
+                        scheduleReconnect();
+                    }
+                }
+            });
+            if (!registered) {
+                reportError("WebSocket onError : " + exception.getMessage());
+            }
         }
 
         @Override
         public void onError(WebSocket websocket, com.neovisionaries.ws.client.WebSocketException cause) throws Exception {
             super.onError(websocket, cause);
-            reportError("WebSocket onError : " + cause.getMessage());
             RTCConnection.online = false;
+            if (registered) {
+                // The connection closes next, and is reconnected.
+                Log.w(TAG, "WebSocket onError : " + cause.getMessage());
+                return;
+            }
+            reportError("WebSocket onError : " + cause.getMessage());
         }
 
         @Override
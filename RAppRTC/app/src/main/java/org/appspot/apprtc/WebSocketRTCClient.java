@@ -14,12 +14,15 @@ import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
 import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.CallSetupTimeline;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.ThreadRegistry;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -42,6 +45,7 @@ import java.util.List;
  */
 public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents {
     private static final String TAG = "WSRTCClient";
+    private static final String EXECUTOR_THREAD_ROLE = "signaling";
     private static final String ROOM_JOIN = "join";
     private static final String ROOM_MESSAGE = "message";
     private static final String ROOM_LEAVE = "leave";
@@ -50,9 +54,15 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
 
     private enum MessageType {MESSAGE, LEAVE}
 
+    // Role in the room joined last, for CallActivity. Each client keeps its
+    // own role in |isInitiator|, so that several can run in one process.
     public static boolean initiator;
+    private boolean isInitiator;
+    // Client id of the initiator, which the answer and candidates are sent to.
+    private String remoteId;
     private SignalingEvents events;
     private WebSocketChannelClient wsClient;
+    private RoomParametersFetcher roomParametersFetcher;
     private ConnectionState roomState;
     private RoomConnectionParameters connectionParameters;
     private String messageUrl;
@@ -61,12 +71,24 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     private final LooperExecutor executor;
 
     public WebSocketRTCClient(SignalingEvents events) {
+        this(events, new LooperExecutor());
+    }
+
+    // Runs on |executor|, which is started here and stopped by
+    // disconnectFromRoom().
+    public WebSocketRTCClient(SignalingEvents events, LooperExecutor executor) {
         this.events = events;
         roomState = ConnectionState.NEW;
         final HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
-        executor = new LooperExecutor();
+        this.executor = executor;
         executor.requestStart();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ThreadRegistry.register(EXECUTOR_THREAD_ROLE);
+            }
+        });
     }
 
     // --------------------------------------------------------------------
@@ -111,10 +133,19 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         wsClient.setState(WebSocketConnectionState.CONNECTED);
         Log.d(TAG, "wsClient connect " + connectionUrl);
 
+        roomParametersFetcher = new RoomParametersFetcher(wsClient, connectionUrl);
         List<PeerConnection.IceServer> iceServers = new ArrayList<>();
         iceServers.add(new PeerConnection.IceServer("stun:23.21.150.121"));
         iceServers.add(new PeerConnection.IceServer("stun:stun.l.google.com:19302"));
-        iceServers.add(new PeerConnection.IceServer("turn:numb.viagenie.ca", "louis@mozilla.com", "webrtcdemo"));
+        // Don't wait for TURN credentials: use the cached ones, or the default
+        // server until the first response arrives.
+        List<PeerConnection.IceServer> turnServers = roomParametersFetcher.getTurnServers();
+        if (turnServers != null) {
+            Log.d(TAG, "Using cached TURN servers: " + turnServers);
+            iceServers.addAll(turnServers);
+        } else {
+            iceServers.add(new PeerConnection.IceServer("turn:numb.viagenie.ca", "louis@mozilla.com", "webrtcdemo"));
+        }
         SignalingParameters signalingParameters = new SignalingParameters(iceServers, true, "57889279", connectionUrl, "https://apprtc-ws-2.webrtc.org:443", null, null);
 
 
@@ -195,7 +226,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
                 }
                 JSONObject json = new JSONObject();
                 jsonPut(json, "signal", "answerResponse");
-                jsonPut(json, "to", PeerConnectionClient.to);
+                jsonPut(json, "to", remoteId);
                 jsonPut(json, "from", "");
                 jsonPut(json, "content", sdp.description);
                 wsClient.send(json.toString());
@@ -203,22 +234,25 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         });
     }
 
-    // Send Ice candidate to the other participant.
+    // Send a batch of Ice candidates to the other participant.
     @Override
-    public void sendLocalIceCandidate(final IceCandidate candidate) {
+    public void sendLocalIceCandidates(final IceCandidate[] candidates) {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "signal", "candidate");
-                jsonPut(json, "candidate", candidate.sdp);
-                jsonPut(json, "to", PeerConnectionClient.to);
-                jsonPut(json, "from", "");
-                if (initiator) {
-                    if (connectionParameters.loopback) {
-                        events.onRemoteIceCandidate(candidate);
+                // The server relays one candidate per message.
+                for (final IceCandidate candidate : candidates) {
+                    if (isInitiator) {
+                        if (connectionParameters.loopback) {
+                            events.onRemoteIceCandidate(candidate);
+                        }
+                        continue;
                     }
-                } else {
+                    JSONObject json = new JSONObject();
+                    jsonPut(json, "signal", "candidate");
+                    jsonPut(json, "candidate", candidate.sdp);
+                    jsonPut(json, "to", remoteId);
+                    jsonPut(json, "from", "");
                     // Call receiver sends ice candidates to websocket server.
                     wsClient.send(json.toString());
                 }
@@ -239,7 +273,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
                     jsonArray.put(toJsonCandidate(candidate));
                 }
                 jsonPut(json, "candidates", jsonArray);
-                if (initiator) {
+                if (isInitiator) {
                     // Call initiator sends ice candidates to GAE server.
                     if (roomState != ConnectionState.CONNECTED) {
                         reportError("Sending ICE candidate removals in non connected state.");
@@ -257,6 +291,26 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         });
     }
 
+    // Ask the other participant to restart ICE. Only sent by the call receiver,
+    // which answers the offers of the initiator.
+    @Override
+    public void sendIceRestartRequest() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isInitiator || connectionParameters.loopback) {
+                    return;
+                }
+                JSONObject json = new JSONObject();
+                jsonPut(json, "signal", "iceRestartRequest");
+                jsonPut(json, "to", remoteId);
+                jsonPut(json, "from", "");
+                // Queued while the WebSocket reconnects after the network change.
+                wsClient.send(json.toString());
+            }
+        });
+    }
+
     // --------------------------------------------------------------------
     // WebSocketChannelEvents interface implementation.
     // All events are called by WebSocketChannelClient on a local looper thread
@@ -269,11 +323,16 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
             JSONObject json = new JSONObject(msg);
             String signal = json.getString("signal");
 
-            if (signal.equals("ping"))
+            if (signal.equals("ping")) {
+                // Refresh TURN credentials in the background when they are due.
+                roomParametersFetcher.requestTurnServers(SystemClock.elapsedRealtime());
                 return;
+            }
 
-            if (signal.equals("created") || (signal.equals("joined"))) {
-                this.wsClient.setState(WebSocketConnectionState.REGISTERED);
+            if (signal.equals("created") || signal.equals("joined") || signal.equals("resumed")) {
+                // Also sends the messages queued while the WebSocket reconnected.
+                this.wsClient.onRegistered(json.optString("resumeToken", null));
+                CallSetupTimeline.record(CallSetupTimeline.Event.ROOM_REGISTERED);
             }
             if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
                 Log.e(TAG, "Got WebSocket message in non registered state.");
@@ -285,14 +344,19 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
             if (signal.length() > 0) {
                 switch (signal) {
                     case "created":
+                        isInitiator = true;
                         initiator = true;
                         PeerConnectionClient.clientID = json.getString("to");
-                        this.wsClient.setState(WebSocketConnectionState.REGISTERED);
                         break;
                     case "joined":
+                        isInitiator = false;
                         initiator = false;
                         PeerConnectionClient.clientID = json.getString("to");
-                        this.wsClient.setState(WebSocketConnectionState.REGISTERED);
+                        break;
+                    case "resumed":
+                        // The server reattached the session after a reconnect, so
+                        // the call continues without a new offer.
+                        Log.i(TAG, "Signaling session resumed");
                         break;
                     case "newJoined":
                         Log.i(TAG, "New users has joined");
@@ -318,8 +382,12 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
                         }
                         events.onRemoteIceCandidatesRemoved(candidates);
                         break;
+                    case "iceRestartRequest":
+                        events.onRemoteIceRestartRequest();
+                        break;
                     case "answerRequest":
-                        if (!initiator) {
+                        if (!isInitiator) {
+                            remoteId = json.getString("from");
                             sdp = new SessionDescription(
                                     SessionDescription.Type.OFFER, json.getString("content"));
                             events.onAnswerRequest(sdp, json.getString("from"));
@@ -330,6 +398,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
                     case "left":
                         events.onChannelClose();
                         break;
+                    case "turn":
+                        roomParametersFetcher.onTurnResponse(json);
+                        break;
                     default:
                         reportError("Unexpected WebSocket message: " + msg);
                         break;
@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import org.webrtc.DataChannel;
+/**
+ * The parts of a DataChannel that BulkTransferSender and DataChannelMux send with. Implemented by
+ * the streams of DataChannelMux, by PeerConnectionClient for its DataChannel, and by
+ * LoopbackDataChannel in tests, which run without the native library.
+ */
+public interface BulkTransferChannel {
+  /**
+   * Sends |buffer| to the remote peer. Returns false if the channel is not open or its send buffer
+   * is full, in which case a real DataChannel is closed.
+   */
+  boolean send(DataChannel.Buffer buffer);
+
+  /**
+   * Returns the number of bytes that have been sent but not yet transmitted to the network.
+   */
+  long bufferedAmount();
+}
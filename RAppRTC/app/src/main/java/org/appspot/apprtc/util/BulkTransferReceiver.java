@@ -0,0 +1,325 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.webrtc.DataChannel;
+
+/**
+ * Reassembles transfers sent by BulkTransferSender. Each transfer is written either to a
+ * FileChannel provided by the listener, or to a receive buffer that is reused across transfers,
+ * so that receiving does not allocate per message. The receive buffer grows as chunks arrive, so
+ * the length a peer declares at the start of a transfer does not allocate memory by itself.
+ * Chunks carry their offset, so they can be received out of order, but the channel must be
+ * reliable.
+ *
+ * onMessage() must be called from DataChannel.Observer.onMessage(), and all listener methods are
+ * called on that thread.
+ */
+public class BulkTransferReceiver {
+  private static final String TAG = "BulkTransferReceiver";
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  // How far past the bytes received so far an in-memory chunk may start. Chunks are only reordered
+  // on unordered channels, by less than the send buffer of the sender.
+  private static final long MAX_BYTES_AHEAD = BulkTransferSender.DEFAULT_HIGH_WATERMARK;
+
+  public interface Listener {
+    /**
+     * Called when a transfer starts. Returns the FileChannel to write the transfer to, or null to
+     * receive it in memory. The FileChannel is not closed by the receiver.
+     */
+    FileChannel onTransferStarted(int transferId, long length, String name);
+
+    /**
+     * Called when all bytes of a transfer are received and verified. For in-memory transfers,
+     * |data| holds the payload and is only valid during the call. For file transfers, |data| is
+     * null.
+     */
+    void onTransferComplete(int transferId, ByteBuffer data, BulkTransferStats stats);
+
+    void onTransferFailed(int transferId, String error);
+  }
+
+  private static class Transfer {
+    final int id;
+    final long length;
+    // One of |buffer| and |file| is set. |buffer| is replaced by a larger one as chunks arrive.
+    ByteBuffer buffer;
+    final FileChannel file;
+    final long startTimeNs;
+    long bytesReceived;
+    int messages;
+    // Set when END is received; END can arrive before the last chunks on unordered channels.
+    boolean ended;
+    int expectedCrc;
+
+    Transfer(int id, long length, ByteBuffer buffer, FileChannel file) {
+      this.id = id;
+      this.length = length;
+      this.buffer = buffer;
+      this.file = file;
+      this.startTimeNs = System.nanoTime();
+    }
+  }
+
+  private final Listener listener;
+  private final long maxInMemoryBytes;
+  private final Map<Integer, Transfer> transfers = new HashMap<Integer, Transfer>();
+  // Sum of the lengths of the in-memory transfers in progress.
+  private long inMemoryBytes;
+  // Receive buffer for in-memory transfers, reused while no other in-memory transfer holds it.
+  private ByteBuffer receiveBuffer;
+  private final CRC32 crc = new CRC32();
+  private byte[] crcScratch;
+
+  /**
+   * Creates a receiver that rejects an in-memory transfer if the lengths of all in-memory
+   * transfers in progress would add up to more than |maxInMemoryBytes|.
+   */
+  public BulkTransferReceiver(Listener listener, long maxInMemoryBytes) {
+    this.listener = listener;
+    this.maxInMemoryBytes = maxInMemoryBytes;
+  }
+
+  /**
+   * Returns true if |buffer| is a message of a bulk transfer, which the receiver consumed. Other
+   * messages are left to the caller.
+   */
+  public boolean onMessage(DataChannel.Buffer buffer) {
+    final ByteBuffer message = buffer.data;
+    final int start = message.position();
+    if (!buffer.binary || message.remaining() < BulkTransferSender.HEADER_SIZE
+        || message.get(start) != BulkTransferSender.MAGIC) {
+      return false;
+    }
+    final byte type = message.get(start + 1);
+    final int transferId = message.getInt(start + 2);
+    final long value = message.getLong(start + 6);
+    message.position(start + BulkTransferSender.HEADER_SIZE);
+    switch (type) {
+      case BulkTransferSender.TYPE_START:
+        onStart(transferId, value, message);
+        break;
+      case BulkTransferSender.TYPE_DATA:
+        onData(transferId, value, message);
+        break;
+      case BulkTransferSender.TYPE_END:
+        onEnd(transferId, value, message);
+        break;
+      case BulkTransferSender.TYPE_ABORT:
+        fail(transferId, "Aborted by sender");
+        break;
+      default:
+        Log.w(TAG, "Unknown message type " + type + " for transfer " + transferId);
+    }
+    return true;
+  }
+
+  /**
+   * Fails all transfers in progress, e.g. when the channel closes.
+   */
+  public void reset() {
+    for (Integer transferId : transfers.keySet().toArray(new Integer[0])) {
+      fail(transferId, "Channel closed");
+    }
+  }
+
+  private void onStart(int transferId, long length, ByteBuffer payload) {
+    if (transfers.containsKey(transferId)) {
+      fail(transferId, "Duplicate start");
+      return;
+    }
+    final byte[] nameBytes = new byte[payload.remaining()];
+    payload.get(nameBytes);
+    final String name = new String(nameBytes, BulkTransferSender.UTF_8);
+    if (length < 0) {
+      listener.onTransferFailed(transferId, "Invalid length " + length);
+      transfers.put(transferId, new Transfer(transferId, length, null, null));
+      return;
+    }
+    final FileChannel file = listener.onTransferStarted(transferId, length, name);
+    ByteBuffer buffer = null;
+    if (file == null) {
+      if (length > maxInMemoryBytes - inMemoryBytes) {
+        listener.onTransferFailed(transferId, "Transfer of " + length + " bytes exceeds the "
+            + (maxInMemoryBytes - inMemoryBytes) + " bytes left to receive in memory");
+        // Ignore the rest of the transfer.
+        transfers.put(transferId, new Transfer(transferId, length, null, null));
+        return;
+      }
+      inMemoryBytes += length;
+      buffer = takeReceiveBuffer();
+    }
+    transfers.put(transferId, new Transfer(transferId, length, buffer, file));
+  }
+
+  private void onData(int transferId, long offset, ByteBuffer payload) {
+    final Transfer transfer = transfers.get(transferId);
+    if (transfer == null || (transfer.buffer == null && transfer.file == null)) {
+      return;
+    }
+    final int size = payload.remaining();
+    if (offset < 0 || offset + size > transfer.length) {
+      fail(transferId, "Chunk at " + offset + " of " + size + " bytes is out of range");
+      return;
+    }
+    if (transfer.buffer != null) {
+      if (offset > transfer.bytesReceived + MAX_BYTES_AHEAD) {
+        fail(transferId, "Chunk at " + offset + " is too far ahead of " + transfer.bytesReceived
+            + " received bytes");
+        return;
+      }
+      ensureCapacity(transfer, (int) (offset + size));
+      final ByteBuffer destination = transfer.buffer.duplicate();
+      destination.position((int) offset);
+      destination.put(payload);
+    } else {
+      try {
+        long position = offset;
+        while (payload.hasRemaining()) {
+          position += transfer.file.write(payload, position);
+        }
+      } catch (IOException e) {
+        fail(transferId, "Write failed: " + e.getMessage());
+        return;
+      }
+    }
+    transfer.bytesReceived += size;
+    ++transfer.messages;
+    maybeComplete(transfer);
+  }
+
+  private void onEnd(int transferId, long length, ByteBuffer payload) {
+    final Transfer transfer = transfers.get(transferId);
+    if (transfer == null) {
+      return;
+    }
+    if (transfer.buffer == null && transfer.file == null) {
+      transfers.remove(transferId);
+      return;
+    }
+    if (length != transfer.length || payload.remaining() < 4) {
+      fail(transferId, "Invalid end of transfer");
+      return;
+    }
+    transfer.ended = true;
+    transfer.expectedCrc = payload.getInt(payload.position());
+    maybeComplete(transfer);
+  }
+
+  private void maybeComplete(Transfer transfer) {
+    if (!transfer.ended || transfer.bytesReceived < transfer.length) {
+      return;
+    }
+    if (transfer.buffer != null) {
+      // Duplicate chunks can count towards |bytesReceived|, and then fail the checksum below.
+      ensureCapacity(transfer, (int) transfer.length);
+    }
+    final int actualCrc;
+    try {
+      actualCrc = computeCrc(transfer);
+    } catch (IOException e) {
+      fail(transfer.id, "Read back failed: " + e.getMessage());
+      return;
+    }
+    if (actualCrc != transfer.expectedCrc) {
+      fail(transfer.id, "Checksum mismatch");
+      return;
+    }
+    transfers.remove(transfer.id);
+    final BulkTransferStats stats = new BulkTransferStats(transfer.id, transfer.length,
+        transfer.messages, System.nanoTime() - transfer.startTimeNs, 0 /* stalls */,
+        0 /* maxBufferedAmount */);
+    Log.d(TAG, stats.toString());
+    if (transfer.buffer != null) {
+      inMemoryBytes -= transfer.length;
+      final ByteBuffer data = transfer.buffer.asReadOnlyBuffer();
+      data.limit((int) transfer.length);
+      listener.onTransferComplete(transfer.id, data, stats);
+      receiveBuffer = transfer.buffer;
+    } else {
+      listener.onTransferComplete(transfer.id, null, stats);
+    }
+  }
+
+  private int computeCrc(Transfer transfer) throws IOException {
+    crc.reset();
+    if (transfer.buffer != null && transfer.buffer.hasArray()) {
+      crc.update(transfer.buffer.array(), transfer.buffer.arrayOffset(), (int) transfer.length);
+      return (int) crc.getValue();
+    }
+    if (crcScratch == null) {
+      crcScratch = new byte[BulkTransferSender.DEFAULT_CHUNK_SIZE];
+    }
+    final ByteBuffer scratch = ByteBuffer.wrap(crcScratch);
+    for (long offset = 0; offset < transfer.length;) {
+      scratch.clear();
+      scratch.limit((int) Math.min(crcScratch.length, transfer.length - offset));
+      final int read = transfer.file.read(scratch, offset);
+      if (read < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      crc.update(crcScratch, 0, read);
+      offset += read;
+    }
+    return (int) crc.getValue();
+  }
+
+  private void fail(int transferId, String error) {
+    final Transfer transfer = transfers.remove(transferId);
+    if (transfer == null) {
+      return;
+    }
+    if (transfer.buffer != null) {
+      inMemoryBytes -= transfer.length;
+      receiveBuffer = transfer.buffer;
+    }
+    if (transfer.buffer != null || transfer.file != null) {
+      Log.e(TAG, "Transfer " + transferId + " failed: " + error);
+      listener.onTransferFailed(transferId, error);
+    }
+  }
+
+  // Returns the receive buffer if it is free, or else a new small buffer.
+  private ByteBuffer takeReceiveBuffer() {
+    ByteBuffer buffer = receiveBuffer;
+    receiveBuffer = null;
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  // Grows the buffer of |transfer| to hold at least |size| bytes, at most doubling it per chunk
+  // unless the chunk needs more, and never beyond the length of the transfer.
+  private static void ensureCapacity(Transfer transfer, int size) {
+    final ByteBuffer buffer = transfer.buffer;
+    if (buffer.capacity() >= size) {
+      return;
+    }
+    final int capacity =
+        (int) Math.min(transfer.length, Math.max(size, 2L * buffer.capacity()));
+    final ByteBuffer grown = ByteBuffer.allocate(capacity);
+    // Chunks can arrive out of order, so copy the whole buffer.
+    final ByteBuffer source = buffer.duplicate();
+    source.clear();
+    grown.put(source);
+    grown.clear();
+    transfer.buffer = grown;
+  }
+}
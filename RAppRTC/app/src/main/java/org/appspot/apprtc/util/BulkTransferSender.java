@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import org.webrtc.DataChannel;
+
+/**
+ * Sends large payloads over a reliable DataChannel as a sequence of binary messages, to be
+ * reassembled by BulkTransferReceiver. Payloads are split into chunks small enough for every SCTP
+ * implementation, and sending pauses while the buffered amount of the channel is above a high
+ * watermark, and resumes when it drops below a low watermark. This keeps the send buffer of the
+ * channel full enough to saturate the link without exceeding its limit, which closes the channel.
+ *
+ * All work is done on |executor|, which must run tasks one at a time. onBufferedAmountChange() must
+ * be called from the DataChannel.Observer of the channel.
+ */
+public class BulkTransferSender {
+  private static final String TAG = "BulkTransferSender";
+
+  // Largest message that all SCTP implementations deliver without fragmentation issues.
+  public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+  public static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+  public static final long DEFAULT_LOW_WATERMARK = 256 * 1024;
+
+  // Message format, all integers big endian:
+  //   START: MAGIC, TYPE_START, int transfer id, long length, UTF-8 name.
+  //   DATA:  MAGIC, TYPE_DATA, int transfer id, long offset, payload.
+  //   END:   MAGIC, TYPE_END, int transfer id, long length, int CRC32 of the payload.
+  //   ABORT: MAGIC, TYPE_ABORT, int transfer id, long 0.
+  static final byte MAGIC = (byte) 0xB7;
+  static final byte TYPE_START = 1;
+  static final byte TYPE_DATA = 2;
+  static final byte TYPE_END = 3;
+  static final byte TYPE_ABORT = 4;
+  static final int HEADER_SIZE = 14;
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  public interface Callback {
+    void onTransferComplete(BulkTransferStats stats);
+    void onTransferFailed(int transferId, String error);
+  }
+
+  private static class Transfer {
+    final int id;
+    final String name;
+    // One of |buffer| and |file| is set.
+    final ByteBuffer buffer;
+    final FileChannel file;
+    final long length;
+    final CRC32 crc = new CRC32();
+    long offset;
+    boolean started;
+    boolean ended;
+    int messages;
+    int stalls;
+    long maxBufferedAmount;
+    long startTimeNs;
+
+    Transfer(int id, String name, ByteBuffer buffer, FileChannel file, long length) {
+      this.id = id;
+      this.name = name;
+      this.buffer = buffer;
+      this.file = file;
+      this.length = length;
+    }
+  }
+
+  private final BulkTransferChannel channel;
+  private final Executor executor;
+  private final Callback callback;
+  private final int chunkSize;
+  private final long highWatermark;
+  private final long lowWatermark;
+  // Reused for all full size chunks. DataChannel.send() copies it before returning.
+  private final byte[] chunk;
+  private final Runnable pumpRunnable = new Runnable() {
+    @Override
+    public void run() {
+      pump();
+    }
+  };
+
+  // Accessed on |executor| only.
+  private final ArrayDeque<Transfer> transfers = new ArrayDeque<Transfer>();
+  private int nextTransferId = 1;
+  // True while waiting for the buffered amount to drop below |lowWatermark|. Read on the observer
+  // thread.
+  private volatile boolean paused;
+  private volatile boolean resumePosted;
+
+  public BulkTransferSender(BulkTransferChannel channel, Executor executor, Callback callback) {
+    this(channel, executor, callback, DEFAULT_CHUNK_SIZE, DEFAULT_HIGH_WATERMARK,
+        DEFAULT_LOW_WATERMARK);
+  }
+
+  public BulkTransferSender(BulkTransferChannel channel, Executor executor, Callback callback,
+      int chunkSize, long highWatermark, long lowWatermark) {
+    if (chunkSize <= 0 || lowWatermark < 0 || highWatermark <= lowWatermark) {
+      throw new IllegalArgumentException("Invalid chunk size " + chunkSize + " or watermarks "
+          + lowWatermark + ", " + highWatermark);
+    }
+    this.channel = channel;
+    this.executor = executor;
+    this.callback = callback;
+    this.chunkSize = chunkSize;
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.chunk = new byte[HEADER_SIZE + chunkSize];
+  }
+
+  /**
+   * Queues the remaining bytes of |data| for sending. |data| must not be modified until the
+   * transfer completes. Returns the id of the transfer. Must be called on |executor|.
+   */
+  public int send(ByteBuffer data, String name) {
+    final ByteBuffer buffer = data.slice();
+    return enqueue(new Transfer(nextTransferId++, name, buffer, null, buffer.remaining()));
+  }
+
+  /**
+   * Queues the contents of |file| for sending. The file is read with positional reads and is not
+   * closed. Must be called on |executor|.
+   */
+  public int send(FileChannel file, String name) throws IOException {
+    return enqueue(new Transfer(nextTransferId++, name, null, file, file.size()));
+  }
+
+  /**
+   * Aborts all queued transfers. Must be called on |executor|.
+   */
+  public void cancelAll() {
+    Transfer transfer;
+    while ((transfer = transfers.poll()) != null) {
+      if (transfer.started) {
+        sendControl(TYPE_ABORT, transfer.id, 0, null);
+      }
+      callback.onTransferFailed(transfer.id, "Cancelled");
+    }
+    paused = false;
+  }
+
+  /**
+   * Resumes sending once the buffered amount is below the low watermark. Can be called on any
+   * thread.
+   */
+  public void onBufferedAmountChange() {
+    if (paused && !resumePosted && channel.bufferedAmount() <= lowWatermark) {
+      resumePosted = true;
+      executor.execute(pumpRunnable);
+    }
+  }
+
+  private int enqueue(Transfer transfer) {
+    transfers.add(transfer);
+    if (transfers.size() == 1) {
+      pump();
+    }
+    return transfer.id;
+  }
+
+  // Sends chunks until the buffered amount reaches the high watermark or all transfers are sent.
+  private void pump() {
+    resumePosted = false;
+    paused = false;
+    Transfer transfer;
+    while ((transfer = transfers.peek()) != null) {
+      final long bufferedAmount = channel.bufferedAmount();
+      transfer.maxBufferedAmount = Math.max(transfer.maxBufferedAmount, bufferedAmount);
+      if (bufferedAmount >= highWatermark) {
+        paused = true;
+        ++transfer.stalls;
+        // The buffered amount may have dropped before |paused| was set, in which case no
+        // onBufferedAmountChange() will follow.
+        onBufferedAmountChange();
+        return;
+      }
+      final String error = sendNextMessage(transfer);
+      if (error != null) {
+        transfers.poll();
+        Log.e(TAG, "Transfer " + transfer.id + " failed: " + error);
+        callback.onTransferFailed(transfer.id, error);
+      } else if (transfer.ended) {
+        transfers.poll();
+        callback.onTransferComplete(new BulkTransferStats(transfer.id, transfer.length,
+            transfer.messages, System.nanoTime() - transfer.startTimeNs, transfer.stalls,
+            transfer.maxBufferedAmount));
+      }
+    }
+  }
+
+  // Sends the next message of |transfer|. Returns an error message on failure.
+  private String sendNextMessage(Transfer transfer) {
+    if (!transfer.started) {
+      transfer.started = true;
+      transfer.startTimeNs = System.nanoTime();
+      transfer.messages = 1;
+      final byte[] name = (transfer.name == null) ? new byte[0] : transfer.name.getBytes(UTF_8);
+      return sendControl(TYPE_START, transfer.id, transfer.length, name) ? null : "Send failed";
+    }
+    if (transfer.offset == transfer.length) {
+      final ByteBuffer crc = ByteBuffer.allocate(4);
+      crc.putInt(0, (int) transfer.crc.getValue());
+      transfer.ended = true;
+      ++transfer.messages;
+      return sendControl(TYPE_END, transfer.id, transfer.length, crc.array()) ? null
+                                                                             : "Send failed";
+    }
+
+    final int size = (int) Math.min(chunkSize, transfer.length - transfer.offset);
+    final byte[] message = (size == chunkSize) ? chunk : new byte[HEADER_SIZE + size];
+    final ByteBuffer wrapped = ByteBuffer.wrap(message);
+    putHeader(wrapped, TYPE_DATA, transfer.id, transfer.offset);
+    if (transfer.buffer != null) {
+      final ByteBuffer source = transfer.buffer.duplicate();
+      source.position((int) transfer.offset);
+      source.get(message, HEADER_SIZE, size);
+    } else {
+      wrapped.position(HEADER_SIZE);
+      try {
+        while (wrapped.hasRemaining()) {
+          if (transfer.file.read(wrapped, transfer.offset + wrapped.position() - HEADER_SIZE) < 0) {
+            return "Unexpected end of file";
+          }
+        }
+      } catch (IOException e) {
+        return "Read failed: " + e.getMessage();
+      }
+    }
+    transfer.crc.update(message, HEADER_SIZE, size);
+    if (!channel.send(new DataChannel.Buffer(ByteBuffer.wrap(message), true /* binary */))) {
+      return "Send failed";
+    }
+    transfer.offset += size;
+    ++transfer.messages;
+    return null;
+  }
+
+  private boolean sendControl(byte type, int transferId, long value, byte[] payload) {
+    final int payloadSize = (payload == null) ? 0 : payload.length;
+    final ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+    putHeader(message, type, transferId, value);
+    if (payload != null) {
+      message.position(HEADER_SIZE);
+      message.put(payload);
+    }
+    message.rewind();
+    return channel.send(new DataChannel.Buffer(message, true /* binary */));
+  }
+
+  private static void putHeader(ByteBuffer message, byte type, int transferId, long value) {
+    message.put(0, MAGIC);
+    message.put(1, type);
+    message.putInt(2, transferId);
+    message.putLong(6, value);
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of a completed transfer of BulkTransferSender or BulkTransferReceiver.
+ */
+public class BulkTransferStats {
+  public final int transferId;
+  public final long bytes;
+  public final int messages;
+  public final long durationNs;
+  // Number of times the sender paused because the buffered amount reached the high watermark.
+  // Always 0 on the receiver.
+  public final int stalls;
+  // Largest buffered amount seen by the sender. Always 0 on the receiver.
+  public final long maxBufferedAmount;
+
+  BulkTransferStats(int transferId, long bytes, int messages, long durationNs, int stalls,
+      long maxBufferedAmount) {
+    this.transferId = transferId;
+    this.bytes = bytes;
+    this.messages = messages;
+    this.durationNs = durationNs;
+    this.stalls = stalls;
+    this.maxBufferedAmount = maxBufferedAmount;
+  }
+
+  public double getThroughputKbps() {
+    return (durationNs <= 0) ? 0 : bytes * 8.0 * TimeUnit.SECONDS.toNanos(1) / durationNs / 1000;
+  }
+
+  @Override
+  public String toString() {
+    return "Transfer " + transferId + ": " + bytes + " bytes in " + messages + " messages, "
+        + TimeUnit.NANOSECONDS.toMillis(durationNs) + " ms, "
+        + String.format("%.0f", getThroughputKbps()) + " kbps. Stalls: " + stalls
+        + ". Max buffered: " + maxBufferedAmount;
+  }
+}
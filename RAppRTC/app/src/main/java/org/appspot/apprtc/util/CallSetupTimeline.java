@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records when each step of call setup first happens, on a monotonic clock
+ * relative to the start of the call, and exports the steps as one JSON
+ * object per call once the call is set up or ends, so that setup latency can
+ * be aggregated across calls.
+ *
+ * There is one current timeline, which signaling, PeerConnectionClient and
+ * the renderers record into with the static record() from any thread. Only
+ * the first occurrence of an event is kept.
+ */
+public class CallSetupTimeline {
+  public enum Event {
+    WEBSOCKET_CONNECTED,
+    ROOM_REGISTERED,
+    LOCAL_DESCRIPTION_CREATED,
+    LOCAL_DESCRIPTION_SET,
+    REMOTE_DESCRIPTION_SET,
+    FIRST_LOCAL_CANDIDATE,
+    FIRST_REMOTE_CANDIDATE,
+    ICE_CONNECTED,
+    FIRST_FRAME_DECODED,
+    FIRST_FRAME_RENDERED
+  }
+
+  /**
+   * Receives the timeline once, when the completion event is recorded or
+   * the call ends before that. Called on the thread that records the event
+   * or ends the call.
+   */
+  public interface Listener {
+    void onTimelineFinished(CallSetupTimeline timeline);
+  }
+
+  /**
+   * Setup latency percentiles over the most recent calls.
+   */
+  public static class Aggregate {
+    private final int capacity;
+    // Per event, elapsed time of the last |capacity| calls, -1 if missing.
+    private final long[][] samplesMs;
+    private int calls;
+
+    public Aggregate(int capacity) {
+      this.capacity = capacity;
+      samplesMs = new long[Event.values().length][capacity];
+    }
+
+    public synchronized void add(CallSetupTimeline timeline) {
+      final int index = calls % capacity;
+      for (Event event : Event.values()) {
+        samplesMs[event.ordinal()][index] = timeline.getElapsedMs(event);
+      }
+      ++calls;
+    }
+
+    /**
+     * Returns the |percentile| of the elapsed time of |event| over the calls
+     * that recorded it, or -1 if none did.
+     */
+    public synchronized long getPercentileMs(Event event, int percentile) {
+      final int count = Math.min(calls, capacity);
+      final long[] sorted = new long[count];
+      int recorded = 0;
+      for (int i = 0; i < count; ++i) {
+        final long sampleMs = samplesMs[event.ordinal()][i];
+        if (sampleMs >= 0) {
+          sorted[recorded++] = sampleMs;
+        }
+      }
+      if (recorded == 0) {
+        return -1;
+      }
+      Arrays.sort(sorted, 0, recorded);
+      final int rank = (int) Math.ceil(percentile / 100.0 * recorded) - 1;
+      return sorted[Math.max(0, Math.min(recorded - 1, rank))];
+    }
+
+    @Override
+    public synchronized String toString() {
+      final StringBuilder builder = new StringBuilder("Setup of ");
+      builder.append(Math.min(calls, capacity)).append(" calls, p50/p90 ms:");
+      for (Event event : Event.values()) {
+        builder.append(' ').append(getName(event)).append(' ');
+        builder.append(getPercentileMs(event, 50)).append('/');
+        builder.append(getPercentileMs(event, 90));
+      }
+      return builder.toString();
+    }
+  }
+
+  private static volatile CallSetupTimeline current;
+
+  private final long startNs = System.nanoTime();
+  private final Event completionEvent;
+  private final Listener listener;
+  // Per event, nanoseconds since |startNs|, or -1.
+  private final AtomicLongArray elapsedNs =
+      new AtomicLongArray(Event.values().length);
+  private final AtomicBoolean finished = new AtomicBoolean();
+  private volatile boolean complete;
+
+  private CallSetupTimeline(Event completionEvent, Listener listener) {
+    this.completionEvent = completionEvent;
+    this.listener = listener;
+    for (int i = 0; i < elapsedNs.length(); ++i) {
+      elapsedNs.set(i, -1);
+    }
+  }
+
+  /**
+   * Starts the timeline of a new call, which is set up once
+   * |completionEvent| is recorded. Replaces the current timeline without
+   * finishing it.
+   */
+  public static CallSetupTimeline start(
+      Event completionEvent, Listener listener) {
+    final CallSetupTimeline timeline =
+        new CallSetupTimeline(completionEvent, listener);
+    current = timeline;
+    return timeline;
+  }
+
+  /**
+   * Records |event| in the current timeline, if there is one.
+   */
+  public static void record(Event event) {
+    final CallSetupTimeline timeline = current;
+    if (timeline != null) {
+      timeline.recordEvent(event);
+    }
+  }
+
+  /**
+   * Finishes the current timeline when the call ends, which reports it as
+   * incomplete if the call was not set up.
+   */
+  public static void end() {
+    final CallSetupTimeline timeline = current;
+    current = null;
+    if (timeline != null) {
+      timeline.finish();
+    }
+  }
+
+  public static String getName(Event event) {
+    return event.name().toLowerCase(Locale.US);
+  }
+
+  public void recordEvent(Event event) {
+    if (!elapsedNs.compareAndSet(
+            event.ordinal(), -1, System.nanoTime() - startNs)) {
+      return;
+    }
+    if (event == completionEvent) {
+      complete = true;
+      finish();
+    }
+  }
+
+  /**
+   * Returns the time from the start of the call to |event|, or -1 if it was
+   * not recorded.
+   */
+  public long getElapsedMs(Event event) {
+    final long ns = elapsedNs.get(event.ordinal());
+    return (ns < 0) ? -1 : TimeUnit.NANOSECONDS.toMillis(ns);
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Returns the timeline as a JSON object, e.g.
+   * {"type":"call_setup","complete":true,"completion":"ice_connected",
+   * "elapsed_ms":{"websocket_connected":130,...,"ice_connected":920}}.
+   */
+  public String toJson() {
+    final StringBuilder json = new StringBuilder("{\"type\":\"call_setup\"");
+    json.append(",\"complete\":").append(complete);
+    json.append(",\"completion\":\"").append(getName(completionEvent));
+    json.append("\",\"elapsed_ms\":{");
+    boolean first = true;
+    for (Event event : Event.values()) {
+      final long elapsedMs = getElapsedMs(event);
+      if (elapsedMs < 0) {
+        continue;
+      }
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append('"').append(getName(event)).append("\":").append(elapsedMs);
+    }
+    return json.append("}}").toString();
+  }
+
+  private void finish() {
+    if (finished.compareAndSet(false, true) && listener != null) {
+      listener.onTimelineFinished(this);
+    }
+  }
+}
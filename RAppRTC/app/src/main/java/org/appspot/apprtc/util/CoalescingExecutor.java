@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues tasks onto a single threaded executor, so that idempotent work
+ * does not pile up behind slow tasks:
+ * - execute() queues a task that must run, like any executor.
+ * - executeCoalesced() queues a task that sets some state. If a task with
+ *   the same key is still queued, it is replaced and only the latest runs,
+ *   at the position of the first.
+ * - tryExecute() queues a polling task. It is dropped if a task with the
+ *   same key is still queued, or if |maxQueueDepth| tasks are queued.
+ * So the queue holds at most one task per key, and polling stops adding to
+ * a long queue. Also records how long tasks wait in the queue.
+ *
+ * Tasks run in the order they are queued, on the thread of the wrapped
+ * executor, which must run one task at a time. Tasks can be queued from any
+ * thread.
+ */
+public class CoalescingExecutor implements Executor {
+  private final Executor executor;
+  private final int maxQueueDepth;
+  private final Object lock = new Object();
+  // Queued tasks that have a key.
+  private final Map<Object, QueuedTask> queuedByKey =
+      new HashMap<Object, QueuedTask>();
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicInteger maxObservedQueueDepth = new AtomicInteger();
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final LatencyHistogram queueLatency =
+      new LatencyHistogram("Queue latency");
+
+  private class QueuedTask implements Runnable {
+    final Object key;
+    final long queuedNs = System.nanoTime();
+    // Replaced by executeCoalesced(), guarded by |lock| if |key| is set.
+    Runnable task;
+
+    QueuedTask(Object key, Runnable task) {
+      this.key = key;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      queueDepth.decrementAndGet();
+      queueLatency.addSample((System.nanoTime() - queuedNs) / 1000);
+      final Runnable current;
+      if (key == null) {
+        current = task;
+      } else {
+        synchronized (lock) {
+          queuedByKey.remove(key);
+          current = task;
+        }
+      }
+      current.run();
+    }
+  }
+
+  public CoalescingExecutor(Executor executor, int maxQueueDepth) {
+    this.executor = executor;
+    this.maxQueueDepth = maxQueueDepth;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    enqueue(new QueuedTask(null, task));
+  }
+
+  /**
+   * Queues |task|, or replaces the queued task with the same |key|.
+   */
+  public void executeCoalesced(Object key, Runnable task) {
+    final QueuedTask queuedTask;
+    synchronized (lock) {
+      final QueuedTask existing = queuedByKey.get(key);
+      if (existing != null) {
+        existing.task = task;
+        coalesced.incrementAndGet();
+        return;
+      }
+      queuedTask = new QueuedTask(key, task);
+      queuedByKey.put(key, queuedTask);
+    }
+    enqueue(queuedTask);
+  }
+
+  /**
+   * Queues |task| unless a task with the same |key| is queued or the queue
+   * is full. Returns false if |task| was dropped.
+   */
+  public boolean tryExecute(Object key, Runnable task) {
+    final QueuedTask queuedTask;
+    synchronized (lock) {
+      if (queuedByKey.containsKey(key) || queueDepth.get() >= maxQueueDepth) {
+        dropped.incrementAndGet();
+        return false;
+      }
+      queuedTask = new QueuedTask(key, task);
+      queuedByKey.put(key, queuedTask);
+    }
+    enqueue(queuedTask);
+    return true;
+  }
+
+  /**
+   * Returns the number of tasks that are queued and not yet started.
+   */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * Returns the time tasks waited from being queued until they started.
+   */
+  public LatencyHistogram getQueueLatency() {
+    return queueLatency;
+  }
+
+  @Override
+  public String toString() {
+    return "Tasks: " + queued.get() + " queued, " + coalesced.get()
+        + " coalesced, " + dropped.get() + " dropped, max queue depth "
+        + maxObservedQueueDepth.get() + ". " + queueLatency;
+  }
+
+  private void enqueue(QueuedTask queuedTask) {
+    queued.incrementAndGet();
+    final int depth = queueDepth.incrementAndGet();
+    int maxDepth = maxObservedQueueDepth.get();
+    while (depth > maxDepth
+        && !maxObservedQueueDepth.compareAndSet(maxDepth, depth)) {
+      maxDepth = maxObservedQueueDepth.get();
+    }
+    try {
+      executor.execute(queuedTask);
+    } catch (RejectedExecutionException e) {
+      queueDepth.decrementAndGet();
+      if (queuedTask.key != null) {
+        synchronized (lock) {
+          queuedByKey.remove(queuedTask.key);
+        }
+      }
+      throw e;
+    }
+  }
+}
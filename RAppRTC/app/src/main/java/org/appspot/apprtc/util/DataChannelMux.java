@@ -0,0 +1,490 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.webrtc.DataChannel;
+
+/**
+ * Carries many logical streams over one DataChannel, instead of opening an SCTP channel per
+ * purpose. Messages are split into frames, and frames of streams with a lower priority value are
+ * sent first, round robin between streams of the same priority. The buffered amount of the
+ * channel is kept low, so that a frame of an urgent stream waits behind little data that is
+ * already in the SCTP send buffer, and bulk streams do not block small control messages.
+ *
+ * Each stream has a send window that the receiving side replenishes with credit as it consumes
+ * messages, so that one stream cannot fill the channel with data its peer does not read. A stream
+ * whose peer sends beyond the window is closed. Streams are identified by ids agreed by both
+ * peers, and must be opened on both sides before sending. Data for a stream that is not open is
+ * dropped, but credited, so the sender does not stall. A Stream can be used like a DataChannel,
+ * including by BulkTransferSender.
+ *
+ * Frames, including credit for received data, are sent on |executor|, and never while holding the
+ * lock of the mux, since DataChannel calls block on the signaling thread that delivers received
+ * frames. onMessage() and onBufferedAmountChange() must be called from the DataChannel.Observer of
+ * the channels that carry the streams.
+ */
+public class DataChannelMux {
+  private static final String TAG = "DataChannelMux";
+
+  // Lower values are sent first.
+  public static final int PRIORITY_HIGH = 0;
+  public static final int PRIORITY_NORMAL = 1;
+  public static final int PRIORITY_LOW = 2;
+  private static final int PRIORITY_COUNT = 3;
+
+  public static final int MAX_STREAM_ID = 0xFFFF;
+  public static final int DEFAULT_FRAME_SIZE = 16 * 1024;
+  public static final int DEFAULT_STREAM_WINDOW = 256 * 1024;
+  public static final long DEFAULT_HIGH_WATERMARK = 64 * 1024;
+  public static final long DEFAULT_LOW_WATERMARK = 16 * 1024;
+
+  // Frame format: MAGIC, type and flags, short stream id, payload. The payload of a CREDIT frame
+  // is the int number of bytes consumed by the receiver.
+  static final byte MAGIC = (byte) 0xB8;
+  static final int TYPE_DATA = 1;
+  static final int TYPE_CREDIT = 2;
+  static final int TYPE_CLOSE = 3;
+  static final int TYPE_MASK = 0x0F;
+  // Set on the last frame of a message.
+  static final int FLAG_FIN = 0x10;
+  static final int FLAG_BINARY = 0x20;
+  static final int HEADER_SIZE = 4;
+
+  /** A logical stream. Messages are delivered to its observer on the thread of onMessage(). */
+  public class Stream implements BulkTransferChannel {
+    private final int id;
+    private final int priority;
+    private final DataChannel.Observer observer;
+
+    // Guarded by |lock|.
+    // Copies of messages that are not completely framed yet.
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Boolean> queueBinary = new ArrayDeque<Boolean>();
+    private long queuedBytes;
+    private long sendCredit = streamWindow;
+    // True while in |activeStreams|.
+    private boolean active;
+    private boolean closed;
+
+    // Accessed on the receiving thread only.
+    private ByteBuffer reassembly;
+    private boolean reassembling;
+    private int unacknowledgedBytes;
+    // Bytes the peer may still send before it receives more credit.
+    private long receiveWindow = streamWindow;
+
+    private Stream(int id, int priority, DataChannel.Observer observer) {
+      this.id = id;
+      this.priority = priority;
+      this.observer = observer;
+    }
+
+    public int id() {
+      return id;
+    }
+
+    public int priority() {
+      return priority;
+    }
+
+    public DataChannel.State state() {
+      synchronized (lock) {
+        return closed ? DataChannel.State.CLOSED : DataChannel.State.OPEN;
+      }
+    }
+
+    /** Queues a copy of |buffer|. Returns false if the stream is closed. */
+    @Override
+    public boolean send(DataChannel.Buffer buffer) {
+      final ByteBuffer copy = ByteBuffer.allocate(buffer.data.remaining());
+      copy.put(buffer.data);
+      copy.flip();
+      synchronized (lock) {
+        if (closed || DataChannelMux.this.closed) {
+          return false;
+        }
+        queue.add(copy);
+        queueBinary.add(buffer.binary);
+        queuedBytes += copy.remaining();
+        activateIfSendable();
+      }
+      postPump();
+      return true;
+    }
+
+    /** Returns the number of bytes queued in the stream and not yet sent on the channel. */
+    @Override
+    public long bufferedAmount() {
+      synchronized (lock) {
+        return queuedBytes;
+      }
+    }
+
+    /** Drops queued messages and closes the stream on both sides. */
+    public void close() {
+      synchronized (lock) {
+        if (closed) {
+          return;
+        }
+        closeLocked();
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          sendControl(TYPE_CLOSE, id, null);
+        }
+      });
+    }
+
+    // Must hold |lock|.
+    private void activateIfSendable() {
+      if (!active && !closed && !queue.isEmpty()
+          && (sendCredit > 0 || !queue.peek().hasRemaining())) {
+        active = true;
+        activeStreams[priority].add(this);
+      }
+    }
+
+    // Must hold |lock|.
+    private void closeLocked() {
+      closed = true;
+      queue.clear();
+      queueBinary.clear();
+      queuedBytes = 0;
+      streams.remove(id);
+      // Removed from |activeStreams| by the next pump.
+    }
+
+    // Called on the receiving thread.
+    private void onData(ByteBuffer payload, int flags) {
+      final int size = payload.remaining();
+      if (size > receiveWindow) {
+        Log.e(TAG, "Stream " + id + " received " + size + " bytes with a window of "
+            + receiveWindow + ", closing");
+        reassembling = false;
+        close();
+        observer.onStateChange();
+        return;
+      }
+      receiveWindow -= size;
+      final boolean fin = (flags & FLAG_FIN) != 0;
+      if (!reassembling && fin) {
+        // Deliver single frame messages without copying.
+        observer.onMessage(new DataChannel.Buffer(payload, (flags & FLAG_BINARY) != 0));
+      } else {
+        if (!reassembling) {
+          reassembling = true;
+          if (reassembly == null) {
+            reassembly = ByteBuffer.allocate(Math.max(size, frameSize) * 2);
+          }
+          reassembly.clear();
+        }
+        if (reassembly.remaining() < size) {
+          final ByteBuffer grown =
+              ByteBuffer.allocate(Math.max(reassembly.capacity() * 2, reassembly.position() + size));
+          reassembly.flip();
+          grown.put(reassembly);
+          reassembly = grown;
+        }
+        reassembly.put(payload);
+        if (fin) {
+          reassembling = false;
+          reassembly.flip();
+          observer.onMessage(new DataChannel.Buffer(reassembly, (flags & FLAG_BINARY) != 0));
+        }
+      }
+      // The message is consumed when onMessage() returns.
+      unacknowledgedBytes += size;
+      if (unacknowledgedBytes >= streamWindow / 4) {
+        receiveWindow += unacknowledgedBytes;
+        postCredit(id, unacknowledgedBytes);
+        unacknowledgedBytes = 0;
+      }
+    }
+  }
+
+  private final BulkTransferChannel channel;
+  private final Executor executor;
+  private final int frameSize;
+  private final int streamWindow;
+  private final long highWatermark;
+  private final long lowWatermark;
+  private final Object lock = new Object();
+  // Guarded by |lock|.
+  private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+  // Streams that have queued data and send credit, by priority.
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final ArrayDeque<Stream>[] activeStreams = new ArrayDeque[PRIORITY_COUNT];
+  private boolean closed;
+
+  private final Runnable pumpRunnable = new Runnable() {
+    @Override
+    public void run() {
+      pump();
+    }
+  };
+  private volatile boolean pumpPosted;
+  // True while waiting for the buffered amount of the channel to drop below |lowWatermark|.
+  private volatile boolean paused;
+
+  // Accessed on |executor| only.
+  // Reused for all full size frames. The channel copies it before send() returns.
+  private final byte[] frame;
+  // Estimate of the buffered amount of the channel, to avoid querying it for each frame.
+  private long estimatedBufferedAmount;
+
+  public DataChannelMux(BulkTransferChannel channel, Executor executor) {
+    this(channel, executor, DEFAULT_FRAME_SIZE, DEFAULT_STREAM_WINDOW, DEFAULT_HIGH_WATERMARK,
+        DEFAULT_LOW_WATERMARK);
+  }
+
+  /**
+   * Creates a mux that sends frames of at most |frameSize| bytes on |channel|. |streamWindow| must
+   * be the same on both peers.
+   */
+  public DataChannelMux(BulkTransferChannel channel, Executor executor, int frameSize,
+      int streamWindow, long highWatermark, long lowWatermark) {
+    if (frameSize <= 0 || streamWindow < 4 || lowWatermark < 0 || highWatermark <= lowWatermark) {
+      throw new IllegalArgumentException("Invalid frame size " + frameSize + ", window "
+          + streamWindow + " or watermarks " + lowWatermark + ", " + highWatermark);
+    }
+    this.channel = channel;
+    this.executor = executor;
+    this.frameSize = frameSize;
+    this.streamWindow = streamWindow;
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.frame = new byte[HEADER_SIZE + frameSize];
+    for (int i = 0; i < PRIORITY_COUNT; ++i) {
+      activeStreams[i] = new ArrayDeque<Stream>();
+    }
+  }
+
+  /**
+   * Opens the stream with |id|, which must not be open already. Received messages are delivered
+   * to |observer|, and its onBufferedAmountChange() is called on |executor| as queued data of the
+   * stream is sent.
+   */
+  public Stream openStream(int id, int priority, DataChannel.Observer observer) {
+    if (id < 0 || id > MAX_STREAM_ID || priority < 0 || priority >= PRIORITY_COUNT) {
+      throw new IllegalArgumentException("Invalid stream id " + id + " or priority " + priority);
+    }
+    synchronized (lock) {
+      if (streams.containsKey(id)) {
+        throw new IllegalStateException("Stream " + id + " is already open");
+      }
+      final Stream stream = new Stream(id, priority, observer);
+      streams.put(id, stream);
+      return stream;
+    }
+  }
+
+  /**
+   * Returns true if |buffer| is a frame of the mux, which was consumed. Other messages are left to
+   * the caller.
+   */
+  public boolean onMessage(DataChannel.Buffer buffer) {
+    final ByteBuffer message = buffer.data;
+    final int start = message.position();
+    if (!buffer.binary || message.remaining() < HEADER_SIZE || message.get(start) != MAGIC) {
+      return false;
+    }
+    final int flags = message.get(start + 1);
+    final int id = message.getShort(start + 2) & 0xFFFF;
+    message.position(start + HEADER_SIZE);
+    final Stream stream;
+    synchronized (lock) {
+      stream = streams.get(id);
+    }
+    if (stream == null) {
+      Log.w(TAG, "Dropping frame for stream " + id + " that is not open");
+      if ((flags & TYPE_MASK) == TYPE_DATA && message.hasRemaining()) {
+        // The data counted against the send window of the peer.
+        postCredit(id, message.remaining());
+      }
+      return true;
+    }
+    switch (flags & TYPE_MASK) {
+      case TYPE_DATA:
+        stream.onData(message, flags);
+        break;
+      case TYPE_CREDIT:
+        if (message.remaining() >= 4) {
+          synchronized (lock) {
+            stream.sendCredit += message.getInt(message.position());
+            stream.activateIfSendable();
+          }
+          postPump();
+        }
+        break;
+      case TYPE_CLOSE:
+        synchronized (lock) {
+          stream.closeLocked();
+        }
+        stream.observer.onStateChange();
+        break;
+      default:
+        Log.w(TAG, "Unknown frame type " + flags + " for stream " + id);
+    }
+    return true;
+  }
+
+  /** Resumes sending once the buffered amount of the channel is below the low watermark. */
+  public void onBufferedAmountChange() {
+    if (paused && channel.bufferedAmount() <= lowWatermark) {
+      postPump();
+    }
+  }
+
+  /**
+   * Sends the frames of all streams that their send credit allows, ignoring the watermarks of the
+   * channel, e.g. to send the last messages before close(). Must be called on |executor|.
+   */
+  public void flush() {
+    pump(true /* ignoreWatermarks */);
+  }
+
+  /** Closes all streams locally, without notifying the peer. */
+  public void close() {
+    final Stream[] closedStreams;
+    synchronized (lock) {
+      closed = true;
+      closedStreams = streams.values().toArray(new Stream[0]);
+      for (Stream stream : closedStreams) {
+        stream.closeLocked();
+      }
+    }
+    for (Stream stream : closedStreams) {
+      stream.observer.onStateChange();
+    }
+  }
+
+  private void postPump() {
+    if (!pumpPosted) {
+      pumpPosted = true;
+      executor.execute(pumpRunnable);
+    }
+  }
+
+  private void postCredit(final int id, int bytes) {
+    final byte[] credit = new byte[4];
+    ByteBuffer.wrap(credit).putInt(bytes);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        sendControl(TYPE_CREDIT, id, credit);
+      }
+    });
+  }
+
+  private void pump() {
+    pump(false /* ignoreWatermarks */);
+  }
+
+  // Sends frames until the channel reaches the high watermark or no stream can send.
+  private void pump(boolean ignoreWatermarks) {
+    pumpPosted = false;
+    paused = false;
+    estimatedBufferedAmount = channel.bufferedAmount();
+    while (true) {
+      if (!ignoreWatermarks && estimatedBufferedAmount >= highWatermark) {
+        estimatedBufferedAmount = channel.bufferedAmount();
+        if (estimatedBufferedAmount >= highWatermark) {
+          paused = true;
+          // The buffered amount may have dropped before |paused| was set, in which case no
+          // onBufferedAmountChange() will follow.
+          onBufferedAmountChange();
+          return;
+        }
+      }
+      final Stream stream;
+      final long previousAmount;
+      final ByteBuffer message;
+      synchronized (lock) {
+        stream = nextStream();
+        if (stream == null) {
+          return;
+        }
+        previousAmount = stream.queuedBytes;
+        message = buildFrame(stream);
+      }
+      if (!channel.send(new DataChannel.Buffer(message, true /* binary */))) {
+        Log.e(TAG, "Send failed, closing");
+        close();
+        return;
+      }
+      estimatedBufferedAmount += message.capacity();
+      stream.observer.onBufferedAmountChange(previousAmount);
+    }
+  }
+
+  // Returns the next stream to send a frame of, and rotates it to the back of its priority.
+  // Must hold |lock|.
+  private Stream nextStream() {
+    for (ArrayDeque<Stream> active : activeStreams) {
+      Stream stream;
+      while ((stream = active.poll()) != null) {
+        stream.active = false;
+        stream.activateIfSendable();
+        if (stream.active) {
+          return stream;
+        }
+      }
+    }
+    return null;
+  }
+
+  // Frames the next part of the first queued message of |stream|. Must hold |lock|.
+  private ByteBuffer buildFrame(Stream stream) {
+    final ByteBuffer data = stream.queue.peek();
+    final int size = (int) Math.min(Math.min(frameSize, data.remaining()), stream.sendCredit);
+    final boolean fin = (size == data.remaining());
+    int flags = TYPE_DATA | (fin ? FLAG_FIN : 0);
+    if (fin) {
+      stream.queue.poll();
+      if (stream.queueBinary.poll()) {
+        flags |= FLAG_BINARY;
+      }
+    } else if (stream.queueBinary.peek()) {
+      flags |= FLAG_BINARY;
+    }
+    final byte[] array = (size == frameSize) ? frame : new byte[HEADER_SIZE + size];
+    putHeader(array, flags, stream.id);
+    data.get(array, HEADER_SIZE, size);
+    stream.sendCredit -= size;
+    stream.queuedBytes -= size;
+    return ByteBuffer.wrap(array);
+  }
+
+  private void sendControl(int type, int id, byte[] payload) {
+    final byte[] array = new byte[HEADER_SIZE + ((payload == null) ? 0 : payload.length)];
+    putHeader(array, type, id);
+    if (payload != null) {
+      System.arraycopy(payload, 0, array, HEADER_SIZE, payload.length);
+    }
+    if (!channel.send(new DataChannel.Buffer(ByteBuffer.wrap(array), true /* binary */))) {
+      Log.e(TAG, "Failed to send frame of type " + type + " for stream " + id);
+    }
+  }
+
+  private static void putHeader(byte[] array, int flags, int id) {
+    array[0] = MAGIC;
+    array[1] = (byte) flags;
+    array[2] = (byte) (id >> 8);
+    array[3] = (byte) id;
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.IceCandidate;
+
+/**
+ * De-duplicates and batches ICE candidates exchanged with the remote peer.
+ * With continual gathering and network changes, the same candidate can be
+ * gathered or signaled more than once. Candidates are identified by their
+ * m-line, foundation, component, transport, address, port and ufrag, so
+ * candidates of an ICE restart are never treated as duplicates.
+ *
+ * Local candidates are collected for a short window and handed to the sink
+ * as one batch, host candidates first and relay candidates last, so that
+ * the cheapest paths are signaled and checked first. Also records the time
+ * to the first candidate and the gathering rate. All methods must be called
+ * on the thread of |executor|.
+ */
+public class IceCandidatePipeline {
+  /**
+   * Receives batches of new local candidates.
+   */
+  public interface Sink {
+    void onLocalCandidates(IceCandidate[] candidates);
+  }
+
+  /**
+   * Statistics since the last startGathering().
+   */
+  public static class Stats {
+    // Time from startGathering() to the first local candidate of each type,
+    // or -1.
+    public long firstCandidateMs = -1;
+    public long firstHostMs = -1;
+    public long firstSrflxMs = -1;
+    public long firstRelayMs = -1;
+    // Time from startGathering() to the last local candidate.
+    public long lastCandidateMs = -1;
+    public int localCandidates;
+    public int localDuplicates;
+    public int remoteCandidates;
+    public int remoteDuplicates;
+    public int batches;
+
+    // Local candidates per second between startGathering() and the last
+    // candidate.
+    public double getCandidatesPerSecond() {
+      return (lastCandidateMs <= 0)
+          ? 0 : localCandidates * 1000.0 / lastCandidateMs;
+    }
+
+    @Override
+    public String toString() {
+      return "First candidate: " + firstCandidateMs + " ms (host " + firstHostMs
+          + ", srflx " + firstSrflxMs + ", relay " + firstRelayMs + "). Local: "
+          + localCandidates + " in " + batches + " batches, "
+          + String.format("%.1f", getCandidatesPerSecond()) + "/s, "
+          + localDuplicates + " duplicates. Remote: " + remoteCandidates + ", "
+          + remoteDuplicates + " duplicates.";
+    }
+  }
+
+  // Candidate types in the order they are signaled within a batch.
+  private static final String[] TYPE_ORDER =
+      {"host", "srflx", "prflx", "relay"};
+
+  private static final Comparator<IceCandidate> TYPE_COMPARATOR =
+      new Comparator<IceCandidate>() {
+        @Override
+        public int compare(IceCandidate lhs, IceCandidate rhs) {
+          return typeRank(lhs) - typeRank(rhs);
+        }
+      };
+
+  private final ScheduledExecutorService executor;
+  private final long batchWindowMs;
+  private final Sink sink;
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flushTask = null;
+      flush();
+    }
+  };
+
+  // Keys of local candidates that were gathered and not removed.
+  private final Set<String> localKeys = new HashSet<String>();
+  // Keys of remote candidates that were added and not removed.
+  private final Set<String> remoteKeys = new HashSet<String>();
+  // Local candidates of the current batch.
+  private final List<IceCandidate> pending = new ArrayList<IceCandidate>();
+  private ScheduledFuture<?> flushTask;
+  private long startTimeNs = System.nanoTime();
+  private Stats stats = new Stats();
+
+  public IceCandidatePipeline(
+      ScheduledExecutorService executor, long batchWindowMs, Sink sink) {
+    this.executor = executor;
+    this.batchWindowMs = batchWindowMs;
+    this.sink = sink;
+  }
+
+  /**
+   * Returns the key that identifies |candidate|, or its SDP if that cannot
+   * be parsed.
+   */
+  public static String getKey(IceCandidate candidate) {
+    // candidate:<foundation> <component> <transport> <priority> <address>
+    //     <port> typ <type> [<name> <value>]...
+    // Candidates from peers that do not signal the MID carry only the index.
+    final String mLine = (candidate.sdpMid != null)
+        ? candidate.sdpMid : String.valueOf(candidate.sdpMLineIndex);
+    final String[] fields = candidate.sdp.trim().split(" ");
+    if (fields.length < 8) {
+      return mLine + " " + candidate.sdp;
+    }
+    final StringBuilder key = new StringBuilder(mLine);
+    key.append(' ').append(fields[0]).append(' ').append(fields[1]);
+    key.append(' ').append(fields[2].toLowerCase());
+    key.append(' ').append(fields[4]).append(' ').append(fields[5]);
+    for (int i = 8; i + 1 < fields.length; i += 2) {
+      if (fields[i].equals("ufrag")) {
+        key.append(' ').append(fields[i + 1]);
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Returns the type of |candidate|, such as "host" or "relay", or null.
+   */
+  public static String getType(IceCandidate candidate) {
+    final String[] fields = candidate.sdp.trim().split(" ");
+    return (fields.length >= 8 && fields[6].equals("typ"))
+        ? fields[7] : null;
+  }
+
+  private static int typeRank(IceCandidate candidate) {
+    final String type = getType(candidate);
+    for (int i = 0; i < TYPE_ORDER.length; ++i) {
+      if (TYPE_ORDER[i].equals(type)) {
+        return i;
+      }
+    }
+    return TYPE_ORDER.length;
+  }
+
+  /**
+   * Forgets all candidates and resets the statistics, e.g. for a new peer
+   * connection.
+   */
+  public void reset() {
+    cancelFlush();
+    localKeys.clear();
+    remoteKeys.clear();
+    pending.clear();
+    startGathering();
+  }
+
+  /**
+   * Resets the statistics and starts timing, when the local description is
+   * set and gathering starts.
+   */
+  public void startGathering() {
+    startTimeNs = System.nanoTime();
+    stats = new Stats();
+  }
+
+  /**
+   * Drops pending candidates.
+   */
+  public void stop() {
+    cancelFlush();
+    pending.clear();
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  /**
+   * Queues a newly gathered local candidate, unless it is a duplicate.
+   */
+  public void addLocalCandidate(IceCandidate candidate) {
+    if (!localKeys.add(getKey(candidate))) {
+      ++stats.localDuplicates;
+      return;
+    }
+    final long elapsedMs =
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNs);
+    if (stats.firstCandidateMs < 0) {
+      stats.firstCandidateMs = elapsedMs;
+    }
+    final String type = getType(candidate);
+    if ("host".equals(type) && stats.firstHostMs < 0) {
+      stats.firstHostMs = elapsedMs;
+    } else if ("srflx".equals(type) && stats.firstSrflxMs < 0) {
+      stats.firstSrflxMs = elapsedMs;
+    } else if ("relay".equals(type) && stats.firstRelayMs < 0) {
+      stats.firstRelayMs = elapsedMs;
+    }
+    stats.lastCandidateMs = elapsedMs;
+    ++stats.localCandidates;
+    pending.add(candidate);
+    if (flushTask == null) {
+      flushTask = executor.schedule(
+          flushRunnable, batchWindowMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Forgets removed local candidates, and returns those that have already
+   * been handed to the sink, which the remote peer must be told about.
+   */
+  public IceCandidate[] removeLocalCandidates(IceCandidate[] candidates) {
+    final List<IceCandidate> sent = new ArrayList<IceCandidate>();
+    for (IceCandidate candidate : candidates) {
+      final String key = getKey(candidate);
+      if (!localKeys.remove(key)) {
+        continue;
+      }
+      if (!removePending(key)) {
+        sent.add(candidate);
+      }
+    }
+    return sent.toArray(new IceCandidate[sent.size()]);
+  }
+
+  /**
+   * Hands the current batch to the sink now, e.g. when gathering completes.
+   */
+  public void flush() {
+    cancelFlush();
+    if (pending.isEmpty()) {
+      return;
+    }
+    // Stable, so candidates of a type keep the order they were gathered in.
+    Collections.sort(pending, TYPE_COMPARATOR);
+    final IceCandidate[] batch =
+        pending.toArray(new IceCandidate[pending.size()]);
+    pending.clear();
+    ++stats.batches;
+    sink.onLocalCandidates(batch);
+  }
+
+  /**
+   * Returns false if |candidate| is a duplicate of a remote candidate that
+   * was already added.
+   */
+  public boolean addRemoteCandidate(IceCandidate candidate) {
+    if (!remoteKeys.add(getKey(candidate))) {
+      ++stats.remoteDuplicates;
+      return false;
+    }
+    ++stats.remoteCandidates;
+    return true;
+  }
+
+  /**
+   * Forgets removed remote candidates, so that they are added again if they
+   * are signaled again.
+   */
+  public void removeRemoteCandidates(IceCandidate[] candidates) {
+    for (IceCandidate candidate : candidates) {
+      remoteKeys.remove(getKey(candidate));
+    }
+  }
+
+  private boolean removePending(String key) {
+    for (int i = 0; i < pending.size(); ++i) {
+      if (getKey(pending.get(i)).equals(key)) {
+        pending.remove(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void cancelFlush() {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      flushTask = null;
+    }
+  }
+}
@@ -92,4 +92,13 @@ public class LooperExecutor extends Thread implements Executor {
     }
   }
 
+  // Runs |runnable| on the looper thread after |delayMs|.
+  public synchronized void executeDelayed(final Runnable runnable, long delayMs) {
+    if (!running) {
+      Log.w(TAG, "Running looper executor without calling requestStart()");
+      return;
+    }
+    handler.postDelayed(runnable, delayMs);
+  }
+
 }
@@ -0,0 +1,271 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+/**
+ * Decides when to restart ICE after a network change or a lost connection,
+ * and measures the handover gap, from the first sign of trouble until ICE is
+ * connected again.
+ *
+ * A change of the default network restarts ICE at once, since the candidate
+ * pairs of the old network are not coming back, instead of waiting for ICE
+ * to notice the loss of connectivity. A DISCONNECTED ICE connection without a
+ * network change gets a short grace period to recover by itself. Restarts
+ * are retried until the connection recovers or the recovery timeout expires,
+ * and are spaced at least |MIN_RESTART_INTERVAL_MS| apart when the network
+ * flaps. Only the offering side can restart ICE, so the answering side asks
+ * the remote peer to restart it instead, on the same schedule.
+ *
+ * Time is passed in by the caller, and timers are run by the delegate, so
+ * the decisions can be replayed with simulated events. All methods must be
+ * called on the same thread, which also runs the delegate callbacks.
+ */
+public class NetworkHandoverStateMachine {
+  // Time a DISCONNECTED connection gets to recover without a restart.
+  public static final long DISCONNECT_GRACE_MS = 1500;
+  // Time after a restart before the next one, unless ICE connects.
+  public static final long RESTART_RETRY_MS = 4000;
+  // Shortest time between two restarts.
+  public static final long MIN_RESTART_INTERVAL_MS = 500;
+  // Time from the start of a handover until it is given up.
+  public static final long RECOVERY_TIMEOUT_MS = 20000;
+
+  public enum State {
+    // ICE did not connect yet.
+    NEW,
+    CONNECTED,
+    // ICE is disconnected on an unchanged network.
+    DISCONNECTED,
+    // There is no network.
+    OFFLINE,
+    // ICE is restarting, or waiting for the remote peer to restart it.
+    RESTARTING,
+    // Recovery timed out.
+    FAILED
+  }
+
+  /**
+   * Receives the decisions of the state machine.
+   */
+  public interface Delegate {
+    // Creates an offer with new ICE credentials.
+    void restartIce();
+
+    // Asks the remote peer, which makes the offers, to restart ICE.
+    void requestIceRestart();
+
+    // Calls onTimeout() after |delayMs|, replacing the pending timeout.
+    void scheduleTimeout(long delayMs);
+
+    // ICE is connected again after a gap of |gapMs|.
+    void onHandoverComplete(long gapMs, int restarts);
+
+    // ICE did not connect again within the recovery timeout.
+    void onRecoveryFailed(long gapMs, int restarts);
+  }
+
+  /**
+   * Statistics over all handovers.
+   */
+  public static class Stats {
+    public int handovers;
+    public int restarts;
+    public int failures;
+    public long lastGapMs = -1;
+    public long maxGapMs = -1;
+    public long totalGapMs;
+
+    @Override
+    public String toString() {
+      return "Handovers: " + handovers + ", restarts: " + restarts
+          + ", failures: " + failures + ". Gap: last " + lastGapMs + " ms, max "
+          + maxGapMs + " ms, average "
+          + ((handovers == 0) ? 0 : totalGapMs / handovers) + " ms.";
+    }
+  }
+
+  private final Delegate delegate;
+  private final Stats stats = new Stats();
+  private boolean canRestart;
+  private State state = State.NEW;
+  // Start of the current handover.
+  private long gapStartMs;
+  // Restarts during the current handover.
+  private int restarts;
+  private long lastRestartMs;
+  // A restart is due once |MIN_RESTART_INTERVAL_MS| has passed.
+  private boolean restartPending;
+
+  public NetworkHandoverStateMachine(Delegate delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Sets whether this side makes the offers and can restart ICE.
+   */
+  public void setCanRestart(boolean canRestart) {
+    this.canRestart = canRestart;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  /**
+   * Returns true while a handover is in progress.
+   */
+  public boolean isRecovering() {
+    return state == State.DISCONNECTED || state == State.OFFLINE
+        || state == State.RESTARTING;
+  }
+
+  public void onIceConnected(long nowMs) {
+    if (isRecovering()) {
+      final long gapMs = nowMs - gapStartMs;
+      ++stats.handovers;
+      stats.lastGapMs = gapMs;
+      stats.maxGapMs = Math.max(stats.maxGapMs, gapMs);
+      stats.totalGapMs += gapMs;
+      state = State.CONNECTED;
+      restartPending = false;
+      delegate.onHandoverComplete(gapMs, restarts);
+    } else if (state == State.NEW) {
+      state = State.CONNECTED;
+    }
+  }
+
+  public void onIceDisconnected(long nowMs) {
+    if (state == State.CONNECTED) {
+      startHandover(State.DISCONNECTED, nowMs);
+      delegate.scheduleTimeout(DISCONNECT_GRACE_MS);
+    }
+  }
+
+  /**
+   * Returns false if ICE failed before it ever connected, which is not
+   * recovered from.
+   */
+  public boolean onIceFailed(long nowMs) {
+    if (state == State.NEW || state == State.FAILED) {
+      return false;
+    }
+    if (state == State.CONNECTED) {
+      startHandover(State.DISCONNECTED, nowMs);
+    }
+    if (state == State.DISCONNECTED) {
+      restart(nowMs);
+    }
+    return true;
+  }
+
+  /**
+   * Called when the default network changes. |online| is false if there is
+   * no network.
+   */
+  public void onNetworkChanged(boolean online, long nowMs) {
+    if (state == State.NEW || state == State.FAILED) {
+      return;
+    }
+    if (state == State.CONNECTED) {
+      startHandover(State.DISCONNECTED, nowMs);
+    }
+    if (online) {
+      // Candidates gathered on the previous network are useless now, also
+      // those of a restart in progress.
+      restart(nowMs);
+    } else {
+      state = State.OFFLINE;
+      restartPending = false;
+      scheduleRecoveryTimeout(nowMs);
+    }
+  }
+
+  /**
+   * Called on the offering side when the remote peer asks for an ICE
+   * restart, e.g. because its network changed.
+   */
+  public void onRestartRequested(long nowMs) {
+    if (!canRestart || state == State.NEW || state == State.FAILED
+        || state == State.OFFLINE) {
+      return;
+    }
+    if (state == State.CONNECTED) {
+      startHandover(State.DISCONNECTED, nowMs);
+    }
+    restart(nowMs);
+  }
+
+  public void onTimeout(long nowMs) {
+    if (!isRecovering()) {
+      return;
+    }
+    if (nowMs - gapStartMs >= RECOVERY_TIMEOUT_MS) {
+      final long gapMs = nowMs - gapStartMs;
+      ++stats.failures;
+      state = State.FAILED;
+      delegate.onRecoveryFailed(gapMs, restarts);
+      return;
+    }
+    if (state == State.OFFLINE) {
+      // Spurious, the recovery timeout was rescheduled.
+      return;
+    }
+    if (state == State.DISCONNECTED || restartPending
+        || nowMs - lastRestartMs >= RESTART_RETRY_MS) {
+      restart(nowMs);
+    } else {
+      scheduleNextTimeout(nowMs);
+    }
+  }
+
+  private void startHandover(State newState, long nowMs) {
+    state = newState;
+    gapStartMs = nowMs;
+    restarts = 0;
+    restartPending = false;
+  }
+
+  private void restart(long nowMs) {
+    state = State.RESTARTING;
+    if (restarts > 0 && nowMs - lastRestartMs < MIN_RESTART_INTERVAL_MS) {
+      restartPending = true;
+      scheduleNextTimeout(nowMs);
+      return;
+    }
+    restartPending = false;
+    lastRestartMs = nowMs;
+    ++restarts;
+    ++stats.restarts;
+    if (canRestart) {
+      delegate.restartIce();
+    } else {
+      delegate.requestIceRestart();
+    }
+    scheduleNextTimeout(nowMs);
+  }
+
+  // Schedules the next restart, or the recovery timeout if that is earlier.
+  private void scheduleNextTimeout(long nowMs) {
+    final long nextRestartMs = lastRestartMs
+        + (restartPending ? MIN_RESTART_INTERVAL_MS : RESTART_RETRY_MS);
+    delegate.scheduleTimeout(Math.max(0, Math.min(nextRestartMs,
+        gapStartMs + RECOVERY_TIMEOUT_MS) - nowMs));
+  }
+
+  private void scheduleRecoveryTimeout(long nowMs) {
+    delegate.scheduleTimeout(
+        Math.max(0, gapStartMs + RECOVERY_TIMEOUT_MS - nowMs));
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Samples CPU time from procfs and CPU frequencies from sysfs, for the whole
+ * system, per core and per thread of this process, and optionally the context
+ * switches of each thread. All files are kept open with ProcfsFile and
+ * re-read in place. System and core samples allocate nothing; a thread
+ * sample lists /proc/self/task, which allocates the thread ids, and opens the
+ * files of new threads. This class is not thread safe.
+ */
+public class ProcfsCpuSampler implements Closeable {
+  // Clock ticks per second used in /proc/stat and /proc/<pid>/task/<tid>/stat.
+  // USER_HZ is 100 on all Android and common Linux configurations.
+  public static final int CLOCK_TICKS_PER_SECOND = 100;
+
+  private static final String PROC_STAT_PATH = "/proc/stat";
+  private static final String CPU_DIR = "/sys/devices/system/cpu/";
+  private static final String TASK_DIR = "/proc/self/task/";
+  private static final int PROC_STAT_CAPACITY = 8192;
+  private static final int SMALL_FILE_CAPACITY = 64;
+  private static final int THREAD_STAT_CAPACITY = 512;
+  private static final int THREAD_STATUS_CAPACITY = 2048;
+  private static final byte[] CPU_PREFIX = {'c', 'p', 'u'};
+  private static final byte[] VOLUNTARY_SWITCHES_PREFIX = "voluntary_ctxt_switches:".getBytes();
+  private static final byte[] NONVOLUNTARY_SWITCHES_PREFIX =
+      "nonvoluntary_ctxt_switches:".getBytes();
+  // Number of fields between the command name and utime in a stat file.
+  private static final int FIELDS_BEFORE_UTIME = 11;
+
+  /**
+   * CPU time of a core or of all cores, in clock ticks.
+   */
+  public static class CpuTimes {
+    // user + nice + iowait.
+    public long user;
+    // system + irq + softirq.
+    public long system;
+    public long idle;
+
+    void set(CpuTimes other) {
+      user = other.user;
+      system = other.system;
+      idle = other.idle;
+    }
+
+    void clear() {
+      user = 0;
+      system = 0;
+      idle = 0;
+    }
+  }
+
+  /**
+   * CPU time of a thread of this process.
+   */
+  public static class ThreadSample {
+    public final int tid;
+    // Name of the thread when it was first seen, truncated to 15 characters by the kernel.
+    public final String name;
+    // Total user and system time, in clock ticks.
+    public long userTicks;
+    public long systemTicks;
+    // User plus system time since the previous sample, in clock ticks.
+    public long deltaTicks;
+    // Total context switches, and those since the previous call to
+    // sampleContextSwitches(). Voluntary switches happen when the thread
+    // blocks, nonvoluntary ones when it is preempted.
+    public long voluntarySwitches;
+    public long nonvoluntarySwitches;
+    public long deltaVoluntarySwitches;
+    public long deltaNonvoluntarySwitches;
+    private final ProcfsFile statFile;
+    // Opened by the first call to sampleContextSwitches().
+    private ProcfsFile statusFile;
+    private boolean seen;
+
+    ThreadSample(int tid, String name, ProcfsFile statFile) {
+      this.tid = tid;
+      this.name = name;
+      this.statFile = statFile;
+    }
+  }
+
+  private final String taskDir;
+  private final int coreCount;
+  private final ProcfsFile procStat;
+  private final CpuTimes totalTimes = new CpuTimes();
+  private final CpuTimes lastTotalTimes = new CpuTimes();
+  private final CpuTimes[] coreTimes;
+  private final CpuTimes[] lastCoreTimes;
+  private final ProcfsFile[] curFreqFiles;
+  private final ProcfsFile[] maxFreqFiles;
+  // Max frequencies in kHz, or 0 if not known yet. Never change once read.
+  private final long[] maxFrequencies;
+  private final Map<Integer, ThreadSample> threads = new HashMap<Integer, ThreadSample>();
+  private long lastThreadSampleTimeNs;
+  private long threadSampleIntervalNs;
+
+  public ProcfsCpuSampler() {
+    this(PROC_STAT_PATH, CPU_DIR, TASK_DIR);
+  }
+
+  // Reads the given files and directories instead of those of the system,
+  // for tests.
+  ProcfsCpuSampler(String procStatPath, String cpuDir, String taskDir) {
+    this.taskDir = taskDir;
+    procStat = new ProcfsFile(procStatPath, PROC_STAT_CAPACITY);
+    coreCount = readCoreCount(cpuDir);
+    coreTimes = new CpuTimes[coreCount];
+    lastCoreTimes = new CpuTimes[coreCount];
+    curFreqFiles = new ProcfsFile[coreCount];
+    maxFreqFiles = new ProcfsFile[coreCount];
+    maxFrequencies = new long[coreCount];
+    for (int i = 0; i < coreCount; ++i) {
+      coreTimes[i] = new CpuTimes();
+      lastCoreTimes[i] = new CpuTimes();
+      curFreqFiles[i] = new ProcfsFile(
+          cpuDir + "cpu" + i + "/cpufreq/scaling_cur_freq", SMALL_FILE_CAPACITY);
+      maxFreqFiles[i] = new ProcfsFile(
+          cpuDir + "cpu" + i + "/cpufreq/cpuinfo_max_freq", SMALL_FILE_CAPACITY);
+    }
+  }
+
+  // Parses /sys/devices/system/cpu/present, e.g. "0-7".
+  private static int readCoreCount(String cpuDir) {
+    final ProcfsFile present = new ProcfsFile(cpuDir + "present", SMALL_FILE_CAPACITY);
+    try {
+      if (!present.read()) {
+        return 0;
+      }
+      final long first = present.nextLong();
+      final long last = present.nextLong();
+      if (first < 0) {
+        return 0;
+      }
+      return 1 + (int) Math.max(first, last);
+    } finally {
+      present.close();
+    }
+  }
+
+  /**
+   * Returns the number of present CPU cores, or 0 if it could not be read.
+   */
+  public int getCoreCount() {
+    return coreCount;
+  }
+
+  /**
+   * Re-reads /proc/stat. Cores that are offline are reported with zero times.
+   * Returns false on failure.
+   */
+  public boolean sampleProcStat() {
+    lastTotalTimes.set(totalTimes);
+    for (int i = 0; i < coreCount; ++i) {
+      lastCoreTimes[i].set(coreTimes[i]);
+      coreTimes[i].clear();
+    }
+    if (!procStat.read() || !procStat.findLine(CPU_PREFIX)) {
+      return false;
+    }
+    // The first line holds the totals:
+    // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
+    //       user    nice  system     idle   iowait  irq   softirq
+    procStat.skipFields(1);
+    if (!parseCpuTimes(totalTimes)) {
+      return false;
+    }
+    // Followed by one line per online core, "cpu0 ...".
+    while (procStat.nextLine() && procStat.startsWith(CPU_PREFIX)) {
+      final long core = procStat.nextLong();
+      if (core >= 0 && core < coreCount) {
+        parseCpuTimes(coreTimes[(int) core]);
+      }
+    }
+    return true;
+  }
+
+  private boolean parseCpuTimes(CpuTimes times) {
+    final long user = procStat.nextLong();
+    final long nice = procStat.nextLong();
+    final long system = procStat.nextLong();
+    final long idle = procStat.nextLong();
+    if (user < 0 || nice < 0 || system < 0 || idle < 0) {
+      return false;
+    }
+    times.user = user + nice;
+    times.system = system;
+    times.idle = idle;
+    final long iowait = procStat.nextLong();
+    final long irq = procStat.nextLong();
+    final long softirq = procStat.nextLong();
+    if (iowait >= 0 && irq >= 0 && softirq >= 0) {
+      times.user += iowait;
+      times.system += irq + softirq;
+    }
+    return true;
+  }
+
+  public CpuTimes getTotalTimes() {
+    return totalTimes;
+  }
+
+  public CpuTimes getCoreTimes(int core) {
+    return coreTimes[core];
+  }
+
+  /**
+   * Returns the utilization of all cores, in [0, 1], between the last two
+   * calls to sampleProcStat().
+   */
+  public double getTotalUtilization() {
+    return utilization(totalTimes, lastTotalTimes);
+  }
+
+  /**
+   * Returns the utilization of |core|, in [0, 1], between the last two calls
+   * to sampleProcStat(), or 0 if it was offline.
+   */
+  public double getCoreUtilization(int core) {
+    return utilization(coreTimes[core], lastCoreTimes[core]);
+  }
+
+  private static double utilization(CpuTimes times, CpuTimes lastTimes) {
+    final long busy = (times.user - lastTimes.user) + (times.system - lastTimes.system);
+    final long all = busy + (times.idle - lastTimes.idle);
+    return (busy <= 0 || all <= 0) ? 0 : (double) busy / all;
+  }
+
+  /**
+   * Returns the current frequency of |core| in kHz, or 0 if it is offline.
+   */
+  public long readCurrentFrequency(int core) {
+    return readLong(curFreqFiles[core]);
+  }
+
+  /**
+   * Returns the max frequency of |core| in kHz, or 0 if it is offline and has
+   * not been online before. The file is closed once the value is known.
+   */
+  public long readMaxFrequency(int core) {
+    if (maxFrequencies[core] == 0) {
+      maxFrequencies[core] = readLong(maxFreqFiles[core]);
+      if (maxFrequencies[core] > 0) {
+        maxFreqFiles[core].close();
+      }
+    }
+    return maxFrequencies[core];
+  }
+
+  private static long readLong(ProcfsFile file) {
+    if (!file.read()) {
+      return 0;
+    }
+    return Math.max(0, file.nextLong());
+  }
+
+  /**
+   * Re-reads the stat file of all threads of this process. Files of new
+   * threads are opened, and those of threads that have exited are closed.
+   * Returns false if the thread list could not be read.
+   */
+  public boolean sampleThreads() {
+    final String[] tids = new File(taskDir).list();
+    if (tids == null) {
+      return false;
+    }
+    final long nowNs = System.nanoTime();
+    threadSampleIntervalNs = (lastThreadSampleTimeNs == 0) ? 0 : nowNs - lastThreadSampleTimeNs;
+    lastThreadSampleTimeNs = nowNs;
+    for (String tidString : tids) {
+      final int tid;
+      try {
+        tid = Integer.parseInt(tidString);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      ThreadSample thread = threads.get(tid);
+      final boolean isNew = (thread == null);
+      if (isNew) {
+        final ProcfsFile statFile =
+            new ProcfsFile(taskDir + tid + "/stat", THREAD_STAT_CAPACITY);
+        if (!statFile.read()) {
+          continue;
+        }
+        thread = new ThreadSample(tid, statFile.substringBetween('(', ')'), statFile);
+        threads.put(tid, thread);
+      } else if (!thread.statFile.read()) {
+        continue;
+      }
+      final ProcfsFile statFile = thread.statFile;
+      if (!statFile.skipPastLast(')')) {
+        continue;
+      }
+      statFile.skipFields(FIELDS_BEFORE_UTIME);
+      final long userTicks = statFile.nextLong();
+      final long systemTicks = statFile.nextLong();
+      if (userTicks < 0 || systemTicks < 0) {
+        continue;
+      }
+      thread.deltaTicks =
+          isNew ? 0 : (userTicks - thread.userTicks) + (systemTicks - thread.systemTicks);
+      thread.userTicks = userTicks;
+      thread.systemTicks = systemTicks;
+      thread.seen = true;
+    }
+    for (Iterator<ThreadSample> it = threads.values().iterator(); it.hasNext();) {
+      final ThreadSample thread = it.next();
+      if (!thread.seen) {
+        closeThreadFiles(thread);
+        it.remove();
+      }
+      thread.seen = false;
+    }
+    return true;
+  }
+
+  /**
+   * Re-reads the context switch counts of |thread| from its status file,
+   * which is only opened for threads passed here. Returns false on failure.
+   */
+  public boolean sampleContextSwitches(ThreadSample thread) {
+    final boolean isNew = (thread.statusFile == null);
+    if (isNew) {
+      thread.statusFile =
+          new ProcfsFile(taskDir + thread.tid + "/status", THREAD_STATUS_CAPACITY);
+    }
+    final ProcfsFile statusFile = thread.statusFile;
+    // voluntary_ctxt_switches:	1234
+    // nonvoluntary_ctxt_switches:	56
+    if (!statusFile.read() || !statusFile.findLine(VOLUNTARY_SWITCHES_PREFIX)) {
+      return false;
+    }
+    statusFile.skipFields(1);
+    final long voluntary = statusFile.nextLong();
+    if (!statusFile.nextLine() || !statusFile.startsWith(NONVOLUNTARY_SWITCHES_PREFIX)) {
+      return false;
+    }
+    statusFile.skipFields(1);
+    final long nonvoluntary = statusFile.nextLong();
+    if (voluntary < 0 || nonvoluntary < 0) {
+      return false;
+    }
+    thread.deltaVoluntarySwitches = isNew ? 0 : voluntary - thread.voluntarySwitches;
+    thread.deltaNonvoluntarySwitches = isNew ? 0 : nonvoluntary - thread.nonvoluntarySwitches;
+    thread.voluntarySwitches = voluntary;
+    thread.nonvoluntarySwitches = nonvoluntary;
+    return true;
+  }
+
+  private static void closeThreadFiles(ThreadSample thread) {
+    thread.statFile.close();
+    if (thread.statusFile != null) {
+      thread.statusFile.close();
+    }
+  }
+
+  /**
+   * Returns the threads seen in the last call to sampleThreads(). The
+   * returned collection is live and must not be modified.
+   */
+  public Collection<ThreadSample> getThreads() {
+    return threads.values();
+  }
+
+  /**
+   * Returns the utilization of one core by |thread|, in [0, 1], between the
+   * last two calls to sampleThreads().
+   */
+  public double getThreadUtilization(ThreadSample thread) {
+    if (threadSampleIntervalNs <= 0) {
+      return 0;
+    }
+    return thread.deltaTicks * 1e9 / CLOCK_TICKS_PER_SECOND / threadSampleIntervalNs;
+  }
+
+  @Override
+  public void close() {
+    procStat.close();
+    for (int i = 0; i < coreCount; ++i) {
+      curFreqFiles[i].close();
+      maxFreqFiles[i].close();
+    }
+    for (ThreadSample thread : threads.values()) {
+      closeThreadFiles(thread);
+    }
+    threads.clear();
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A procfs or sysfs file that is kept open and re-read from offset zero with a
+ * positional read into a reused buffer, which makes the kernel regenerate its
+ * content. After read(), the content can be parsed with a cursor without
+ * creating any String objects. This class is not thread safe.
+ */
+public final class ProcfsFile implements Closeable {
+  private final String path;
+  private final byte[] data;
+  private final ByteBuffer buffer;
+  private FileChannel channel;
+  // Number of valid bytes in |data|, and the parse position.
+  private int length;
+  private int position;
+
+  /**
+   * Creates a reader for |path|. Content beyond |capacity| bytes is ignored.
+   * The file is opened on the first read().
+   */
+  public ProcfsFile(String path, int capacity) {
+    this.path = path;
+    data = new byte[capacity];
+    buffer = ByteBuffer.wrap(data);
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Re-reads the file and moves the cursor to the start. Returns false if the
+   * file can not be opened or read, e.g. because a CPU core or thread has gone
+   * away, in which case the file is closed and opening it is retried on the
+   * next call.
+   */
+  public boolean read() {
+    try {
+      if (channel == null) {
+        channel = new RandomAccessFile(path, "r").getChannel();
+      }
+      buffer.clear();
+      // A positional read advances the buffer position but not the file position, so the next
+      // read() starts from offset zero again.
+      while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+      }
+      length = buffer.position();
+      position = 0;
+      return true;
+    } catch (IOException e) {
+      close();
+      length = 0;
+      position = 0;
+      return false;
+    }
+  }
+
+  @Override
+  public void close() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing to do.
+    }
+    channel = null;
+  }
+
+  public boolean isOpen() {
+    return channel != null;
+  }
+
+  public boolean hasRemaining() {
+    return position < length;
+  }
+
+  /**
+   * Returns true if the content at the cursor starts with |prefix|. The cursor
+   * is not moved.
+   */
+  public boolean startsWith(byte[] prefix) {
+    if (length - position < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; ++i) {
+      if (data[position + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves the cursor to the start of the next line. Returns false if there is
+   * none.
+   */
+  public boolean nextLine() {
+    while (position < length && data[position] != '\n') {
+      ++position;
+    }
+    if (position >= length) {
+      return false;
+    }
+    ++position;
+    return position < length;
+  }
+
+  /**
+   * Moves the cursor to the start of the first line starting with |prefix|,
+   * searching from the current line. Returns false if there is none.
+   */
+  public boolean findLine(byte[] prefix) {
+    do {
+      if (startsWith(prefix)) {
+        return true;
+      }
+    } while (nextLine());
+    return false;
+  }
+
+  /**
+   * Moves the cursor past the last occurrence of |c| in the file, e.g. past
+   * the command name in parentheses in /proc/<pid>/stat, which may itself
+   * contain spaces and parentheses. Returns false if |c| is not found.
+   */
+  public boolean skipPastLast(char c) {
+    for (int i = length - 1; i >= position; --i) {
+      if (data[i] == c) {
+        position = i + 1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Skips |count| whitespace separated fields on the current line.
+   */
+  public void skipFields(int count) {
+    for (int i = 0; i < count; ++i) {
+      skipSpaces();
+      while (position < length && !isSpace(data[position]) && data[position] != '\n') {
+        ++position;
+      }
+    }
+  }
+
+  /**
+   * Parses the next non-negative decimal number on the current line, skipping
+   * leading whitespace and any non-digit prefix on the same field such as
+   * "cpu" in "cpu3". Returns -1 if there is no number in the field.
+   */
+  public long nextLong() {
+    skipSpaces();
+    while (position < length && !isSpace(data[position]) && data[position] != '\n'
+        && !isDigit(data[position])) {
+      ++position;
+    }
+    if (position >= length || !isDigit(data[position])) {
+      return -1;
+    }
+    long value = 0;
+    while (position < length && isDigit(data[position])) {
+      value = value * 10 + (data[position++] - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Returns the content between the first |open| and the last |close|
+   * character, e.g. the command name in /proc/<pid>/stat, or null if not
+   * found. Allocates a String. The cursor is not moved.
+   */
+  public String substringBetween(char open, char close) {
+    int start = -1;
+    for (int i = 0; i < length; ++i) {
+      if (data[i] == open) {
+        start = i + 1;
+        break;
+      }
+    }
+    for (int i = length - 1; start >= 0 && i >= start; --i) {
+      if (data[i] == close) {
+        return new String(data, start, i - start);
+      }
+    }
+    return null;
+  }
+
+  private void skipSpaces() {
+    while (position < length && isSpace(data[position])) {
+      ++position;
+    }
+  }
+
+  // Newlines are not spaces, so parsing never moves past the end of a line.
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.Random;
+
+/**
+ * Delays of reconnect attempts after a connection drops: exponential backoff
+ * from |initialDelayMs|, doubled with each failed attempt up to |maxDelayMs|.
+ * Each delay is randomly shortened by up to half, so that clients which lost
+ * the same server do not all reconnect at once. Also records how long
+ * reconnecting took. Not thread safe; WebSocketChannelClient only uses it
+ * on its executor.
+ */
+public class ReconnectBackoff {
+  private final long initialDelayMs;
+  private final long maxDelayMs;
+  private final int maxAttempts;
+  private final Random random;
+  // Start of the current outage, or -1 while connected.
+  private long disconnectedMs = -1;
+  private int attempts;
+  private int reconnects;
+  private int failures;
+  private long totalReconnectMs;
+  private long maxReconnectMs;
+
+  public ReconnectBackoff(
+      long initialDelayMs, long maxDelayMs, int maxAttempts, Random random) {
+    this.initialDelayMs = initialDelayMs;
+    this.maxDelayMs = maxDelayMs;
+    this.maxAttempts = maxAttempts;
+    this.random = random;
+  }
+
+  /**
+   * Returns the delay until the next reconnect attempt, or -1 if all
+   * |maxAttempts| failed. The first call after onConnected() starts an
+   * outage at |nowMs|, e.g. SystemClock.elapsedRealtime().
+   */
+  public long nextDelayMs(long nowMs) {
+    if (disconnectedMs < 0) {
+      disconnectedMs = nowMs;
+      attempts = 0;
+    }
+    if (attempts >= maxAttempts) {
+      ++failures;
+      disconnectedMs = -1;
+      return -1;
+    }
+    final long delayMs =
+        Math.min(initialDelayMs << Math.min(attempts, 20), maxDelayMs);
+    ++attempts;
+    return delayMs / 2 + (long) (random.nextDouble() * (delayMs / 2 + 1));
+  }
+
+  /**
+   * Ends the outage, if any, and returns how long it lasted, or -1.
+   */
+  public long onConnected(long nowMs) {
+    if (disconnectedMs < 0) {
+      return -1;
+    }
+    final long reconnectMs = nowMs - disconnectedMs;
+    disconnectedMs = -1;
+    ++reconnects;
+    totalReconnectMs += reconnectMs;
+    maxReconnectMs = Math.max(maxReconnectMs, reconnectMs);
+    return reconnectMs;
+  }
+
+  public boolean isReconnecting() {
+    return disconnectedMs >= 0;
+  }
+
+  /**
+   * Returns the number of attempts of the current or last outage.
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  @Override
+  public String toString() {
+    return "Reconnects: " + reconnects + ", gave up: " + failures
+        + ", mean " + ((reconnects == 0) ? 0 : totalReconnectMs / reconnects)
+        + " ms, max " + maxReconnectMs + " ms.";
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attributes the CPU time and context switches of the threads of this process
+ * to roles such as rendering or audio playout, using the per thread samples of
+ * ProcfsCpuSampler. The role of a thread is looked up with a RoleResolver,
+ * e.g. backed by ThreadRegistry. Threads without a role are reported as
+ * OTHER_ROLE. This class is not thread safe.
+ */
+public class ThreadCpuAttribution {
+  public static final String OTHER_ROLE = "other";
+
+  /**
+   * Maps a thread to its role.
+   */
+  public interface RoleResolver {
+    /**
+     * Returns the role of the thread with id |tid| and kernel name |name|,
+     * or null if it has none.
+     */
+    String getRole(int tid, String name);
+  }
+
+  /**
+   * CPU use of all threads with the same role.
+   */
+  public static class RoleStats {
+    public final String role;
+    // Threads with this role in the last sample.
+    public int threadCount;
+    // User plus system time in clock ticks, in the last sampling interval
+    // and since reset().
+    public long deltaTicks;
+    public long totalTicks;
+    // Context switches in the last sampling interval and since reset().
+    public long deltaVoluntarySwitches;
+    public long deltaNonvoluntarySwitches;
+    public long totalVoluntarySwitches;
+    public long totalNonvoluntarySwitches;
+    // Utilization of one core in the last sampling interval, can exceed 1
+    // if several threads have this role.
+    public double utilization;
+    // Names of the threads with this role in the last sample.
+    private final List<String> threadNames = new ArrayList<String>();
+
+    RoleStats(String role) {
+      this.role = role;
+    }
+
+    public List<String> getThreadNames() {
+      return threadNames;
+    }
+  }
+
+  private static final Comparator<RoleStats> BY_DELTA_TICKS = new Comparator<RoleStats>() {
+    @Override
+    public int compare(RoleStats lhs, RoleStats rhs) {
+      if (lhs.deltaTicks != rhs.deltaTicks) {
+        return lhs.deltaTicks > rhs.deltaTicks ? -1 : 1;
+      }
+      return lhs.role.compareTo(rhs.role);
+    }
+  };
+
+  private final ProcfsCpuSampler sampler;
+  private final RoleResolver resolver;
+  private final Map<String, RoleStats> roles = new HashMap<String, RoleStats>();
+  // Roles sorted by CPU use in the last sampling interval.
+  private final List<RoleStats> sortedRoles = new ArrayList<RoleStats>();
+  private long sampleCount;
+
+  public ThreadCpuAttribution(ProcfsCpuSampler sampler, RoleResolver resolver) {
+    this.sampler = sampler;
+    this.resolver = resolver;
+  }
+
+  /**
+   * Samples the threads of this process with the sampler, which should not be
+   * used to sample threads elsewhere, and attributes them to their roles.
+   * Returns false on failure.
+   */
+  public boolean sample() {
+    if (!sampler.sampleThreads()) {
+      return false;
+    }
+    for (RoleStats stats : roles.values()) {
+      stats.threadCount = 0;
+      stats.deltaTicks = 0;
+      stats.deltaVoluntarySwitches = 0;
+      stats.deltaNonvoluntarySwitches = 0;
+      stats.utilization = 0;
+      stats.threadNames.clear();
+    }
+    for (ProcfsCpuSampler.ThreadSample thread : sampler.getThreads()) {
+      String role = resolver.getRole(thread.tid, thread.name);
+      if (role == null) {
+        role = OTHER_ROLE;
+      }
+      RoleStats stats = roles.get(role);
+      if (stats == null) {
+        stats = new RoleStats(role);
+        roles.put(role, stats);
+      }
+      ++stats.threadCount;
+      stats.threadNames.add(thread.name);
+      stats.deltaTicks += thread.deltaTicks;
+      stats.totalTicks += thread.deltaTicks;
+      stats.utilization += sampler.getThreadUtilization(thread);
+      if (sampler.sampleContextSwitches(thread)) {
+        stats.deltaVoluntarySwitches += thread.deltaVoluntarySwitches;
+        stats.deltaNonvoluntarySwitches += thread.deltaNonvoluntarySwitches;
+        stats.totalVoluntarySwitches += thread.deltaVoluntarySwitches;
+        stats.totalNonvoluntarySwitches += thread.deltaNonvoluntarySwitches;
+      }
+    }
+    sortedRoles.clear();
+    sortedRoles.addAll(roles.values());
+    Collections.sort(sortedRoles, BY_DELTA_TICKS);
+    ++sampleCount;
+    return true;
+  }
+
+  /**
+   * Returns all roles seen since reset(), sorted by CPU use in the last
+   * sampling interval. The returned list is live and must not be modified.
+   */
+  public List<RoleStats> getRoleStats() {
+    return sortedRoles;
+  }
+
+  /**
+   * Clears the totals since the previous reset().
+   */
+  public void reset() {
+    roles.clear();
+    sortedRoles.clear();
+    sampleCount = 0;
+  }
+
+  /**
+   * Returns the CPU use of the |maxRoles| busiest roles in the last sampling
+   * interval in percent of one core, e.g. "render 12 audio-playout 4".
+   */
+  public String getSummary(int maxRoles) {
+    final StringBuilder summary = new StringBuilder();
+    for (int i = 0; i < Math.min(maxRoles, sortedRoles.size()); ++i) {
+      final RoleStats stats = sortedRoles.get(i);
+      if (i > 0) {
+        summary.append(' ');
+      }
+      summary.append(stats.role).append(' ').append(Math.round(100 * stats.utilization));
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Writes a report with the CPU use and context switches of each role, in
+   * the last sampling interval and since reset(), and its threads.
+   */
+  public void dump(PrintWriter writer, String prefix) {
+    writer.print(prefix);
+    writer.println("Thread CPU by role (" + sampleCount + " samples, " + sampler.getThreads().size()
+        + " threads):");
+    writer.print(prefix);
+    writer.println("  role: CPU% | CPU s total | vol/invol switches | total vol/invol switches");
+    for (RoleStats stats : sortedRoles) {
+      writer.print(prefix);
+      writer.println(String.format("  %s: %.1f | %.2f | %d/%d | %d/%d", stats.role,
+          100 * stats.utilization,
+          (double) stats.totalTicks / ProcfsCpuSampler.CLOCK_TICKS_PER_SECOND,
+          stats.deltaVoluntarySwitches, stats.deltaNonvoluntarySwitches,
+          stats.totalVoluntarySwitches, stats.totalNonvoluntarySwitches));
+      writer.print(prefix);
+      writer.println("    threads: " + stats.threadNames);
+    }
+  }
+}
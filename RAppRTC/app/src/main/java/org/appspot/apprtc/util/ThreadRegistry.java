@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.os.Process;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the threads of this process by role, so that CPU time read per
+ * thread id from /proc/self/task/<tid> can be attributed to e.g. rendering or
+ * audio playout. Threads of the app register themselves with register().
+ * Threads of the prebuilt WebRTC library and of other libraries are matched by
+ * their kernel name instead, which is the thread name truncated to 15
+ * characters. Registrations of threads that have terminated are dropped by
+ * prune(). This class is thread safe.
+ */
+public class ThreadRegistry {
+  public static final String ROLE_RENDER = "render";
+  public static final String ROLE_SURFACE_TEXTURE = "surface-texture";
+  public static final String ROLE_VIDEO_CODEC = "video-codec";
+  public static final String ROLE_CODEC_LOOPER = "codec-looper";
+  public static final String ROLE_AUDIO_RECORD = "audio-record";
+  public static final String ROLE_AUDIO_PLAYOUT = "audio-playout";
+  public static final String ROLE_WEBRTC_WORKER = "webrtc-worker";
+  public static final String ROLE_WEBRTC_NETWORK = "webrtc-network";
+  public static final String ROLE_WEBRTC_SIGNALING = "webrtc-signaling";
+
+  // Thread names are truncated to this length by the kernel.
+  private static final int MAX_KERNEL_NAME_LENGTH = 15;
+
+  private static class Registration {
+    final String role;
+    final Thread thread;
+
+    Registration(String role, Thread thread) {
+      this.role = role;
+      this.thread = thread;
+    }
+  }
+
+  // Registrations by thread id.
+  private static final Map<Integer, Registration> registrations =
+      new HashMap<Integer, Registration>();
+  // Pairs of thread name prefix and role, matched in order.
+  private static final List<String[]> namePrefixes = new ArrayList<String[]>();
+
+  static {
+    // Threads named by libjingle_peerconnection_java.jar and its native library.
+    // The encoder and decoder threads are both named MediaCodecVideo... and can
+    // not be told apart.
+    registerNamePrefix("MediaCodecVideoEncoder", ROLE_VIDEO_CODEC);
+    registerNamePrefix("Camera SurfaceTextureHelper", ROLE_SURFACE_TEXTURE);
+    registerNamePrefix("Decoder SurfaceTextureHelper", ROLE_SURFACE_TEXTURE);
+    registerNamePrefix("AudioRecordJavaThread", ROLE_AUDIO_RECORD);
+    registerNamePrefix("AudioTrackJavaThread", ROLE_AUDIO_PLAYOUT);
+    registerNamePrefix("VideoFileRenderer", ROLE_RENDER);
+    registerNamePrefix("worker_thread", ROLE_WEBRTC_WORKER);
+    registerNamePrefix("network_thread", ROLE_WEBRTC_NETWORK);
+    registerNamePrefix("signaling_thread", ROLE_WEBRTC_SIGNALING);
+    // Looper threads of MediaCodec in the application process, see JMediaCodec
+    // and ACodec.
+    registerNamePrefix("MediaCodec_loop", ROLE_CODEC_LOOPER);
+    registerNamePrefix("CodecLooper", ROLE_CODEC_LOOPER);
+  }
+
+  private ThreadRegistry() {}
+
+  /**
+   * Registers the current thread as doing work for |role|. Replaces any
+   * previous registration of the thread.
+   */
+  public static synchronized void register(String role) {
+    registrations.put(Process.myTid(), new Registration(role, Thread.currentThread()));
+  }
+
+  /**
+   * Removes the registration of the current thread, if any.
+   */
+  public static synchronized void unregister() {
+    registrations.remove(Process.myTid());
+  }
+
+  /**
+   * Attributes threads that do not register themselves to |role| if their name
+   * starts with |prefix|. Only the first 15 characters of |prefix| are
+   * compared, like the kernel keeps of a thread name.
+   */
+  public static synchronized void registerNamePrefix(String prefix, String role) {
+    if (prefix.length() > MAX_KERNEL_NAME_LENGTH) {
+      prefix = prefix.substring(0, MAX_KERNEL_NAME_LENGTH);
+    }
+    for (String[] namePrefix : namePrefixes) {
+      if (namePrefix[0].equals(prefix)) {
+        namePrefix[1] = role;
+        return;
+      }
+    }
+    namePrefixes.add(new String[] {prefix, role});
+  }
+
+  /**
+   * Returns the role of the thread with id |tid| and kernel name |name|, or
+   * null if it is not known.
+   */
+  public static synchronized String getRole(int tid, String name) {
+    final Registration registration = registrations.get(tid);
+    if (registration != null) {
+      if (registration.thread.isAlive()) {
+        return registration.role;
+      }
+      // The thread id may have been reused by a new thread.
+      registrations.remove(tid);
+    }
+    if (name != null) {
+      for (String[] namePrefix : namePrefixes) {
+        if (name.startsWith(namePrefix[0])) {
+          return namePrefix[1];
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Drops the registrations of threads that have terminated.
+   */
+  public static synchronized void prune() {
+    for (Iterator<Registration> it = registrations.values().iterator(); it.hasNext();) {
+      if (!it.next().thread.isAlive()) {
+        it.remove();
+      }
+    }
+  }
+}
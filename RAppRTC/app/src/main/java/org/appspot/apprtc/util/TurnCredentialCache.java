@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.webrtc.PeerConnection;
+
+/**
+ * Process wide cache of TURN servers and their credentials, so that a call
+ * does not wait for a credential request. Credentials are used until shortly
+ * before their TTL expires, and are due for a refresh in the background once
+ * most of their TTL has passed. Only one request is in flight at a time,
+ * and the cache can be used from any thread.
+ *
+ * Credentials are only valid for the server that issued them, so the cache
+ * holds those of one signaling server URL. Using it with another URL drops
+ * the cached credentials and any request in flight.
+ */
+public class TurnCredentialCache {
+  // Credentials are due for a refresh once this fraction of the TTL passed.
+  private static final double REFRESH_FRACTION = 0.8;
+  // Credentials are not used this close to their expiry, so that they do
+  // not expire during call setup.
+  public static final long EXPIRY_MARGIN_MS = 60 * 1000;
+  // A request without a response for this long is given up.
+  public static final long REQUEST_TIMEOUT_MS = 10 * 1000;
+
+  private static final TurnCredentialCache instance = new TurnCredentialCache();
+
+  // Signaling server that |servers| and the request in flight belong to.
+  private String serverUrl;
+  private List<PeerConnection.IceServer> servers;
+  private long expiryMs;
+  private long refreshMs;
+  // Start of the request in flight, or -1.
+  private long requestStartMs = -1;
+  private long lastRequestDurationMs = -1;
+
+  public static TurnCredentialCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns the cached servers, or null if there are none or they are about
+   * to expire. All times are in SystemClock.elapsedRealtime() milliseconds.
+   */
+  public synchronized List<PeerConnection.IceServer> get(
+      String serverUrl, long nowMs) {
+    selectServer(serverUrl);
+    return (servers == null || nowMs >= expiryMs - EXPIRY_MARGIN_MS)
+        ? null : servers;
+  }
+
+  /**
+   * Returns true if the caller should request credentials now, and then
+   * call update() or onRequestFailed().
+   */
+  public synchronized boolean startRequest(String serverUrl, long nowMs) {
+    selectServer(serverUrl);
+    if (requestStartMs >= 0 && nowMs - requestStartMs < REQUEST_TIMEOUT_MS) {
+      return false;
+    }
+    if (servers != null && nowMs < refreshMs) {
+      return false;
+    }
+    requestStartMs = nowMs;
+    return true;
+  }
+
+  /**
+   * Stores servers whose credentials expire after |ttlMs|. Ignored if the
+   * cache moved on to another server since the request was started.
+   */
+  public synchronized void update(String serverUrl,
+      List<PeerConnection.IceServer> newServers, long ttlMs, long nowMs) {
+    if (!serverUrl.equals(this.serverUrl)) {
+      return;
+    }
+    servers = Collections.unmodifiableList(
+        new ArrayList<PeerConnection.IceServer>(newServers));
+    expiryMs = nowMs + ttlMs;
+    refreshMs = nowMs + (long) (ttlMs * REFRESH_FRACTION);
+    if (requestStartMs >= 0) {
+      lastRequestDurationMs = nowMs - requestStartMs;
+      requestStartMs = -1;
+    }
+  }
+
+  public synchronized void onRequestFailed(String serverUrl) {
+    if (serverUrl.equals(this.serverUrl)) {
+      requestStartMs = -1;
+    }
+  }
+
+  /**
+   * Returns the duration of the last completed request, or -1.
+   */
+  public synchronized long getLastRequestDurationMs() {
+    return lastRequestDurationMs;
+  }
+
+  /**
+   * Returns the time until the cached credentials expire, or -1 if there
+   * are none.
+   */
+  public synchronized long getRemainingTtlMs(long nowMs) {
+    return (servers == null) ? -1 : Math.max(0, expiryMs - nowMs);
+  }
+
+  // Drops the state of the previous server if |newServerUrl| differs.
+  private void selectServer(String newServerUrl) {
+    if (newServerUrl.equals(serverUrl)) {
+      return;
+    }
+    serverUrl = newServerUrl;
+    servers = null;
+    requestStartMs = -1;
+  }
+}
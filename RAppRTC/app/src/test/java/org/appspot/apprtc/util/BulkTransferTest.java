@@ -0,0 +1,333 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+/**
+ * Checks that BulkTransferSender chunks and paces transfers, and that BulkTransferReceiver
+ * reassembles and verifies them, by passing the sent messages to the receiver by hand.
+ */
+public class BulkTransferTest {
+  private static final int CHUNK_SIZE = 1000;
+  private static final long HIGH_WATERMARK = 3000;
+  private static final long LOW_WATERMARK = 1000;
+
+  // Runs tasks on the calling thread, which stands in for the executor of the sender.
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+
+  // Keeps copies of the sent messages, and counts them as buffered until drain() is called.
+  private static class RecordingChannel implements BulkTransferChannel {
+    final List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+    long bufferedAmount;
+    boolean failing;
+
+    @Override
+    public boolean send(DataChannel.Buffer buffer) {
+      if (failing) {
+        return false;
+      }
+      final ByteBuffer copy = ByteBuffer.allocate(buffer.data.remaining());
+      copy.put(buffer.data);
+      copy.flip();
+      messages.add(copy);
+      bufferedAmount += copy.remaining();
+      return true;
+    }
+
+    @Override
+    public long bufferedAmount() {
+      return bufferedAmount;
+    }
+
+    void drain() {
+      bufferedAmount = 0;
+    }
+  }
+
+  private static class RecordingCallback implements BulkTransferSender.Callback {
+    final List<BulkTransferStats> completed = new ArrayList<BulkTransferStats>();
+    final Map<Integer, String> failed = new HashMap<Integer, String>();
+
+    @Override
+    public void onTransferComplete(BulkTransferStats stats) {
+      completed.add(stats);
+    }
+
+    @Override
+    public void onTransferFailed(int transferId, String error) {
+      failed.put(transferId, error);
+    }
+  }
+
+  private static class RecordingListener implements BulkTransferReceiver.Listener {
+    final Map<Integer, String> started = new HashMap<Integer, String>();
+    final Map<Integer, byte[]> completed = new HashMap<Integer, byte[]>();
+    final Map<Integer, String> failed = new HashMap<Integer, String>();
+
+    @Override
+    public FileChannel onTransferStarted(int transferId, long length, String name) {
+      started.put(transferId, name);
+      return null;
+    }
+
+    @Override
+    public void onTransferComplete(int transferId, ByteBuffer data, BulkTransferStats stats) {
+      // |data| is only valid during the call.
+      final byte[] copy = new byte[data.remaining()];
+      data.get(copy);
+      completed.put(transferId, copy);
+    }
+
+    @Override
+    public void onTransferFailed(int transferId, String error) {
+      failed.put(transferId, error);
+    }
+  }
+
+  private RecordingChannel channel;
+  private RecordingCallback callback;
+  private BulkTransferSender sender;
+  private RecordingListener listener;
+  private BulkTransferReceiver receiver;
+
+  @Before
+  public void setUp() {
+    channel = new RecordingChannel();
+    callback = new RecordingCallback();
+    sender = new BulkTransferSender(
+        channel, DIRECT_EXECUTOR, callback, CHUNK_SIZE, HIGH_WATERMARK, LOW_WATERMARK);
+    listener = new RecordingListener();
+    receiver = new BulkTransferReceiver(listener, 10 * CHUNK_SIZE);
+  }
+
+  private static ByteBuffer payload(int size) {
+    final ByteBuffer data = ByteBuffer.allocate(size);
+    for (int i = 0; i < size; ++i) {
+      data.put((byte) (i * 31 + 7));
+    }
+    data.flip();
+    return data;
+  }
+
+  private static byte[] array(ByteBuffer data) {
+    final byte[] bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private static DataChannel.Buffer binary(ByteBuffer message) {
+    return new DataChannel.Buffer(message.duplicate(), true /* binary */);
+  }
+
+  private void deliver(List<ByteBuffer> messages) {
+    for (ByteBuffer message : messages) {
+      assertTrue(receiver.onMessage(binary(message)));
+    }
+  }
+
+  // Returns all messages of a transfer of |data|, with the transfer id set to |transferId|.
+  private static List<ByteBuffer> sendAll(ByteBuffer data, int transferId) {
+    final RecordingChannel channel = new RecordingChannel();
+    final RecordingCallback callback = new RecordingCallback();
+    final BulkTransferSender sender = new BulkTransferSender(
+        channel, DIRECT_EXECUTOR, callback, CHUNK_SIZE, HIGH_WATERMARK, LOW_WATERMARK);
+    sender.send(data, null);
+    while (callback.completed.isEmpty()) {
+      channel.drain();
+      sender.onBufferedAmountChange();
+    }
+    for (ByteBuffer message : channel.messages) {
+      message.putInt(2, transferId);
+    }
+    return channel.messages;
+  }
+
+  private static byte type(ByteBuffer message) {
+    return message.get(1);
+  }
+
+  @Test
+  public void testPayloadIsSentInChunks() {
+    final ByteBuffer data = payload(2500);
+    final int transferId = sender.send(data, "name");
+
+    // START, three chunks and END.
+    assertEquals(5, channel.messages.size());
+    assertEquals(BulkTransferSender.TYPE_START, type(channel.messages.get(0)));
+    assertEquals(BulkTransferSender.HEADER_SIZE + CHUNK_SIZE, channel.messages.get(1).remaining());
+    assertEquals(BulkTransferSender.HEADER_SIZE + CHUNK_SIZE, channel.messages.get(2).remaining());
+    assertEquals(BulkTransferSender.HEADER_SIZE + 500, channel.messages.get(3).remaining());
+    assertEquals(BulkTransferSender.TYPE_END, type(channel.messages.get(4)));
+    assertEquals(1, callback.completed.size());
+    assertEquals(5, callback.completed.get(0).messages);
+    assertEquals(2500, callback.completed.get(0).bytes);
+
+    deliver(channel.messages);
+    assertEquals("name", listener.started.get(transferId));
+    assertArrayEquals(array(data), listener.completed.get(transferId));
+    assertTrue(listener.failed.isEmpty());
+  }
+
+  @Test
+  public void testSendingPausesAtHighWatermark() {
+    sender.send(payload(5 * CHUNK_SIZE), null);
+    // START and three chunks reach the high watermark.
+    assertEquals(4, channel.messages.size());
+
+    // Not resumed above the low watermark.
+    channel.bufferedAmount = LOW_WATERMARK + 1;
+    sender.onBufferedAmountChange();
+    assertEquals(4, channel.messages.size());
+
+    channel.drain();
+    sender.onBufferedAmountChange();
+    // Two more chunks and END.
+    assertEquals(7, channel.messages.size());
+    assertEquals(1, callback.completed.size());
+    assertEquals(1, callback.completed.get(0).stalls);
+    assertTrue(callback.completed.get(0).maxBufferedAmount >= HIGH_WATERMARK);
+
+    deliver(channel.messages);
+    assertEquals(1, listener.completed.size());
+  }
+
+  @Test
+  public void testTransfersAreSentInOrder() {
+    final int first = sender.send(payload(1500), "first");
+    final int second = sender.send(payload(200), "second");
+    assertEquals(2, callback.completed.size());
+    assertEquals(first, callback.completed.get(0).transferId);
+    assertEquals(second, callback.completed.get(1).transferId);
+
+    deliver(channel.messages);
+    assertEquals(1500, listener.completed.get(first).length);
+    assertEquals(200, listener.completed.get(second).length);
+  }
+
+  @Test
+  public void testOutOfOrderChunks() {
+    final ByteBuffer data = payload(2500);
+    final int transferId = sender.send(data, null);
+
+    // START, the last chunk, END, then the first two chunks in reverse.
+    final List<ByteBuffer> messages = channel.messages;
+    deliver(messages.subList(0, 1));
+    deliver(messages.subList(3, 5));
+    assertTrue(listener.completed.isEmpty());
+    final List<ByteBuffer> reversed = new ArrayList<ByteBuffer>(messages.subList(1, 3));
+    Collections.reverse(reversed);
+    deliver(reversed);
+
+    assertArrayEquals(array(data), listener.completed.get(transferId));
+    assertTrue(listener.failed.isEmpty());
+  }
+
+  @Test
+  public void testChecksumMismatchFails() {
+    final int transferId = sender.send(payload(1500), null);
+
+    final ByteBuffer chunk = channel.messages.get(2);
+    final int index = BulkTransferSender.HEADER_SIZE + 10;
+    chunk.put(index, (byte) (chunk.get(index) ^ 1));
+    deliver(channel.messages);
+
+    assertTrue(listener.completed.isEmpty());
+    assertEquals("Checksum mismatch", listener.failed.get(transferId));
+  }
+
+  @Test
+  public void testCancelAbortsStartedTransfers() {
+    final int started = sender.send(payload(5 * CHUNK_SIZE), null);
+    final int queued = sender.send(payload(CHUNK_SIZE), null);
+    sender.cancelAll();
+
+    assertEquals("Cancelled", callback.failed.get(started));
+    assertEquals("Cancelled", callback.failed.get(queued));
+    assertTrue(callback.completed.isEmpty());
+    final ByteBuffer abort = channel.messages.get(channel.messages.size() - 1);
+    assertEquals(BulkTransferSender.TYPE_ABORT, type(abort));
+    assertEquals(started, abort.getInt(2));
+
+    deliver(channel.messages);
+    assertEquals("Aborted by sender", listener.failed.get(started));
+    // The queued transfer was never started.
+    assertFalse(listener.started.containsKey(queued));
+  }
+
+  @Test
+  public void testFailedSendFailsTransfer() {
+    channel.failing = true;
+    final int transferId = sender.send(payload(CHUNK_SIZE), null);
+    assertEquals("Send failed", callback.failed.get(transferId));
+  }
+
+  @Test
+  public void testOversizeInMemoryTransferIsRejected() {
+    deliver(sendAll(payload(11 * CHUNK_SIZE), 1));
+    assertTrue(listener.failed.get(1).contains("exceeds"));
+    assertTrue(listener.completed.isEmpty());
+  }
+
+  @Test
+  public void testInMemoryLimitIsSharedByTransfers() {
+    final List<ByteBuffer> first = sendAll(payload(6 * CHUNK_SIZE), 1);
+    final List<ByteBuffer> second = sendAll(payload(6 * CHUNK_SIZE), 2);
+    final List<ByteBuffer> third = sendAll(payload(6 * CHUNK_SIZE), 3);
+
+    // The second transfer does not fit next to the first.
+    deliver(first.subList(0, 1));
+    deliver(second);
+    assertTrue(listener.failed.get(2).contains("exceeds"));
+
+    // The third fits once the first is done.
+    deliver(first.subList(1, first.size()));
+    assertEquals(6 * CHUNK_SIZE, listener.completed.get(1).length);
+    deliver(third);
+    assertEquals(6 * CHUNK_SIZE, listener.completed.get(3).length);
+    assertEquals(1, listener.failed.size());
+  }
+
+  @Test
+  public void testResetFailsTransfersInProgress() {
+    final int transferId = sender.send(payload(5 * CHUNK_SIZE), null);
+    deliver(channel.messages);
+    receiver.reset();
+    assertEquals("Channel closed", listener.failed.get(transferId));
+  }
+
+  @Test
+  public void testOtherMessagesAreNotConsumed() {
+    assertFalse(receiver.onMessage(
+        new DataChannel.Buffer(ByteBuffer.wrap(new byte[] {1, 2, 3}), false /* binary */)));
+    assertFalse(receiver.onMessage(binary(ByteBuffer.allocate(BulkTransferSender.HEADER_SIZE))));
+  }
+}
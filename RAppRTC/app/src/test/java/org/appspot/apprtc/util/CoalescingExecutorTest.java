@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the queue order, coalescing, dropping and queue depth of
+ * CoalescingExecutor on an executor that runs tasks when the test says so.
+ */
+public class CoalescingExecutorTest {
+  private static final int MAX_QUEUE_DEPTH = 3;
+
+  // Queues tasks until runAll() is called.
+  private static class ManualExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    boolean rejecting;
+
+    @Override
+    public void execute(Runnable task) {
+      if (rejecting) {
+        throw new RejectedExecutionException();
+      }
+      tasks.add(task);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private final List<String> ran = new ArrayList<String>();
+  private ManualExecutor manualExecutor;
+  private CoalescingExecutor executor;
+
+  @Before
+  public void setUp() {
+    manualExecutor = new ManualExecutor();
+    executor = new CoalescingExecutor(manualExecutor, MAX_QUEUE_DEPTH);
+  }
+
+  private Runnable record(final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+
+  @Test
+  public void testExecuteRunsInOrder() {
+    executor.execute(record("a"));
+    executor.execute(record("b"));
+    assertEquals(2, executor.getQueueDepth());
+    manualExecutor.runAll();
+    assertEquals(Arrays.asList("a", "b"), ran);
+    assertEquals(0, executor.getQueueDepth());
+    assertEquals(2, executor.getQueueLatency().getCount());
+  }
+
+  @Test
+  public void testCoalescedTaskKeepsFirstPositionAndRunsLast() {
+    executor.executeCoalesced("key", record("first"));
+    executor.execute(record("other"));
+    executor.executeCoalesced("key", record("second"));
+    executor.executeCoalesced("key", record("last"));
+    // The replaced tasks are not queued again.
+    assertEquals(2, executor.getQueueDepth());
+    assertEquals(2, manualExecutor.tasks.size());
+
+    manualExecutor.runAll();
+    assertEquals(Arrays.asList("last", "other"), ran);
+    assertEquals(0, executor.getQueueDepth());
+  }
+
+  @Test
+  public void testCoalescingEndsWhenTaskStarts() {
+    executor.executeCoalesced("key", record("first"));
+    manualExecutor.runAll();
+    executor.executeCoalesced("key", record("second"));
+    assertEquals(1, executor.getQueueDepth());
+    manualExecutor.runAll();
+    assertEquals(Arrays.asList("first", "second"), ran);
+  }
+
+  @Test
+  public void testTryExecuteDropsAtSameKey() {
+    assertTrue(executor.tryExecute("poll", record("first")));
+    assertFalse(executor.tryExecute("poll", record("second")));
+    // A coalesced task with the same key replaces the polling task.
+    executor.executeCoalesced("poll", record("set"));
+    assertEquals(1, executor.getQueueDepth());
+
+    manualExecutor.runAll();
+    assertEquals(Arrays.asList("set"), ran);
+    assertTrue(executor.tryExecute("poll", record("third")));
+    manualExecutor.runAll();
+    assertEquals(Arrays.asList("set", "third"), ran);
+  }
+
+  @Test
+  public void testTryExecuteDropsAtMaxQueueDepth() {
+    for (int i = 0; i < MAX_QUEUE_DEPTH; ++i) {
+      executor.execute(record("task" + i));
+    }
+    assertEquals(MAX_QUEUE_DEPTH, executor.getQueueDepth());
+    assertFalse(executor.tryExecute("poll", record("poll")));
+    // Tasks that must run are still queued.
+    executor.execute(record("late"));
+    assertEquals(MAX_QUEUE_DEPTH + 1, executor.getQueueDepth());
+
+    manualExecutor.tasks.remove(0).run();
+    manualExecutor.tasks.remove(0).run();
+    assertEquals(MAX_QUEUE_DEPTH - 1, executor.getQueueDepth());
+    assertTrue(executor.tryExecute("poll", record("poll")));
+    manualExecutor.runAll();
+    assertEquals(Arrays.asList("task0", "task1", "task2", "late", "poll"), ran);
+    assertEquals(0, executor.getQueueDepth());
+  }
+
+  @Test
+  public void testRejectedTaskIsNotCounted() {
+    manualExecutor.rejecting = true;
+    try {
+      executor.executeCoalesced("key", record("rejected"));
+      fail("Expected RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertEquals(0, executor.getQueueDepth());
+
+    // The key is not left behind as queued.
+    manualExecutor.rejecting = false;
+    assertTrue(executor.tryExecute("key", record("accepted")));
+    manualExecutor.runAll();
+    assertEquals(Arrays.asList("accepted"), ran);
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+/**
+ * Checks DataChannelMux over a LoopbackDataChannel pair. One end is driven by a mux and the other
+ * end records the frames it receives, so that the tests can check the frames on the channel and
+ * inject frames of their own.
+ */
+public class DataChannelMuxTest {
+  private static final long TIMEOUT_MS = 5000;
+  private static final int FRAME_SIZE = 100;
+  private static final int STREAM_WINDOW = 1000;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Queues tasks until runAll() is called, so that frames can be queued before any is sent.
+  private static class ManualExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      while (true) {
+        final Runnable task;
+        synchronized (this) {
+          if (tasks.isEmpty()) {
+            return;
+          }
+          task = tasks.remove(0);
+        }
+        task.run();
+      }
+    }
+  }
+
+  // Passes the messages of a channel to |mux|, if set, and records the frames the mux does not
+  // consume, or all frames if there is no mux.
+  private static class ChannelObserver implements DataChannel.Observer {
+    final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<ByteBuffer>();
+    volatile DataChannelMux mux;
+
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {
+      final DataChannelMux currentMux = mux;
+      if (currentMux != null) {
+        currentMux.onBufferedAmountChange();
+      }
+    }
+
+    @Override
+    public void onStateChange() {}
+
+    @Override
+    public void onMessage(DataChannel.Buffer buffer) {
+      final DataChannelMux currentMux = mux;
+      if (currentMux == null || !currentMux.onMessage(buffer)) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.data.remaining());
+        copy.put(buffer.data);
+        copy.flip();
+        frames.add(copy);
+      }
+    }
+
+    ByteBuffer takeFrame() throws InterruptedException {
+      final ByteBuffer frame = frames.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      assertNotNull("Timed out waiting for a frame", frame);
+      return frame;
+    }
+  }
+
+  // Records the messages and state changes of a stream.
+  private static class StreamObserver implements DataChannel.Observer {
+    final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {}
+
+    @Override
+    public void onStateChange() {
+      events.add("closed");
+    }
+
+    @Override
+    public void onMessage(DataChannel.Buffer buffer) {
+      events.add(UTF_8.decode(buffer.data).toString());
+    }
+
+    String takeEvent() throws InterruptedException {
+      final String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      assertNotNull("Timed out waiting for a stream event", event);
+      return event;
+    }
+  }
+
+  private LoopbackDataChannel muxChannel;
+  private LoopbackDataChannel rawChannel;
+  private ChannelObserver muxChannelObserver;
+  private ChannelObserver rawChannelObserver;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    final LoopbackDataChannel[] channels = LoopbackDataChannel.createPair("mux", 0);
+    muxChannel = channels[0];
+    rawChannel = channels[1];
+    muxChannelObserver = new ChannelObserver();
+    rawChannelObserver = new ChannelObserver();
+    muxChannel.registerObserver(muxChannelObserver);
+    rawChannel.registerObserver(rawChannelObserver);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    muxChannel.close();
+    executor.shutdownNow();
+  }
+
+  private DataChannelMux createMux(Executor muxExecutor) {
+    final DataChannelMux mux = new DataChannelMux(muxChannel, muxExecutor, FRAME_SIZE,
+        STREAM_WINDOW, DataChannelMux.DEFAULT_HIGH_WATERMARK, DataChannelMux.DEFAULT_LOW_WATERMARK);
+    muxChannelObserver.mux = mux;
+    return mux;
+  }
+
+  private static DataChannel.Buffer text(String text) {
+    return new DataChannel.Buffer(ByteBuffer.wrap(text.getBytes(UTF_8)), false /* binary */);
+  }
+
+  private static String repeat(char c, int count) {
+    final char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private static ByteBuffer frame(int type, int streamId, byte[] payload) {
+    final ByteBuffer frame = ByteBuffer.allocate(DataChannelMux.HEADER_SIZE + payload.length);
+    frame.put(DataChannelMux.MAGIC);
+    frame.put((byte) type);
+    frame.putShort((short) streamId);
+    frame.put(payload);
+    frame.flip();
+    return frame;
+  }
+
+  private static ByteBuffer creditFrame(int streamId, int bytes) {
+    return frame(
+        DataChannelMux.TYPE_CREDIT, streamId, ByteBuffer.allocate(4).putInt(bytes).array());
+  }
+
+  private void sendRaw(ByteBuffer frame) {
+    assertTrue(rawChannel.send(new DataChannel.Buffer(frame, true /* binary */)));
+  }
+
+  private static int type(ByteBuffer frame) {
+    return frame.get(1) & DataChannelMux.TYPE_MASK;
+  }
+
+  private static int streamId(ByteBuffer frame) {
+    return frame.getShort(2) & 0xFFFF;
+  }
+
+  private static int payloadSize(ByteBuffer frame) {
+    return frame.remaining() - DataChannelMux.HEADER_SIZE;
+  }
+
+  @Test
+  public void testHigherPriorityFirstThenRoundRobin() throws InterruptedException {
+    final ManualExecutor manualExecutor = new ManualExecutor();
+    final DataChannelMux mux = createMux(manualExecutor);
+    final DataChannelMux.Stream bulk1 =
+        mux.openStream(1, DataChannelMux.PRIORITY_LOW, new StreamObserver());
+    final DataChannelMux.Stream bulk2 =
+        mux.openStream(2, DataChannelMux.PRIORITY_LOW, new StreamObserver());
+    final DataChannelMux.Stream control =
+        mux.openStream(3, DataChannelMux.PRIORITY_HIGH, new StreamObserver());
+    // Three frames on each bulk stream, queued before the control message.
+    assertTrue(bulk1.send(text(repeat('a', 3 * FRAME_SIZE))));
+    assertTrue(bulk2.send(text(repeat('b', 3 * FRAME_SIZE))));
+    assertTrue(control.send(text("control")));
+    assertEquals(3 * FRAME_SIZE, bulk1.bufferedAmount());
+    manualExecutor.runAll();
+    assertEquals(0, bulk1.bufferedAmount());
+
+    final List<Integer> order = new ArrayList<Integer>();
+    for (int i = 0; i < 7; ++i) {
+      final ByteBuffer frame = rawChannelObserver.takeFrame();
+      assertEquals(DataChannelMux.TYPE_DATA, type(frame));
+      order.add(streamId(frame));
+    }
+    assertEquals(Arrays.asList(3, 1, 2, 1, 2, 1, 2), order);
+  }
+
+  @Test
+  public void testMessagesAreReassembled() throws InterruptedException {
+    final DataChannelMux mux = createMux(executor);
+    final StreamObserver observer = new StreamObserver();
+    mux.openStream(1, DataChannelMux.PRIORITY_NORMAL, observer);
+    final String message = repeat('x', 2 * FRAME_SIZE + 10);
+    sendRaw(frame(DataChannelMux.TYPE_DATA, 1, message.substring(0, FRAME_SIZE).getBytes(UTF_8)));
+    sendRaw(frame(DataChannelMux.TYPE_DATA, 1,
+        message.substring(FRAME_SIZE, 2 * FRAME_SIZE).getBytes(UTF_8)));
+    sendRaw(frame(DataChannelMux.TYPE_DATA | DataChannelMux.FLAG_FIN, 1,
+        message.substring(2 * FRAME_SIZE).getBytes(UTF_8)));
+    assertEquals(message, observer.takeEvent());
+  }
+
+  @Test
+  public void testSendIsLimitedByCredit() throws InterruptedException {
+    final DataChannelMux mux = createMux(executor);
+    final DataChannelMux.Stream stream =
+        mux.openStream(1, DataChannelMux.PRIORITY_NORMAL, new StreamObserver());
+    assertTrue(stream.send(text(repeat('a', STREAM_WINDOW + 250))));
+
+    int sent = 0;
+    while (sent < STREAM_WINDOW) {
+      sent += payloadSize(rawChannelObserver.takeFrame());
+    }
+    assertEquals(STREAM_WINDOW, sent);
+    assertNull(rawChannelObserver.frames.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(250, stream.bufferedAmount());
+
+    // The rest is sent once the peer grants credit, ending the message.
+    sendRaw(creditFrame(1, 250));
+    ByteBuffer frame;
+    do {
+      frame = rawChannelObserver.takeFrame();
+      sent += payloadSize(frame);
+    } while ((frame.get(1) & DataChannelMux.FLAG_FIN) == 0);
+    assertEquals(STREAM_WINDOW + 250, sent);
+    assertEquals(0, stream.bufferedAmount());
+  }
+
+  @Test
+  public void testReceiverGrantsCredit() throws InterruptedException {
+    final DataChannelMux mux = createMux(executor);
+    final StreamObserver observer = new StreamObserver();
+    mux.openStream(1, DataChannelMux.PRIORITY_NORMAL, observer);
+    // Credit is granted after a quarter of the window is consumed.
+    final String message = repeat('a', STREAM_WINDOW / 4);
+    sendRaw(frame(DataChannelMux.TYPE_DATA | DataChannelMux.FLAG_FIN, 1, message.getBytes(UTF_8)));
+    assertEquals(message, observer.takeEvent());
+
+    final ByteBuffer credit = rawChannelObserver.takeFrame();
+    assertEquals(DataChannelMux.TYPE_CREDIT, type(credit));
+    assertEquals(1, streamId(credit));
+    assertEquals(STREAM_WINDOW / 4, credit.getInt(DataChannelMux.HEADER_SIZE));
+  }
+
+  @Test
+  public void testStreamIsClosedOnWindowOverrun() throws InterruptedException {
+    final DataChannelMux mux = createMux(executor);
+    final StreamObserver observer = new StreamObserver();
+    final DataChannelMux.Stream stream =
+        mux.openStream(1, DataChannelMux.PRIORITY_NORMAL, observer);
+    sendRaw(frame(DataChannelMux.TYPE_DATA | DataChannelMux.FLAG_FIN, 1,
+        repeat('a', STREAM_WINDOW + 1).getBytes(UTF_8)));
+
+    assertEquals("closed", observer.takeEvent());
+    assertEquals(DataChannel.State.CLOSED, stream.state());
+    assertFalse(stream.send(text("late")));
+    // The peer is told to close its side.
+    final ByteBuffer close = rawChannelObserver.takeFrame();
+    assertEquals(DataChannelMux.TYPE_CLOSE, type(close));
+    assertEquals(1, streamId(close));
+  }
+
+  @Test
+  public void testDataForUnknownStreamIsCredited() throws InterruptedException {
+    createMux(executor);
+    sendRaw(frame(DataChannelMux.TYPE_DATA | DataChannelMux.FLAG_FIN, 7, new byte[300]));
+
+    final ByteBuffer credit = rawChannelObserver.takeFrame();
+    assertEquals(DataChannelMux.TYPE_CREDIT, type(credit));
+    assertEquals(7, streamId(credit));
+    assertEquals(300, credit.getInt(DataChannelMux.HEADER_SIZE));
+  }
+
+  @Test
+  public void testCloseFromPeer() throws InterruptedException {
+    final DataChannelMux mux = createMux(executor);
+    final StreamObserver observer = new StreamObserver();
+    final DataChannelMux.Stream stream =
+        mux.openStream(1, DataChannelMux.PRIORITY_NORMAL, observer);
+    final DataChannelMux.Stream other =
+        mux.openStream(2, DataChannelMux.PRIORITY_NORMAL, new StreamObserver());
+    sendRaw(frame(DataChannelMux.TYPE_CLOSE, 1, new byte[0]));
+
+    assertEquals("closed", observer.takeEvent());
+    assertEquals(DataChannel.State.CLOSED, stream.state());
+    assertFalse(stream.send(text("late")));
+    assertEquals(DataChannel.State.OPEN, other.state());
+    // The id can be opened again.
+    mux.openStream(1, DataChannelMux.PRIORITY_NORMAL, new StreamObserver());
+  }
+
+  @Test
+  public void testLocalCloseNotifiesPeer() throws InterruptedException {
+    final DataChannelMux mux = createMux(executor);
+    final DataChannelMux.Stream stream =
+        mux.openStream(1, DataChannelMux.PRIORITY_NORMAL, new StreamObserver());
+    stream.close();
+
+    assertEquals(DataChannel.State.CLOSED, stream.state());
+    final ByteBuffer close = rawChannelObserver.takeFrame();
+    assertEquals(DataChannelMux.TYPE_CLOSE, type(close));
+    assertEquals(1, streamId(close));
+  }
+
+  @Test
+  public void testOtherMessagesAreNotConsumed() {
+    final DataChannelMux mux = createMux(executor);
+    assertFalse(mux.onMessage(text("hello")));
+    assertFalse(mux.onMessage(new DataChannel.Buffer(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}),
+        true /* binary */)));
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+/**
+ * Checks candidate keys, de-duplication, ordering within a batch and
+ * removal in IceCandidatePipeline. The batch window is too long to end
+ * during a test, so batches are handed over by flush(), as when gathering
+ * completes.
+ */
+public class IceCandidatePipelineTest {
+  private static final long BATCH_WINDOW_MS = 60 * 60 * 1000;
+
+  private final List<IceCandidate[]> batches = new ArrayList<IceCandidate[]>();
+  private ScheduledExecutorService executor;
+  private IceCandidatePipeline pipeline;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    pipeline = new IceCandidatePipeline(executor, BATCH_WINDOW_MS,
+        new IceCandidatePipeline.Sink() {
+          @Override
+          public void onLocalCandidates(IceCandidate[] candidates) {
+            batches.add(candidates);
+          }
+        });
+    pipeline.startGathering();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private static IceCandidate candidate(
+      String foundation, String address, int port, String type) {
+    return new IceCandidate("audio", 0, "candidate:" + foundation + " 1 udp 2122260223 "
+        + address + " " + port + " typ " + type + " generation 0 ufrag abcd");
+  }
+
+  @Test
+  public void testKeyIgnoresPriorityAndCase() {
+    final IceCandidate candidate = new IceCandidate("audio", 0,
+        "candidate:1 1 udp 2122260223 192.168.1.2 5000 typ host ufrag abcd");
+    final IceCandidate samePath = new IceCandidate("audio", 0,
+        "candidate:1 1 UDP 1686052607 192.168.1.2 5000 typ host ufrag abcd");
+    assertEquals(IceCandidatePipeline.getKey(candidate),
+        IceCandidatePipeline.getKey(samePath));
+    assertEquals("host", IceCandidatePipeline.getType(candidate));
+  }
+
+  @Test
+  public void testKeyIncludesUfrag() {
+    // The same address after an ICE restart is a new candidate.
+    final IceCandidate beforeRestart = new IceCandidate("audio", 0,
+        "candidate:1 1 udp 2122260223 192.168.1.2 5000 typ host ufrag abcd");
+    final IceCandidate afterRestart = new IceCandidate("audio", 0,
+        "candidate:1 1 udp 2122260223 192.168.1.2 5000 typ host ufrag efgh");
+    assertNotEquals(IceCandidatePipeline.getKey(beforeRestart),
+        IceCandidatePipeline.getKey(afterRestart));
+  }
+
+  @Test
+  public void testKeyOfCandidateWithoutMid() {
+    final String sdp = "candidate:1 1 udp 2122260223 192.168.1.2 5000 typ host";
+    final IceCandidate first = new IceCandidate(null, 0, sdp);
+    final IceCandidate second = new IceCandidate(null, 1, sdp);
+    assertTrue(IceCandidatePipeline.getKey(first).startsWith("0 "));
+    assertNotEquals(IceCandidatePipeline.getKey(first),
+        IceCandidatePipeline.getKey(second));
+    // SDP that cannot be parsed is used as is.
+    final IceCandidate unparsed = new IceCandidate(null, 2, "candidate:1 1 udp");
+    assertEquals("2 candidate:1 1 udp", IceCandidatePipeline.getKey(unparsed));
+  }
+
+  @Test
+  public void testBatchIsOrderedByType() {
+    final IceCandidate relay = candidate("4", "203.0.113.9", 3478, "relay");
+    final IceCandidate srflx = candidate("3", "198.51.100.7", 6000, "srflx");
+    final IceCandidate host1 = candidate("1", "192.168.1.2", 5000, "host");
+    final IceCandidate host2 = candidate("2", "10.0.0.2", 5001, "host");
+    pipeline.addLocalCandidate(relay);
+    pipeline.addLocalCandidate(srflx);
+    pipeline.addLocalCandidate(host1);
+    pipeline.addLocalCandidate(host2);
+    assertTrue(batches.isEmpty());
+
+    pipeline.flush();
+    assertEquals(1, batches.size());
+    // Host candidates keep the order they were gathered in.
+    assertArrayEquals(
+        new IceCandidate[] {host1, host2, srflx, relay}, batches.get(0));
+    assertEquals(4, pipeline.getStats().localCandidates);
+    assertTrue(pipeline.getStats().firstRelayMs >= 0);
+  }
+
+  @Test
+  public void testFlushOnGatheringComplete() {
+    final IceCandidate host = candidate("1", "192.168.1.2", 5000, "host");
+    pipeline.addLocalCandidate(host);
+    pipeline.addLocalCandidate(candidate("1", "192.168.1.2", 5000, "host"));
+    pipeline.flush();
+    assertEquals(1, batches.size());
+    assertArrayEquals(new IceCandidate[] {host}, batches.get(0));
+    assertEquals(1, pipeline.getStats().localDuplicates);
+
+    // Nothing pending, so no empty batch.
+    pipeline.flush();
+    assertEquals(1, batches.size());
+    // Already signaled candidates stay duplicates in the next batch.
+    pipeline.addLocalCandidate(candidate("1", "192.168.1.2", 5000, "host"));
+    pipeline.addLocalCandidate(candidate("3", "198.51.100.7", 6000, "srflx"));
+    pipeline.flush();
+    assertEquals(2, batches.size());
+    assertEquals(1, batches.get(1).length);
+    assertEquals(2, pipeline.getStats().batches);
+  }
+
+  @Test
+  public void testRemovePendingCandidate() {
+    final IceCandidate host = candidate("1", "192.168.1.2", 5000, "host");
+    final IceCandidate srflx = candidate("3", "198.51.100.7", 6000, "srflx");
+    pipeline.addLocalCandidate(host);
+    pipeline.addLocalCandidate(srflx);
+
+    // The remote peer never heard of it, so there is nothing to signal.
+    assertEquals(0,
+        pipeline.removeLocalCandidates(new IceCandidate[] {srflx}).length);
+    pipeline.flush();
+    assertArrayEquals(new IceCandidate[] {host}, batches.get(0));
+  }
+
+  @Test
+  public void testRemoveSignaledCandidate() {
+    final IceCandidate host = candidate("1", "192.168.1.2", 5000, "host");
+    pipeline.addLocalCandidate(host);
+    pipeline.flush();
+
+    final IceCandidate[] removed = pipeline.removeLocalCandidates(
+        new IceCandidate[] {host, candidate("9", "10.9.9.9", 9, "host")});
+    assertArrayEquals(new IceCandidate[] {host}, removed);
+    // Once removed, it is signaled again if it is gathered again.
+    pipeline.addLocalCandidate(host);
+    pipeline.flush();
+    assertEquals(2, batches.size());
+  }
+
+  @Test
+  public void testRemoteDuplicates() {
+    final IceCandidate remote = candidate("1", "192.168.1.3", 7000, "host");
+    assertTrue(pipeline.addRemoteCandidate(remote));
+    assertFalse(pipeline.addRemoteCandidate(
+        candidate("1", "192.168.1.3", 7000, "host")));
+    assertEquals(1, pipeline.getStats().remoteDuplicates);
+
+    pipeline.removeRemoteCandidates(new IceCandidate[] {remote});
+    assertTrue(pipeline.addRemoteCandidate(remote));
+    assertEquals(2, pipeline.getStats().remoteCandidates);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.webrtc.DataChannel;
+
+/**
+ * One end of an in-process pair of reliable, ordered data channels that stands in for DataChannel
+ * on a JVM. Messages are delivered to the observer of the other end on a delivery thread at a
+ * configurable rate, and the buffered amount counts the bytes not yet delivered, so that flow
+ * control behaves like on a real channel. Like DataChannel, send() fails and closes the channel
+ * when the buffered amount would exceed 16 MB.
+ */
+public class LoopbackDataChannel implements BulkTransferChannel {
+  private static final String TAG = "LoopbackDataChannel";
+  // Same as kMaxQueuedSendDataBytes in webrtc/api/datachannel.cc.
+  public static final long MAX_BUFFERED_AMOUNT = 16 * 1024 * 1024;
+
+  // Queued when the channel closes to stop the delivery thread.
+  private static final DataChannel.Buffer CLOSE = new DataChannel.Buffer(null, false);
+
+  private final String label;
+  private final long bytesPerSecond;
+  private final LinkedBlockingQueue<DataChannel.Buffer> queue =
+      new LinkedBlockingQueue<DataChannel.Buffer>();
+  private final AtomicLong bufferedAmount = new AtomicLong();
+  private final Thread deliveryThread;
+  private LoopbackDataChannel peer;
+  private volatile DataChannel.Observer observer;
+  private volatile DataChannel.State state = DataChannel.State.OPEN;
+
+  /**
+   * Creates two connected ends that deliver at most |bytesPerSecond| in each direction, or without
+   * rate limit if |bytesPerSecond| is 0.
+   */
+  public static LoopbackDataChannel[] createPair(String label, long bytesPerSecond) {
+    final LoopbackDataChannel first = new LoopbackDataChannel(label + "-1", bytesPerSecond);
+    final LoopbackDataChannel second = new LoopbackDataChannel(label + "-2", bytesPerSecond);
+    first.peer = second;
+    second.peer = first;
+    first.deliveryThread.start();
+    second.deliveryThread.start();
+    return new LoopbackDataChannel[] {first, second};
+  }
+
+  private LoopbackDataChannel(String label, long bytesPerSecond) {
+    this.label = label;
+    this.bytesPerSecond = bytesPerSecond;
+    deliveryThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        deliverLoop();
+      }
+    }, TAG + "-" + label);
+    deliveryThread.setDaemon(true);
+  }
+
+  public String label() {
+    return label;
+  }
+
+  /** Register |observer|, replacing any previously-registered observer. */
+  public void registerObserver(DataChannel.Observer observer) {
+    this.observer = observer;
+  }
+
+  public void unregisterObserver() {
+    observer = null;
+  }
+
+  public DataChannel.State state() {
+    return state;
+  }
+
+  @Override
+  public long bufferedAmount() {
+    return bufferedAmount.get();
+  }
+
+  @Override
+  public boolean send(DataChannel.Buffer buffer) {
+    if (state != DataChannel.State.OPEN) {
+      return false;
+    }
+    final int size = buffer.data.remaining();
+    if (bufferedAmount.get() + size > MAX_BUFFERED_AMOUNT) {
+      Log.e(TAG, label + ": send buffer full, closing");
+      close();
+      return false;
+    }
+    // Copy like DataChannel.send(), so that the caller can reuse its buffer.
+    final ByteBuffer copy = ByteBuffer.allocate(size);
+    copy.put(buffer.data);
+    copy.flip();
+    bufferedAmount.addAndGet(size);
+    queue.add(new DataChannel.Buffer(copy, buffer.binary));
+    return true;
+  }
+
+  /** Closes both ends. Messages that are not yet delivered are dropped. */
+  public void close() {
+    closeOneEnd();
+    peer.closeOneEnd();
+  }
+
+  private void closeOneEnd() {
+    if (state == DataChannel.State.CLOSED) {
+      return;
+    }
+    state = DataChannel.State.CLOSED;
+    queue.add(CLOSE);
+    final DataChannel.Observer currentObserver = observer;
+    if (currentObserver != null) {
+      currentObserver.onStateChange();
+    }
+  }
+
+  private void deliverLoop() {
+    long nextDeliveryNs = System.nanoTime();
+    while (true) {
+      final DataChannel.Buffer buffer;
+      try {
+        buffer = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (buffer == CLOSE) {
+        return;
+      }
+      final int size = buffer.data.remaining();
+      if (bytesPerSecond > 0) {
+        // Pace deliveries so that the average rate is |bytesPerSecond|, without accumulating credit
+        // while idle.
+        nextDeliveryNs = Math.max(nextDeliveryNs, System.nanoTime())
+            + size * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        long waitNs;
+        while ((waitNs = nextDeliveryNs - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(waitNs);
+        }
+      }
+      if (state != DataChannel.State.OPEN) {
+        return;
+      }
+      final DataChannel.Observer peerObserver = peer.observer;
+      if (peerObserver != null) {
+        peerObserver.onMessage(buffer);
+      }
+      final long previousAmount = bufferedAmount.getAndAdd(-size);
+      final DataChannel.Observer currentObserver = observer;
+      if (currentObserver != null) {
+        currentObserver.onBufferedAmountChange(previousAmount);
+      }
+    }
+  }
+}
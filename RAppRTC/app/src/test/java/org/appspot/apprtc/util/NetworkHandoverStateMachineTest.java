@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.appspot.apprtc.util.NetworkHandoverStateMachine.DISCONNECT_GRACE_MS;
+import static org.appspot.apprtc.util.NetworkHandoverStateMachine.MIN_RESTART_INTERVAL_MS;
+import static org.appspot.apprtc.util.NetworkHandoverStateMachine.RECOVERY_TIMEOUT_MS;
+import static org.appspot.apprtc.util.NetworkHandoverStateMachine.RESTART_RETRY_MS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.appspot.apprtc.util.NetworkHandoverStateMachine.State;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives NetworkHandoverStateMachine with network and ICE events on a
+ * simulated clock, firing its timeouts the way PeerConnectionClient does.
+ */
+public class NetworkHandoverStateMachineTest {
+  private static class FakeDelegate implements NetworkHandoverStateMachine.Delegate {
+    int restarts;
+    int restartRequests;
+    // Time the pending timeout fires at, or -1.
+    long timeoutMs = -1;
+    long nowMs;
+    long completedGapMs = -1;
+    int completedRestarts = -1;
+    long failedGapMs = -1;
+
+    @Override
+    public void restartIce() {
+      ++restarts;
+    }
+
+    @Override
+    public void requestIceRestart() {
+      ++restartRequests;
+    }
+
+    @Override
+    public void scheduleTimeout(long delayMs) {
+      assertTrue("Negative delay " + delayMs, delayMs >= 0);
+      timeoutMs = nowMs + delayMs;
+    }
+
+    @Override
+    public void onHandoverComplete(long gapMs, int restarts) {
+      completedGapMs = gapMs;
+      completedRestarts = restarts;
+    }
+
+    @Override
+    public void onRecoveryFailed(long gapMs, int restarts) {
+      failedGapMs = gapMs;
+    }
+  }
+
+  private FakeDelegate delegate;
+  private NetworkHandoverStateMachine machine;
+
+  @Before
+  public void setUp() {
+    delegate = new FakeDelegate();
+    machine = new NetworkHandoverStateMachine(delegate);
+  }
+
+  private long advanceTo(long nowMs) {
+    delegate.nowMs = nowMs;
+    return nowMs;
+  }
+
+  // Fires the pending timeout, and returns its time.
+  private long fireTimeout() {
+    final long nowMs = advanceTo(delegate.timeoutMs);
+    delegate.timeoutMs = -1;
+    machine.onTimeout(nowMs);
+    return nowMs;
+  }
+
+  private void connect(boolean canRestart) {
+    machine.setCanRestart(canRestart);
+    machine.onIceConnected(advanceTo(0));
+    assertEquals(State.CONNECTED, machine.getState());
+  }
+
+  @Test
+  public void testNetworkChangeRestartsIceAtOnce() {
+    connect(true /* canRestart */);
+    machine.onNetworkChanged(true /* online */, advanceTo(1000));
+    assertEquals(1, delegate.restarts);
+    assertEquals(State.RESTARTING, machine.getState());
+    assertEquals(1000 + RESTART_RETRY_MS, delegate.timeoutMs);
+
+    machine.onIceConnected(advanceTo(1400));
+    assertEquals(State.CONNECTED, machine.getState());
+    assertEquals(400, delegate.completedGapMs);
+    assertEquals(1, delegate.completedRestarts);
+    assertEquals(1, machine.getStats().handovers);
+  }
+
+  @Test
+  public void testAnswererRequestsRestartFromRemotePeer() {
+    connect(false /* canRestart */);
+    machine.onNetworkChanged(true /* online */, advanceTo(1000));
+    assertEquals(0, delegate.restarts);
+    assertEquals(1, delegate.restartRequests);
+    assertEquals(State.RESTARTING, machine.getState());
+
+    // The request is repeated until the remote peer restarts ICE.
+    assertEquals(1000 + RESTART_RETRY_MS, fireTimeout());
+    assertEquals(2, delegate.restartRequests);
+
+    machine.onIceConnected(advanceTo(6000));
+    assertEquals(5000, delegate.completedGapMs);
+    assertEquals(0, delegate.restarts);
+  }
+
+  @Test
+  public void testRemoteRequestRestartsIceOnOfferer() {
+    connect(true /* canRestart */);
+    machine.onRestartRequested(advanceTo(1000));
+    assertEquals(1, delegate.restarts);
+    assertEquals(State.RESTARTING, machine.getState());
+  }
+
+  @Test
+  public void testRemoteRequestIsIgnoredByAnswerer() {
+    connect(false /* canRestart */);
+    machine.onRestartRequested(advanceTo(1000));
+    assertEquals(0, delegate.restarts);
+    assertEquals(0, delegate.restartRequests);
+    assertEquals(State.CONNECTED, machine.getState());
+  }
+
+  @Test
+  public void testDisconnectRecoversWithinGracePeriod() {
+    connect(true /* canRestart */);
+    machine.onIceDisconnected(advanceTo(1000));
+    assertEquals(State.DISCONNECTED, machine.getState());
+    assertEquals(1000 + DISCONNECT_GRACE_MS, delegate.timeoutMs);
+
+    machine.onIceConnected(advanceTo(1500));
+    assertEquals(0, delegate.restarts);
+    assertEquals(500, delegate.completedGapMs);
+    assertEquals(0, delegate.completedRestarts);
+  }
+
+  @Test
+  public void testDisconnectRestartsAfterGracePeriod() {
+    connect(true /* canRestart */);
+    machine.onIceDisconnected(advanceTo(1000));
+    fireTimeout();
+    assertEquals(1, delegate.restarts);
+    assertEquals(State.RESTARTING, machine.getState());
+  }
+
+  @Test
+  public void testFlappingNetworkSpacesRestarts() {
+    connect(true /* canRestart */);
+    machine.onNetworkChanged(true /* online */, advanceTo(1000));
+    machine.onNetworkChanged(true /* online */, advanceTo(1100));
+    assertEquals(1, delegate.restarts);
+    assertEquals(1000 + MIN_RESTART_INTERVAL_MS, delegate.timeoutMs);
+
+    fireTimeout();
+    assertEquals(2, delegate.restarts);
+  }
+
+  @Test
+  public void testOfflineWaitsForNetwork() {
+    connect(true /* canRestart */);
+    machine.onNetworkChanged(false /* online */, advanceTo(1000));
+    assertEquals(State.OFFLINE, machine.getState());
+    assertEquals(0, delegate.restarts);
+    assertEquals(1000 + RECOVERY_TIMEOUT_MS, delegate.timeoutMs);
+
+    machine.onNetworkChanged(true /* online */, advanceTo(5000));
+    assertEquals(1, delegate.restarts);
+    machine.onIceConnected(advanceTo(5400));
+    assertEquals(4400, delegate.completedGapMs);
+  }
+
+  @Test
+  public void testRestartsAreRetriedUntilRecoveryTimeout() {
+    connect(true /* canRestart */);
+    machine.onNetworkChanged(true /* online */, advanceTo(1000));
+    while (machine.getState() == State.RESTARTING) {
+      fireTimeout();
+    }
+    assertEquals(State.FAILED, machine.getState());
+    assertEquals(RECOVERY_TIMEOUT_MS, delegate.failedGapMs);
+    assertEquals(1 + (RECOVERY_TIMEOUT_MS - 1) / RESTART_RETRY_MS, delegate.restarts);
+    assertEquals(1, machine.getStats().failures);
+    assertFalse(machine.isRecovering());
+
+    // Nothing is recovered after failing.
+    machine.onNetworkChanged(true /* online */, advanceTo(30000));
+    assertEquals(State.FAILED, machine.getState());
+  }
+
+  @Test
+  public void testIceFailureBeforeFirstConnectIsNotRecovered() {
+    machine.setCanRestart(true);
+    assertFalse(machine.onIceFailed(advanceTo(1000)));
+    assertEquals(State.NEW, machine.getState());
+    assertEquals(0, delegate.restarts);
+  }
+}
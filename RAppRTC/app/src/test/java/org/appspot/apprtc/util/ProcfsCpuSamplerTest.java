@@ -0,0 +1,271 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the parsing of ProcfsCpuSampler on canned procfs and sysfs files,
+ * which are rewritten between samples like the kernel regenerates them.
+ */
+public class ProcfsCpuSamplerTest {
+  private static final String PROC_STAT_1 =
+      "cpu  100 20 300 4000 50 6 4 0 0 0\n"
+      + "cpu0 60 10 200 2000 30 4 2 0 0 0\n"
+      + "cpu1 40 10 100 2000 20 2 2 0 0 0\n"
+      + "intr 123456 0 0\n"
+      + "ctxt 98765\n";
+  private static final String PROC_STAT_2 =
+      "cpu  200 20 400 4200 50 6 4 0 0 0\n"
+      + "cpu0 160 10 300 2000 30 4 2 0 0 0\n"
+      + "intr 123999 0 0\n";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File procStat;
+  private File cpuDir;
+  private File taskDir;
+  private ProcfsCpuSampler sampler;
+
+  @Before
+  public void setUp() throws IOException {
+    procStat = folder.newFile("stat");
+    cpuDir = folder.newFolder("cpu");
+    taskDir = folder.newFolder("task");
+    write(new File(cpuDir, "present"), "0-3\n");
+  }
+
+  @After
+  public void tearDown() {
+    if (sampler != null) {
+      sampler.close();
+    }
+  }
+
+  private static void write(File file, String content) throws IOException {
+    file.getParentFile().mkdirs();
+    final FileOutputStream stream = new FileOutputStream(file);
+    try {
+      stream.write(content.getBytes("US-ASCII"));
+    } finally {
+      stream.close();
+    }
+  }
+
+  // Writes the stat file of thread |tid| with the given name and CPU times,
+  // with the fields of a real stat file in between.
+  private void writeThreadStat(int tid, String name, long utime, long stime) throws IOException {
+    write(new File(taskDir, tid + "/stat"), tid + " (" + name + ") S 1 1 0 0 -1 4194560 "
+        + "2050 0 12 0 " + utime + " " + stime + " 0 0 20 0 1 0 2345 0 0\n");
+  }
+
+  private ProcfsCpuSampler createSampler() {
+    sampler = new ProcfsCpuSampler(
+        procStat.getPath(), cpuDir.getPath() + "/", taskDir.getPath() + "/");
+    return sampler;
+  }
+
+  private static Map<Integer, ProcfsCpuSampler.ThreadSample> threadsById(
+      ProcfsCpuSampler sampler) {
+    final Map<Integer, ProcfsCpuSampler.ThreadSample> threads =
+        new HashMap<Integer, ProcfsCpuSampler.ThreadSample>();
+    for (ProcfsCpuSampler.ThreadSample thread : sampler.getThreads()) {
+      threads.put(thread.tid, thread);
+    }
+    return threads;
+  }
+
+  @Test
+  public void testCoreCountFromPresentRange() throws IOException {
+    assertEquals(4, createSampler().getCoreCount());
+    sampler.close();
+
+    write(new File(cpuDir, "present"), "0\n");
+    assertEquals(1, createSampler().getCoreCount());
+    sampler.close();
+
+    assertTrue(new File(cpuDir, "present").delete());
+    assertEquals(0, createSampler().getCoreCount());
+  }
+
+  @Test
+  public void testProcStatTotalsAndCores() throws IOException {
+    write(procStat, PROC_STAT_1);
+    createSampler();
+    assertTrue(sampler.sampleProcStat());
+
+    // user + nice + iowait, and system + irq + softirq.
+    assertEquals(170, sampler.getTotalTimes().user);
+    assertEquals(310, sampler.getTotalTimes().system);
+    assertEquals(4000, sampler.getTotalTimes().idle);
+    assertEquals(100, sampler.getCoreTimes(0).user);
+    assertEquals(206, sampler.getCoreTimes(0).system);
+    assertEquals(70, sampler.getCoreTimes(1).user);
+    assertEquals(104, sampler.getCoreTimes(1).system);
+    // Cores 2 and 3 are offline.
+    assertEquals(0, sampler.getCoreTimes(2).idle);
+    assertEquals(0, sampler.getCoreTimes(3).idle);
+    // The first sample is compared with zero times, i.e. the time since boot.
+    assertEquals(480.0 / 4480, sampler.getTotalUtilization(), 1e-9);
+
+    // Core 1 goes offline.
+    write(procStat, PROC_STAT_2);
+    assertTrue(sampler.sampleProcStat());
+    // 200 busy and 200 idle ticks.
+    assertEquals(0.5, sampler.getTotalUtilization(), 1e-9);
+    assertEquals(1.0, sampler.getCoreUtilization(0), 1e-9);
+    assertEquals(0, sampler.getCoreUtilization(1), 0);
+    assertEquals(0, sampler.getCoreTimes(1).user);
+  }
+
+  @Test
+  public void testProcStatWithoutIrqFields() throws IOException {
+    // Kernels before 2.6 only report user, nice, system and idle.
+    write(procStat, "cpu 1 2 3 4\ncpu0 1 2 3 4\n");
+    createSampler();
+    assertTrue(sampler.sampleProcStat());
+    assertEquals(3, sampler.getTotalTimes().user);
+    assertEquals(3, sampler.getTotalTimes().system);
+    assertEquals(4, sampler.getTotalTimes().idle);
+    assertEquals(3, sampler.getCoreTimes(0).user);
+  }
+
+  @Test
+  public void testProcStatFailures() throws IOException {
+    // Opening the file is retried until it succeeds.
+    assertTrue(procStat.delete());
+    createSampler();
+    assertFalse(sampler.sampleProcStat());
+    write(procStat, "intr 1 2 3\n");
+    assertFalse(sampler.sampleProcStat());
+    write(procStat, "cpu 1 2\n");
+    assertFalse(sampler.sampleProcStat());
+    write(procStat, PROC_STAT_1);
+    assertTrue(sampler.sampleProcStat());
+    assertEquals(4000, sampler.getTotalTimes().idle);
+  }
+
+  @Test
+  public void testFrequencies() throws IOException {
+    write(new File(cpuDir, "cpu0/cpufreq/scaling_cur_freq"), "1200000\n");
+    write(new File(cpuDir, "cpu0/cpufreq/cpuinfo_max_freq"), "2400000\n");
+    createSampler();
+    assertEquals(1200000, sampler.readCurrentFrequency(0));
+    assertEquals(2400000, sampler.readMaxFrequency(0));
+    // Offline cores have no cpufreq files.
+    assertEquals(0, sampler.readCurrentFrequency(1));
+    assertEquals(0, sampler.readMaxFrequency(1));
+
+    write(new File(cpuDir, "cpu0/cpufreq/scaling_cur_freq"), "300000\n");
+    write(new File(cpuDir, "cpu0/cpufreq/cpuinfo_max_freq"), "1000\n");
+    assertEquals(300000, sampler.readCurrentFrequency(0));
+    // The max frequency is read once.
+    assertEquals(2400000, sampler.readMaxFrequency(0));
+
+    write(new File(cpuDir, "cpu1/cpufreq/cpuinfo_max_freq"), "1800000\n");
+    assertEquals(1800000, sampler.readMaxFrequency(1));
+  }
+
+  @Test
+  public void testThreadTimesAndNames() throws IOException {
+    writeThreadStat(100, "main", 500, 200);
+    // Command names can contain spaces and parentheses.
+    writeThreadStat(101, "Render (1) x", 10, 5);
+    createSampler();
+    assertTrue(sampler.sampleThreads());
+
+    Map<Integer, ProcfsCpuSampler.ThreadSample> threads = threadsById(sampler);
+    assertEquals(2, threads.size());
+    final ProcfsCpuSampler.ThreadSample render = threads.get(101);
+    assertEquals("Render (1) x", render.name);
+    assertEquals(10, render.userTicks);
+    assertEquals(5, render.systemTicks);
+    // No delta for a thread seen the first time.
+    assertEquals(0, render.deltaTicks);
+    assertEquals("main", threads.get(100).name);
+
+    writeThreadStat(100, "main", 530, 210);
+    writeThreadStat(101, "Render (1) x", 25, 5);
+    assertTrue(sampler.sampleThreads());
+    threads = threadsById(sampler);
+    assertEquals(40, threads.get(100).deltaTicks);
+    assertEquals(15, threads.get(101).deltaTicks);
+    assertEquals(530, threads.get(100).userTicks);
+  }
+
+  @Test
+  public void testExitedAndNewThreads() throws IOException {
+    writeThreadStat(100, "main", 500, 200);
+    writeThreadStat(101, "worker", 10, 5);
+    createSampler();
+    assertTrue(sampler.sampleThreads());
+
+    // Thread 101 exits, thread 102 starts and a non-numeric entry is ignored.
+    assertTrue(new File(taskDir, "101/stat").delete());
+    assertTrue(new File(taskDir, "101").delete());
+    writeThreadStat(102, "late", 7, 3);
+    assertTrue(new File(taskDir, "self").mkdir());
+    assertTrue(sampler.sampleThreads());
+
+    final Map<Integer, ProcfsCpuSampler.ThreadSample> threads = threadsById(sampler);
+    assertEquals(2, threads.size());
+    assertNotNull(threads.get(100));
+    assertEquals("late", threads.get(102).name);
+    assertEquals(0, threads.get(102).deltaTicks);
+  }
+
+  @Test
+  public void testContextSwitches() throws IOException {
+    writeThreadStat(100, "main", 500, 200);
+    final File status = new File(taskDir, "100/status");
+    write(status, "Name:\tmain\nState:\tS (sleeping)\nThreads:\t12\n"
+        + "voluntary_ctxt_switches:\t1234\nnonvoluntary_ctxt_switches:\t56\n");
+    createSampler();
+    assertTrue(sampler.sampleThreads());
+    final ProcfsCpuSampler.ThreadSample thread = threadsById(sampler).get(100);
+
+    assertTrue(sampler.sampleContextSwitches(thread));
+    assertEquals(1234, thread.voluntarySwitches);
+    assertEquals(56, thread.nonvoluntarySwitches);
+    assertEquals(0, thread.deltaVoluntarySwitches);
+
+    write(status, "Name:\tmain\nvoluntary_ctxt_switches:\t1300\n"
+        + "nonvoluntary_ctxt_switches:\t60\n");
+    assertTrue(sampler.sampleContextSwitches(thread));
+    assertEquals(66, thread.deltaVoluntarySwitches);
+    assertEquals(4, thread.deltaNonvoluntarySwitches);
+
+    write(status, "Name:\tmain\n");
+    assertFalse(sampler.sampleContextSwitches(thread));
+  }
+
+  @Test
+  public void testMissingTaskDirectory() throws IOException {
+    createSampler();
+    assertTrue(taskDir.delete());
+    assertFalse(sampler.sampleThreads());
+  }
+}
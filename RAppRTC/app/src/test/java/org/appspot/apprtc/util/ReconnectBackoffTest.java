@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the delays of ReconnectBackoff with a fixed and a seeded Random.
+ */
+public class ReconnectBackoffTest {
+  private static final long INITIAL_DELAY_MS = 500;
+  private static final long MAX_DELAY_MS = 30000;
+  private static final int MAX_ATTEMPTS = 8;
+
+  // Random that always returns |value| from nextDouble().
+  private static class FixedRandom extends Random {
+    private static final long serialVersionUID = 1L;
+
+    private final double value;
+
+    FixedRandom(double value) {
+      this.value = value;
+    }
+
+    @Override
+    public double nextDouble() {
+      return value;
+    }
+  }
+
+  private static ReconnectBackoff createBackoff(Random random) {
+    return new ReconnectBackoff(INITIAL_DELAY_MS, MAX_DELAY_MS, MAX_ATTEMPTS, random);
+  }
+
+  @Test
+  public void testDelaysDoubleUpToMaximum() {
+    final ReconnectBackoff backoff = createBackoff(new FixedRandom(0));
+    final long[] expectedDelaysMs = {250, 500, 1000, 2000, 4000, 8000, 15000, 15000};
+    for (int i = 0; i < expectedDelaysMs.length; ++i) {
+      assertEquals(expectedDelaysMs[i], backoff.nextDelayMs(0));
+      assertEquals(i + 1, backoff.getAttempts());
+    }
+  }
+
+  @Test
+  public void testJitterShortensDelayByUpToHalf() {
+    final ReconnectBackoff longest = createBackoff(new FixedRandom(Math.nextDown(1.0)));
+    assertEquals(INITIAL_DELAY_MS, longest.nextDelayMs(0));
+
+    final Random random = new Random(42);
+    for (int outage = 0; outage < 100; ++outage) {
+      final ReconnectBackoff backoff = createBackoff(random);
+      long delayMs = INITIAL_DELAY_MS;
+      for (int i = 0; i < MAX_ATTEMPTS; ++i) {
+        final long jitteredMs = backoff.nextDelayMs(0);
+        assertTrue("Delay " + jitteredMs, jitteredMs >= delayMs / 2 && jitteredMs <= delayMs);
+        delayMs = Math.min(2 * delayMs, MAX_DELAY_MS);
+      }
+    }
+  }
+
+  @Test
+  public void testGivesUpAfterMaxAttempts() {
+    final ReconnectBackoff backoff = createBackoff(new FixedRandom(0));
+    for (int i = 0; i < MAX_ATTEMPTS; ++i) {
+      assertTrue(backoff.nextDelayMs(1000 * i) >= 0);
+    }
+    assertEquals(-1, backoff.nextDelayMs(60000));
+    assertFalse(backoff.isReconnecting());
+    assertTrue(backoff.toString(), backoff.toString().contains("gave up: 1"));
+
+    // The next outage starts again from the initial delay.
+    assertEquals(INITIAL_DELAY_MS / 2, backoff.nextDelayMs(70000));
+    assertEquals(1, backoff.getAttempts());
+  }
+
+  @Test
+  public void testConnectedEndsOutage() {
+    final ReconnectBackoff backoff = createBackoff(new FixedRandom(0));
+    assertFalse(backoff.isReconnecting());
+    assertEquals(-1, backoff.onConnected(500));
+
+    backoff.nextDelayMs(1000);
+    backoff.nextDelayMs(1250);
+    assertTrue(backoff.isReconnecting());
+    assertEquals(800, backoff.onConnected(1800));
+    assertFalse(backoff.isReconnecting());
+    assertEquals(-1, backoff.onConnected(2000));
+    // The attempts of the last outage are kept for logging.
+    assertEquals(2, backoff.getAttempts());
+    assertTrue(backoff.toString(), backoff.toString().contains("Reconnects: 1"));
+
+    // A new outage starts at its first delay.
+    assertEquals(INITIAL_DELAY_MS / 2, backoff.nextDelayMs(5000));
+    assertEquals(100, backoff.onConnected(5100));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LooperExecutor on a thread of a ScheduledExecutorService instead of a Looper, so that
+ * WebSocketRTCClient runs on a plain JVM. Tasks posted after requestStop() are dropped.
+ */
+class ScheduledLooperExecutor extends LooperExecutor {
+  private ScheduledExecutorService scheduler;
+  private volatile long threadId = -1;
+
+  @Override
+  public synchronized void requestStart() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      threadId = scheduler.submit(new Callable<Long>() {
+        @Override
+        public Long call() {
+          return Thread.currentThread().getId();
+        }
+      }).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public synchronized void requestStop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+  }
+
+  @Override
+  public boolean checkOnLooperThread() {
+    return Thread.currentThread().getId() == threadId;
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    if (checkOnLooperThread()) {
+      runnable.run();
+    } else {
+      executeDelayed(runnable, 0);
+    }
+  }
+
+  @Override
+  public synchronized void executeDelayed(final Runnable runnable, long delayMs) {
+    if (scheduler == null) {
+      throw new IllegalStateException("Running executor without calling requestStart()");
+    }
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            runnable.run();
+          } catch (RuntimeException | Error e) {
+            // Reported like on a Looper, instead of being kept in the future.
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+          }
+        }
+      }, delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Stopped.
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the signaling tools, which run on a plain JVM without
+ * org.json. Objects are read as Maps, arrays as Lists, integral numbers as Long and other numbers
+ * as Double.
+ */
+class SignalingJson {
+  private final String text;
+  private int position;
+
+  private SignalingJson(String text) {
+    this.text = text;
+  }
+
+  /**
+   * Parses a JSON object. Throws IllegalArgumentException if |text| is not one.
+   */
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> parseObject(String text) {
+    final SignalingJson parser = new SignalingJson(text);
+    final Object value = parser.readValue();
+    parser.skipWhitespace();
+    if (!(value instanceof Map) || parser.position != text.length()) {
+      throw new IllegalArgumentException("Not a JSON object: " + text);
+    }
+    return (Map<String, Object>) value;
+  }
+
+  /**
+   * Returns the string member |key| of |json|, or null if it is missing or not a string.
+   */
+  static String getString(Map<String, Object> json, String key) {
+    final Object value = json.get(key);
+    return (value instanceof String) ? (String) value : null;
+  }
+
+  static String toJson(Object value) {
+    final StringBuilder builder = new StringBuilder();
+    write(builder, value);
+    return builder.toString();
+  }
+
+  private static void write(StringBuilder builder, Object value) {
+    if (value == null) {
+      builder.append("null");
+    } else if (value instanceof String) {
+      quote(builder, (String) value);
+    } else if (value instanceof Map) {
+      builder.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first) {
+          builder.append(',');
+        }
+        first = false;
+        quote(builder, entry.getKey().toString());
+        builder.append(':');
+        write(builder, entry.getValue());
+      }
+      builder.append('}');
+    } else if (value instanceof List) {
+      builder.append('[');
+      boolean first = true;
+      for (Object element : (List<?>) value) {
+        if (!first) {
+          builder.append(',');
+        }
+        first = false;
+        write(builder, element);
+      }
+      builder.append(']');
+    } else {
+      builder.append(value);
+    }
+  }
+
+  private static void quote(StringBuilder builder, String value) {
+    builder.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          builder.append("\\\"");
+          break;
+        case '\\':
+          builder.append("\\\\");
+          break;
+        case '\n':
+          builder.append("\\n");
+          break;
+        case '\r':
+          builder.append("\\r");
+          break;
+        case '\t':
+          builder.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            builder.append(String.format("\\u%04x", (int) c));
+          } else {
+            builder.append(c);
+          }
+      }
+    }
+    builder.append('"');
+  }
+
+  private Object readValue() {
+    skipWhitespace();
+    if (position >= text.length()) {
+      throw error("Unexpected end");
+    }
+    final char c = text.charAt(position);
+    if (c == '{') {
+      return readObject();
+    } else if (c == '[') {
+      return readArray();
+    } else if (c == '"') {
+      return readString();
+    } else if (text.startsWith("true", position)) {
+      position += 4;
+      return Boolean.TRUE;
+    } else if (text.startsWith("false", position)) {
+      position += 5;
+      return Boolean.FALSE;
+    } else if (text.startsWith("null", position)) {
+      position += 4;
+      return null;
+    }
+    return readNumber();
+  }
+
+  private Map<String, Object> readObject() {
+    final Map<String, Object> object = new LinkedHashMap<String, Object>();
+    ++position;
+    skipWhitespace();
+    if (consume('}')) {
+      return object;
+    }
+    do {
+      skipWhitespace();
+      if (position >= text.length() || text.charAt(position) != '"') {
+        throw error("Expected a key");
+      }
+      final String key = readString();
+      skipWhitespace();
+      if (!consume(':')) {
+        throw error("Expected ':'");
+      }
+      object.put(key, readValue());
+      skipWhitespace();
+    } while (consume(','));
+    if (!consume('}')) {
+      throw error("Expected '}'");
+    }
+    return object;
+  }
+
+  private List<Object> readArray() {
+    final List<Object> array = new ArrayList<Object>();
+    ++position;
+    skipWhitespace();
+    if (consume(']')) {
+      return array;
+    }
+    do {
+      array.add(readValue());
+      skipWhitespace();
+    } while (consume(','));
+    if (!consume(']')) {
+      throw error("Expected ']'");
+    }
+    return array;
+  }
+
+  private String readString() {
+    final StringBuilder builder = new StringBuilder();
+    ++position;
+    while (position < text.length()) {
+      final char c = text.charAt(position++);
+      if (c == '"') {
+        return builder.toString();
+      }
+      if (c != '\\') {
+        builder.append(c);
+        continue;
+      }
+      if (position >= text.length()) {
+        break;
+      }
+      final char escaped = text.charAt(position++);
+      switch (escaped) {
+        case 'b':
+          builder.append('\b');
+          break;
+        case 'f':
+          builder.append('\f');
+          break;
+        case 'n':
+          builder.append('\n');
+          break;
+        case 'r':
+          builder.append('\r');
+          break;
+        case 't':
+          builder.append('\t');
+          break;
+        case 'u':
+          if (position + 4 > text.length()) {
+            throw error("Bad escape");
+          }
+          try {
+            builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+          } catch (NumberFormatException e) {
+            throw error("Bad escape");
+          }
+          position += 4;
+          break;
+        default:
+          builder.append(escaped);
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  private Object readNumber() {
+    final int start = position;
+    while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+      ++position;
+    }
+    final String number = text.substring(start, position);
+    try {
+      if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+        return Long.parseLong(number);
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw error("Bad value");
+    }
+  }
+
+  private boolean consume(char c) {
+    if (position < text.length() && text.charAt(position) == c) {
+      ++position;
+      return true;
+    }
+    return false;
+  }
+
+  private void skipWhitespace() {
+    while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+      ++position;
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at " + position + " in JSON: " + text);
+  }
+}
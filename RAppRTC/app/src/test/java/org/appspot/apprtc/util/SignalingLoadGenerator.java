@@ -0,0 +1,499 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.appspot.apprtc.AppRTCClient;
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.DirectRTCClient;
+import org.appspot.apprtc.WebSocketRTCClient;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Replays a recorded SignalingSession for many simulated clients against a StandInSignalingServer
+ * in the same JVM, and prints how long signaling takes under load. The clients are
+ * WebSocketRTCClient and DirectRTCClient, the former on a ScheduledLooperExecutor, and the
+ * recorded session stands in for their peer connections.
+ *
+ * Over WebSocket, each room has an offerer and an answerer: both join, the offerer sends its side
+ * of the session on onOfferRequest, the answerer its side on onAnswerRequest, and the offerer
+ * leaves once it has the answer and all candidates. As in the app, the offerer does not send its
+ * candidates over WebSocket. Over TCP, each client connects to the stand-in, answers the offer it
+ * replays, and is done when the stand-in hangs up. To test session resumption, the stand-in drops
+ * the connection of each answerer once it joined, and the offer is relayed while
+ * WebSocketChannelClient reconnects. Rooms and TCP clients start evenly spread over |RAMP_MS|.
+ *
+ * Reported: the time from connecting until created/joined, from sending the offer until the answer
+ * arrives, from connecting the offerer until it has the answer, from dropping a connection until
+ * the session resumed, how long onWebSocketMessage() and onTCPMessage() take, by signal, and the
+ * statistics of the server.
+ *
+ * Usage: java -cp <unit test classpath> org.appspot.apprtc.util.SignalingLoadGenerator
+ *     [rooms (100)] [TCP clients (100)] [recorded session]
+ * The Android classes on the classpath need to return default values, like with
+ * unitTests.returnDefaultValues.
+ */
+class SignalingLoadGenerator {
+  private static final int DEFAULT_ROOMS = 100;
+  private static final int DEFAULT_TCP_CLIENTS = 100;
+  private static final long RAMP_MS = 2000;
+  private static final long TIMEOUT_MS = 60000;
+
+  private final SignalingSession session;
+  private final StandInSignalingServer server;
+  private final String roomUrl;
+  private final String tcpRoomId;
+  private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+  private final LatencyHistogram registration = new LatencyHistogram("Connect->registered");
+  private final LatencyHistogram offerToAnswer = new LatencyHistogram("Offer->answer");
+  private final LatencyHistogram setup = new LatencyHistogram("Room setup");
+  private final LatencyHistogram tcpSetup = new LatencyHistogram("TCP connect->answer sent");
+  private final LatencyHistogram resume = new LatencyHistogram("Drop->resumed");
+  private final ConcurrentMap<String, LatencyHistogram> handlingLatency =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private final AtomicInteger completed = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+
+  // One simulated client, which sends its side of the session through |client|. The callbacks
+  // run on the thread of |client|.
+  private abstract class LoadClient implements AppRTCClient.SignalingEvents {
+    final boolean offerer;
+    final CountDownLatch done;
+    final int expectedCandidates;
+    final AtomicBoolean finished = new AtomicBoolean();
+    // Steps of this side not sent yet, once its turn started.
+    final AtomicInteger unsentSteps = new AtomicInteger(-1);
+    AppRTCClient client;
+    volatile int candidates;
+
+    LoadClient(boolean offerer, CountDownLatch done) {
+      this.offerer = offerer;
+      this.done = done;
+      expectedCandidates = session.getCandidateCount(!offerer);
+    }
+
+    // Sends the steps of this side to |to|, at their offsets.
+    void replay(final String to) {
+      final List<SignalingSession.Step> steps =
+          offerer ? session.offererSteps : session.answererSteps;
+      unsentSteps.set(steps.size());
+      for (final SignalingSession.Step step : steps) {
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            if (step.description) {
+              onDescriptionSent();
+              if (offerer) {
+                client.sendOfferSdp(
+                    new SessionDescription(SessionDescription.Type.OFFER, step.payload), to);
+              } else {
+                client.sendAnswerSdp(
+                    new SessionDescription(SessionDescription.Type.ANSWER, step.payload));
+              }
+            } else {
+              client.sendLocalIceCandidates(new IceCandidate[] {new IceCandidate(
+                  SignalingSession.CANDIDATE_MID, SignalingSession.CANDIDATE_MLINE_INDEX,
+                  step.payload)});
+            }
+            if (unsentSteps.decrementAndGet() == 0) {
+              onStepsSent();
+            }
+          }
+        }, step.offsetMs, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    void onDescriptionSent() {}
+
+    void onStepsSent() {}
+
+    // Whether this client counts as completed when it finishes successfully.
+    abstract boolean countsCompletion();
+
+    void finish(boolean success) {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      client.disconnectFromRoom();
+      if (!success) {
+        failures.incrementAndGet();
+      } else if (countsCompletion()) {
+        completed.incrementAndGet();
+      }
+      done.countDown();
+    }
+
+    @Override
+    public void onConnectedToRoom(SignalingParameters params) {}
+
+    @Override
+    public void onOfferRequest(String from) {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public void onAnswerRequest(SessionDescription sdp, String from) {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public void onRemoteDescription(SessionDescription sdp) {}
+
+    @Override
+    public void onRemoteIceCandidate(IceCandidate candidate) {
+      ++candidates;
+    }
+
+    @Override
+    public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {}
+
+    @Override
+    public void onRemoteIceRestartRequest() {}
+
+    @Override
+    public void onChannelClose() {}
+
+    @Override
+    public void onChannelError(String description) {
+      finish(false);
+    }
+  }
+
+  private static class Room {
+    final String name;
+    // Whether the stand-in drops the connection of the answerer once it joined.
+    final boolean dropAnswerer;
+    final CountDownLatch done;
+    final long startNs = System.nanoTime();
+    volatile long droppedNs;
+
+    Room(String name, boolean dropAnswerer, CountDownLatch done) {
+      this.name = name;
+      this.dropAnswerer = dropAnswerer;
+      this.done = done;
+    }
+  }
+
+  // WebSocketRTCClient that times how long handling each message takes.
+  private class TimedWebSocketRTCClient extends WebSocketRTCClient {
+    private final RoomClient roomClient;
+
+    TimedWebSocketRTCClient(RoomClient roomClient) {
+      super(roomClient, new ScheduledLooperExecutor());
+      this.roomClient = roomClient;
+    }
+
+    @Override
+    public void onWebSocketMessage(String message) {
+      final long startNs = System.nanoTime();
+      super.onWebSocketMessage(message);
+      final long handlingUs = (System.nanoTime() - startNs) / 1000;
+      final String signal = getString(message, "signal");
+      getHandlingLatency("ws:" + signal).addSample(handlingUs);
+      roomClient.onMessageHandled(signal);
+    }
+  }
+
+  // One side of a room.
+  private class RoomClient extends LoadClient {
+    final Room room;
+    long connectNs;
+    volatile long offerSentNs;
+    volatile boolean answered;
+
+    RoomClient(Room room, boolean offerer) {
+      super(offerer, room.done);
+      this.room = room;
+    }
+
+    void start() {
+      client = new TimedWebSocketRTCClient(this);
+      connectNs = System.nanoTime();
+      client.connectToRoom(new RoomConnectionParameters(roomUrl, room.name, false /* loopback */));
+    }
+
+    // Called after the client handled a message with |signal|.
+    void onMessageHandled(String signal) {
+      switch (signal) {
+        case "created":
+          registration.addSample((System.nanoTime() - connectNs) / 1000);
+          if (offerer) {
+            // The answerer joins once the room exists.
+            scheduler.execute(new Runnable() {
+              @Override
+              public void run() {
+                new RoomClient(room, false).start();
+              }
+            });
+          }
+          break;
+        case "joined":
+          registration.addSample((System.nanoTime() - connectNs) / 1000);
+          break;
+        case "resumed":
+          resume.addSample((System.nanoTime() - room.droppedNs) / 1000);
+          break;
+        default:
+          break;
+      }
+    }
+
+    @Override
+    public void onOfferRequest(String from) {
+      if (!offerer) {
+        super.onOfferRequest(from);
+        return;
+      }
+      if (room.dropAnswerer) {
+        room.droppedNs = System.nanoTime();
+        server.dropConnection(from);
+      }
+      replay(from);
+    }
+
+    @Override
+    public void onAnswerRequest(SessionDescription sdp, String from) {
+      if (offerer) {
+        super.onAnswerRequest(sdp, from);
+        return;
+      }
+      replay(from);
+    }
+
+    @Override
+    public void onRemoteDescription(SessionDescription sdp) {
+      final long nowNs = System.nanoTime();
+      offerToAnswer.addSample((nowNs - offerSentNs) / 1000);
+      setup.addSample((nowNs - room.startNs) / 1000);
+      answered = true;
+      finishIfOfferDone();
+    }
+
+    @Override
+    public void onRemoteIceCandidate(IceCandidate candidate) {
+      super.onRemoteIceCandidate(candidate);
+      finishIfOfferDone();
+    }
+
+    @Override
+    void onDescriptionSent() {
+      offerSentNs = System.nanoTime();
+    }
+
+    @Override
+    void onStepsSent() {
+      finishIfOfferDone();
+    }
+
+    // A room completes when the offerer leaves.
+    @Override
+    boolean countsCompletion() {
+      return offerer;
+    }
+
+    // The answerer is done once the offerer left.
+    @Override
+    public void onChannelClose() {
+      finish(!offerer);
+    }
+
+    // The offerer leaves once it sent its side of the session and has the answerer's side.
+    private void finishIfOfferDone() {
+      if (offerer && answered && candidates >= expectedCandidates && unsentSteps.get() == 0) {
+        finish(true);
+      }
+    }
+  }
+
+  // DirectRTCClient that times how long handling each message takes.
+  private class TimedDirectRTCClient extends DirectRTCClient {
+    TimedDirectRTCClient(TcpClient tcpClient) {
+      super(tcpClient);
+    }
+
+    @Override
+    public void onTCPMessage(String message) {
+      final long startNs = System.nanoTime();
+      super.onTCPMessage(message);
+      final long handlingUs = (System.nanoTime() - startNs) / 1000;
+      getHandlingLatency("tcp:" + getString(message, "type")).addSample(handlingUs);
+    }
+  }
+
+  // The client side of a direct connection, which answers the offer of the stand-in.
+  private class TcpClient extends LoadClient {
+    final long connectNs = System.nanoTime();
+    volatile boolean offered;
+
+    TcpClient(CountDownLatch done) {
+      super(false /* offerer */, done);
+    }
+
+    void start() {
+      client = new TimedDirectRTCClient(this);
+      client.connectToRoom(new RoomConnectionParameters(null, tcpRoomId, false /* loopback */));
+    }
+
+    @Override
+    public void onConnectedToRoom(SignalingParameters params) {
+      // Called with the offer of the server side.
+      if (params.offerSdp == null) {
+        finish(false);
+        return;
+      }
+      offered = true;
+      replay(null);
+    }
+
+    @Override
+    void onDescriptionSent() {
+      tcpSetup.addSample((System.nanoTime() - connectNs) / 1000);
+    }
+
+    @Override
+    boolean countsCompletion() {
+      return true;
+    }
+
+    // The stand-in hangs up once it has the answer and all candidates.
+    @Override
+    public void onChannelClose() {
+      finish(offered && candidates >= expectedCandidates);
+    }
+  }
+
+  private SignalingLoadGenerator(SignalingSession session, StandInSignalingServer server) {
+    this.session = session;
+    this.server = server;
+    final String host = InetAddress.getLoopbackAddress().getHostAddress();
+    roomUrl = "ws://" + host + ":" + server.getWebSocketPort();
+    tcpRoomId = host + ":" + server.getTcpPort();
+  }
+
+  // Runs |rooms| rooms, and returns whether all finished in time.
+  private boolean runRooms(final String prefix, int rooms, final boolean dropAnswerers)
+      throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(2 * rooms);
+    for (int i = 0; i < rooms; ++i) {
+      final String room = prefix + i;
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          new RoomClient(new Room(room, dropAnswerers, done), true /* offerer */).start();
+        }
+      }, i * RAMP_MS / rooms, TimeUnit.MILLISECONDS);
+    }
+    return done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  // Runs |clients| TCP clients, and returns whether all finished in time.
+  private boolean runTcpClients(int clients) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(clients);
+    for (int i = 0; i < clients; ++i) {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          new TcpClient(done).start();
+        }
+      }, i * RAMP_MS / clients, TimeUnit.MILLISECONDS);
+    }
+    return done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private LatencyHistogram getHandlingLatency(String signal) {
+    LatencyHistogram histogram = handlingLatency.get(signal);
+    if (histogram == null) {
+      handlingLatency.putIfAbsent(signal, new LatencyHistogram("Client handling " + signal));
+      histogram = handlingLatency.get(signal);
+    }
+    return histogram;
+  }
+
+  // Prints the results, stops, and returns whether all clients completed in time.
+  private boolean finish(String title, long startNs, boolean inTime) {
+    scheduler.shutdownNow();
+    System.out.println(title + ": " + completed.get() + " completed, " + failures.get()
+        + " failed in " + (System.nanoTime() - startNs) / 1000000 + " ms"
+        + (inTime ? "." : ", timed out."));
+    for (LatencyHistogram histogram : new LatencyHistogram[] {registration, offerToAnswer, setup,
+             tcpSetup, resume}) {
+      if (histogram.getCount() > 0) {
+        System.out.println("  " + histogram);
+      }
+    }
+    for (LatencyHistogram histogram : handlingLatency.values()) {
+      System.out.println("  " + histogram);
+    }
+    return inTime && failures.get() == 0;
+  }
+
+  // Returns the string |key| of the JSON object |message|, or "invalid".
+  private static String getString(String message, String key) {
+    try {
+      final String value = SignalingJson.getString(SignalingJson.parseObject(message), key);
+      return (value != null) ? value : "invalid";
+    } catch (IllegalArgumentException e) {
+      return "invalid";
+    }
+  }
+
+  /**
+   * Runs |rooms| rooms, |tcpClients| TCP clients and |rooms| rooms with a dropped connection
+   * against a new StandInSignalingServer, prints the results, and returns whether all completed
+   * in time.
+   */
+  static boolean run(int rooms, int tcpClients, SignalingSession session)
+      throws IOException, InterruptedException {
+    final StandInSignalingServer server = new StandInSignalingServer(0, 0, session);
+    server.start();
+    try {
+      final SignalingLoadGenerator webSocketLoad = new SignalingLoadGenerator(session, server);
+      long startNs = System.nanoTime();
+      boolean inTime = webSocketLoad.runRooms("load-", rooms, false /* dropAnswerers */);
+      boolean success = webSocketLoad.finish("WebSocket, " + rooms + " rooms", startNs, inTime);
+
+      final SignalingLoadGenerator tcpLoad = new SignalingLoadGenerator(session, server);
+      startNs = System.nanoTime();
+      inTime = tcpLoad.runTcpClients(tcpClients);
+      success &= tcpLoad.finish("TCP, " + tcpClients + " clients", startNs, inTime);
+
+      final SignalingLoadGenerator resumeLoad = new SignalingLoadGenerator(session, server);
+      startNs = System.nanoTime();
+      inTime = resumeLoad.runRooms("resume-", rooms, true /* dropAnswerers */);
+      success &= resumeLoad.finish("Resume, " + rooms + " rooms", startNs, inTime);
+
+      System.out.println(server);
+      return success;
+    } finally {
+      server.close();
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    final int rooms = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ROOMS;
+    final int tcpClients = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_TCP_CLIENTS;
+    final SignalingSession session =
+        (args.length > 2) ? SignalingSession.load(args[2]) : SignalingSession.createDefault();
+    System.exit(run(rooms, tcpClients, session) ? 0 : 1);
+  }
+}
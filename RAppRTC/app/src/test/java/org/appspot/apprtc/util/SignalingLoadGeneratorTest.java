@@ -0,0 +1,27 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs a few rooms and TCP clients of SignalingLoadGenerator, so that WebSocketRTCClient,
+ * DirectRTCClient and StandInSignalingServer are checked to speak the same protocol.
+ */
+public class SignalingLoadGeneratorTest {
+  @Test
+  public void testClientsCompleteAgainstStandInServer() throws Exception {
+    assertTrue(SignalingLoadGenerator.run(
+        3 /* rooms */, 3 /* tcpClients */, SignalingSession.createDefault()));
+  }
+}
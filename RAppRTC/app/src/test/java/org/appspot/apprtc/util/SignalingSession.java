@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recorded signaling session: the session description and ICE candidates that the offerer and
+ * the answerer send, each with its offset from the message that starts the turn of its side,
+ * offerRequest for the offerer and answerRequest for the answerer. Replayed by
+ * StandInSignalingServer over TCP as DirectRTCClient sends them, and by SignalingLoadGenerator
+ * through WebSocketRTCClient and DirectRTCClient.
+ *
+ * A recording has one message per line: "<offset ms> <offerer|answerer> <message>", where the
+ * message is an offerResponse, answerResponse or candidate message as WebSocketRTCClient logs it
+ * after "C->WSS: ". Empty lines and lines starting with '#' are skipped.
+ */
+class SignalingSession {
+  // ICE candidates are signaled without their m-line, so they are replayed for the first one.
+  static final String CANDIDATE_MID = "audio";
+  static final int CANDIDATE_MLINE_INDEX = 0;
+
+  static class Step {
+    final long offsetMs;
+    // The session description if true, an ICE candidate otherwise.
+    final boolean description;
+    final String payload;
+
+    Step(long offsetMs, boolean description, String payload) {
+      this.offsetMs = offsetMs;
+      this.description = description;
+      this.payload = payload;
+    }
+  }
+
+  final List<Step> offererSteps;
+  final List<Step> answererSteps;
+
+  private SignalingSession(List<Step> offererSteps, List<Step> answererSteps) {
+    this.offererSteps = Collections.unmodifiableList(offererSteps);
+    this.answererSteps = Collections.unmodifiableList(answererSteps);
+  }
+
+  static SignalingSession load(String path) throws IOException {
+    final List<Step> offererSteps = new ArrayList<Step>();
+    final List<Step> answererSteps = new ArrayList<Step>();
+    final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(path), Charset.forName("UTF-8")));
+    try {
+      int lineNumber = 0;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        ++lineNumber;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        final String[] fields = line.split(" ", 3);
+        if (fields.length != 3 || !(fields[1].equals("offerer") || fields[1].equals("answerer"))) {
+          throw new IOException(path + ":" + lineNumber + ": expected <offset ms> <side> <json>");
+        }
+        final Map<String, Object> json;
+        try {
+          json = SignalingJson.parseObject(fields[2]);
+        } catch (IllegalArgumentException e) {
+          throw new IOException(path + ":" + lineNumber + ": " + e.getMessage());
+        }
+        final long offsetMs = Long.parseLong(fields[0]);
+        final String signal = SignalingJson.getString(json, "signal");
+        final Step step;
+        if ("offerResponse".equals(signal) || "answerResponse".equals(signal)) {
+          step = new Step(offsetMs, true, SignalingJson.getString(json, "content"));
+        } else if ("candidate".equals(signal)) {
+          step = new Step(offsetMs, false, SignalingJson.getString(json, "candidate"));
+        } else {
+          continue;
+        }
+        if (step.payload == null) {
+          throw new IOException(path + ":" + lineNumber + ": message without payload");
+        }
+        (fields[1].equals("offerer") ? offererSteps : answererSteps).add(step);
+      }
+    } finally {
+      reader.close();
+    }
+    if (!hasDescription(offererSteps) || !hasDescription(answererSteps)) {
+      throw new IOException(path + ": both sides need a session description");
+    }
+    return new SignalingSession(offererSteps, answererSteps);
+  }
+
+  /**
+   * Returns a session with descriptions of the size Chrome sends for an audio and video call, and
+   * host, server reflexive and relay candidates trickled over 200 ms.
+   */
+  static SignalingSession createDefault() {
+    return new SignalingSession(createSteps("offer", 1), createSteps("answer", 2));
+  }
+
+  int getCandidateCount(boolean offerer) {
+    int count = 0;
+    for (Step step : offerer ? offererSteps : answererSteps) {
+      if (!step.description) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns |step| as DirectRTCClient sends it.
+   */
+  static String toTcpMessage(Step step, boolean offerer) {
+    final Map<String, Object> json = new LinkedHashMap<String, Object>();
+    if (step.description) {
+      json.put("sdp", step.payload);
+      json.put("type", offerer ? "offer" : "answer");
+    } else {
+      json.put("type", "candidate");
+      json.put("label", CANDIDATE_MLINE_INDEX);
+      json.put("id", CANDIDATE_MID);
+      json.put("candidate", step.payload);
+    }
+    return SignalingJson.toJson(json);
+  }
+
+  private static boolean hasDescription(List<Step> steps) {
+    for (Step step : steps) {
+      if (step.description) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<Step> createSteps(String type, int host) {
+    final List<Step> steps = new ArrayList<Step>();
+    steps.add(new Step(0, true, createDescription(type, host)));
+    final String[] mids = {"audio", "video"};
+    for (int i = 0; i < mids.length; ++i) {
+      final int port = 50000 + 2 * host + i;
+      steps.add(new Step(5 + i, false, "candidate:" + (1000 + i) + " 1 udp 2122260223 192.168.1."
+          + host + " " + port + " typ host generation 0 ufrag abc" + host + " network-id 1"));
+      steps.add(new Step(10 + i, false, "candidate:" + (2000 + i) + " 1 tcp 1518280447 192.168.1."
+          + host + " 9 typ host tcptype active generation 0 ufrag abc" + host + " network-id 1"));
+      steps.add(new Step(60 + i, false, "candidate:" + (3000 + i) + " 1 udp 1686052607 203.0.113."
+          + host + " " + port + " typ srflx raddr 192.168.1." + host + " rport " + port
+          + " generation 0 ufrag abc" + host + " network-id 1"));
+      steps.add(new Step(200 + i, false, "candidate:" + (4000 + i) + " 1 udp 41885439 198.51.100.1 "
+          + (3478 + port) + " typ relay raddr 203.0.113." + host + " rport " + port
+          + " generation 0 ufrag abc" + host + " network-id 1"));
+    }
+    return steps;
+  }
+
+  private static String createDescription(String type, int host) {
+    final StringBuilder sdp = new StringBuilder();
+    sdp.append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n");
+    sdp.append("a=group:BUNDLE audio video\r\na=msid-semantic: WMS ARDAMS\r\n");
+    sdp.append("m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 106 105 13 126\r\n");
+    appendTransport(sdp, "audio", type, host);
+    sdp.append("a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n");
+    sdp.append("a=sendrecv\r\na=rtcp-mux\r\n");
+    sdp.append("a=rtpmap:111 opus/48000/2\r\na=rtcp-fb:111 transport-cc\r\n");
+    sdp.append("a=fmtp:111 minptime=10;useinbandfec=1\r\n");
+    final String[] audioCodecs = {"103 ISAC/16000", "104 ISAC/32000", "9 G722/8000",
+        "0 PCMU/8000", "8 PCMA/8000", "106 CN/32000", "105 CN/16000", "13 CN/8000",
+        "126 telephone-event/8000"};
+    for (String codec : audioCodecs) {
+      sdp.append("a=rtpmap:").append(codec).append("\r\n");
+    }
+    appendSsrc(sdp, 1000 + host, "ARDAMSa0");
+    sdp.append("m=video 9 UDP/TLS/RTP/SAVPF 100 101 116 117 96 97 98\r\n");
+    appendTransport(sdp, "video", type, host);
+    sdp.append("a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n");
+    sdp.append("a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n");
+    sdp.append("a=extmap:4 urn:3gpp:video-orientation\r\n");
+    sdp.append("a=sendrecv\r\na=rtcp-mux\r\na=rtcp-rsize\r\n");
+    final String[] videoCodecs = {"100 VP8/90000", "101 VP9/90000", "116 red/90000",
+        "117 ulpfec/90000"};
+    for (String codec : videoCodecs) {
+      sdp.append("a=rtpmap:").append(codec).append("\r\n");
+      final String payloadType = codec.substring(0, codec.indexOf(' '));
+      if (codec.contains("VP")) {
+        for (String feedback : new String[] {"ccm fir", "nack", "nack pli", "goog-remb",
+                 "transport-cc"}) {
+          sdp.append("a=rtcp-fb:").append(payloadType).append(' ').append(feedback).append("\r\n");
+        }
+      }
+    }
+    sdp.append("a=rtpmap:96 rtx/90000\r\na=fmtp:96 apt=100\r\n");
+    sdp.append("a=rtpmap:97 rtx/90000\r\na=fmtp:97 apt=101\r\n");
+    sdp.append("a=rtpmap:98 rtx/90000\r\na=fmtp:98 apt=116\r\n");
+    sdp.append("a=ssrc-group:FID ").append(2000 + host).append(' ').append(3000 + host);
+    sdp.append("\r\n");
+    appendSsrc(sdp, 2000 + host, "ARDAMSv0");
+    appendSsrc(sdp, 3000 + host, "ARDAMSv0");
+    return sdp.toString();
+  }
+
+  private static void appendTransport(StringBuilder sdp, String mid, String type, int host) {
+    sdp.append("c=IN IP4 0.0.0.0\r\na=rtcp:9 IN IP4 0.0.0.0\r\n");
+    sdp.append("a=ice-ufrag:abc").append(host).append("\r\n");
+    sdp.append("a=ice-pwd:0123456789abcdefghijklmn").append(host).append("\r\n");
+    sdp.append("a=fingerprint:sha-256 ");
+    for (int i = 0; i < 32; ++i) {
+      sdp.append(String.format("%s%02X", (i == 0) ? "" : ":", (i * 7 + host) & 0xFF));
+    }
+    sdp.append("\r\na=setup:").append(type.equals("offer") ? "actpass" : "active").append("\r\n");
+    sdp.append("a=mid:").append(mid).append("\r\n");
+  }
+
+  private static void appendSsrc(StringBuilder sdp, int ssrc, String track) {
+    sdp.append("a=ssrc:").append(ssrc).append(" cname:stand-in\r\n");
+    sdp.append("a=ssrc:").append(ssrc).append(" msid:ARDAMS ").append(track).append("\r\n");
+    sdp.append("a=ssrc:").append(ssrc).append(" mslabel:ARDAMS\r\n");
+    sdp.append("a=ssrc:").append(ssrc).append(" label:").append(track).append("\r\n");
+  }
+}
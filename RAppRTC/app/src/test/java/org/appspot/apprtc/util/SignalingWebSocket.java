@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Minimal server end of a WebSocket (RFC 6455) over a plain socket, for StandInSignalingServer,
+ * which runs on a plain JVM. Supports the opening handshake, unfragmented and fragmented text
+ * messages, ping and close, without extensions. sendText() may be called from any thread,
+ * readText() from one reading thread.
+ */
+class SignalingWebSocket {
+  private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  private static final int OPCODE_CONTINUATION = 0x0;
+  private static final int OPCODE_TEXT = 0x1;
+  private static final int OPCODE_CLOSE = 0x8;
+  private static final int OPCODE_PING = 0x9;
+  private static final int OPCODE_PONG = 0xA;
+  // Largest message accepted, well above the size of an SDP.
+  private static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+  private static final char[] BASE64 =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+  private final Object writeLock = new Object();
+  private boolean closeSent;
+
+  private SignalingWebSocket(Socket socket) throws IOException {
+    this.socket = socket;
+    socket.setTcpNoDelay(true);
+    in = new BufferedInputStream(socket.getInputStream());
+    out = new BufferedOutputStream(socket.getOutputStream());
+  }
+
+  /**
+   * Completes the opening handshake of a server for an accepted |socket|.
+   */
+  static SignalingWebSocket accept(Socket socket) throws IOException {
+    final SignalingWebSocket ws = new SignalingWebSocket(socket);
+    String key = null;
+    for (String line = ws.readLine(); line.length() > 0; line = ws.readLine()) {
+      final int colon = line.indexOf(':');
+      if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+        key = line.substring(colon + 1).trim();
+      }
+    }
+    if (key == null) {
+      socket.close();
+      throw new IOException("Not a WebSocket handshake");
+    }
+    ws.writeRaw("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+        + "Connection: Upgrade\r\nSec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n");
+    return ws;
+  }
+
+  void sendText(String message) throws IOException {
+    writeFrame(OPCODE_TEXT, message.getBytes(UTF_8));
+  }
+
+  /**
+   * Returns the next text message, or null once the connection is closed.
+   */
+  String readText() throws IOException {
+    final ByteArrayOutputStream message = new ByteArrayOutputStream();
+    while (true) {
+      final int first = in.read();
+      if (first < 0) {
+        return null;
+      }
+      final boolean fin = (first & 0x80) != 0;
+      final int opcode = first & 0x0F;
+      final int second = readByte();
+      long length = second & 0x7F;
+      if (length == 126) {
+        length = (readByte() << 8) | readByte();
+      } else if (length == 127) {
+        length = 0;
+        for (int i = 0; i < 8; ++i) {
+          length = (length << 8) | readByte();
+        }
+      }
+      if (length + message.size() > MAX_MESSAGE_BYTES) {
+        throw new IOException("WebSocket message too large: " + length);
+      }
+      final byte[] mask = new byte[4];
+      if ((second & 0x80) != 0) {
+        readFully(mask);
+      }
+      final byte[] payload = new byte[(int) length];
+      readFully(payload);
+      if ((second & 0x80) != 0) {
+        for (int i = 0; i < payload.length; ++i) {
+          payload[i] ^= mask[i % 4];
+        }
+      }
+      switch (opcode) {
+        case OPCODE_TEXT:
+        case OPCODE_CONTINUATION:
+          message.write(payload, 0, payload.length);
+          if (fin) {
+            return new String(message.toByteArray(), UTF_8);
+          }
+          break;
+        case OPCODE_PING:
+          writeFrame(OPCODE_PONG, payload);
+          break;
+        case OPCODE_CLOSE:
+          close();
+          return null;
+        default:
+          // Pong, or binary messages, which signaling does not use.
+          break;
+      }
+    }
+  }
+
+  /**
+   * Sends a close frame, if not sent yet, and closes the socket.
+   */
+  void close() {
+    try {
+      synchronized (writeLock) {
+        if (!closeSent && !socket.isClosed()) {
+          closeSent = true;
+          writeFrame(OPCODE_CLOSE, new byte[0]);
+        }
+      }
+    } catch (IOException e) {
+      // The socket is closed below anyway.
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing left to release.
+    }
+  }
+
+  private void writeFrame(int opcode, byte[] payload) throws IOException {
+    synchronized (writeLock) {
+      // Servers send unmasked frames.
+      out.write(0x80 | opcode);
+      if (payload.length < 126) {
+        out.write(payload.length);
+      } else if (payload.length <= 0xFFFF) {
+        out.write(126);
+        out.write(payload.length >>> 8);
+        out.write(payload.length);
+      } else {
+        out.write(127);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          out.write((int) ((long) payload.length >>> shift));
+        }
+      }
+      out.write(payload);
+      out.flush();
+    }
+  }
+
+  private void writeRaw(String text) throws IOException {
+    synchronized (writeLock) {
+      out.write(text.getBytes(ISO_8859_1));
+      out.flush();
+    }
+  }
+
+  // Reads a CRLF terminated line of the handshake.
+  private String readLine() throws IOException {
+    final StringBuilder line = new StringBuilder();
+    while (true) {
+      final int c = readByte();
+      if (c == '\n') {
+        final int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        return line.toString();
+      }
+      line.append((char) c);
+    }
+  }
+
+  private int readByte() throws IOException {
+    final int b = in.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  private void readFully(byte[] buffer) throws IOException {
+    int offset = 0;
+    while (offset < buffer.length) {
+      final int read = in.read(buffer, offset, buffer.length - offset);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+  }
+
+  private static String acceptKey(String key) {
+    try {
+      final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return base64(sha1.digest((key + ACCEPT_GUID).getBytes(ISO_8859_1)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String base64(byte[] data) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < data.length; i += 3) {
+      final int b0 = data[i] & 0xFF;
+      final int b1 = (i + 1 < data.length) ? (data[i + 1] & 0xFF) : 0;
+      final int b2 = (i + 2 < data.length) ? (data[i + 2] & 0xFF) : 0;
+      builder.append(BASE64[b0 >>> 2]);
+      builder.append(BASE64[((b0 & 0x03) << 4) | (b1 >>> 4)]);
+      builder.append((i + 1 < data.length) ? BASE64[((b1 & 0x0F) << 2) | (b2 >>> 6)] : '=');
+      builder.append((i + 2 < data.length) ? BASE64[b2 & 0x3F] : '=');
+    }
+    return builder.toString();
+  }
+}
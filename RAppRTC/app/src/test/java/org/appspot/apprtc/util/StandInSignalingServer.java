@@ -0,0 +1,581 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the signaling server, which runs on a plain JVM:
+ * - A WebSocket server with the rooms of the signaling protocol of WebSocketRTCClient. The first
+ *   client that joins a room gets "created", later ones "joined", and the clients already in the
+ *   room get "offerRequest" for each new one. offerResponse is relayed as answerRequest,
+ *   answerResponse as finalize, and candidate, iceRestartRequest and left as they are. TURN
+ *   requests get an empty server list.
+ * - Session resumption: created and joined carry a resume token. A client whose connection drops
+ *   without "left" stays in its room for |RESUME_GRACE_MS|, and messages to it are buffered. A
+ *   join with its resume token reattaches the session, answered by "resumed" instead of
+ *   created/joined, followed by the buffered messages.
+ * - A TCP peer for DirectRTCClient, which acts as the server side of a direct connection: it
+ *   replays the offerer side of a recorded SignalingSession to each client that connects, waits
+ *   for the answer and the candidates of the client, and hangs up.
+ * Records how long handling each message takes, by signal, and on the TCP side the time from the
+ * offer until the answer arrives.
+ *
+ * To exercise the app against it, use "ws://<host>:<WebSocket port>" as room URL, or the address
+ * and TCP port as room name with direct connections.
+ *
+ * Usage: java -cp <unit test classpath> org.appspot.apprtc.util.StandInSignalingServer
+ *     [WebSocket port] [TCP port] [recorded session]
+ */
+class StandInSignalingServer {
+  private static final int DEFAULT_WEBSOCKET_PORT = 8089;
+  private static final int DEFAULT_TCP_PORT = 8888;
+  private static final long DEFAULT_TURN_TTL_SECONDS = 24 * 60 * 60;
+  private static final long RESUME_GRACE_MS = 30000;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static class Client {
+    final String id;
+    final String resumeToken;
+    // Null while detached. Guarded by the client, like |pending|.
+    SignalingWebSocket ws;
+    // Messages to a detached client.
+    final List<String> pending = new ArrayList<String>();
+    // Counts detaches, so that a later detach is not left by the timer of an earlier one.
+    int detaches;
+    String room;
+
+    Client(String id, SignalingWebSocket ws) {
+      this.id = id;
+      this.ws = ws;
+      resumeToken = Long.toHexString(RANDOM.nextLong()) + Long.toHexString(RANDOM.nextLong());
+    }
+  }
+
+  private final SignalingSession session;
+  private final ServerSocket webSocketServer;
+  private final ServerSocket tcpServer;
+  private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+  private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+  private final ConcurrentMap<String, Client> clientsByResumeToken =
+      new ConcurrentHashMap<String, Client>();
+  // Clients by room, in the order they joined. Guarded by itself.
+  private final Map<String, List<Client>> rooms = new HashMap<String, List<Client>>();
+  private final ConcurrentMap<String, LatencyHistogram> handlingLatency =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private final LatencyHistogram tcpOfferToAnswer = new LatencyHistogram("TCP offer->answer");
+  private final AtomicLong nextClientId = new AtomicLong(1);
+  private final AtomicLong errors = new AtomicLong();
+  private volatile boolean closed;
+
+  /**
+   * Listens on |webSocketPort| and |tcpPort|, or on free ports if 0.
+   */
+  StandInSignalingServer(int webSocketPort, int tcpPort, SignalingSession session)
+      throws IOException {
+    this.session = session;
+    webSocketServer = new ServerSocket(webSocketPort, 1024);
+    tcpServer = new ServerSocket(tcpPort, 1024);
+  }
+
+  int getWebSocketPort() {
+    return webSocketServer.getLocalPort();
+  }
+
+  int getTcpPort() {
+    return tcpServer.getLocalPort();
+  }
+
+  void start() {
+    startThread("stand-in-ws-accept", new Runnable() {
+      @Override
+      public void run() {
+        acceptWebSockets();
+      }
+    });
+    startThread("stand-in-tcp-accept", new Runnable() {
+      @Override
+      public void run() {
+        acceptTcp();
+      }
+    });
+  }
+
+  void close() {
+    closed = true;
+    closeQuietly(webSocketServer);
+    closeQuietly(tcpServer);
+    for (Client client : clients.values()) {
+      final SignalingWebSocket ws = getWebSocket(client);
+      if (ws != null) {
+        ws.close();
+      }
+    }
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    int detached = 0;
+    for (Client client : clients.values()) {
+      if (getWebSocket(client) == null) {
+        ++detached;
+      }
+    }
+    final StringBuilder builder = new StringBuilder("Server: ");
+    builder.append(clients.size()).append(" clients, ").append(detached);
+    builder.append(" of them detached, ").append(errors.get()).append(" errors.");
+    for (LatencyHistogram histogram : handlingLatency.values()) {
+      builder.append("\n  ").append(histogram);
+    }
+    if (tcpOfferToAnswer.getCount() > 0) {
+      builder.append("\n  ").append(tcpOfferToAnswer);
+    }
+    return builder.toString();
+  }
+
+  private void acceptWebSockets() {
+    while (!closed) {
+      final Socket socket;
+      try {
+        socket = webSocketServer.accept();
+      } catch (IOException e) {
+        if (!closed) {
+          errors.incrementAndGet();
+        }
+        return;
+      }
+      startThread("stand-in-ws", new Runnable() {
+        @Override
+        public void run() {
+          serveWebSocket(socket);
+        }
+      });
+    }
+  }
+
+  private void serveWebSocket(Socket socket) {
+    SignalingWebSocket ws = null;
+    // Replaced by the resumed client after a join with a resume token.
+    final Client[] client = new Client[1];
+    try {
+      ws = SignalingWebSocket.accept(socket);
+      client[0] = new Client(Long.toString(nextClientId.getAndIncrement()), ws);
+      clients.put(client[0].id, client[0]);
+      for (String message = ws.readText(); message != null; message = ws.readText()) {
+        final long startNs = System.nanoTime();
+        final String signal = handleMessage(client, message);
+        getHandlingLatency("ws:" + signal).addSample((System.nanoTime() - startNs) / 1000);
+      }
+    } catch (IOException e) {
+      // Connections closed by dropConnection() are detached already.
+      if (!closed && (client[0] == null || getWebSocket(client[0]) == ws)) {
+        errors.incrementAndGet();
+      }
+    } finally {
+      if (ws != null) {
+        ws.close();
+      }
+      if (client[0] != null) {
+        detach(client[0], ws);
+      }
+    }
+  }
+
+  // Returns the signal of |message|, for the latency statistics. |connection| holds the client of
+  // the connection, which a join with a resume token replaces.
+  private String handleMessage(Client[] connection, String message) {
+    final Client client = connection[0];
+    final Map<String, Object> json;
+    try {
+      json = SignalingJson.parseObject(message);
+    } catch (IllegalArgumentException e) {
+      errors.incrementAndGet();
+      return "invalid";
+    }
+    final String signal = SignalingJson.getString(json, "signal");
+    if (signal == null) {
+      // Requests of RoomParametersFetcher.
+      if ("turn".equals(SignalingJson.getString(json, "id"))) {
+        final Map<String, Object> response = new LinkedHashMap<String, Object>();
+        response.put("signal", "turn");
+        response.put("iceServers", new ArrayList<Object>());
+        response.put("ttl", DEFAULT_TURN_TTL_SECONDS);
+        send(client, response);
+        return "turn";
+      }
+      return "request";
+    }
+    final String to = SignalingJson.getString(json, "to");
+    switch (signal) {
+      case "join":
+        final Client resumed =
+            resume(client, SignalingJson.getString(json, "resumeToken"));
+        if (resumed != null) {
+          connection[0] = resumed;
+          return "resume";
+        }
+        join(client, SignalingJson.getString(json, "content"));
+        break;
+      case "offerResponse":
+        relay(client, to, "answerRequest", SignalingJson.getString(json, "content"));
+        break;
+      case "answerResponse":
+        relay(client, to, "finalize", SignalingJson.getString(json, "content"));
+        break;
+      case "candidate":
+        String content = SignalingJson.getString(json, "content");
+        if (content == null) {
+          // Clients only send the candidate line.
+          final Map<String, Object> candidate = new LinkedHashMap<String, Object>();
+          candidate.put("sdpMid", SignalingSession.CANDIDATE_MID);
+          candidate.put("sdpMLineIndex", SignalingSession.CANDIDATE_MLINE_INDEX);
+          candidate.put("candidate", SignalingJson.getString(json, "candidate"));
+          content = SignalingJson.toJson(candidate);
+        }
+        relay(client, to, "candidate", content);
+        break;
+      case "iceRestartRequest":
+        relay(client, to, "iceRestartRequest", "");
+        break;
+      case "left":
+        leave(client);
+        break;
+      default:
+        errors.incrementAndGet();
+        return "unknown";
+    }
+    return signal;
+  }
+
+  /**
+   * Closes the connection of the client with |clientId| like a network change does, without
+   * "left", so that the client can resume its session.
+   */
+  void dropConnection(String clientId) {
+    final Client client = clients.get(clientId);
+    final SignalingWebSocket ws = (client == null) ? null : getWebSocket(client);
+    if (ws == null) {
+      return;
+    }
+    // Detached before closing, so that messages to it are buffered from now on.
+    detach(client, ws);
+    ws.close();
+  }
+
+  private void join(Client client, String room) {
+    if (room == null || client.room != null) {
+      errors.incrementAndGet();
+      return;
+    }
+    final List<Client> others;
+    synchronized (rooms) {
+      List<Client> members = rooms.get(room);
+      if (members == null) {
+        members = new ArrayList<Client>();
+        rooms.put(room, members);
+      }
+      others = new ArrayList<Client>(members);
+      members.add(client);
+      client.room = room;
+    }
+    clientsByResumeToken.put(client.resumeToken, client);
+    final Map<String, Object> registered =
+        message(others.isEmpty() ? "created" : "joined", null, client.id, null);
+    registered.put("resumeToken", client.resumeToken);
+    send(client, registered);
+    for (Client other : others) {
+      send(other, message("newJoined", client.id, other.id, null));
+      send(other, message("offerRequest", client.id, other.id, null));
+    }
+  }
+
+  // Reattaches the session of |resumeToken| to the connection of |client|, and returns it, or
+  // null if there is none.
+  private Client resume(Client client, String resumeToken) {
+    final Client resumed = (resumeToken == null) ? null : clientsByResumeToken.get(resumeToken);
+    if (resumed == null || resumed == client) {
+      return null;
+    }
+    final SignalingWebSocket ws = getWebSocket(client);
+    clients.remove(client.id);
+    final List<String> pending;
+    final SignalingWebSocket previous;
+    synchronized (resumed) {
+      previous = resumed.ws;
+      resumed.ws = ws;
+      ++resumed.detaches;
+      pending = new ArrayList<String>(resumed.pending);
+      resumed.pending.clear();
+    }
+    if (previous != null) {
+      // The client reconnected before the server noticed the old connection dropped.
+      previous.close();
+    }
+    final Map<String, Object> json = message("resumed", null, resumed.id, null);
+    json.put("resumeToken", resumed.resumeToken);
+    send(resumed, json);
+    for (String message : pending) {
+      send(resumed, message);
+    }
+    return resumed;
+  }
+
+  // Called when the connection |ws| of |client| closed. A client in a room is kept for
+  // |RESUME_GRACE_MS|, so that it can resume.
+  private void detach(final Client client, SignalingWebSocket ws) {
+    final int detaches;
+    synchronized (client) {
+      if (client.ws != ws) {
+        // Resumed on another connection.
+        return;
+      }
+      client.ws = null;
+      detaches = ++client.detaches;
+    }
+    if (client.room == null || closed) {
+      remove(client);
+      return;
+    }
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (client) {
+            if (client.detaches != detaches) {
+              return;
+            }
+          }
+          leave(client);
+          remove(client);
+        }
+      }, RESUME_GRACE_MS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      remove(client);
+    }
+  }
+
+  private void remove(Client client) {
+    clients.remove(client.id);
+    clientsByResumeToken.remove(client.resumeToken);
+  }
+
+  private void leave(Client client) {
+    final List<Client> others;
+    synchronized (rooms) {
+      if (client.room == null) {
+        return;
+      }
+      final List<Client> members = rooms.get(client.room);
+      members.remove(client);
+      if (members.isEmpty()) {
+        rooms.remove(client.room);
+      }
+      client.room = null;
+      others = new ArrayList<Client>(members);
+    }
+    for (Client other : others) {
+      send(other, message("left", client.id, other.id, null));
+    }
+  }
+
+  private void relay(Client from, String to, String signal, String content) {
+    final Client client = (to == null) ? null : clients.get(to);
+    if (client == null || content == null) {
+      errors.incrementAndGet();
+      return;
+    }
+    send(client, message(signal, from.id, to, content));
+  }
+
+  private static Map<String, Object> message(
+      String signal, String from, String to, String content) {
+    final Map<String, Object> json = new LinkedHashMap<String, Object>();
+    json.put("signal", signal);
+    json.put("from", from);
+    json.put("to", to);
+    if (content != null) {
+      json.put("content", content);
+    }
+    return json;
+  }
+
+  private void send(Client client, Map<String, Object> json) {
+    send(client, SignalingJson.toJson(json));
+  }
+
+  // Sends |message| to |client|, or buffers it while |client| is detached.
+  private void send(Client client, String message) {
+    final SignalingWebSocket ws;
+    synchronized (client) {
+      ws = client.ws;
+      if (ws == null) {
+        client.pending.add(message);
+        return;
+      }
+    }
+    try {
+      ws.sendText(message);
+    } catch (IOException e) {
+      // The reading thread of |client| notices the closed connection.
+      errors.incrementAndGet();
+    }
+  }
+
+  private static SignalingWebSocket getWebSocket(Client client) {
+    synchronized (client) {
+      return client.ws;
+    }
+  }
+
+  private void acceptTcp() {
+    while (!closed) {
+      final Socket socket;
+      try {
+        socket = tcpServer.accept();
+      } catch (IOException e) {
+        if (!closed) {
+          errors.incrementAndGet();
+        }
+        return;
+      }
+      startThread("stand-in-tcp", new Runnable() {
+        @Override
+        public void run() {
+          serveTcp(socket);
+        }
+      });
+    }
+  }
+
+  // Replays the offerer side to a DirectRTCClient, which connected as the client side, and closes
+  // |socket| once both sides are complete.
+  private void serveTcp(final Socket socket) {
+    // Steps not sent yet and messages of the client not received yet.
+    final AtomicInteger remaining = new AtomicInteger(
+        session.offererSteps.size() + 1 + session.getCandidateCount(false));
+    try {
+      socket.setTcpNoDelay(true);
+      final PrintWriter out =
+          new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8), true);
+      final BufferedReader in =
+          new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+      final long connectedNs = System.nanoTime();
+      final AtomicLong offerSentNs = new AtomicLong();
+      for (final SignalingSession.Step step : session.offererSteps) {
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (out) {
+              if (step.description) {
+                offerSentNs.set(System.nanoTime());
+              }
+              out.write(SignalingSession.toTcpMessage(step, true) + "\n");
+              out.flush();
+            }
+            if (remaining.decrementAndGet() == 0) {
+              closeQuietly(socket);
+            }
+          }
+        }, step.offsetMs, TimeUnit.MILLISECONDS);
+      }
+      for (String message = in.readLine(); message != null; message = in.readLine()) {
+        final long startNs = System.nanoTime();
+        String type;
+        try {
+          type = SignalingJson.getString(SignalingJson.parseObject(message), "type");
+        } catch (IllegalArgumentException e) {
+          errors.incrementAndGet();
+          type = "invalid";
+        }
+        if ("answer".equals(type)) {
+          final long sentNs = offerSentNs.get();
+          tcpOfferToAnswer.addSample((startNs - ((sentNs != 0) ? sentNs : connectedNs)) / 1000);
+        }
+        getHandlingLatency("tcp:" + type).addSample((System.nanoTime() - startNs) / 1000);
+        if (("answer".equals(type) || "candidate".equals(type))
+            && remaining.decrementAndGet() == 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // Also thrown when the last step was sent after the client completed.
+      if (!closed && remaining.get() > 0) {
+        errors.incrementAndGet();
+      }
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  private LatencyHistogram getHandlingLatency(String name) {
+    LatencyHistogram histogram = handlingLatency.get(name);
+    if (histogram == null) {
+      handlingLatency.putIfAbsent(name, new LatencyHistogram("Server handling " + name));
+      histogram = handlingLatency.get(name);
+    }
+    return histogram;
+  }
+
+  private static void startThread(String name, Runnable runnable) {
+    final Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing left to release.
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    final int webSocketPort =
+        (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_WEBSOCKET_PORT;
+    final int tcpPort = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_TCP_PORT;
+    final SignalingSession session =
+        (args.length > 2) ? SignalingSession.load(args[2]) : SignalingSession.createDefault();
+    final StandInSignalingServer server =
+        new StandInSignalingServer(webSocketPort, tcpPort, session);
+    server.start();
+    System.out.println("WebSocket on port " + server.getWebSocketPort() + ", TCP on port "
+        + server.getTcpPort() + ". Statistics every 10 s.");
+    while (true) {
+      Thread.sleep(10000);
+      System.out.println(server);
+    }
+  }
+}
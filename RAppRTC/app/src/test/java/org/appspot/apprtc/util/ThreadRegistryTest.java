@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Checks that ThreadRegistry matches the kernel names of threads, which are
+ * truncated to 15 characters.
+ */
+public class ThreadRegistryTest {
+  private static final int UNREGISTERED_TID = -1;
+
+  @Test
+  public void testLibraryThreadNames() {
+    assertEquals(ThreadRegistry.ROLE_VIDEO_CODEC,
+        ThreadRegistry.getRole(UNREGISTERED_TID, "MediaCodecVideo"));
+    assertEquals(ThreadRegistry.ROLE_SURFACE_TEXTURE,
+        ThreadRegistry.getRole(UNREGISTERED_TID, "Camera SurfaceT"));
+    assertEquals(ThreadRegistry.ROLE_AUDIO_PLAYOUT,
+        ThreadRegistry.getRole(UNREGISTERED_TID, "AudioTrackJavaT"));
+    assertEquals(ThreadRegistry.ROLE_WEBRTC_SIGNALING,
+        ThreadRegistry.getRole(UNREGISTERED_TID, "signaling_threa"));
+    assertNull(ThreadRegistry.getRole(UNREGISTERED_TID, "Binder:1234_2"));
+    assertNull(ThreadRegistry.getRole(UNREGISTERED_TID, null));
+  }
+
+  @Test
+  public void testLongPrefixIsTruncated() {
+    ThreadRegistry.registerNamePrefix("remote_video_view: EglRenderer", "test-render");
+    assertEquals("test-render", ThreadRegistry.getRole(UNREGISTERED_TID, "remote_video_vi"));
+    // A later registration of the same prefix replaces the role.
+    ThreadRegistry.registerNamePrefix("remote_video_vi", ThreadRegistry.ROLE_RENDER);
+    assertEquals(ThreadRegistry.ROLE_RENDER,
+        ThreadRegistry.getRole(UNREGISTERED_TID, "remote_video_vi"));
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.PeerConnection;
+
+/**
+ * Checks the expiry, refresh and per server keying of TurnCredentialCache.
+ */
+public class TurnCredentialCacheTest {
+  private static final String SERVER = "wss://a.example.com/signaling";
+  private static final String OTHER_SERVER = "wss://b.example.com/signaling";
+  private static final long TTL_MS = 10 * 60 * 1000;
+
+  private static final List<PeerConnection.IceServer> TURN_SERVERS =
+      Arrays.asList(new PeerConnection.IceServer("turn:a.example.com", "user", "password"));
+
+  @Test
+  public void testCredentialsExpireBeforeTtl() {
+    final TurnCredentialCache cache = new TurnCredentialCache();
+    assertNull(cache.get(SERVER, 0));
+    assertTrue(cache.startRequest(SERVER, 0));
+    cache.update(SERVER, TURN_SERVERS, TTL_MS, 100);
+    assertEquals(100, cache.getLastRequestDurationMs());
+
+    assertEquals(TURN_SERVERS, cache.get(SERVER, 100));
+    final long expiryMs = 100 + TTL_MS - TurnCredentialCache.EXPIRY_MARGIN_MS;
+    assertEquals(TURN_SERVERS, cache.get(SERVER, expiryMs - 1));
+    assertNull(cache.get(SERVER, expiryMs));
+  }
+
+  @Test
+  public void testOneRequestInFlightUntilRefreshIsDue() {
+    final TurnCredentialCache cache = new TurnCredentialCache();
+    assertTrue(cache.startRequest(SERVER, 0));
+    assertFalse(cache.startRequest(SERVER, 1));
+    // A request without a response is given up after a while.
+    assertTrue(cache.startRequest(SERVER, TurnCredentialCache.REQUEST_TIMEOUT_MS));
+    cache.update(SERVER, TURN_SERVERS, TTL_MS, TurnCredentialCache.REQUEST_TIMEOUT_MS);
+
+    final long updateMs = TurnCredentialCache.REQUEST_TIMEOUT_MS;
+    assertFalse(cache.startRequest(SERVER, updateMs + TTL_MS / 2));
+    assertTrue(cache.startRequest(SERVER, updateMs + TTL_MS * 9 / 10));
+    cache.onRequestFailed(SERVER);
+    assertTrue(cache.startRequest(SERVER, updateMs + TTL_MS * 9 / 10 + 1));
+  }
+
+  @Test
+  public void testCredentialsAreKeptPerServer() {
+    final TurnCredentialCache cache = new TurnCredentialCache();
+    assertTrue(cache.startRequest(SERVER, 0));
+    cache.update(SERVER, TURN_SERVERS, TTL_MS, 0);
+
+    // Another server does not get the credentials, and requests its own.
+    assertNull(cache.get(OTHER_SERVER, 1));
+    assertTrue(cache.startRequest(OTHER_SERVER, 1));
+    assertEquals(-1, cache.getRemainingTtlMs(1));
+    // A late response for the first server is not stored for the other one.
+    cache.update(SERVER, TURN_SERVERS, TTL_MS, 2);
+    assertNull(cache.get(OTHER_SERVER, 2));
+    assertNull(cache.get(SERVER, 3));
+  }
+}
@@ -22,6 +22,7 @@ cp out/arm64/lib.java/webrtc/api/libjingle_peerconnection_java.jar ~/AndroidStud
 cp out/arm64/lib.java/webrtc/api/libjingle_peerconnection_java.jar ~/AndroidStudioProjects/RAppRTC/screencapture/libs/libjingle_peerconnection_java.jar
 cp out/arm64/libjingle_peerconnection_so.so ~/AndroidStudioProjects/RAppRTC/app/libs/arm64-v8a/libjingle_peerconnection_so.so 
 cp out/arm64/libjingle_peerconnection_so.so ~/AndroidStudioProjects/RAppRTC/screencapture/libs/arm64-v8a/libjingle_peerconnection_so.so
+cp out/arm64/lib.java/webrtc/base/base_java.jar ~/AndroidStudioProjects/RAppRTC/app/libs/base_java.jar
 
 cp out/arm/lib.java/webrtc/api/libjingle_peerconnection_java.jar ~/AndroidStudioProjects/RAppRTC/app/libs/libjingle_peerconnection_java.jar
 cp out/arm/lib.java/webrtc/api/libjingle_peerconnection_java.jar ~/AndroidStudioProjects/RAppRTC/screencapture/libs/libjingle_peerconnection_java.jar